@@ -917,6 +917,46 @@ class JlsTest extends JaninoTestSuite {
         );
     }
 
+    @Test public void
+    test_14_11__TheSwitchStatement_clusters() throws Exception {
+
+        // Two dense clusters and a sparse value in between.
+        this.assertScriptReturnsTrue(
+            ""
+            + "int hits = 0;\n"
+            + "for (int i = -10; i < 1100; i++) {\n"
+            + "    switch (i) {\n"
+            + "    case 1: case 2: case 3: case 4: case 5: hits += 1; break;\n"
+            + "    case 500: hits += 10; break;\n"
+            + "    case 1000: case 1001: case 1002: case 1003: case 1004: case 1005: hits += 100; break;\n"
+            + "    default: break;\n"
+            + "    }\n"
+            + "}\n"
+            + "return hits == 5 + 10 + 600;"
+        );
+    }
+
+    @Test public void
+    test_14_11__TheSwitchStatement_String() throws Exception {
+
+        // Notice: "Aa" and "BB" have the same hash code.
+        this.assertScriptReturnsTrue(
+            ""
+            + "String result = \"\";\n"
+            + "for (String s : new String[] { \"Aa\", \"BB\", \"C\", \"D\", \"\" }) {\n"
+            + "    switch (s) {\n"
+            + "    case \"Aa\": result += 1; break;\n"
+            + "    case \"BB\": result += 2;\n"
+            + "    case \"C\":  result += 3; break;\n"
+            + "    case \"\":   result += 4; break;\n"
+            + "    default:     result += 5; break;\n"
+            + "    }\n"
+            + "}\n"
+            + "return result.equals(\"123354\");"
+        );
+        this.assertScriptUncookable("switch (\"A\") { case \"A\": case \"A\": }");
+    }
+
     @Test public void
     test_14_11__TheSwitchStatement_enum() throws Exception {
         this.assertScriptReturnsTrue(
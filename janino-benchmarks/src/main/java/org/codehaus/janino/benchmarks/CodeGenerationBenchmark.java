@@ -0,0 +1,89 @@
+
+/*
+ * Janino - An embedded Java[TM] compiler
+ *
+ * Copyright (c) 2001-2010, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codehaus.janino.benchmarks;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.janino.ClassLoaderIClassLoader;
+import org.codehaus.janino.IClassLoader;
+import org.codehaus.janino.Java;
+import org.codehaus.janino.Parser;
+import org.codehaus.janino.Scanner;
+import org.codehaus.janino.UnitCompiler;
+import org.codehaus.janino.util.ClassFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link UnitCompiler#compileUnit(boolean, boolean, boolean)}, i.e. the semantic analysis and the bytecode
+ * generation, excluding scanning, parsing, serialization and class loading.
+ * <p>
+ *   Because a {@link UnitCompiler} annotates the AST while it compiles, each invocation compiles a freshly parsed
+ *   compilation unit. The referenced JDK classes are loaded only once, because the {@link IClassLoader} is shared.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5) @Measurement(iterations = 5) @Fork(1)
+@State(Scope.Benchmark) public
+class CodeGenerationBenchmark {
+
+    /**
+     * The number of methods in the compiled compilation unit.
+     */
+    @Param({ "10", "100" }) public int methods;
+
+    private String               source;
+    private IClassLoader         iClassLoader;
+    private Java.CompilationUnit compilationUnit;
+
+    @Setup public void
+    setUp() {
+        this.source       = Corpus.compilationUnit(this.methods);
+        this.iClassLoader = new ClassLoaderIClassLoader(this.getClass().getClassLoader());
+    }
+
+    @Setup(Level.Invocation) public void
+    parse() throws Exception {
+        this.compilationUnit = new Parser(new Scanner(null, new StringReader(this.source))).parseCompilationUnit();
+    }
+
+    @Benchmark public ClassFile[] // SUPPRESS CHECKSTYLE JavadocMethod
+    compileUnit() throws Exception {
+        return new UnitCompiler(this.compilationUnit, this.iClassLoader).compileUnit(true, true, true);
+    }
+}
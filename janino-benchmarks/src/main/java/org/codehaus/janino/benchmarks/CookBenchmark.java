@@ -0,0 +1,99 @@
+
+/*
+ * Janino - An embedded Java[TM] compiler
+ *
+ * Copyright (c) 2001-2010, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codehaus.janino.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.commons.compiler.CompilerFactoryFactory;
+import org.codehaus.commons.compiler.IClassBodyEvaluator;
+import org.codehaus.commons.compiler.ICompilerFactory;
+import org.codehaus.commons.compiler.IExpressionEvaluator;
+import org.codehaus.commons.compiler.IScriptEvaluator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cook latency of the expression, script and class body evaluators, i.e. the time from source code
+ * to loaded class, of both the JANINO and the JDK implementation of {@code org.codehaus.commons.compiler}.
+ */
+@BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5) @Measurement(iterations = 5) @Fork(1)
+@State(Scope.Benchmark) public
+class CookBenchmark {
+
+    /**
+     * The class name of the {@link ICompilerFactory} under test.
+     */
+    @Param({ Corpus.JANINO, Corpus.JDK }) public String compilerFactory;
+
+    private ICompilerFactory factory;
+    private String           script;
+    private String           classBody;
+
+    @Setup public void
+    setUp() throws Exception {
+        this.factory   = CompilerFactoryFactory.getCompilerFactory(this.compilerFactory);
+        this.script    = Corpus.script();
+        this.classBody = Corpus.classBody(10);
+    }
+
+    @Benchmark public Object // SUPPRESS CHECKSTYLE JavadocMethod
+    cookExpression() throws Exception {
+        IExpressionEvaluator ee = this.factory.newExpressionEvaluator();
+        ee.setParameters(new String[] { "a", "b", "s" }, new Class[] { int.class, int.class, String.class });
+        ee.setExpressionType(int.class);
+        ee.cook(Corpus.expression());
+        return ee.getMethod();
+    }
+
+    @Benchmark public Object // SUPPRESS CHECKSTYLE JavadocMethod
+    cookScript() throws Exception {
+        IScriptEvaluator se = this.factory.newScriptEvaluator();
+        se.setDefaultImports(new String[] { "java.util.*" });
+        se.setParameters(new String[] { "count", "prefix" }, new Class[] { int.class, String.class });
+        se.setReturnType(String.class);
+        se.cook(this.script);
+        return se.getMethod();
+    }
+
+    @Benchmark public Object // SUPPRESS CHECKSTYLE JavadocMethod
+    cookClassBody() throws Exception {
+        IClassBodyEvaluator cbe = this.factory.newClassBodyEvaluator();
+        cbe.setDefaultImports(new String[] { "java.util.*" });
+        cbe.cook(this.classBody);
+        return cbe.getClazz();
+    }
+}
@@ -0,0 +1,274 @@
+
+/*
+ * Janino - An embedded Java[TM] compiler
+ *
+ * Copyright (c) 2001-2010, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codehaus.janino.benchmarks;
+
+/**
+ * Generates the source code that the benchmarks process. The code is synthetic, but exercises the typical language
+ * elements: Fields, loops, conditionals, arithmetic, string concatenation, method invocations, object creation and
+ * exception handling.
+ */
+final
+class Corpus {
+
+    private Corpus() {}
+
+    /**
+     * The names of the {@link org.codehaus.commons.compiler.ICompilerFactory} implementations that the benchmarks
+     * compare; for use as a JMH {@code @Param}.
+     */
+    static final String JANINO = "org.codehaus.janino.CompilerFactory";
+
+    /**
+     * @see #JANINO
+     */
+    static final String JDK = "org.codehaus.commons.compiler.jdk.CompilerFactory";
+
+    /**
+     * @return A compilation unit that declares class "{@code pkg.Corpus}" with the given number of methods
+     */
+    static String
+    compilationUnit(int methodCount) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("package pkg;\n");
+        sb.append("\n");
+        sb.append("import java.util.*;\n");
+        sb.append("\n");
+        sb.append("public class Corpus {\n");
+        sb.append("\n");
+        sb.append("    private final List<String> names = new ArrayList<String>();\n");
+        sb.append("    private int                counter;\n");
+        sb.append(Corpus.classBody(methodCount));
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /**
+     * @return A sequence of method declarations, suitable as a class body
+     */
+    static String
+    classBody(int methodCount) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < methodCount; i++) {
+            sb.append("\n");
+            sb.append("    /**\n");
+            sb.append("     * Method #").append(i).append(".\n");
+            sb.append("     */\n");
+            sb.append("    public String\n");
+            sb.append("    method").append(i).append("(int count, String prefix) {\n");
+            sb.append(Corpus.indent(Corpus.script(), "        "));
+            sb.append("    }\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return A sequence of statements that uses the variables "{@code int count}" and "{@code String prefix}" and
+     *         returns a string
+     */
+    static String
+    script() {
+        return (
+            ""
+            + "StringBuilder sb = new StringBuilder(prefix);\n"
+            + "Map<String, Integer> m = new HashMap<String, Integer>();\n"
+            + "for (int i = 0; i < count; i++) {\n"
+            + "    if (i % 3 == 0) {\n"
+            + "        sb.append(\"fizz\").append(i);\n"
+            + "    } else\n"
+            + "    if (i % 5 == 0) {\n"
+            + "        sb.append(prefix + \":\" + i * 2L + \"/\" + (i + 0.5));\n"
+            + "    } else {\n"
+            + "        m.put(String.valueOf(i), new Integer(i));\n"
+            + "    }\n"
+            + "}\n"
+            + "try {\n"
+            + "    Integer x = (Integer) m.get(\"7\");\n"
+            + "    if (x != null && x.intValue() > count) throw new IllegalStateException(x.toString());\n"
+            + "} catch (RuntimeException re) {\n"
+            + "    sb.setLength(0);\n"
+            + "}\n"
+            + "return sb.length() > 100 ? sb.substring(0, 100) : sb.toString();\n"
+        );
+    }
+
+    /**
+     * @return A long, straight-line script, as code generators typically produce it: <var>statementCount</var> local
+     *         variable declarations, each computed from its predecessors and the variables "{@code double x}" and
+     *         "{@code double y}"; returns a {@code double}
+     */
+    static String
+    generatedScript(int statementCount) {
+        StringBuilder sb = new StringBuilder("double v0 = x;\n");
+        for (int i = 1; i < statementCount; i++) {
+            sb.append("double v").append(i).append(" = ");
+            if (i % 10 == 0) {
+                sb.append('v').append(i - 1).append(" > y ? v").append(i / 2);
+                sb.append(" : Math.min(v").append(i - 1).append(", x)");
+            } else {
+                sb.append('v').append(i - 1).append(" * 1.0001 + ").append(i % 7).append(" - y / ").append(i);
+            }
+            sb.append(";\n");
+        }
+        sb.append("return v").append(statementCount - 1).append(";\n");
+        return sb.toString();
+    }
+
+    /**
+     * @return An expression that uses the variables "{@code int a}", "{@code int b}" and "{@code String s}" and
+     *         evaluates to an {@code int}
+     */
+    static String
+    expression() { return "a * 3 + (b > 0 ? s.length() : -b) - Math.max(a, b) % 7"; }
+
+    /**
+     * @return The fully qualified name of the class that {@link #syntheticClass(int)} declares, e.g. "{@code
+     *         synth.p3.C305}"
+     */
+    static String
+    syntheticClassName(int index) { return "synth.p" + index / 100 + ".C" + index; }
+
+    /**
+     * Generates one of the compilation units of the synthetic corpus. Each compilation unit declares one class that
+     * stresses the costly areas of the compiler: Deeply nested parameterized types, generic methods with bounded type
+     * parameters, big dense and sparse switch statements, and heavily overloaded methods. Class #<var>index</var>
+     * references class #<var>index</var>{@code - 1}, so the corpus must be compiled as a whole.
+     *
+     * @see #syntheticClassName(int)
+     */
+    static String
+    syntheticClass(int index) {
+        String className  = Corpus.syntheticClassName(index);
+        String simpleName = className.substring(className.lastIndexOf('.') + 1);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("package ").append(className.substring(0, className.lastIndexOf('.'))).append(";\n");
+        sb.append("\n");
+        sb.append("import java.util.*;\n");
+        sb.append("\n");
+        sb.append("public class ").append(simpleName).append(" implements Comparable {\n");
+        sb.append("\n");
+        sb.append("    private final Map<String, List<Map<Integer, Set<String>>>> index = (\n");
+        sb.append("        new HashMap<String, List<Map<Integer, Set<String>>>>()\n");
+        sb.append("    );\n");
+        sb.append("    private int value;\n");
+        sb.append("\n");
+        sb.append("    public ").append(simpleName).append("(int value) { this.value = value; }\n");
+        sb.append("\n");
+        sb.append("    @Override public int\n");
+        sb.append("    compareTo(Object that) { return this.value - ((").append(simpleName).append(") that).value; }\n");
+
+        // Generic method with bounded type parameters.
+        sb.append("\n");
+        sb.append("    public static <K extends Comparable<K>, V extends Collection<? extends K>> K\n");
+        sb.append("    max(V values) {\n");
+        sb.append("        K result = null;\n");
+        sb.append("        for (Iterator<? extends K> it = values.iterator(); it.hasNext();) {\n");
+        sb.append("            K k = (K) it.next();\n");
+        sb.append("            if (result == null || ((Comparable) k).compareTo(result) > 0) result = k;\n");
+        sb.append("        }\n");
+        sb.append("        return result;\n");
+        sb.append("    }\n");
+
+        // Deeply nested parameterized types.
+        sb.append("\n");
+        sb.append("    public Set<String>\n");
+        sb.append("    lookup(String key, int slot) {\n");
+        sb.append("        List<Map<Integer, Set<String>>> l = (List<Map<Integer, Set<String>>>) this.index.get(key);\n");
+        sb.append("        if (l == null) {\n");
+        sb.append("            l = new ArrayList<Map<Integer, Set<String>>>();\n");
+        sb.append("            this.index.put(key, l);\n");
+        sb.append("        }\n");
+        sb.append("        while (l.size() <= slot) l.add(new TreeMap<Integer, Set<String>>());\n");
+        sb.append("        Map<Integer, Set<String>> m = (Map<Integer, Set<String>>) l.get(slot);\n");
+        sb.append("        Set<String>               s = (Set<String>) m.get(Integer.valueOf(slot));\n");
+        sb.append("        if (s == null) m.put(Integer.valueOf(slot), (s = new TreeSet<String>()));\n");
+        sb.append("        return s;\n");
+        sb.append("    }\n");
+
+        // Big dense switch (TABLESWITCH).
+        sb.append("\n");
+        sb.append("    public static int\n");
+        sb.append("    dense(int x) {\n");
+        sb.append("        switch (x) {\n");
+        for (int i = 0; i < 200; i++) {
+            sb.append("        case ").append(i).append(": return x * ").append(i % 13 + 1).append(" + ").append(index);
+            sb.append(";\n");
+        }
+        sb.append("        default: return -1;\n");
+        sb.append("        }\n");
+        sb.append("    }\n");
+
+        // Big sparse switch (LOOKUPSWITCH).
+        sb.append("\n");
+        sb.append("    public static String\n");
+        sb.append("    sparse(int x) {\n");
+        sb.append("        switch (x) {\n");
+        for (int i = 0; i < 100; i++) {
+            sb.append("        case ").append(i * 7919 - 300000).append(":\n");
+            sb.append("            return \"s").append(i).append("\";\n");
+        }
+        sb.append("        default:\n");
+        sb.append("            return null;\n");
+        sb.append("        }\n");
+        sb.append("    }\n");
+
+        // Heavily overloaded methods, and invocations that require overload resolution.
+        sb.append("\n");
+        for (int i = 0; i < Corpus.OVERLOADED_PARAMETER_TYPES.length; i++) {
+            String pt = Corpus.OVERLOADED_PARAMETER_TYPES[i];
+            sb.append("    public static int f(").append(pt).append(" a) { return ").append(i).append("; }\n");
+            sb.append("    public static int f(").append(pt).append(" a, Object b) { return ").append(i + 10);
+            sb.append("; }\n");
+        }
+        sb.append("    public static int f(Object... a) { return 99; }\n");
+        sb.append("\n");
+        sb.append("    public int\n");
+        sb.append("    overloads(String s) {\n");
+        sb.append("        return (\n");
+        sb.append("            f(1) + f(2L) + f(3.0) + f('c') + f((short) 4) + f(1.5F) + f(s) + f((Object) s)\n");
+        sb.append("            + f(Integer.valueOf(5)) + f(new StringBuilder(s)) + f(new ArrayList<String>())\n");
+        sb.append("            + f(s, s) + f(1, 2, 3) + f(this.value, this) + f(Long.valueOf(6))\n");
+        if (index > 0) {
+            sb.append("            + ").append(Corpus.syntheticClassName(index - 1)).append(".dense(this.value)\n");
+        }
+        sb.append("        );\n");
+        sb.append("    }\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static final String[] OVERLOADED_PARAMETER_TYPES = {
+        "int", "long", "double", "char", "Object", "String", "Integer", "Number", "CharSequence", "List<String>",
+    };
+
+    private static String
+    indent(String text, String indentation) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : text.split("\n")) sb.append(indentation).append(line).append('\n');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,100 @@
+
+/*
+ * Janino - An embedded Java[TM] compiler
+ *
+ * Copyright (c) 2001-2010, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codehaus.janino.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.commons.compiler.CompilerFactoryFactory;
+import org.codehaus.commons.compiler.IExpressionEvaluator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the invocation of a cooked expression through {@link IExpressionEvaluator#evaluate(Object[])}, which uses
+ * reflection, with the invocation through a {@link IExpressionEvaluator#createFastEvaluator(String, Class, String[])
+ * fast evaluator}, for both the JANINO and the JDK implementation of {@code org.codehaus.commons.compiler}.
+ */
+@BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5) @Measurement(iterations = 5) @Fork(1)
+@State(Scope.Benchmark) public
+class EvaluateBenchmark {
+
+    /**
+     * The interface that the fast evaluator implements.
+     */
+    public
+    interface Expression {
+        int evaluate(int a, int b, String s); // SUPPRESS CHECKSTYLE JavadocMethod
+    }
+
+    /**
+     * The class name of the {@link org.codehaus.commons.compiler.ICompilerFactory} under test.
+     */
+    @Param({ Corpus.JANINO, Corpus.JDK }) public String compilerFactory;
+
+    private IExpressionEvaluator expressionEvaluator;
+    private Expression           fastEvaluator;
+    private int                  a = 7, b = 11;
+    private String               s = "hello";
+
+    @Setup public void
+    setUp() throws Exception {
+
+        IExpressionEvaluator ee = CompilerFactoryFactory.getCompilerFactory(
+            this.compilerFactory
+        ).newExpressionEvaluator();
+        ee.setParameters(new String[] { "a", "b", "s" }, new Class[] { int.class, int.class, String.class });
+        ee.setExpressionType(int.class);
+        ee.cook(Corpus.expression());
+        this.expressionEvaluator = ee;
+
+        this.fastEvaluator = (Expression) CompilerFactoryFactory.getCompilerFactory(
+            this.compilerFactory
+        ).newExpressionEvaluator().createFastEvaluator(
+            Corpus.expression(),
+            Expression.class,
+            new String[] { "a", "b", "s" }
+        );
+    }
+
+    @Benchmark public Object // SUPPRESS CHECKSTYLE JavadocMethod
+    evaluate() throws Exception {
+        return this.expressionEvaluator.evaluate(new Object[] { this.a, this.b, this.s });
+    }
+
+    @Benchmark public int // SUPPRESS CHECKSTYLE JavadocMethod
+    fastEvaluator() { return this.fastEvaluator.evaluate(this.a, this.b, this.s); }
+}
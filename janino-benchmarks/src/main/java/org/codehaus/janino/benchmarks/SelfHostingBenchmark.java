@@ -0,0 +1,601 @@
+
+/*
+ * Janino - An embedded Java[TM] compiler
+ *
+ * Copyright (c) 2001-2010, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codehaus.janino.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.codehaus.commons.compiler.CompileException;
+import org.codehaus.commons.compiler.ErrorHandler;
+import org.codehaus.commons.compiler.Location;
+import org.codehaus.janino.ClassLoaderIClassLoader;
+import org.codehaus.janino.CompilationListener;
+import org.codehaus.janino.CompilationMetrics;
+import org.codehaus.janino.Compiler;
+import org.codehaus.janino.ScriptEvaluator;
+import org.codehaus.janino.util.resource.MapResourceCreator;
+import org.codehaus.janino.util.resource.MapResourceFinder;
+import org.codehaus.janino.util.resource.Resource;
+import org.codehaus.janino.util.resource.ResourceFinder;
+
+/**
+ * A macro-benchmark that compiles three large corpora with JANINO: The JANINO source tree itself ("self-hosting"), a
+ * generated corpus of synthetic classes ("synthetic", see {@link Corpus#syntheticClass(int)}), both with the {@link
+ * Compiler}, and a set of long generated scripts ("script", see {@link Corpus#generatedScript(int)}), which a {@link
+ * ScriptEvaluator} cooks into one class.
+ * <p>
+ *   Usage:
+ * </p>
+ * <pre>
+ *     java org.codehaus.janino.benchmarks.SelfHostingBenchmark \
+ *               [ -source-dir <em>dir</em> ] \
+ *               [ -synthetic-classes <em>n</em> ] \
+ *               [ -scripts <em>n</em> ] \
+ *               [ -script-statements <em>n</em> ] \
+ *               [ -warmup <em>n</em> ] \
+ *               [ -iterations <em>n</em> ] \
+ *               [ -baseline <em>properties-file</em> [ -threshold <em>percent</em> ] ] \
+ *               [ -write-baseline <em>properties-file</em> ]
+ * </pre>
+ * <p>
+ *   For each corpus, the benchmark reports the median of the measured iterations of the end-to-end compilation time,
+ *   the peak heap usage, the retained heap, the number of generated classes per second, the number and the duration
+ *   of garbage collections, and the number of bytes that the compiling thread allocated.
+ * </p>
+ * <p>
+ *   The peak heap usage ("peakHeapBytes") includes the garbage that was not yet collected, so it depends on the heap
+ *   size and on the timing of the garbage collections. The retained heap ("retainedHeapBytes") is the growth of the
+ *   heap usage after a full garbage collection, while the results of the compilation (the {@link Compiler} with its
+ *   class files, resp. the cooked {@link ScriptEvaluator}) are still reachable, i.e. what JANINO retains.
+ * </p>
+ * <p>
+ *   JANINO cannot (yet) compile all of its own source files, so these are compiled one by one, against the JANINO
+ *   classes on the class path; the number of source files that fail to compile is reported as "failedUnits".
+ * </p>
+ * <p>
+ *   With "-baseline", the results are compared with the given baseline, and the exit status is 1 iff more source
+ *   files fail to compile ("failedUnits"), or iff the retained heap ("retainedHeapBytes") is greater than its
+ *   baseline by more than the threshold (default: 10 percent) and by more than 4 MB. All other metrics are reported
+ *   together with their change, but are not checked: The timing, GC and peak heap metrics are too noisy for a gate,
+ *   and "classCount" changes whenever a source file is added or removed. The "self-hosting" profile of this module's
+ *   POM does the comparison in the "verify" phase, against the file "self-hosting-baseline.properties". Because the
+ *   baseline depends on the hardware and the JVM, it should be re-created with "-write-baseline" whenever the build
+ *   machine changes.
+ * </p>
+ */
+public final
+class SelfHostingBenchmark {
+
+    private SelfHostingBenchmark() {}
+
+    /**
+     * Command line interface; see the class documentation.
+     */
+    public static void
+    main(String[] args) throws Exception {
+        File   sourceDirectory         = new File("../janino/src/main/java");
+        int    syntheticClassCount     = 10000;
+        int    scriptCount             = 50;
+        int    scriptStatementCount    = 1000;
+        int    warmupIterations        = 1;
+        int    measurementIterations   = 3;
+        File   optionalBaselineFile    = null;
+        double threshold               = 10;
+        File   optionalNewBaselineFile = null;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("-source-dir".equals(arg)) {
+                sourceDirectory = new File(args[++i]);
+            } else
+            if ("-synthetic-classes".equals(arg)) {
+                syntheticClassCount = Integer.parseInt(args[++i]);
+            } else
+            if ("-scripts".equals(arg)) {
+                scriptCount = Integer.parseInt(args[++i]);
+            } else
+            if ("-script-statements".equals(arg)) {
+                scriptStatementCount = Integer.parseInt(args[++i]);
+            } else
+            if ("-warmup".equals(arg)) {
+                warmupIterations = Integer.parseInt(args[++i]);
+            } else
+            if ("-iterations".equals(arg)) {
+                measurementIterations = Integer.parseInt(args[++i]);
+            } else
+            if ("-baseline".equals(arg)) {
+                optionalBaselineFile = new File(args[++i]);
+            } else
+            if ("-threshold".equals(arg)) {
+                threshold = Double.parseDouble(args[++i]);
+            } else
+            if ("-write-baseline".equals(arg)) {
+                optionalNewBaselineFile = new File(args[++i]);
+            } else
+            {
+                System.err.println("Invalid command line option \"" + arg + "\"");
+                System.exit(2);
+            }
+        }
+
+        List<File> sourceFiles = new ArrayList<File>();
+        SelfHostingBenchmark.findSourceFiles(sourceDirectory, sourceFiles);
+        if (sourceFiles.isEmpty()) {
+            System.err.println("No source files found under \"" + sourceDirectory + "\"");
+            System.exit(2);
+        }
+        Collections.sort(sourceFiles);
+
+        Resource[] syntheticResources = SelfHostingBenchmark.syntheticResources(syntheticClassCount);
+
+        String[] scripts = new String[scriptCount];
+        Arrays.fill(scripts, Corpus.generatedScript(scriptStatementCount));
+
+        Map<String, Long> results = new TreeMap<String, Long>();
+        results.putAll(SelfHostingBenchmark.measure(
+            "selfHosting",
+            new SourceTreeWorkload(sourceFiles),
+            warmupIterations,
+            measurementIterations
+        ));
+        results.putAll(SelfHostingBenchmark.measure(
+            "synthetic",
+            new SyntheticWorkload(syntheticResources),
+            warmupIterations,
+            measurementIterations
+        ));
+        results.putAll(SelfHostingBenchmark.measure(
+            "script",
+            new ScriptWorkload(scripts),
+            warmupIterations,
+            measurementIterations
+        ));
+
+        boolean regression = false;
+        if (optionalBaselineFile != null) {
+            regression = SelfHostingBenchmark.compare(
+                results,
+                SelfHostingBenchmark.loadBaseline(optionalBaselineFile),
+                threshold
+            );
+        } else {
+            for (Entry<String, Long> e : results.entrySet()) System.out.println(e.getKey() + "=" + e.getValue());
+        }
+
+        if (optionalNewBaselineFile != null) {
+            SelfHostingBenchmark.storeBaseline(
+                results,
+                optionalNewBaselineFile,
+                (
+                    sourceFiles.size()
+                    + " source files, "
+                    + syntheticClassCount
+                    + " synthetic classes, "
+                    + scriptCount
+                    + " scripts of "
+                    + scriptStatementCount
+                    + " statements"
+                )
+            );
+        }
+
+        if (regression) System.exit(1);
+    }
+
+    /**
+     * Compiles one of the corpora.
+     */
+    private
+    interface Workload {
+
+        /**
+         * Compiles the entire corpus once.
+         *
+         * @param listener Must be installed on the {@link Compiler}s
+         * @param results  Receives the results of the compilation, which must remain reachable until the retained
+         *                 heap is measured
+         * @return         The number of compilation units that failed to compile
+         */
+        int compile(CompilationListener listener, List<Object> results) throws CompileException, IOException;
+    }
+
+    /**
+     * Compiles the source files one by one, against the classes on the class path, and counts those that fail to
+     * compile.
+     */
+    private static
+    class SourceTreeWorkload implements Workload {
+
+        private final List<File> sourceFiles;
+
+        SourceTreeWorkload(List<File> sourceFiles) { this.sourceFiles = sourceFiles; }
+
+        @Override public int
+        compile(CompilationListener listener, List<Object> results) throws IOException {
+            Compiler compiler = SelfHostingBenchmark.newCompiler(listener);
+            results.add(compiler);
+
+            // Abort the compilation of a compilation unit on its first compile error, and don't print anything.
+            compiler.setCompileErrorHandler(new ErrorHandler() {
+
+                @Override public void
+                handleError(String message, Location optionalLocation) throws CompileException {
+                    throw new CompileException(message, optionalLocation);
+                }
+            });
+
+            int failedUnits = 0;
+            for (File sourceFile : this.sourceFiles) {
+                try {
+                    compiler.compile(new File[] { sourceFile });
+                } catch (CompileException ce) {
+                    failedUnits++;
+                }
+            }
+            return failedUnits;
+        }
+    }
+
+    /**
+     * Compiles all resources in one go; they are expected to compile without errors.
+     */
+    private static
+    class SyntheticWorkload implements Workload {
+
+        private final Resource[] sourceResources;
+
+        SyntheticWorkload(Resource[] sourceResources) { this.sourceResources = sourceResources; }
+
+        @Override public int
+        compile(CompilationListener listener, List<Object> results) throws CompileException, IOException {
+            Compiler compiler = SelfHostingBenchmark.newCompiler(listener);
+            results.add(compiler);
+            compiler.compile(this.sourceResources);
+            return 0;
+        }
+    }
+
+    /**
+     * Cooks all scripts into one class, with one {@link ScriptEvaluator}; they are expected to compile without errors.
+     */
+    private static
+    class ScriptWorkload implements Workload {
+
+        private final String[] scripts;
+
+        ScriptWorkload(String[] scripts) { this.scripts = scripts; }
+
+        @Override public int
+        compile(CompilationListener listener, List<Object> results) throws CompileException {
+            int          n              = this.scripts.length;
+            String[][]   parameterNames = new String[n][];
+            Class<?>[][] parameterTypes = new Class<?>[n][];
+            Class<?>[]   returnTypes    = new Class<?>[n];
+            for (int i = 0; i < n; i++) {
+                parameterNames[i] = new String[] { "x", "y" };
+                parameterTypes[i] = new Class<?>[] { double.class, double.class };
+                returnTypes[i]    = double.class;
+            }
+
+            ScriptEvaluator se = new ScriptEvaluator();
+            se.setCompilationListener(listener);
+            se.setParameters(parameterNames, parameterTypes);
+            se.setReturnTypes(returnTypes);
+            se.cook(this.scripts);
+            results.add(se);
+            return 0;
+        }
+    }
+
+    /**
+     * @return A {@link Compiler} that loads auxiliary classes through the class loader of this class, and keeps the
+     *         generated class files in memory
+     */
+    private static Compiler
+    newCompiler(CompilationListener listener) {
+        Compiler compiler = new Compiler(
+            ResourceFinder.EMPTY_RESOURCE_FINDER,                                      // sourceFinder
+            new ClassLoaderIClassLoader(SelfHostingBenchmark.class.getClassLoader()), // iClassLoader
+            ResourceFinder.EMPTY_RESOURCE_FINDER,                                      // classFileFinder
+            new MapResourceCreator(),                                                  // classFileCreator
+            "UTF-8",                                                                   // optionalCharacterEncoding
+            false,                                                                     // verbose
+            true,                                                                      // debugSource
+            true,                                                                      // debugLines
+            true,                                                                      // debugVars
+            null                                                                       // optionalWarningHandler
+        );
+        compiler.setCompilationListener(listener);
+        return compiler;
+    }
+
+    /**
+     * Runs the <var>workload</var> repeatedly and reports the median of each metric of the measurement iterations.
+     *
+     * @return Maps "<var>prefix</var>{@code .}<var>metric</var>" to the median value of the metric
+     */
+    private static Map<String, Long>
+    measure(String prefix, Workload workload, int warmupIterations, int measurementIterations)
+    throws CompileException, IOException {
+
+        for (int i = 0; i < warmupIterations; i++) {
+            System.out.println(prefix + ": Warmup iteration " + (i + 1) + " of " + warmupIterations);
+            SelfHostingBenchmark.runOnce(workload);
+        }
+
+        Map<String, long[]> samples = new LinkedHashMap<String, long[]>();
+        for (int i = 0; i < measurementIterations; i++) {
+            Map<String, Long> sample = SelfHostingBenchmark.runOnce(workload);
+            System.out.println(prefix + ": Iteration " + (i + 1) + " of " + measurementIterations + ": " + sample);
+            for (Entry<String, Long> e : sample.entrySet()) {
+                long[] values = samples.get(e.getKey());
+                if (values == null) samples.put(e.getKey(), (values = new long[measurementIterations]));
+                values[i] = e.getValue();
+            }
+        }
+
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Entry<String, long[]> e : samples.entrySet()) {
+            long[] values = e.getValue();
+            Arrays.sort(values);
+            result.put(prefix + '.' + e.getKey(), values[values.length / 2]);
+        }
+        return result;
+    }
+
+    private static Map<String, Long>
+    runOnce(Workload workload) throws CompileException, IOException {
+
+        List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean mp : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (mp.getType() == MemoryType.HEAP && mp.isValid()) heapPools.add(mp);
+        }
+
+        // Start every iteration with a clean heap.
+        long heap0 = SelfHostingBenchmark.usedHeapAfterGc(heapPools);
+        for (MemoryPoolMXBean mp : heapPools) mp.resetPeakUsage();
+        long gcCount0 = SelfHostingBenchmark.gcCount(), gcTime0 = SelfHostingBenchmark.gcTime();
+
+        final long[] classCountAndAllocatedBytes = new long[2];
+        CompilationListener listener = new CompilationListener() {
+
+            @Override public void
+            compilationCompleted(CompilationMetrics metrics) {
+                classCountAndAllocatedBytes[0] += metrics.getClassCount();
+                for (CompilationMetrics.Phase phase : CompilationMetrics.Phase.values()) {
+                    classCountAndAllocatedBytes[1] += Math.max(0, metrics.getAllocatedBytes(phase));
+                }
+            }
+        };
+
+        List<Object> results     = new ArrayList<Object>();
+        long         start       = System.nanoTime();
+        int          failedUnits = workload.compile(listener, results);
+        long         wallTime    = System.nanoTime() - start;
+
+        // The peaks of the individual pools are typically not reached at the same time, so their sum overestimates
+        // the peak heap usage; however it is good enough for detecting regressions.
+        long peakHeap = 0;
+        for (MemoryPoolMXBean mp : heapPools) peakHeap += mp.getPeakUsage().getUsed();
+
+        long gcCount = SelfHostingBenchmark.gcCount() - gcCount0, gcTime = SelfHostingBenchmark.gcTime() - gcTime0;
+
+        long retainedHeap = Math.max(0, SelfHostingBenchmark.usedHeapAfterGc(heapPools) - heap0);
+        results.clear();
+
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        result.put("classCount",        classCountAndAllocatedBytes[0]);
+        result.put("wallTimeMillis",    wallTime / 1000000L);
+        result.put("peakHeapBytes",     peakHeap);
+        result.put("retainedHeapBytes", retainedHeap);
+        result.put("classesPerSecond",  classCountAndAllocatedBytes[0] * 1000000000L / Math.max(1, wallTime));
+        result.put("gcCount",           gcCount);
+        result.put("gcTimeMillis",      gcTime);
+        result.put("allocatedBytes",    classCountAndAllocatedBytes[1]);
+        result.put("failedUnits",       (long) failedUnits);
+        return result;
+    }
+
+    /**
+     * Compares the <var>results</var> with the <var>baseline</var> and prints the outcome.
+     *
+     * @param threshold The tolerated deterioration, in percent
+     * @return          Whether more compilation units failed to compile, or the retained heap grew by more than
+     *                  the <var>threshold</var> and by more than 4 MB
+     */
+    private static boolean
+    compare(Map<String, Long> results, Map<String, Long> baseline, double threshold) {
+        boolean regression = false;
+        for (Entry<String, Long> e : results.entrySet()) {
+            String key    = e.getKey();
+            long   actual = e.getValue();
+
+            Long expected = baseline.get(key);
+            if (expected == null) {
+                System.out.println(key + "=" + actual + " (no baseline)");
+                continue;
+            }
+
+            double change = expected == 0 ? 0 : 100.0 * (actual - expected) / expected;
+
+            // Only these two metrics are stable enough for a gate; all others are informational. The heap usage after
+            // a full GC still varies by a few MB between iterations (e.g. lazily initialized caches of the JRE), which
+            // would exceed the threshold for small baselines.
+            boolean failed = (
+                key.endsWith(".failedUnits")
+                ? actual > expected
+                : key.endsWith(".retainedHeapBytes")
+                ? change > threshold && actual - expected > SelfHostingBenchmark.RETAINED_HEAP_TOLERANCE
+                : false
+            );
+
+            System.out.println(String.format(
+                "%s=%d (baseline %d, %+.1f%%)%s",
+                key,
+                actual,
+                expected,
+                change,
+                failed ? " REGRESSION" : ""
+            ));
+            regression |= failed;
+        }
+        return regression;
+    }
+
+    private static final long RETAINED_HEAP_TOLERANCE = 4 * 1024 * 1024;
+
+    /**
+     * Collects garbage until the heap usage no longer shrinks (objects that need finalization or cleaning survive the
+     * first collection).
+     *
+     * @return The heap usage after the last collection
+     */
+    private static long
+    usedHeapAfterGc(List<MemoryPoolMXBean> heapPools) {
+        long result = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long used = 0;
+            for (MemoryPoolMXBean mp : heapPools) used += mp.getUsage().getUsed();
+            if (used >= result) break;
+            result = used;
+        }
+        return result;
+    }
+
+    private static Map<String, Long>
+    loadBaseline(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream is = new FileInputStream(file);
+        try {
+            properties.load(is);
+        } finally {
+            try { is.close(); } catch (IOException e) {}
+        }
+
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (String key : properties.stringPropertyNames()) {
+            result.put(key, Long.parseLong(properties.getProperty(key).trim()));
+        }
+        return result;
+    }
+
+    private static void
+    storeBaseline(Map<String, Long> results, File file, String corpusDescription) throws IOException {
+        PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "ISO-8859-1"));
+        try {
+            pw.println("# Baseline for \"" + SelfHostingBenchmark.class.getName() + "\".");
+            pw.println("# Corpus:  " + corpusDescription);
+            pw.println(
+                "# JVM:     "
+                + System.getProperty("java.vm.name")
+                + " "
+                + System.getProperty("java.version")
+                + ", "
+                + Runtime.getRuntime().availableProcessors()
+                + " processors, max heap "
+                + (Runtime.getRuntime().maxMemory() >> 20)
+                + " MB"
+            );
+            pw.println();
+            for (Entry<String, Long> e : results.entrySet()) pw.println(e.getKey() + "=" + e.getValue());
+        } finally {
+            pw.close();
+        }
+    }
+
+    private static long
+    gcCount() {
+        long result = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            result += Math.max(0, gc.getCollectionCount());
+        }
+        return result;
+    }
+
+    private static long
+    gcTime() {
+        long result = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            result += Math.max(0, gc.getCollectionTime());
+        }
+        return result;
+    }
+
+    private static void
+    findSourceFiles(File directory, List<File> result) {
+        File[] members = directory.listFiles();
+        if (members == null) return;
+        for (File member : members) {
+            if (member.isDirectory()) {
+                SelfHostingBenchmark.findSourceFiles(member, result);
+            } else
+            if (member.getName().endsWith(".java") && !"package-info.java".equals(member.getName())) {
+                result.add(member);
+            }
+        }
+    }
+
+    private static Resource[]
+    syntheticResources(int count) throws IOException {
+        Map<String, byte[]> sources       = new HashMap<String, byte[]>();
+        List<String>        resourceNames = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            String resourceName = Corpus.syntheticClassName(i).replace('.', '/') + ".java";
+            sources.put(resourceName, Corpus.syntheticClass(i).getBytes("UTF-8"));
+            resourceNames.add(resourceName);
+        }
+
+        MapResourceFinder finder = new MapResourceFinder(sources);
+        Resource[]        result = new Resource[count];
+        for (int i = 0; i < count; i++) {
+            Resource r = finder.findResource(resourceNames.get(i));
+            assert r != null;
+            result[i] = r;
+        }
+        return result;
+    }
+}
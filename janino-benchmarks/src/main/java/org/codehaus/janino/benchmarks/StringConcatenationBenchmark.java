@@ -0,0 +1,91 @@
+
+/*
+ * Janino - An embedded Java[TM] compiler
+ *
+ * Copyright (c) 2001-2010, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codehaus.janino.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.commons.compiler.IExpressionEvaluator;
+import org.codehaus.janino.ExpressionEvaluator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the execution time of "templating-style" expressions, i.e. long string concatenations of constant text
+ * and parameters, as compiled by JANINO.
+ */
+@BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5) @Measurement(iterations = 5) @Fork(1)
+@State(Scope.Benchmark) public
+class StringConcatenationBenchmark {
+
+    /**
+     * The interface that the benchmarked expressions implement.
+     */
+    public
+    interface Template {
+        String render(String name, int count, double price, Object item); // SUPPRESS CHECKSTYLE JavadocMethod
+    }
+
+    /**
+     * How often the "row" of the template is repeated.
+     */
+    @Param({ "1", "4", "16" }) public int rows;
+
+    private Template template;
+
+    @Setup public void
+    setUp() throws Exception {
+
+        StringBuilder sb = new StringBuilder("\"<table>\"");
+        for (int i = 0; i < this.rows; i++) {
+            sb.append(
+                " + \"<tr><td>\" + name + \"</td><td>\" + count + \"</td><td>\" + price + \"</td><td>\" + item"
+                + " + \"</td></tr>\""
+            );
+        }
+        sb.append(" + \"</table>\"");
+
+        IExpressionEvaluator ee = new ExpressionEvaluator();
+        this.template = (Template) ee.createFastEvaluator(
+            sb.toString(),
+            Template.class,
+            new String[] { "name", "count", "price", "item" }
+        );
+    }
+
+    @Benchmark public String // SUPPRESS CHECKSTYLE JavadocMethod
+    render() { return this.template.render("Widget", 42, 3.99, Thread.State.RUNNABLE); }
+}
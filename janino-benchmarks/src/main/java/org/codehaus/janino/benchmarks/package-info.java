@@ -0,0 +1,44 @@
+
+/*
+ * Janino - An embedded Java[TM] compiler
+ *
+ * Copyright (c) 2001-2010, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * JMH micro-benchmarks for JANINO; run them with "{@code java -jar target/benchmarks.jar}", and add "{@code -prof
+ * gc}" to get the allocation rates.
+ * <p>
+ *   The benchmarks cover the stages of the JANINO pipeline ({@link org.codehaus.janino.benchmarks.ScannerBenchmark
+ *   scanning}, {@link org.codehaus.janino.benchmarks.ParserBenchmark parsing}, {@link
+ *   org.codehaus.janino.benchmarks.CodeGenerationBenchmark code generation} and {@link
+ *   org.codehaus.janino.benchmarks.ClassFileBenchmark serialization}), and, for both the JANINO and the JDK
+ *   implementation, the {@link org.codehaus.janino.benchmarks.CookBenchmark cook latency} and the {@link
+ *   org.codehaus.janino.benchmarks.EvaluateBenchmark invocation} of cooked expressions.
+ * </p>
+ * <p>
+ *   The {@link org.codehaus.janino.benchmarks.SelfHostingBenchmark} is not a JMH benchmark, but a stand-alone
+ *   macro-benchmark that compiles the JANINO source tree and a large synthetic corpus, and checks the results against
+ *   a baseline.
+ * </p>
+ */
+package org.codehaus.janino.benchmarks;
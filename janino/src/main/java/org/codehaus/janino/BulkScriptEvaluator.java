@@ -0,0 +1,363 @@
+
+/*
+ * Janino - An embedded Java[TM] compiler
+ *
+ * Copyright (c) 2001-2010, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codehaus.janino;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codehaus.commons.compiler.CompileException;
+import org.codehaus.commons.nullanalysis.Nullable;
+import org.codehaus.janino.util.ClassFile.ClassFileException;
+
+/**
+ * Cooks large numbers of scripts, and packs them into as few generated classes as the limits of the JVM allow.
+ * <p>
+ *   {@link ScriptEvaluator#cook(String[])} compiles any number of scripts into <em>one</em> class, which fails as
+ *   soon as the class's constant pool exceeds the JVM limit of 0xFFFF entries. This class splits the scripts into
+ *   "chunks" that are small enough, cooks each chunk with its own {@link ScriptEvaluator} (in parallel, if there is
+ *   more than one chunk), and thus typically generates only a handful of classes and class loaders for tens of
+ *   thousands of scripts.
+ * </p>
+ * <p>
+ *   The chunk sizes are determined from a (conservative) estimate of the constant pool usage of the scripts; iff a
+ *   chunk nevertheless overflows the constant pool, then it is split in two halves, which are cooked separately.
+ * </p>
+ * <p>
+ *   All generated methods are {@code static}.
+ * </p>
+ *
+ * @see BulkExpressionEvaluator
+ */
+public
+class BulkScriptEvaluator {
+
+    /**
+     * The limit for the estimated number of constant pool entries per generated class. Some headroom to the JVM
+     * limit (0xFFFF) is left for the entries that every class requires, and because the estimate is coarse.
+     */
+    private static final int MAX_CONSTANT_POOL_ENTRIES = 0xE000;
+
+    @Nullable private ClassLoader  optionalParentClassLoader;
+    @Nullable private String[]     optionalDefaultImports;
+    @Nullable private Class<?>[]   optionalReturnTypes;
+    @Nullable private String[][]   optionalParameterNames;
+    @Nullable private Class<?>[][] optionalParameterTypes;
+    @Nullable private Class<?>[][] optionalThrownExceptions;
+    private int                    threadCount = Runtime.getRuntime().availableProcessors();
+
+    @Nullable private Method[] result; // null=uncooked
+    private final AtomicInteger classCount = new AtomicInteger();
+
+    /**
+     * @see ScriptEvaluator#setParentClassLoader(ClassLoader)
+     */
+    public void
+    setParentClassLoader(@Nullable ClassLoader optionalParentClassLoader) {
+        this.optionalParentClassLoader = optionalParentClassLoader;
+    }
+
+    /**
+     * @see ScriptEvaluator#setDefaultImports(String[])
+     */
+    public void
+    setDefaultImports(@Nullable String[] optionalDefaultImports) {
+        this.optionalDefaultImports = optionalDefaultImports == null ? null : (String[]) optionalDefaultImports.clone();
+    }
+
+    /**
+     * @see ScriptEvaluator#setReturnTypes(Class[])
+     */
+    public void
+    setReturnTypes(Class<?>[] returnTypes) { this.optionalReturnTypes = (Class[]) returnTypes.clone(); }
+
+    /**
+     * @see ScriptEvaluator#setParameters(String[][], Class[][])
+     */
+    public void
+    setParameters(String[][] parameterNames, Class<?>[][] parameterTypes) {
+        this.optionalParameterNames = (String[][]) parameterNames.clone();
+        this.optionalParameterTypes = (Class[][]) parameterTypes.clone();
+    }
+
+    /**
+     * @see ScriptEvaluator#setThrownExceptions(Class[][])
+     */
+    public void
+    setThrownExceptions(Class<?>[][] thrownExceptions) { this.optionalThrownExceptions = (Class[][]) thrownExceptions.clone(); }
+
+    /**
+     * @param threadCount The maximum number of chunks that are cooked concurrently; defaults to the number of
+     *                    available processors
+     */
+    public void
+    setThreadCount(int threadCount) {
+        if (threadCount < 1) throw new IllegalArgumentException("threadCount");
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * @see #cook(String[], String[])
+     */
+    public final void
+    cook(String[] scripts) throws CompileException { this.cook(null, scripts); }
+
+    /**
+     * Cooks the given scripts into as few classes as possible.
+     *
+     * @param optionalFileNames         Are used in compile error messages to identify the script
+     * @throws CompileException         Any of the scripts has a compile error; iff more than one of the scripts have
+     *                                  compile errors, then the one for the script with the lowest index is thrown
+     * @throws IllegalStateException    Any of the preceeding {@code set...()} had an array size different from that
+     *                                  of {@code scripts}
+     */
+    public final void
+    cook(@Nullable String[] optionalFileNames, final String[] scripts) throws CompileException {
+
+        int count = scripts.length;
+
+        // Check array sizes.
+        if (optionalFileNames != null && optionalFileNames.length != count) {
+            throw new IllegalStateException("fileNames count");
+        }
+        if (this.optionalReturnTypes != null && this.optionalReturnTypes.length != count) {
+            throw new IllegalStateException("returnTypes count");
+        }
+        if (this.optionalParameterNames != null && this.optionalParameterNames.length != count) {
+            throw new IllegalStateException("parameterNames count");
+        }
+        if (this.optionalParameterTypes != null && this.optionalParameterTypes.length != count) {
+            throw new IllegalStateException("parameterTypes count");
+        }
+        if (this.optionalThrownExceptions != null && this.optionalThrownExceptions.length != count) {
+            throw new IllegalStateException("thrownExceptions count");
+        }
+
+        final String[] fileNames = optionalFileNames != null ? optionalFileNames : new String[count];
+        final Method[] methods   = new Method[count];
+
+        this.result = null;
+        this.classCount.set(0);
+
+        // Split the scripts into chunks.
+        final List<int[] /*from,to*/> chunks = new ArrayList<int[]>();
+        {
+            int from                = 0;
+            int constantPoolEntries = 0;
+            for (int i = 0; i < count; ++i) {
+                int cpe = BulkScriptEvaluator.estimateConstantPoolEntries(scripts[i]);
+                if (i > from && constantPoolEntries + cpe > BulkScriptEvaluator.MAX_CONSTANT_POOL_ENTRIES) {
+                    chunks.add(new int[] { from, i });
+                    from                = i;
+                    constantPoolEntries = 0;
+                }
+                constantPoolEntries += cpe;
+            }
+            if (count > from) chunks.add(new int[] { from, count });
+        }
+
+        // Cook the chunks; sequentially iff there is only one chunk or one thread.
+        int threadCount = Math.min(this.threadCount, chunks.size());
+        if (threadCount <= 1) {
+            for (int[] chunk : chunks) this.cookChunk(fileNames, scripts, chunk[0], chunk[1], methods);
+            this.result = methods;
+            return;
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (final int[] chunk : chunks) {
+                futures.add(executorService.submit(new Callable<Void>() {
+
+                    @Override @Nullable public Void
+                    call() throws CompileException {
+                        BulkScriptEvaluator.this.cookChunk(fileNames, scripts, chunk[0], chunk[1], methods);
+                        return null;
+                    }
+                }));
+            }
+
+            // Wait for all chunks, and report the first exception (in script order).
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new JaninoRuntimeException("Interrupted while cooking", ie);
+                } catch (ExecutionException ee) {
+                    Throwable cause = ee.getCause();
+                    if (cause instanceof CompileException) throw (CompileException) cause;
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    if (cause instanceof Error)            throw (Error) cause;
+                    throw new JaninoRuntimeException(String.valueOf(cause), cause);
+                }
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        this.result = methods;
+    }
+
+    /**
+     * Cooks the scripts <var>from</var> ... <var>to</var>-1 into one class, or, iff that class's constant pool
+     * overflows, into two or more classes.
+     */
+    private void
+    cookChunk(String[] fileNames, String[] scripts, int from, int to, Method[] methods) throws CompileException {
+
+        ScriptEvaluator se = this.newScriptEvaluator();
+        se.setParentClassLoader(this.optionalParentClassLoader);
+        se.setDefaultImports(this.optionalDefaultImports);
+        se.setStaticMethod(BulkScriptEvaluator.fill(new boolean[to - from], true));
+        if (this.optionalReturnTypes != null) {
+            se.setReturnTypes(BulkScriptEvaluator.copyOfRange(this.optionalReturnTypes, from, to));
+        }
+        if (this.optionalParameterNames != null && this.optionalParameterTypes != null) {
+            se.setParameters(
+                BulkScriptEvaluator.copyOfRange(this.optionalParameterNames, from, to),
+                BulkScriptEvaluator.copyOfRange(this.optionalParameterTypes, from, to)
+            );
+        }
+        if (this.optionalThrownExceptions != null) {
+            se.setThrownExceptions(BulkScriptEvaluator.copyOfRange(this.optionalThrownExceptions, from, to));
+        }
+
+        try {
+            se.cook(
+                BulkScriptEvaluator.copyOfRange(fileNames, from, to),
+                BulkScriptEvaluator.copyOfRange(scripts, from, to)
+            );
+        } catch (CompileException ce) {
+
+            // Iff the constant pool overflowed, then split the chunk in two halves and try again.
+            if (ce.getCause() instanceof ClassFileException && to - from > 1) {
+                int middle = (from + to) >>> 1;
+                this.cookChunk(fileNames, scripts, from, middle, methods);
+                this.cookChunk(fileNames, scripts, middle, to, methods);
+                return;
+            }
+            throw ce;
+        }
+
+        for (int i = from; i < to; i++) methods[i] = se.getMethod(i - from);
+        this.classCount.incrementAndGet();
+    }
+
+    /**
+     * @return A new {@link ScriptEvaluator}, which is used to cook one chunk of scripts
+     */
+    protected ScriptEvaluator
+    newScriptEvaluator() { return new ScriptEvaluator(); }
+
+    /**
+     * @return The number of classes that were generated by the last {@link #cook(String[], String[])}
+     */
+    public int
+    getClassCount() {
+        this.assertCooked();
+        return this.classCount.get();
+    }
+
+    /**
+     * @return The generated (static) method for the indexed script
+     */
+    public Method
+    getMethod(int idx) { return this.assertCooked()[idx]; }
+
+    /**
+     * Invokes the generated method for the indexed script.
+     *
+     * @see ScriptEvaluator#evaluate(int, Object[])
+     */
+    @Nullable public Object
+    evaluate(int idx, @Nullable Object[] arguments) throws InvocationTargetException {
+        try {
+            return this.assertCooked()[idx].invoke(null, arguments);
+        } catch (IllegalAccessException ex) {
+            throw new JaninoRuntimeException(ex.toString(), ex);
+        }
+    }
+
+    private Method[]
+    assertCooked() {
+
+        if (this.result != null) return this.result;
+
+        throw new IllegalStateException("Must only be called after \"cook()\"");
+    }
+
+    /**
+     * Estimates the number of constant pool entries that the given script contributes to the generated class: A
+     * method name and some descriptors, plus roughly one entry per four characters of source code, which is
+     * pessimistic for the typical mix of identifiers, literals and operators.
+     */
+    private static int
+    estimateConstantPoolEntries(String script) { return 4 + script.length() / 4; }
+
+    private static boolean[]
+    fill(boolean[] a, boolean value) {
+        for (int i = 0; i < a.length; i++) a[i] = value;
+        return a;
+    }
+
+    private static String[]
+    copyOfRange(String[] a, int from, int to) {
+        String[] result = new String[to - from];
+        System.arraycopy(a, from, result, 0, to - from);
+        return result;
+    }
+
+    private static Class<?>[]
+    copyOfRange(Class<?>[] a, int from, int to) {
+        Class<?>[] result = new Class[to - from];
+        System.arraycopy(a, from, result, 0, to - from);
+        return result;
+    }
+
+    private static String[][]
+    copyOfRange(String[][] a, int from, int to) {
+        String[][] result = new String[to - from][];
+        System.arraycopy(a, from, result, 0, to - from);
+        return result;
+    }
+
+    private static Class<?>[][]
+    copyOfRange(Class<?>[][] a, int from, int to) {
+        Class<?>[][] result = new Class[to - from][];
+        System.arraycopy(a, from, result, 0, to - from);
+        return result;
+    }
+}
@@ -26,6 +26,8 @@
 
 package org.codehaus.janino;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 
 import org.codehaus.commons.nullanalysis.Nullable;
@@ -37,12 +39,13 @@ public
 class ByteArrayClassLoader extends ClassLoader {
 
     /**
-     * The given {@link Map} of classes must not be modified afterwards.
+     * The given {@link Map} of classes is copied; the bytecode of each class is released as soon as the class is
+     * defined.
      *
      * @param classes String className =&gt; byte[] data
      */
     public
-    ByteArrayClassLoader(Map<String, byte[]> classes) { this.classes = classes; }
+    ByteArrayClassLoader(Map<String, byte[]> classes) { this.classes = new HashMap<String, byte[]>(classes); }
 
     /**
      * @see #ByteArrayClassLoader(Map)
@@ -50,7 +53,7 @@ class ByteArrayClassLoader extends ClassLoader {
     public
     ByteArrayClassLoader(Map<String /*className*/, byte[] /*data*/> classes, ClassLoader parent) {
         super(parent);
-        this.classes = classes;
+        this.classes = new HashMap<String, byte[]>(classes);
     }
 
     /**
@@ -71,14 +74,26 @@ class ByteArrayClassLoader extends ClassLoader {
         // JNLP. See
         //     http://jira.codehaus.org/browse/JANINO-104
         //     http://www.nabble.com/-Help-jel--java.security.AccessControlException-to13073723.html
-        return super.defineClass(
+        JfrEvents.Recorder recorder = JfrEvents.recorder();
+        Object             event    = recorder == null ? null : recorder.beginDefineClass();
+
+        Class<?> result = super.defineClass(
             name,                                 // name
             data,                                 // b
             0,                                    // off
             data.length,                          // len
             this.getClass().getProtectionDomain() // protectionDomain
         );
+
+        if (recorder != null && event != null) recorder.endDefineClass(event, name, data.length);
+
+        // A class is defined only once, so its bytecode is no longer needed; releasing it reduces the footprint of
+        // long-lived loaders, e.g. of cooked evaluators.
+        this.classes.remove(name);
+        if (this.classes.isEmpty()) this.classes = Collections.emptyMap();
+
+        return result;
     }
 
-    private final Map<String /*className*/, byte[] /*data*/> classes;
+    private Map<String /*className*/, byte[] /*data*/> classes;
 }
@@ -26,13 +26,18 @@
 
 package org.codehaus.janino;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 import org.codehaus.commons.nullanalysis.Nullable;
 import org.codehaus.janino.util.ClassFile;
@@ -55,6 +60,12 @@ import org.codehaus.janino.util.resource.ResourceFinder;
  *   See {@link org.codehaus.janino.JavaSourceClassLoader#main(String[])} for an example how to use this class.
  * </p>
  * <p>
+ *   A cached class file is regarded as up-to-date iff the digest of its source file equals the digest that was
+ *   recorded when the class file was cached; thus the caching scheme does not depend on reliable file modification
+ *   times. The digests are recorded in one resource per package, which makes it cheap to {@link
+ *   #preValidatePackage(String) validate a whole package} at once.
+ * </p>
+ * <p>
  *   <b>Notice:</b> You must NOT rely on that this class stores some particular data in some particular resources
  *   through the given {@code classFileCacheResourceFinder/Creator}! These serve only as a means for the {@link
  *   CachingJavaSourceClassLoader} to persistently cache some data between invocations. In other words: If you want to
@@ -68,6 +79,21 @@ class CachingJavaSourceClassLoader extends JavaSourceClassLoader {
     private final ResourceCreator classFileCacheResourceCreator;
     private final ResourceFinder  sourceFinder;
 
+    /**
+     * The name of the resource, relative to the package directory of the class file cache, which records the
+     * digests of the sources of the cached class files, one "<var>className</var> <var>sourceDigest</var>" per line.
+     */
+    public static final String DIGESTS_RESOURCE_NAME = "sources.sha256";
+
+    // Package name => class name => digest of the source at the time the class was cached.
+    private final Map<String, Map<String, String>> digests = new HashMap<String, Map<String, String>>();
+
+    // Source resource name => digest of the source.
+    private final Map<String, String> sourceDigests = new HashMap<String, String>();
+
+    // Cached class files that were found up-to-date by "preValidatePackage()", but not yet loaded.
+    private final Map<String /*name*/, byte[] /*bytecode*/> validatedBytecodes = new HashMap<String, byte[]>();
+
     /**
      * See {@link #CachingJavaSourceClassLoader(ClassLoader, ResourceFinder, String, ResourceFinder, ResourceCreator)}.
      *
@@ -99,9 +125,8 @@ class CachingJavaSourceClassLoader extends JavaSourceClassLoader {
      * data atomically, i.e. the <var>classFileCacheResourceFinder</var> sees the resource written by the {@code
      * classFileCacheResourceCreator} only after the {@link OutputStream} is closed.
      * <p>
-     *   In order to make the caching scheme work, both the <var>classFileCacheResourceFinder</var> and the {@code
-     *   sourceFinder} must support the {@link org.codehaus.janino.util.resource.Resource#lastModified()} method, so
-     *   that the modification time of the source and the class files can be compared.
+     *   Concurrent class loaders that share one cache may lose each other's source digest records, which causes
+     *   only unnecessary recompilations.
      * </p>
      *
      * @param parentClassLoader             Attempt to load classes through this one before looking for source files
@@ -137,6 +162,17 @@ class CachingJavaSourceClassLoader extends JavaSourceClassLoader {
      */
     @Override @Nullable protected Map<String /*name*/, byte[] /*bytecode*/>
     generateBytecodes(String className) throws ClassNotFoundException {
+
+        // Check whether the class file was validated in bulk.
+        {
+            byte[] bytecode = (byte[]) this.validatedBytecodes.remove(className);
+            if (bytecode != null) {
+                Map<String /*name*/, byte[] /*bytecode*/> m = new HashMap<String, byte[]>();
+                m.put(className, bytecode);
+                return m;
+            }
+        }
+
         // Check whether a class file resource exists in the cache.
         {
             Resource classFileResource = this.classFileCacheResourceFinder.findResource(
@@ -148,19 +184,30 @@ class CachingJavaSourceClassLoader extends JavaSourceClassLoader {
                 Resource sourceResource = this.sourceFinder.findResource(ClassFile.getSourceResourceName(className));
                 if (sourceResource == null) return null;
 
-                // Check whether the class file is up-to-date.
-                if (sourceResource.lastModified() < classFileResource.lastModified()) {
+                try {
+
+                    // Check whether the class file is up-to-date.
+                    String cachedDigest = (String) this.getDigests(CachingJavaSourceClassLoader.packageName(
+                        className
+                    )).get(className);
+                    if (cachedDigest != null && cachedDigest.equals(this.getSourceDigest(sourceResource))) {
 
-                    // Yes, it is... read the bytecode from the file and define the class.
-                    byte[] bytecode;
-                    try {
-                        bytecode = CachingJavaSourceClassLoader.readResource(classFileResource);
-                    } catch (IOException ex) {
-                        throw new ClassNotFoundException("Reading class file from \"" + classFileResource + "\"", ex);
+                        // Yes, it is... read the bytecode from the file and define the class.
+                        byte[] bytecode;
+                        try {
+                            bytecode = CachingJavaSourceClassLoader.readResource(classFileResource);
+                        } catch (IOException ex) {
+                            throw new ClassNotFoundException(
+                                "Reading class file from \"" + classFileResource + "\"",
+                                ex
+                            );
+                        }
+                        Map<String /*name*/, byte[] /*bytecode*/> m = new HashMap<String, byte[]>();
+                        m.put(className, bytecode);
+                        return m;
                     }
-                    Map<String /*name*/, byte[] /*bytecode*/> m = new HashMap<String, byte[]>();
-                    m.put(className, bytecode);
-                    return m;
+                } catch (IOException ex) {
+                    throw new ClassNotFoundException("Validating cached class file \"" + classFileResource + "\"", ex);
                 }
             }
         }
@@ -169,6 +216,23 @@ class CachingJavaSourceClassLoader extends JavaSourceClassLoader {
         Map<String /*name*/, byte[] /*bytecode*/> bytecodes = super.generateBytecodes(className);
         if (bytecodes == null) return null;
 
+        // Determine the digests of the sources that were compiled.
+        Map<String /*packageName*/, Map<String /*className*/, String /*sourceDigest*/>>
+        newDigests = new HashMap<String, Map<String, String>>();
+        for (String className2 : bytecodes.keySet()) {
+            Resource sourceResource = this.sourceFinder.findResource(ClassFile.getSourceResourceName(className2));
+            if (sourceResource == null) continue;
+
+            String              packageName = CachingJavaSourceClassLoader.packageName(className2);
+            Map<String, String> m           = (Map<String, String>) newDigests.get(packageName);
+            if (m == null) newDigests.put(packageName, (m = new HashMap<String, String>()));
+            try {
+                m.put(className2, this.getSourceDigest(sourceResource));
+            } catch (IOException ex) {
+                throw new ClassNotFoundException("Reading source file \"" + sourceResource + "\"", ex);
+            }
+        }
+
         // Write the generated bytecodes to the class file cache.
         for (Map.Entry<String, byte[]> me : bytecodes.entrySet()) {
             String className2 = (String) me.getKey();
@@ -188,9 +252,167 @@ class CachingJavaSourceClassLoader extends JavaSourceClassLoader {
             }
         }
 
+        // Record the digests of the sources of the cached class files.
+        for (Map.Entry<String, Map<String, String>> me : newDigests.entrySet()) {
+            String              packageName = (String) me.getKey();
+            Map<String, String> digests     = (Map<String, String>) me.getValue();
+            try {
+                this.digests.remove(packageName);
+                Map<String, String> m = this.getDigests(packageName);
+                m.putAll(digests);
+                this.writeDigests(packageName, m);
+            } catch (IOException ex) {
+                throw new ClassNotFoundException((
+                    "Writing source digests to \""
+                    + CachingJavaSourceClassLoader.digestsResourceName(packageName)
+                    + "\""
+                ), ex);
+            }
+        }
+
         return bytecodes;
     }
 
+    /**
+     * Validates all cached class files of the given package at once, and memorizes the bytecode of those that are
+     * up-to-date, so that these can later be loaded without any I/O. Class files that are not up-to-date are
+     * re-generated when their classes are loaded, as usual.
+     *
+     * @param packageName E.g. "{@code pkg1.pkg2}", or "" for the default package
+     * @return            The number of cached class files that are up-to-date
+     */
+    public synchronized int
+    preValidatePackage(String packageName) throws IOException {
+
+        // Re-read the digests, because another class loader could have updated them.
+        this.digests.remove(packageName);
+
+        int count = 0;
+        for (Map.Entry<String, String> me : this.getDigests(packageName).entrySet()) {
+            String className    = (String) me.getKey();
+            String cachedDigest = (String) me.getValue();
+
+            Resource sourceResource = this.sourceFinder.findResource(ClassFile.getSourceResourceName(className));
+            if (sourceResource == null || !cachedDigest.equals(this.getSourceDigest(sourceResource))) continue;
+
+            Resource classFileResource = this.classFileCacheResourceFinder.findResource(
+                ClassFile.getClassFileResourceName(className)
+            );
+            if (classFileResource == null) continue;
+
+            this.validatedBytecodes.put(className, CachingJavaSourceClassLoader.readResource(classFileResource));
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * @return Class name =&gt; digest of the source at the time the class file was cached, for all cached classes of
+     *         the given package
+     */
+    private Map<String, String>
+    getDigests(String packageName) throws IOException {
+
+        Map<String, String> result = (Map<String, String>) this.digests.get(packageName);
+        if (result != null) return result;
+
+        result = new TreeMap<String, String>();
+
+        Resource r = this.classFileCacheResourceFinder.findResource(
+            CachingJavaSourceClassLoader.digestsResourceName(packageName)
+        );
+        if (r != null) {
+            BufferedReader br = new BufferedReader(new InputStreamReader(r.open(), "UTF-8"));
+            try {
+                for (String line = br.readLine(); line != null; line = br.readLine()) {
+                    int idx = line.indexOf(' ');
+                    if (idx != -1) result.put(line.substring(0, idx), line.substring(idx + 1));
+                }
+            } finally {
+                try { br.close(); } catch (IOException ex) {}
+            }
+        }
+
+        this.digests.put(packageName, result);
+        return result;
+    }
+
+    private void
+    writeDigests(String packageName, Map<String, String> digests) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> me : digests.entrySet()) {
+            sb.append((String) me.getKey()).append(' ').append((String) me.getValue()).append('\n');
+        }
+        CachingJavaSourceClassLoader.writeResource(
+            this.classFileCacheResourceCreator,
+            CachingJavaSourceClassLoader.digestsResourceName(packageName),
+            sb.toString().getBytes("UTF-8")
+        );
+    }
+
+    /**
+     * @return The hex-encoded SHA-256 digest of the contents of the given source resource
+     */
+    private String
+    getSourceDigest(Resource sourceResource) throws IOException {
+
+        String result = (String) this.sourceDigests.get(sourceResource.getFileName());
+        if (result != null) return result;
+
+        result = CachingJavaSourceClassLoader.digest(sourceResource);
+
+        this.sourceDigests.put(sourceResource.getFileName(), result);
+        return result;
+    }
+
+    /**
+     * @return The hex-encoded SHA-256 digest of the contents of the given resource
+     */
+    static String
+    digest(Resource resource) throws IOException {
+
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new JaninoRuntimeException("SNO: SHA-256 not supported", ex);
+        }
+
+        byte[]      buffer = new byte[4096];
+        InputStream is     = resource.open();
+        try {
+            for (;;) {
+                int cnt = is.read(buffer);
+                if (cnt == -1) break;
+                md.update(buffer, 0, cnt);
+            }
+        } finally {
+            try { is.close(); } catch (IOException ex) {}
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static String
+    packageName(String className) {
+        int idx = className.lastIndexOf('.');
+        return idx == -1 ? "" : className.substring(0, idx);
+    }
+
+    private static String
+    digestsResourceName(String packageName) {
+        return (
+            packageName.length() == 0
+            ? CachingJavaSourceClassLoader.DIGESTS_RESOURCE_NAME
+            : packageName.replace('.', '/') + '/' + CachingJavaSourceClassLoader.DIGESTS_RESOURCE_NAME
+        );
+    }
+
     /**
      * Reads all bytes from the given resource.
      */
@@ -58,6 +58,7 @@ class ClassBodyEvaluator extends SimpleCompiler implements IClassBodyEvaluator {
     private static final Class<?>[] ZERO_CLASSES = new Class[0];
 
     @Nullable private String[] optionalDefaultImports;
+    @Nullable private Java.CompilationUnit.ImportDeclaration[] optionalDefaultImportDeclarations;
     private String             className = IClassBodyEvaluator.DEFAULT_CLASS_NAME;
     @Nullable private Class<?> optionalExtendedType;
     private Class<?>[]         implementedTypes = ClassBodyEvaluator.ZERO_CLASSES;
@@ -191,7 +192,20 @@ class ClassBodyEvaluator extends SimpleCompiler implements IClassBodyEvaluator {
 
     @Override public void
     setDefaultImports(@Nullable String[] optionalDefaultImports) {
-        this.optionalDefaultImports = optionalDefaultImports;
+        this.optionalDefaultImports            = optionalDefaultImports;
+        this.optionalDefaultImportDeclarations = null;
+    }
+
+    /**
+     * Like {@link #setDefaultImports(String[])}, but with already-parsed import declarations, which saves the effort
+     * of parsing them on each cook.
+     *
+     * @see #parseImportDeclarations(String[])
+     */
+    void
+    setDefaultImportDeclarations(Java.CompilationUnit.ImportDeclaration[] defaultImportDeclarations) {
+        this.optionalDefaultImports            = null;
+        this.optionalDefaultImportDeclarations = defaultImportDeclarations;
     }
 
     @Override public void
@@ -220,19 +234,38 @@ class ClassBodyEvaluator extends SimpleCompiler implements IClassBodyEvaluator {
     @Override public void
     cook(Scanner scanner) throws CompileException, IOException {
 
-        Parser               parser          = new Parser(scanner);
-        Java.CompilationUnit compilationUnit = this.makeCompilationUnit(parser);
+        this.beginCompilation(scanner.getFileName());
+        try {
 
-        // Add class declaration.
-        Java.AbstractClassDeclaration cd = this.addPackageMemberClassDeclaration(scanner.location(), compilationUnit);
+            Java.CompilationUnit compilationUnit;
+            CompilationMetrics.enter(CompilationMetrics.Phase.PARSE);
+            try {
+                Parser parser = new Parser(scanner);
+                compilationUnit = this.makeCompilationUnit(parser);
+
+                // Add class declaration.
+                Java.AbstractClassDeclaration
+                cd = this.addPackageMemberClassDeclaration(scanner.location(), compilationUnit);
+
+                // Parse class body declarations (member declarations) until EOF.
+                while (!parser.peek(TokenType.END_OF_INPUT)) {
+                    parser.parseClassBodyDeclaration(cd);
+                }
+            } finally {
+                CompilationMetrics.leave();
+            }
 
-        // Parse class body declarations (member declarations) until EOF.
-        while (!parser.peek(TokenType.END_OF_INPUT)) {
-            parser.parseClassBodyDeclaration(cd);
-        }
+            // Only check it iff "check()"ing.
+            if (this.isCheckOnly()) {
+                this.checkCompilationUnit(compilationUnit);
+                return;
+            }
 
-        // Compile and load it.
-        this.result = this.compileToClass(compilationUnit);
+            // Compile and load it.
+            this.result = this.compileToClass(compilationUnit);
+        } finally {
+            this.endCompilation();
+        }
     }
 
     /**
@@ -251,13 +284,12 @@ class ClassBodyEvaluator extends SimpleCompiler implements IClassBodyEvaluator {
         );
 
         // Set default imports.
-        if (this.optionalDefaultImports != null) {
-            for (String defaultImport : this.optionalDefaultImports) {
-                Scanner s       = new Scanner(null, new StringReader(defaultImport));
-                Parser  parser2 = new Parser(s);
-                cu.addImportDeclaration(parser2.parseImportDeclarationBody());
-                parser2.read(TokenType.END_OF_INPUT);
-            }
+        Java.CompilationUnit.ImportDeclaration[] dids = this.optionalDefaultImportDeclarations;
+        if (dids == null && this.optionalDefaultImports != null) {
+            dids = ClassBodyEvaluator.parseImportDeclarations(this.optionalDefaultImports);
+        }
+        if (dids != null) {
+            for (Java.CompilationUnit.ImportDeclaration id : dids) cu.addImportDeclaration(id);
         }
 
         // Parse all available IMPORT declarations.
@@ -270,6 +302,25 @@ class ClassBodyEvaluator extends SimpleCompiler implements IClassBodyEvaluator {
         return cu;
     }
 
+    /**
+     * Parses the given import declarations, where each element has the form "{@code java.util.*}" or "{@code
+     * static java.util.Collections.emptyList}".
+     */
+    static Java.CompilationUnit.ImportDeclaration[]
+    parseImportDeclarations(String[] imports) throws CompileException {
+        Java.CompilationUnit.ImportDeclaration[] result = new Java.CompilationUnit.ImportDeclaration[imports.length];
+        for (int i = 0; i < imports.length; ++i) {
+            try {
+                Parser parser = new Parser(new Scanner(null, new StringReader(imports[i])));
+                result[i] = parser.parseImportDeclarationBody();
+                parser.read(TokenType.END_OF_INPUT);
+            } catch (IOException ioe) {
+                throw new JaninoRuntimeException("SNO: IOException despite StringReader", ioe);
+            }
+        }
+        return result;
+    }
+
     /**
      * To the given {@link Java.CompilationUnit}, add
      * <ul>
@@ -309,12 +360,17 @@ class ClassBodyEvaluator extends SimpleCompiler implements IClassBodyEvaluator {
     protected final Class<?>
     compileToClass(Java.CompilationUnit compilationUnit) throws CompileException {
 
-        // Compile and load the compilation unit.
-        ClassLoader cl = this.compileToClassLoader(compilationUnit);
+        // Compile and load the compilation unit, and find the generated class by name.
+        return this.loadGeneratedClass(this.compileToClassLoader(compilationUnit));
+    }
 
-        // Find the generated class by name.
+    /**
+     * @return The generated class, loaded through the given {@link ClassLoader}
+     */
+    protected final Class<?>
+    loadGeneratedClass(ClassLoader classLoader) {
         try {
-            return cl.loadClass(this.className);
+            return classLoader.loadClass(this.className);
         } catch (ClassNotFoundException ex) {
             throw new JaninoRuntimeException((
                 "SNO: Generated compilation unit does not declare class '"
@@ -324,6 +380,19 @@ class ClassBodyEvaluator extends SimpleCompiler implements IClassBodyEvaluator {
         }
     }
 
+    @Override protected void
+    appendArchiveKey(StringBuilder sb) {
+        super.appendArchiveKey(sb);
+        SimpleCompiler.appendArchiveKeyElement(sb, this.className);
+        SimpleCompiler.appendArchiveKeyElement(sb, this.optionalExtendedType);
+        SimpleCompiler.appendArchiveKeyElement(sb, this.implementedTypes);
+        SimpleCompiler.appendArchiveKeyElement(sb, this.optionalDefaultImports);
+        SimpleCompiler.appendArchiveKeyElement(sb, this.optionalDefaultImportDeclarations);
+    }
+
+    @Override protected void
+    loadArchived(ClassLoader classLoader, int count) { this.result = this.loadGeneratedClass(classLoader); }
+
     @Override public Class<?>
     getClazz() {
 
@@ -597,6 +597,7 @@ class ClassFileIClass extends IClass {
             @Override public String        getName()          { return name; }
             @Override public IClass        getType()          { return type; }
             @Override public boolean       isStatic()         { return Mod.isStatic(fieldInfo.getAccessFlags()); }
+            @Override public boolean       isFinal()          { return Mod.isFinal(fieldInfo.getAccessFlags()); }
             @Override public Access        getAccess()        { return access; }
             @Override public IAnnotation[] getAnnotations()   { return iAnnotations; }
         };
@@ -86,6 +86,11 @@ class CodeContext {
     private short                   nextLocalVariableSlot;
     private final List<Relocatable> relocatables = new ArrayList<Relocatable>();
 
+    /**
+     * The ID of the {@link Coverage} hit map that records the executed lines, or -1.
+     */
+    private int coverageHitMapId = -1;
+
     /**
      * Creates an empty "Code" attribute.
      */
@@ -114,6 +119,15 @@ class CodeContext {
     public ClassFile
     getClassFile() { return this.classFile; }
 
+    /**
+     * Configures this {@link CodeContext} to generate, at the beginning of the code of each source line, code that
+     * marks that line as executed in the given {@link Coverage} hit map.
+     *
+     * @param hitMapId -1 to disable line coverage (the default)
+     */
+    public void
+    setCoverageHitMapId(int hitMapId) { this.coverageHitMapId = hitMapId; }
+
 
     /**
      * Allocates space for a local variable of the given size (1 or 2) on the local variable array.
@@ -323,6 +337,24 @@ class CodeContext {
     flowAnalysis(String functionName) {
         CodeContext.LOGGER.entering(null, "flowAnalysis", functionName);
 
+        CompilationMetrics metrics = CompilationMetrics.current();
+        if (metrics == null) {
+            this.flowAnalysis2(functionName);
+            return;
+        }
+
+        metrics.codeBytes += this.end.offset;
+        CompilationMetrics.enter(CompilationMetrics.Phase.FLOW_ANALYSIS);
+        try {
+            this.flowAnalysis2(functionName);
+        } finally {
+            CompilationMetrics.leave();
+        }
+    }
+
+    private void
+    flowAnalysis2(String functionName) {
+
         int[] stackSizes = new int[this.end.offset];
         Arrays.fill(stackSizes, CodeContext.UNEXAMINED);
 
@@ -847,6 +879,7 @@ class CodeContext {
     write(short lineNumber, byte[] b) {
         if (b.length == 0) return;
 
+        this.coverLine(lineNumber);
         int ico = this.currentInserter.offset;
         this.makeSpace(lineNumber, b.length);
         System.arraycopy(b, 0, this.code, ico, b.length);
@@ -863,6 +896,7 @@ class CodeContext {
      */
     public void
     write(short lineNumber, byte b1) {
+        this.coverLine(lineNumber);
         int ico = this.currentInserter.offset;
         this.makeSpace(lineNumber, 1);
         this.code[ico] = b1;
@@ -880,6 +914,7 @@ class CodeContext {
      */
     public void
     write(short lineNumber, byte b1, byte b2) {
+        this.coverLine(lineNumber);
         int ico = this.currentInserter.offset;
         this.makeSpace(lineNumber, 2);
         this.code[ico++] = b1;
@@ -899,6 +934,7 @@ class CodeContext {
      */
     public void
     write(short lineNumber, byte b1, byte b2, byte b3) {
+        this.coverLine(lineNumber);
         int ico = this.currentInserter.offset;
         this.makeSpace(lineNumber, 3);
         this.code[ico++] = b1;
@@ -920,6 +956,7 @@ class CodeContext {
      */
     public void
     write(short lineNumber, byte b1, byte b2, byte b3, byte b4) {
+        this.coverLine(lineNumber);
         int ico = this.currentInserter.offset;
         this.makeSpace(lineNumber, 4);
         this.code[ico++] = b1;
@@ -928,6 +965,47 @@ class CodeContext {
         this.code[ico]   = b4;
     }
 
+    /**
+     * Iff line coverage is configured, and the code at the current insertion position begins a new source line (i.e.
+     * a new {@link LineNumberOffset} is due), then generates code that marks that line as executed:
+     * <pre>
+     *     Coverage.hit(hitMapId, lineNumber);
+     * </pre>
+     * Must be invoked before the position of the next instruction is determined, so that the probe precedes that
+     * instruction.
+     */
+    private void
+    coverLine(short lineNumber) {
+        if (this.coverageHitMapId == -1 || lineNumber == -1) return;
+
+        for (Offset o = this.currentInserter.prev; o != this.beginning; o = o.prev) {
+            assert o != null;
+            if (o instanceof LineNumberOffset) {
+                if (((LineNumberOffset) o).lineNumber == lineNumber) return;
+                break;
+            }
+        }
+
+        int line = lineNumber & 0xffff;
+        Coverage.addLine(this.coverageHitMapId, line);
+
+        short  hitMapIdIndex = this.classFile.addConstantIntegerInfo(this.coverageHitMapId);
+        short  lineIndex     = this.classFile.addConstantIntegerInfo(line);
+        short  hitIndex      = this.classFile.addConstantMethodrefInfo(CodeContext.COVERAGE_FD, "hit", "(II)V");
+        byte[] probe         = {
+            Opcode.LDC_W,        (byte) (hitMapIdIndex >> 8), (byte) hitMapIdIndex,
+            Opcode.LDC_W,        (byte) (lineIndex >> 8),     (byte) lineIndex,
+            Opcode.INVOKESTATIC, (byte) (hitIndex >> 8),      (byte) hitIndex,
+        };
+
+        // Notice: "makeSpace()" creates the "LineNumberOffset", so the probe is generated only once.
+        int ico = this.currentInserter.offset;
+        this.makeSpace(lineNumber, probe.length);
+        System.arraycopy(probe, 0, this.code, ico, probe.length);
+    }
+
+    private static final String COVERAGE_FD = Descriptor.fromClassName(Coverage.class.getName());
+
     /**
      * Adds space for <var>size</var> bytes at current offset. Creates {@link LineNumberOffset}s as necessary.
      *
@@ -994,6 +1072,7 @@ class CodeContext {
      */
     public void
     writeBranch(short lineNumber, int opcode, final Offset dst) {
+        this.coverLine(lineNumber);
         this.relocatables.add(new Branch(opcode, dst));
         this.write(lineNumber, (byte) opcode, (byte) -1, (byte) -1);
     }
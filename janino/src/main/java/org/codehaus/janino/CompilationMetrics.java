@@ -0,0 +1,381 @@
+
+/*
+ * Janino - An embedded Java[TM] compiler
+ *
+ * Copyright (c) 2001-2010, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codehaus.janino;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codehaus.commons.nullanalysis.Nullable;
+import org.codehaus.janino.Java.Located;
+import org.codehaus.janino.util.ClassFile;
+import org.codehaus.janino.util.Traverser;
+
+/**
+ * Wall time, CPU time and allocated bytes per {@link Phase}, plus a set of sizes, of one compilation, as reported to
+ * a {@link CompilationListener}.
+ * <p>
+ *   Phases nest (e.g. {@link Phase#SCAN} happens while {@link Phase#PARSE}ing, and {@link Phase#TYPE_RESOLUTION}
+ *   while {@link Phase#CODE_GENERATION}); each phase is charged only with the time and memory that is <em>not</em>
+ *   charged to a nested phase.
+ * </p>
+ * <p>
+ *   The measurement is active only while a {@link CompilationListener} is registered; otherwise the cost of the
+ *   instrumentation is one read of a shared counter per scanned token and per instrumented region. With a listener,
+ *   each phase transition samples the thread's CPU time and allocated bytes, which slows down scanning noticeably.
+ * </p>
+ * <p>
+ *   CPU times and allocated bytes are -1 iff the JVM does not support measuring them.
+ * </p>
+ */
+public final
+class CompilationMetrics {
+
+    /**
+     * The phases of a compilation.
+     */
+    public
+    enum Phase {
+
+        /**
+         * Breaking up the source code into tokens.
+         */
+        SCAN,
+
+        /**
+         * Building the abstract syntax tree from the tokens.
+         */
+        PARSE,
+
+        /**
+         * Loading the types that the compilation unit references, e.g. through reflection or from class files.
+         */
+        TYPE_RESOLUTION,
+
+        /**
+         * Generating the bytecode, including the name, type and overload resolution that happens on the fly.
+         */
+        CODE_GENERATION,
+
+        /**
+         * Verifying the generated bytecode and computing the maximum stack sizes.
+         */
+        FLOW_ANALYSIS,
+
+        /**
+         * Converting the {@link ClassFile}s into bytes.
+         */
+        SERIALIZATION,
+
+        /**
+         * Defining the generated classes in the JVM.
+         */
+        CLASS_DEFINITION
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final long[] wallTimes      = new long[CompilationMetrics.PHASES.length];
+    private final long[] cpuTimes       = new long[CompilationMetrics.PHASES.length];
+    private final long[] allocatedBytes = new long[CompilationMetrics.PHASES.length];
+
+    // The sizes; incremented directly by the instrumented code.
+    int tokenCount, astNodeCount, classCount, methodCount, codeBytes, constantPoolEntryCount;
+
+    @Nullable private final CompilationListener listener;
+    @Nullable private final CompilationMetrics  optionalPrevious;
+    private int                                 depth = 1;
+    private final List<Phase>                   phaseStack = new ArrayList<Phase>();
+
+    // The values of the most recent sample.
+    private long wallTime, cpuTime, allocated;
+
+    private
+    CompilationMetrics(CompilationListener listener, @Nullable CompilationMetrics optionalPrevious) {
+        this.listener         = listener;
+        this.optionalPrevious = optionalPrevious;
+        this.sample();
+    }
+
+    /**
+     * @return The wall time charged to the given phase, in nanoseconds
+     */
+    public long
+    getWallTime(Phase phase) { return this.wallTimes[phase.ordinal()]; }
+
+    /**
+     * @return The CPU time charged to the given phase, in nanoseconds, or -1 if the JVM cannot measure CPU time
+     */
+    public long
+    getCpuTime(Phase phase) {
+        return CompilationMetrics.cpuTimeSupported() ? this.cpuTimes[phase.ordinal()] : -1;
+    }
+
+    /**
+     * @return The number of bytes allocated on the heap during the given phase, or -1 if the JVM cannot measure
+     *         allocations
+     */
+    public long
+    getAllocatedBytes(Phase phase) {
+        return CompilationMetrics.GET_THREAD_ALLOCATED_BYTES != null ? this.allocatedBytes[phase.ordinal()] : -1;
+    }
+
+    /**
+     * @return The number of tokens scanned, excluding white space and comments
+     */
+    public int
+    getTokenCount() { return this.tokenCount; }
+
+    /**
+     * @return The number of nodes of the abstract syntax trees that were compiled
+     */
+    public int
+    getAstNodeCount() { return this.astNodeCount; }
+
+    /**
+     * @return The number of classes and interfaces that were generated
+     */
+    public int
+    getClassCount() { return this.classCount; }
+
+    /**
+     * @return The number of methods and constructors that were generated, including synthetic ones
+     */
+    public int
+    getMethodCount() { return this.methodCount; }
+
+    /**
+     * @return The total size of the bytecode of all generated methods
+     */
+    public int
+    getCodeBytes() { return this.codeBytes; }
+
+    /**
+     * @return The total number of constant pool entries of all generated classes
+     */
+    public int
+    getConstantPoolEntryCount() { return this.constantPoolEntryCount; }
+
+    @Override public String
+    toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Phase phase : CompilationMetrics.PHASES) {
+            sb.append(phase).append(": ").append(this.getWallTime(phase) / 1000).append(" us wall, ");
+            sb.append(this.getCpuTime(phase) / 1000).append(" us CPU, ");
+            sb.append(this.getAllocatedBytes(phase)).append(" bytes allocated\n");
+        }
+        return sb.append(this.tokenCount).append(" tokens, ")
+        .append(this.astNodeCount).append(" AST nodes, ")
+        .append(this.classCount).append(" classes, ")
+        .append(this.methodCount).append(" methods, ")
+        .append(this.codeBytes).append(" code bytes, ")
+        .append(this.constantPoolEntryCount).append(" constant pool entries")
+        .toString();
+    }
+
+    /**
+     * Begins a compilation on the current thread. Iff the compilation is nested in another compilation with the
+     * same <var>listener</var>, then it is merged into that other compilation.
+     *
+     * @return {@code null} iff the <var>optionalListener</var> is {@code null}, otherwise the metrics object which
+     *         must be {@link #close()}d when the compilation completes
+     */
+    @Nullable static CompilationMetrics
+    open(@Nullable CompilationListener optionalListener) {
+
+        if (optionalListener == null) return null;
+
+        CompilationMetrics current = CompilationMetrics.current();
+        if (current != null && current.listener == optionalListener) {
+            current.depth++;
+            return current;
+        }
+
+        CompilationMetrics result = new CompilationMetrics(optionalListener, current);
+        CompilationMetrics.CURRENT.set(result);
+        CompilationMetrics.ACTIVE.incrementAndGet();
+        return result;
+    }
+
+    /**
+     * Completes the compilation that was begun with {@link #open(CompilationListener)}, and notifies the listener.
+     */
+    void
+    close() {
+
+        if (--this.depth > 0) return;
+
+        this.sample();
+        CompilationMetrics.ACTIVE.decrementAndGet();
+        CompilationMetrics.CURRENT.set(this.optionalPrevious);
+
+        CompilationListener l = this.listener;
+        assert l != null;
+        l.compilationCompleted(this);
+    }
+
+    /**
+     * @return The metrics of the compilation that is currently executing on this thread, or {@code null} iff no
+     *         compilation with a {@link CompilationListener} is executing
+     */
+    @Nullable static CompilationMetrics
+    current() {
+        return CompilationMetrics.ACTIVE.get() == 0 ? null : (CompilationMetrics) CompilationMetrics.CURRENT.get();
+    }
+
+    /**
+     * Enters the given phase of the current compilation (if any). Must be followed by exactly one {@link #leave()}.
+     */
+    static void
+    enter(Phase phase) {
+        CompilationMetrics m = CompilationMetrics.current();
+        if (m == null) return;
+
+        m.sample();
+        m.phaseStack.add(phase);
+    }
+
+    /**
+     * Leaves the phase that was most recently {@link #enter(Phase)}ed.
+     */
+    static void
+    leave() {
+        CompilationMetrics m = CompilationMetrics.current();
+        if (m == null) return;
+
+        m.sample();
+        if (!m.phaseStack.isEmpty()) m.phaseStack.remove(m.phaseStack.size() - 1);
+    }
+
+    /**
+     * Counts the nodes of the given compilation unit; the effort of counting is not charged to any phase.
+     */
+    void
+    addAstNodes(Java.CompilationUnit compilationUnit) {
+
+        this.sample();
+        new Traverser<RuntimeException>() {
+            @Override public void traverseLocated(Located l) { CompilationMetrics.this.astNodeCount++; }
+        }.traverseCompilationUnit(compilationUnit);
+
+        // Discard the time and the allocations of the counting.
+        this.wallTime  = System.nanoTime();
+        this.cpuTime   = CompilationMetrics.currentThreadCpuTime();
+        this.allocated = CompilationMetrics.currentThreadAllocatedBytes();
+    }
+
+    /**
+     * Counts the classes, methods and constant pool entries of the given class files.
+     */
+    void
+    addClassFiles(ClassFile[] classFiles) {
+        for (ClassFile cf : classFiles) {
+            this.classCount++;
+            this.methodCount            += cf.methodInfos.size();
+            this.constantPoolEntryCount += cf.getConstantPoolSize();
+        }
+    }
+
+    /**
+     * Charges the time and the allocations since the preceding sample to the current phase.
+     */
+    private void
+    sample() {
+        long wt = System.nanoTime();
+        long ct = CompilationMetrics.currentThreadCpuTime();
+        long ab = CompilationMetrics.currentThreadAllocatedBytes();
+
+        if (!this.phaseStack.isEmpty()) {
+            int idx = ((Phase) this.phaseStack.get(this.phaseStack.size() - 1)).ordinal();
+            this.wallTimes[idx]      += wt - this.wallTime;
+            this.cpuTimes[idx]       += ct - this.cpuTime;
+            this.allocatedBytes[idx] += ab - this.allocated;
+        }
+
+        this.wallTime  = wt;
+        this.cpuTime   = ct;
+        this.allocated = ab;
+    }
+
+    private static boolean
+    cpuTimeSupported() {
+        return (
+            CompilationMetrics.THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()
+            && CompilationMetrics.THREAD_MX_BEAN.isThreadCpuTimeEnabled()
+        );
+    }
+
+    private static long
+    currentThreadCpuTime() {
+        return CompilationMetrics.cpuTimeSupported() ? CompilationMetrics.THREAD_MX_BEAN.getCurrentThreadCpuTime() : 0;
+    }
+
+    private static long
+    currentThreadAllocatedBytes() {
+        Method m = CompilationMetrics.GET_THREAD_ALLOCATED_BYTES;
+        if (m == null) return 0;
+        try {
+            return ((Long) m.invoke(
+                CompilationMetrics.THREAD_MX_BEAN,
+                new Object[] { new Long(Thread.currentThread().getId()) }
+            )).longValue();
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    /**
+     * The number of compilations with a {@link CompilationListener} that are currently executing, in all threads;
+     * while it is zero, the instrumentation does not even look at {@link #CURRENT}.
+     */
+    private static final AtomicInteger ACTIVE = new AtomicInteger();
+
+    private static final ThreadLocal<CompilationMetrics> CURRENT = new ThreadLocal<CompilationMetrics>();
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    // Reflective access to "com.sun.management.ThreadMXBean.getThreadAllocatedBytes(long)", because that is not
+    // available on all JVMs. Null if not available.
+    @Nullable private static final Method GET_THREAD_ALLOCATED_BYTES;
+    static {
+        Method m;
+        try {
+            Class<?> c = Class.forName("com.sun.management.ThreadMXBean");
+            m = (
+                c.isInstance(CompilationMetrics.THREAD_MX_BEAN)
+                ? c.getMethod("getThreadAllocatedBytes", long.class)
+                : null
+            );
+        } catch (Exception e) {
+            m = null;
+        }
+        GET_THREAD_ALLOCATED_BYTES = m;
+    }
+}
@@ -0,0 +1,479 @@
+
+/*
+ * Janino - An embedded Java[TM] compiler
+ *
+ * Copyright (c) 2001-2010, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codehaus.janino;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.codehaus.commons.nullanalysis.Nullable;
+import org.codehaus.janino.util.resource.JarDirectoriesResourceFinder;
+import org.codehaus.janino.util.resource.PathResourceFinder;
+
+/**
+ * A long-running server process that executes {@link Compiler} command lines on behalf of {@link
+ * CompileDaemonClient}s, and keeps the {@link IClass}es loaded from the boot class path, the extension directories and
+ * the JAR files on the class path "warm" between compilations.
+ * <p>
+ *   Usage:
+ * </p>
+ * <pre>
+ *     java org.codehaus.janino.CompileDaemon \
+ *               [ -port <em>port</em> ] \
+ *               [ -idle-timeout <em>seconds</em> ] \
+ *               [ -max-class-paths <em>count</em> ]
+ * </pre>
+ * <p>
+ *   The daemon accepts connections only on the loopback interface, and executes one compilation at a time. It
+ *   terminates when it has not received a request for the configured idle timeout.
+ * </p>
+ * <p>
+ *   The warm {@link IClassLoader}s are keyed by a fingerprint of the boot class path, the extension directories and
+ *   the leading JAR files of the class path (path, size and modification time of each file). Class path entries from
+ *   the first directory on are not kept warm, because the class files in these directories typically change between
+ *   compilations. When there are more than the configured number of warm class paths, or when the heap is more than
+ *   75% full, then the least recently used class paths are evicted.
+ * </p>
+ * <p>
+ *   The daemon compiles (and writes class files) with the privileges of the user who started it, so it executes only
+ *   requests that present a random token, which it writes, on startup, into a file that only that user can read (see
+ *   {@link #getTokenFile(int)}). A request without the right token is rejected before any of its arguments is
+ *   processed.
+ * </p>
+ */
+public
+class CompileDaemon {
+
+    private static final Logger LOGGER = Logger.getLogger(CompileDaemon.class.getName());
+
+    /**
+     * The system property that configures the port of both the {@link CompileDaemon} and the {@link
+     * CompileDaemonClient}.
+     */
+    public static final String SYSTEM_PROPERTY_PORT = "org.codehaus.janino.CompileDaemon.port";
+
+    /**
+     * The port that is used iff the {@link #SYSTEM_PROPERTY_PORT} is not set.
+     */
+    public static final int DEFAULT_PORT = 16523;
+
+    // Protocol: Request := MAGIC token:UTF cwd:UTF argc:int { arg:UTF }
+    //           Response := { (STDOUT | STDERR) length:int bytes } EXIT status:int
+    static final int  MAGIC  = 0x4a434432; // "JCD2"
+    static final byte EXIT   = 0;
+    static final byte STDOUT = 1;
+    static final byte STDERR = 2;
+
+    // The time that a client may take to send its request.
+    private static final int REQUEST_TIMEOUT = 10000;
+
+    private final ServerSocket serverSocket;
+    private final File         tokenFile;
+    private final String       token;
+    private final int          idleTimeout;
+    private final int          maxClassPaths;
+
+    // Fingerprint => warm IClassLoader, in access order.
+    private final Map<String, IClassLoader>
+    warmIClassLoaders = new LinkedHashMap<String, IClassLoader>(16, .75F, true);
+
+    /**
+     * Command line interface.
+     */
+    public static void
+    main(String[] args) throws IOException {
+        int port          = Integer.getInteger(CompileDaemon.SYSTEM_PROPERTY_PORT, CompileDaemon.DEFAULT_PORT);
+        int idleTimeout   = 30 * 60;
+        int maxClassPaths = 10;
+
+        for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+            if ("-port".equals(arg)) {
+                port = Integer.parseInt(args[++i]);
+            } else
+            if ("-idle-timeout".equals(arg)) {
+                idleTimeout = Integer.parseInt(args[++i]);
+            } else
+            if ("-max-class-paths".equals(arg)) {
+                maxClassPaths = Integer.parseInt(args[++i]);
+            } else
+            {
+                System.err.println("Unrecognized command line option \"" + arg + "\"");
+                System.exit(1);
+            }
+        }
+
+        new CompileDaemon(port, idleTimeout, maxClassPaths).run();
+    }
+
+    /**
+     * @param port          Zero means "any free port", see {@link #getPort()}
+     * @param idleTimeout   The number of seconds without requests after which {@link #run()} returns; zero means
+     *                      "never"
+     * @param maxClassPaths The maximum number of class paths that are kept warm
+     */
+    public
+    CompileDaemon(int port, int idleTimeout, int maxClassPaths) throws IOException {
+        this.serverSocket  = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        this.idleTimeout   = idleTimeout;
+        this.maxClassPaths = maxClassPaths;
+
+        byte[] ba = new byte[32];
+        new SecureRandom().nextBytes(ba);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : ba) sb.append(Integer.toHexString(0x100 | (b & 0xff)).substring(1));
+        this.token = sb.toString();
+
+        this.tokenFile = CompileDaemon.getTokenFile(this.getPort());
+        try {
+            CompileDaemon.writeTokenFile(this.tokenFile, this.token);
+        } catch (IOException ioe) {
+            this.serverSocket.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * @return The file through which the {@link CompileDaemon} that listens on the given port passes its token to the
+     *         {@link CompileDaemonClient}s of the same user, i.e. "{@code ~/.janino/compile-daemon-<port>.token}"
+     */
+    public static File
+    getTokenFile(int port) {
+        return new File(new File(System.getProperty("user.home"), ".janino"), "compile-daemon-" + port + ".token");
+    }
+
+    /**
+     * @return The token in the given file
+     */
+    static String
+    readTokenFile(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (int c = is.read(); c != -1; c = is.read()) sb.append((char) c);
+            return sb.toString().trim();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Creates the given file such that only the current user can access it (and its directory), and only then
+     * writes the token into it.
+     */
+    private static void
+    writeTokenFile(File file, String token) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create directory \"" + dir + "\"");
+        CompileDaemon.restrictToOwner(dir, true);
+
+        if (file.exists() && !file.delete()) throw new IOException("Cannot delete stale \"" + file + "\"");
+        if (!file.createNewFile()) throw new IOException("Cannot create \"" + file + "\"");
+        CompileDaemon.restrictToOwner(file, false);
+
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(token.getBytes("US-ASCII"));
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Revokes all permissions of the group and of others, like "{@code chmod 700}" resp. "{@code chmod 600}".
+     * <p>
+     *   Notice: Where the file system has no permission bits (notably on Windows), {@link File#setReadable(boolean,
+     *   boolean)} and friends fail; there the user's home directory is private anyway.
+     * </p>
+     */
+    private static void
+    restrictToOwner(File file, boolean directory) throws IOException {
+        if (
+            !file.setReadable(false, false)
+            || !file.setWritable(false, false)
+            || !file.setExecutable(false, false)
+        ) {
+            CompileDaemon.LOGGER.log(Level.FINE, "Cannot change the permissions of \"{0}\"", file);
+            return;
+        }
+        if (
+            !file.setReadable(true, true)
+            || !file.setWritable(true, true)
+            || (directory && !file.setExecutable(true, true))
+        ) throw new IOException("Cannot change the permissions of \"" + file + "\"");
+    }
+
+    /**
+     * @return The port that the daemon listens on
+     */
+    public int
+    getPort() { return this.serverSocket.getLocalPort(); }
+
+    /**
+     * @return The number of class paths that are currently kept warm
+     */
+    public synchronized int
+    getWarmClassPathCount() { return this.warmIClassLoaders.size(); }
+
+    /**
+     * Serves requests until the idle timeout expires, or until {@link #close()} is invoked.
+     */
+    public void
+    run() throws IOException {
+        this.serverSocket.setSoTimeout(this.idleTimeout * 1000);
+        try {
+            for (;;) {
+                Socket socket;
+                try {
+                    socket = this.serverSocket.accept();
+                } catch (SocketTimeoutException ste) {
+                    CompileDaemon.LOGGER.info("Idle timeout expired; shutting down");
+                    return;
+                } catch (SocketException se) {
+                    if (this.serverSocket.isClosed()) return;
+                    throw se;
+                }
+
+                try {
+                    this.serve(socket);
+                } catch (IOException ioe) {
+                    CompileDaemon.LOGGER.log(Level.WARNING, "Serving request", ioe);
+                } finally {
+                    try { socket.close(); } catch (IOException ioe) {}
+                }
+
+                this.evict();
+            }
+        } finally {
+            this.close();
+        }
+    }
+
+    /**
+     * Causes {@link #run()} to return after the current request, and deletes the {@link #getTokenFile(int) token
+     * file}.
+     */
+    public void
+    close() throws IOException {
+        this.serverSocket.close();
+        this.tokenFile.delete();
+    }
+
+    private void
+    serve(Socket socket) throws IOException {
+        DataInputStream        dis = new DataInputStream(socket.getInputStream());
+        final DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+
+        socket.setSoTimeout(CompileDaemon.REQUEST_TIMEOUT);
+        if (dis.readInt() != CompileDaemon.MAGIC) throw new IOException("Invalid request");
+        if (!MessageDigest.isEqual(dis.readUTF().getBytes("UTF-8"), this.token.getBytes("UTF-8"))) {
+            throw new IOException("Invalid token");
+        }
+        File     workingDirectory = new File(dis.readUTF());
+        String[] args             = new String[dis.readInt()];
+        for (int i = 0; i < args.length; ++i) args[i] = dis.readUTF();
+        socket.setSoTimeout(0);
+
+        // Redirect STDOUT and STDERR to the client while the compiler executes.
+        PrintStream out = System.out, err = System.err;
+        System.setOut(new PrintStream(new FrameOutputStream(dos, CompileDaemon.STDOUT), true));
+        System.setErr(new PrintStream(new FrameOutputStream(dos, CompileDaemon.STDERR), true));
+        int status;
+        try {
+            status = Compiler.run(args, workingDirectory, new Compiler.PathIClassLoaderFactory() {
+
+                @Override public IClassLoader
+                create(@Nullable File[] optionalBootClassPath, @Nullable File[] optionalExtDirs, File[] classPath) {
+                    return CompileDaemon.this.getIClassLoader(optionalBootClassPath, optionalExtDirs, classPath);
+                }
+            });
+        } catch (RuntimeException re) {
+            re.printStackTrace();
+            status = 1;
+        } finally {
+            System.out.flush();
+            System.err.flush();
+            System.setOut(out);
+            System.setErr(err);
+        }
+
+        dos.writeByte(CompileDaemon.EXIT);
+        dos.writeInt(status);
+        dos.flush();
+    }
+
+    /**
+     * @return An {@link IClassLoader} equivalent to {@link IClassLoader#createJavacLikePathIClassLoader(File[],
+     *         File[], File[])}, which shares the {@link IClass}es loaded from the boot class path, the extension
+     *         directories and the leading JAR files of the class path with previous compilations
+     */
+    synchronized IClassLoader
+    getIClassLoader(@Nullable File[] optionalBootClassPath, @Nullable File[] optionalExtDirs, File[] classPath) {
+
+        // Notice: Since Java 9, there is no "sun.boot.class.path"; the boot classes are then loaded through the
+        // platform class loader.
+        File[] bootClassPath = (
+            optionalBootClassPath != null
+            ? optionalBootClassPath
+            : CompileDaemon.parsePathProperty("sun.boot.class.path")
+        );
+        boolean bootClassLoader = optionalBootClassPath == null && System.getProperty("sun.boot.class.path") == null;
+        File[] extDirs = optionalExtDirs != null ? optionalExtDirs : CompileDaemon.parsePathProperty("java.ext.dirs");
+
+        // Split the class path into the leading JAR files and the rest.
+        int idx = 0;
+        while (idx < classPath.length && classPath[idx].isFile()) idx++;
+        File[] warmClassPath = (File[]) Arrays.asList(classPath).subList(0, idx).toArray(new File[idx]);
+        File[] coldClassPath = (File[]) Arrays.asList(classPath).subList(idx, classPath.length).toArray(
+            new File[classPath.length - idx]
+        );
+
+        // Find or create the warm IClassLoader.
+        StringBuilder sb = new StringBuilder();
+        CompileDaemon.fingerprint(bootClassPath, sb.append(bootClassLoader ? "boot:jvm" : "boot:"));
+        for (File extDir : extDirs) {
+            File[] jarFiles = extDir.listFiles();
+            if (jarFiles != null) {
+                Arrays.sort(jarFiles);
+                CompileDaemon.fingerprint(jarFiles, sb.append("ext:"));
+            }
+        }
+        CompileDaemon.fingerprint(warmClassPath, sb.append("cp:"));
+        String fingerprint = sb.toString();
+
+        IClassLoader icl = (IClassLoader) this.warmIClassLoaders.get(fingerprint);
+        if (icl == null) {
+            icl = (
+                bootClassLoader
+                ? (IClassLoader) new ClassLoaderIClassLoader(ClassLoader.getSystemClassLoader().getParent())
+                : (IClassLoader) new ResourceFinderIClassLoader(new PathResourceFinder(bootClassPath), null)
+            );
+            icl = new ResourceFinderIClassLoader(new JarDirectoriesResourceFinder(extDirs), icl);
+            icl = new ResourceFinderIClassLoader(new PathResourceFinder(warmClassPath), icl);
+            this.warmIClassLoaders.put(fingerprint, icl);
+        }
+
+        if (coldClassPath.length == 0) return icl;
+
+        return new ResourceFinderIClassLoader(new PathResourceFinder(coldClassPath), icl);
+    }
+
+    /**
+     * Evicts the least recently used warm class paths while there are too many of them, or while the heap is
+     * short.
+     */
+    private synchronized void
+    evict() {
+
+        while (this.warmIClassLoaders.size() > this.maxClassPaths) this.evictEldest();
+
+        if (!CompileDaemon.isHeapShort()) return;
+
+        System.gc();
+        while (!this.warmIClassLoaders.isEmpty() && CompileDaemon.isHeapShort()) {
+            this.evictEldest();
+            System.gc();
+        }
+    }
+
+    private void
+    evictEldest() {
+        Iterator<String> it = this.warmIClassLoaders.keySet().iterator();
+        CompileDaemon.LOGGER.log(Level.FINE, "Evicting class path {0}", it.next());
+        it.remove();
+    }
+
+    private static boolean
+    isHeapShort() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory() > rt.maxMemory() / 4 * 3;
+    }
+
+    private static void
+    fingerprint(File[] files, StringBuilder sb) {
+        for (File f : files) {
+            sb.append(f.getAbsolutePath()).append('|').append(f.length()).append('|').append(f.lastModified());
+            sb.append(File.pathSeparatorChar);
+        }
+    }
+
+    private static File[]
+    parsePathProperty(String propertyName) {
+        String s = System.getProperty(propertyName);
+        return s == null ? new File[0] : PathResourceFinder.parsePath(s);
+    }
+
+    /**
+     * Writes all bytes as frames of the given kind.
+     */
+    private static
+    class FrameOutputStream extends OutputStream {
+
+        private final DataOutputStream dos;
+        private final byte             kind;
+
+        FrameOutputStream(DataOutputStream dos, byte kind) {
+            this.dos  = dos;
+            this.kind = kind;
+        }
+
+        @Override public void
+        write(int b) throws IOException { this.write(new byte[] { (byte) b }, 0, 1); }
+
+        @Override public void
+        write(@Nullable byte[] b, int off, int len) throws IOException {
+            assert b != null;
+            synchronized (this.dos) {
+                this.dos.writeByte(this.kind);
+                this.dos.writeInt(len);
+                this.dos.write(b, off, len);
+            }
+        }
+
+        @Override public void
+        flush() throws IOException { this.dos.flush(); }
+    }
+}
@@ -0,0 +1,114 @@
+
+/*
+ * Janino - An embedded Java[TM] compiler
+ *
+ * Copyright (c) 2001-2010, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codehaus.janino;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * A thin client that forwards a {@link Compiler} command line to a {@link CompileDaemon}, and falls back to compiling
+ * in-process iff no daemon is running.
+ * <p>
+ *   Usage: As for {@link Compiler}. The port of the daemon is configured through the {@link
+ *   CompileDaemon#SYSTEM_PROPERTY_PORT} system property. Only a daemon that the current user has started is used,
+ *   because the client must read the daemon's {@link CompileDaemon#getTokenFile(int) token file}.
+ * </p>
+ */
+public final
+class CompileDaemonClient {
+
+    private CompileDaemonClient() {}
+
+    /**
+     * Command line interface.
+     */
+    public static void
+    main(String[] args) throws IOException {
+
+        int status;
+        try {
+            status = CompileDaemonClient.compile(
+                Integer.getInteger(CompileDaemon.SYSTEM_PROPERTY_PORT, CompileDaemon.DEFAULT_PORT),
+                new File(".").getAbsoluteFile(),
+                args,
+                System.out,
+                System.err
+            );
+        } catch (ConnectException ce) {
+            status = Compiler.run(args, null, null);
+        }
+
+        if (status != 0) System.exit(status);
+    }
+
+    /**
+     * Executes the given {@link Compiler} command line through the {@link CompileDaemon} that listens on the given
+     * port of the loopback interface.
+     *
+     * @param workingDirectory Relative file names in the <var>args</var> are resolved against this directory
+     * @param out              Receives the compiler's standard output
+     * @param err              Receives the compiler's error output
+     * @return                 The exit status of the compilation
+     * @throws ConnectException No daemon of the current user listens on the <var>port</var>
+     */
+    public static int
+    compile(int port, File workingDirectory, String[] args, OutputStream out, OutputStream err) throws IOException {
+
+        File tokenFile = CompileDaemon.getTokenFile(port);
+        if (!tokenFile.isFile()) throw new ConnectException("Token file \"" + tokenFile + "\" does not exist");
+        String token = CompileDaemon.readTokenFile(tokenFile);
+
+        Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+        try {
+            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            dos.writeInt(CompileDaemon.MAGIC);
+            dos.writeUTF(token);
+            dos.writeUTF(workingDirectory.getAbsolutePath());
+            dos.writeInt(args.length);
+            for (String arg : args) dos.writeUTF(arg);
+            dos.flush();
+
+            DataInputStream dis = new DataInputStream(socket.getInputStream());
+            for (;;) {
+                byte kind = dis.readByte();
+                if (kind == CompileDaemon.EXIT) return dis.readInt();
+
+                byte[] ba = new byte[dis.readInt()];
+                dis.readFully(ba);
+                (kind == CompileDaemon.STDOUT ? out : err).write(ba);
+            }
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -87,6 +87,41 @@ class Compiler {
      */
     public static void
     main(String[] args) {
+        int status = Compiler.run(args, null, null);
+        if (status != 0) System.exit(status);
+    }
+
+    /**
+     * Creates the {@link IClassLoader} for a boot class path, extension directories and class path.
+     *
+     * @see IClassLoader#createJavacLikePathIClassLoader(File[], File[], File[])
+     * @see CompileDaemon
+     */
+    interface PathIClassLoaderFactory {
+
+        /**
+         * @see IClassLoader#createJavacLikePathIClassLoader(File[], File[], File[])
+         */
+        IClassLoader
+        create(@Nullable File[] optionalBootClassPath, @Nullable File[] optionalExtDirs, File[] classPath);
+    }
+
+    /**
+     * Implements the command line interface; resolves relative file names against the
+     * <var>optionalWorkingDirectory</var>, and creates the {@link IClassLoader} through the
+     * <var>optionalIClassLoaderFactory</var>.
+     *
+     * @param optionalWorkingDirectory    {@code null} means the current working directory of the JVM
+     * @param optionalIClassLoaderFactory {@code null} means {@link
+     *                                    IClassLoader#createJavacLikePathIClassLoader(File[], File[], File[])}
+     * @return                            The exit status, i.e. zero iff the compilation was successful
+     */
+    static int
+    run(
+        String[]                          args,
+        @Nullable File                    optionalWorkingDirectory,
+        @Nullable PathIClassLoaderFactory optionalIClassLoaderFactory
+    ) {
         File            destinationDirectory      = Compiler.NO_DESTINATION_DIRECTORY;
         File[]          optionalSourcePath        = null;
         File[]          classPath                 = { new File(".") };
@@ -106,19 +141,25 @@ class Compiler {
             String arg = args[i];
             if (arg.charAt(0) != '-') break;
             if ("-d".equals(arg)) {
-                destinationDirectory = new File(args[++i]);
+                destinationDirectory = Compiler.resolve(optionalWorkingDirectory, new File(args[++i]));
             } else
             if ("-sourcepath".equals(arg)) {
-                optionalSourcePath = PathResourceFinder.parsePath(args[++i]);
+                optionalSourcePath = Compiler.resolve(
+                    optionalWorkingDirectory,
+                    PathResourceFinder.parsePath(args[++i])
+                );
             } else
             if ("-classpath".equals(arg)) {
                 classPath = PathResourceFinder.parsePath(args[++i]);
             } else
             if ("-extdirs".equals(arg)) {
-                optionalExtDirs = PathResourceFinder.parsePath(args[++i]);
+                optionalExtDirs = Compiler.resolve(optionalWorkingDirectory, PathResourceFinder.parsePath(args[++i]));
             } else
             if ("-bootclasspath".equals(arg)) {
-                optionalBootClassPath = PathResourceFinder.parsePath(args[++i]);
+                optionalBootClassPath = Compiler.resolve(
+                    optionalWorkingDirectory,
+                    PathResourceFinder.parsePath(args[++i])
+                );
             } else
             if ("-encoding".equals(arg)) {
                 optionalCharacterEncoding = args[++i];
@@ -145,21 +186,24 @@ class Compiler {
             } else
             if ("-help".equals(arg)) {
                 System.out.printf(Compiler.USAGE, (Object[]) null);
-                System.exit(1);
+                return 1;
             } else
             {
                 System.err.println("Unrecognized command line option \"" + arg + "\"; try \"-help\".");
-                System.exit(1);
+                return 1;
             }
         }
+        classPath = Compiler.resolve(optionalWorkingDirectory, classPath);
 
         // Get source file names.
         if (i == args.length) {
             System.err.println("No source files given on command line; try \"-help\".");
-            System.exit(1);
+            return 1;
         }
         File[] sourceFiles = new File[args.length - i];
-        for (int j = i; j < args.length; ++j) sourceFiles[j - i] = new File(args[j]);
+        for (int j = i; j < args.length; ++j) {
+            sourceFiles[j - i] = Compiler.resolve(optionalWorkingDirectory, new File(args[j]));
+        }
 
         // Create the compiler object.
         final Compiler compiler = new Compiler(
@@ -174,7 +218,12 @@ class Compiler {
             debugLines,
             debugVars,
             warningHandlePatterns,
-            rebuild
+            rebuild,
+            (
+                optionalIClassLoaderFactory == null
+                ? IClassLoader.createJavacLikePathIClassLoader(optionalBootClassPath, optionalExtDirs, classPath)
+                : optionalIClassLoaderFactory.create(optionalBootClassPath, optionalExtDirs, classPath)
+            )
         );
 
         // Compile source files.
@@ -188,8 +237,26 @@ class Compiler {
                 System.err.println(e.toString());
             }
 
-            System.exit(1);
+            return 1;
         }
+
+        return 0;
+    }
+
+    private static File
+    resolve(@Nullable File optionalWorkingDirectory, File file) {
+        return (
+            optionalWorkingDirectory == null || file.isAbsolute()
+            ? file
+            : new File(optionalWorkingDirectory, file.getPath())
+        );
+    }
+
+    private static File[]
+    resolve(@Nullable File optionalWorkingDirectory, File[] files) {
+        File[] result = new File[files.length];
+        for (int i = 0; i < files.length; i++) result[i] = Compiler.resolve(optionalWorkingDirectory, files[i]);
+        return result;
     }
 
     private static final String USAGE = (
@@ -242,6 +309,7 @@ class Compiler {
     private final boolean                   debugLines;
     private final boolean                   debugVars;
     @Nullable private WarningHandler        optionalWarningHandler;
+    @Nullable private CompilationListener   optionalCompilationListener;
     @Nullable private ErrorHandler          optionalCompileErrorHandler;
 
     private final IClassLoader       iClassLoader;
@@ -307,16 +375,49 @@ class Compiler {
         boolean                debugVars,
         StringPattern[]        warningHandlePatterns,
         boolean                rebuild
+    ) {
+        this(
+            optionalSourcePath,
+            classPath,
+            optionalExtDirs,
+            optionalBootClassPath,
+            destinationDirectory,
+            optionalCharacterEncoding,
+            verbose,
+            debugSource,
+            debugLines,
+            debugVars,
+            warningHandlePatterns,
+            rebuild,
+            IClassLoader.createJavacLikePathIClassLoader(optionalBootClassPath, optionalExtDirs, classPath)
+        );
+    }
+
+    /**
+     * Like {@link #Compiler(File[], File[], File[], File[], File, String, boolean, boolean, boolean, boolean,
+     * StringPattern[], boolean)}, but with an {@link IClassLoader} that was created for the
+     * <var>optionalBootClassPath</var>, <var>optionalExtDirs</var> and <var>classPath</var> elsewhere.
+     */
+    Compiler(
+        @Nullable final File[] optionalSourcePath,
+        final File[]           classPath,
+        @Nullable final File[] optionalExtDirs,
+        @Nullable final File[] optionalBootClassPath,
+        @Nullable final File   destinationDirectory,
+        @Nullable final String optionalCharacterEncoding,
+        boolean                verbose,
+        boolean                debugSource,
+        boolean                debugLines,
+        boolean                debugVars,
+        StringPattern[]        warningHandlePatterns,
+        boolean                rebuild,
+        IClassLoader           iClassLoader
     ) {
         this(
             new PathResourceFinder(                       // sourceFinder
                 optionalSourcePath == null ? classPath : optionalSourcePath
             ),
-            IClassLoader.createJavacLikePathIClassLoader( // iClassLoader
-                optionalBootClassPath,
-                optionalExtDirs,
-                classPath
-            ),
+            iClassLoader,                                 // iClassLoader
             (                                             // classFileFinder
                 rebuild
                 ? ResourceFinder.EMPTY_RESOURCE_FINDER
@@ -466,6 +567,18 @@ class Compiler {
         this.optionalWarningHandler = optionalWarningHandler;
     }
 
+    /**
+     * Installs a listener that is notified with the {@link CompilationMetrics} of each invocation of {@link
+     * #compile(Resource[])}. The {@link CompilationMetrics.Phase#SERIALIZATION} phase includes the writing of the
+     * class files, and {@link CompilationMetrics.Phase#CLASS_DEFINITION} does not apply.
+     *
+     * @param optionalCompilationListener {@code null} to restore the default behavior, which is to not measure at all
+     */
+    public void
+    setCompilationListener(@Nullable CompilationListener optionalCompilationListener) {
+        this.optionalCompilationListener = optionalCompilationListener;
+    }
+
     /**
      * Reads a set of Java compilation units (a.k.a. "source files") from the file system, compiles them into a set of
      * "class files" and stores these in the file system. Additional source files are parsed and compiled on demand
@@ -533,6 +646,7 @@ class Compiler {
             }
         );
 
+        CompilationMetrics metrics = CompilationMetrics.open(this.optionalCompilationListener);
         this.benchmark.beginReporting();
         try {
 
@@ -581,14 +695,17 @@ class Compiler {
                     + sourceFile
                     + "\""
                 );
+                CompilationMetrics.enter(CompilationMetrics.Phase.SERIALIZATION);
                 try {
                     for (ClassFile classFile : classFiles) this.storeClassFile(classFile, sourceFile);
                 } finally {
+                    CompilationMetrics.leave();
                     this.benchmark.endReporting();
                 }
             }
         } finally {
             this.benchmark.endReporting("Compiled " + this.parsedCompilationUnits.size() + " compilation unit(s)");
+            if (metrics != null) metrics.close();
         }
         return true;
     }
@@ -615,9 +732,11 @@ class Compiler {
             parser.setWarningHandler(this.optionalWarningHandler);
 
             this.benchmark.beginReporting("Parsing \"" + fileName + "\"");
+            CompilationMetrics.enter(CompilationMetrics.Phase.PARSE);
             try {
                 return parser.parseCompilationUnit();
             } finally {
+                CompilationMetrics.leave();
                 this.benchmark.endReporting();
             }
         } finally {
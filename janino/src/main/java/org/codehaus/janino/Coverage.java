@@ -0,0 +1,147 @@
+
+/*
+ * Janino - An embedded Java[TM] compiler
+ *
+ * Copyright (c) 2001-2010, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codehaus.janino;
+
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Records which source lines of code that was compiled in {@link SimpleCompiler#setCoverage(boolean) coverage mode}
+ * were executed.
+ * <p>
+ *   In coverage mode, the generated code invokes {@link #hit(int, int)} each time execution enters the code of a
+ *   source line, which sets an element of a {@code boolean} array (the "hit map"). Unlike a Java agent, this requires
+ *   no changes to the JVM's command line, and costs only a static method invocation per executed line.
+ * </p>
+ * <p>
+ *   The hit maps are identified by the name of the evaluator, i.e. the "file name" that was passed to {@code cook()}
+ *   (or, if none was passed, the name of the first generated class plus a suffix that is unique within the JVM, e.g.
+ *   "SC#7"). Compiling an evaluator replaces the hit map of any earlier evaluator with the same file name; the lines
+ *   that the earlier evaluator executes afterwards are not recorded. Applications that cook an unlimited number of
+ *   evaluators under different (or no) file names must {@link #remove(String) remove} the hit maps that they no
+ *   longer need.
+ * </p>
+ * <p>
+ *   The instrumented code needs this class at runtime, so the {@link SimpleCompiler#setParentClassLoader(ClassLoader)
+ *   parent class loader} must load the <em>same</em> {@link Coverage} class as the compiler.
+ * </p>
+ */
+public final
+class Coverage {
+
+    private Coverage() {}
+
+    /**
+     * @return The names of the evaluators that were compiled in coverage mode, in the order of their compilation
+     */
+    public static synchronized Set<String>
+    getEvaluatorNames() { return Coverage.HIT_MAPS.getEvaluatorNames(); }
+
+    /**
+     * @return Each line of the evaluator that has code, mapped to whether that code was executed since the
+     *         compilation resp. the last {@link #reset(String)}
+     */
+    public static synchronized SortedMap<Integer, Boolean>
+    snapshot(String evaluatorName) {
+        SortedMap<Integer, Boolean> result = new TreeMap<Integer, Boolean>();
+        for (Object o : Coverage.HIT_MAPS.getObjects(evaluatorName)) {
+            HitMap hm = (HitMap) o;
+            for (int line = 0; line < hm.lines.length; line++) {
+                if (!hm.lines[line]) continue;
+                Boolean hit = (Boolean) result.get(line);
+                result.put(line, hm.hits[line] || (hit != null && hit.booleanValue()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Clears the hit map of the given evaluator, i.e. marks all its lines as "not executed".
+     */
+    public static synchronized void
+    reset(String evaluatorName) {
+        for (Object o : Coverage.HIT_MAPS.getObjects(evaluatorName)) {
+            boolean[] hits = ((HitMap) o).hits;
+            for (int i = 0; i < hits.length; i++) hits[i] = false;
+        }
+    }
+
+    /**
+     * Removes the hit map of the given evaluator.
+     */
+    public static synchronized void
+    remove(String evaluatorName) { Coverage.HIT_MAPS.remove(evaluatorName); }
+
+    /**
+     * Marks the given line of the given hit map as executed (unless the hit map was removed); invoked by the
+     * instrumented code.
+     */
+    public static void
+    hit(int hitMapId, int lineNumber) {
+        HitMap hm = (HitMap) Coverage.HIT_MAPS.get(hitMapId);
+        if (hm != null) hm.hits[lineNumber] = true;
+    }
+
+    /**
+     * Allocates a new, empty hit map, which replaces the hit map of the same evaluator (if any); invoked by the
+     * {@link UnitCompiler}.
+     *
+     * @return The ID of the new hit map
+     */
+    static synchronized int
+    register(String evaluatorName) {
+        Coverage.HIT_MAPS.remove(evaluatorName);
+        return Coverage.HIT_MAPS.add(evaluatorName, new HitMap());
+    }
+
+    /**
+     * Notes that the given line of the given hit map has code; invoked by the {@link CodeContext} while the code is
+     * being generated, i.e. before the instrumented code can execute.
+     */
+    static synchronized void
+    addLine(int hitMapId, int lineNumber) {
+        HitMap hm = (HitMap) Coverage.HIT_MAPS.get(hitMapId);
+        assert hm != null;
+        if (lineNumber >= hm.lines.length) {
+            int       newLength = Math.max(lineNumber + 1, 2 * hm.lines.length);
+            boolean[] newLines  = new boolean[newLength];
+            System.arraycopy(hm.lines, 0, newLines, 0, hm.lines.length);
+            hm.lines = newLines;
+            hm.hits  = new boolean[newLength];
+        }
+        hm.lines[lineNumber] = true;
+    }
+
+    private static
+    class HitMap {
+        boolean[] lines = new boolean[0];
+        boolean[] hits  = new boolean[0];
+    }
+
+    private static final ProbeRegistry<HitMap> HIT_MAPS = new ProbeRegistry<HitMap>();
+}
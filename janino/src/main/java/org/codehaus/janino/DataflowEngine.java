@@ -0,0 +1,685 @@
+
+/*
+ * Janino - An embedded Java[TM] compiler
+ *
+ * Copyright (c) 2001-2010, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codehaus.janino;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.codehaus.commons.compiler.CompileException;
+import org.codehaus.commons.compiler.IClassBodyEvaluator;
+import org.codehaus.commons.compiler.Location;
+import org.codehaus.commons.nullanalysis.Nullable;
+
+/**
+ * A graph of named <em>cells</em>, each of which holds a {@code double} value, and is either an <em>input</em> or is
+ * computed by a <em>formula</em>, i.e. a Java expression that refers to other cells by their names (e.g. {@code
+ * b * c + Math.sqrt(d)}).
+ * <p>
+ *   When an input changes, only the formulas that (directly or indirectly) depend on it are recomputed, and a formula
+ *   whose value did not change does not cause its dependents to be recomputed. The formulas are recomputed in
+ *   topological order, i.e. after the cells they refer to; formulas with the same distance from the inputs are
+ *   independent of each other and can be evaluated in parallel, see {@link #setExecutor(ExecutorService)}.
+ * </p>
+ * <p>
+ *   The dependencies of each formula are determined from its parsed AST, see {@link Dependencies}; referenced cells
+ *   that were not yet defined are created as inputs with value {@code 0}. {@link #setFormula(String, String)}
+ *   compiles the formula into its own class, through the fast-evaluator path of the {@link ScriptEvaluator}. Each
+ *   class and its class loader occupy metaspace, so large graphs should be defined with {@link #setFormulas(Map)},
+ *   which compiles up to {@value #FORMULAS_PER_CLASS} formulas into one class.
+ * </p>
+ * <p>
+ *   Example:
+ * </p>
+ * <pre>
+ *     DataflowEngine engine = new DataflowEngine();
+ *     engine.setFormula("a", "b * c + d");
+ *     engine.setInput("b", 2);
+ *     engine.setInput("c", 3);
+ *     engine.setInput("d", 4);
+ *     engine.get("a");                                      // 10.0
+ * </pre>
+ * <p>
+ *   This class is <em>not</em> thread-safe.
+ * </p>
+ */
+public
+class DataflowEngine {
+
+    /**
+     * The interface that the formulas are compiled to; must be public, so that the generated classes can implement it.
+     */
+    public
+    interface Formula {
+
+        /**
+         * @param inputs The values of the cells that the formula refers to
+         */
+        double evaluate(double[] inputs);
+    }
+
+    /**
+     * The minimum number of formulas per parallel task; smaller tasks would cost more to schedule than to evaluate.
+     */
+    private static final int PARALLEL_CHUNK_SIZE = 256;
+
+    /**
+     * The maximum number of formulas that {@link #setFormulas(Map)} compiles into one class. More would hardly save
+     * any more metaspace, but would make the "{@code evaluate()}" method and the constant pool of the class grow
+     * towards their JVM limits.
+     */
+    public static final int FORMULAS_PER_CLASS = 1024;
+
+    // The name of the parameter of the generated "evaluate()" method; "$" avoids clashes with cell names.
+    private static final String INPUTS = "$inputs";
+
+    private static final Node[] NO_NODES = new Node[0];
+
+    @Nullable private ClassLoader     optionalParentClassLoader;
+    @Nullable private String[]        optionalDefaultImports;
+    @Nullable private ExecutorService optionalExecutor;
+
+    private final Map<String, Node> nodes = new HashMap<String, Node>();
+
+    /**
+     * The formulas that must be recomputed, in topological order.
+     */
+    private final SortedSet<Node> dirty = new TreeSet<Node>(Node.TOPOLOGICAL_ORDER);
+
+    /**
+     * @see ScriptEvaluator#setParentClassLoader(ClassLoader)
+     */
+    public void
+    setParentClassLoader(@Nullable ClassLoader optionalParentClassLoader) {
+        this.optionalParentClassLoader = optionalParentClassLoader;
+    }
+
+    /**
+     * @see ScriptEvaluator#setDefaultImports(String[])
+     */
+    public void
+    setDefaultImports(@Nullable String[] optionalDefaultImports) {
+        this.optionalDefaultImports = optionalDefaultImports == null ? null : (String[]) optionalDefaultImports.clone();
+    }
+
+    /**
+     * Configures the executor that evaluates independent formulas in parallel (e.g. a fork-join pool); {@code null}
+     * (which is the default) means that all formulas are evaluated by the thread that invokes {@link #recompute()}.
+     */
+    public void
+    setExecutor(@Nullable ExecutorService optionalExecutor) { this.optionalExecutor = optionalExecutor; }
+
+    /**
+     * Sets the value of an input cell; iff the cell was previously computed by a formula, then that formula is
+     * removed.
+     */
+    public void
+    setInput(String name, double value) {
+        Node node = this.node(name);
+
+        if (node.formula != null) {
+            try {
+                this.redefine(node, null, DataflowEngine.NO_NODES);
+            } catch (CompileException ce) {
+
+                // An input cannot close a cycle.
+                throw new JaninoRuntimeException(ce.toString(), ce);
+            }
+        } else
+        if (Double.compare(node.value, value) == 0) {
+            return;
+        }
+
+        node.value = value;
+        this.dirty.addAll(node.dependents);
+    }
+
+    /**
+     * Compiles the formula, and defines that the cell is computed by it.
+     *
+     * @param formula           A Java expression, optionally preceded by import declarations, that refers to other
+     *                          cells by their names
+     * @throws CompileException The formula has a syntax or semantic error, or it would create a cyclic dependency;
+     *                          the cell is left unchanged
+     */
+    public void
+    setFormula(String name, String formula) throws CompileException {
+        String[] inputNames = DataflowEngine.inputNames(name, formula);
+        this.define(name, this.compile(name, formula, inputNames), inputNames);
+    }
+
+    /**
+     * Equivalent with {@link #setFormula(String, String)} for each of the <var>formulas</var>, but compiles up to
+     * {@value #FORMULAS_PER_CLASS} formulas into one class.
+     *
+     * @param formulas          Maps cell names to formulas
+     * @throws CompileException A formula has a syntax or semantic error (then no cell is changed), or it would create
+     *                          a cyclic dependency (then the cells that precede it in the iteration order of the
+     *                          <var>formulas</var> are already redefined)
+     */
+    public void
+    setFormulas(Map<String, String> formulas) throws CompileException {
+        int        n          = formulas.size();
+        String[]   names      = new String[n];
+        String[]   sources    = new String[n];
+        String[][] inputNames = new String[n][];
+        {
+            int i = 0;
+            for (Map.Entry<String, String> e : formulas.entrySet()) {
+                names[i]      = (String) e.getKey();
+                sources[i]    = (String) e.getValue();
+                inputNames[i] = DataflowEngine.inputNames(names[i], sources[i]);
+                i++;
+            }
+        }
+
+        Formula[] compiledFormulas = new Formula[n];
+        for (int from = 0; from < n; from += DataflowEngine.FORMULAS_PER_CLASS) {
+            int to = Math.min(n, from + DataflowEngine.FORMULAS_PER_CLASS);
+            this.compile(names, sources, inputNames, from, to, compiledFormulas);
+        }
+
+        for (int i = 0; i < n; i++) this.define(names[i], compiledFormulas[i], inputNames[i]);
+    }
+
+    /**
+     * Recomputes the formulas that are affected by the changes since the preceding recomputation.
+     *
+     * @return The number of formulas that were evaluated
+     * @throws RuntimeException A formula threw an exception; the formulas that could not be evaluated are recomputed
+     *                          by the next invocation
+     */
+    public int
+    recompute() {
+        int count = 0;
+        while (!this.dirty.isEmpty()) {
+
+            // All dirty formulas with the lowest level are independent of each other, and of all other dirty formulas.
+            List<Node> batch = new ArrayList<Node>();
+            {
+                int level = ((Node) this.dirty.first()).level;
+                for (Node node : this.dirty) {
+                    if (node.level != level) break;
+                    batch.add(node);
+                }
+            }
+
+            // Evaluate them, then propagate the changes; formulas that throw an exception remain dirty.
+            byte[]           states = new byte[batch.size()];
+            RuntimeException ex     = this.evaluate(batch, states);
+            for (int i = 0; i < states.length; i++) {
+                if (states[i] == Node.NOT_EVALUATED) continue;
+                Node node = (Node) batch.get(i);
+                this.dirty.remove(node);
+                if (states[i] == Node.CHANGED) this.dirty.addAll(node.dependents);
+                count++;
+            }
+            if (ex != null) throw ex;
+        }
+        return count;
+    }
+
+    /**
+     * Recomputes the affected formulas (see {@link #recompute()}), and then returns the value of the cell.
+     *
+     * @throws IllegalArgumentException The cell is not defined
+     */
+    public double
+    get(String name) {
+        Node node = (Node) this.nodes.get(name);
+        if (node == null) throw new IllegalArgumentException("Cell \"" + name + "\" is not defined");
+
+        this.recompute();
+        return node.value;
+    }
+
+    /**
+     * @return The names of the cells that the given cell's formula refers to, or an empty array iff the cell is an
+     *         input
+     * @throws IllegalArgumentException The cell is not defined
+     */
+    public String[]
+    getInputs(String name) {
+        Node node = (Node) this.nodes.get(name);
+        if (node == null) throw new IllegalArgumentException("Cell \"" + name + "\" is not defined");
+
+        String[] result = new String[node.inputs.length];
+        for (int i = 0; i < result.length; i++) result[i] = node.inputs[i].name;
+        return result;
+    }
+
+    /**
+     * @return The names of the cells that the formula refers to
+     */
+    private static String[]
+    inputNames(String name, String formula) throws CompileException {
+        try {
+            Set<String> freeVariables = (
+                Dependencies.analyzeExpression(new Scanner(name, new StringReader(formula))).getFreeVariables()
+            );
+            return (String[]) freeVariables.toArray(new String[freeVariables.size()]);
+        } catch (IOException ioe) {
+            throw new JaninoRuntimeException(ioe.toString(), ioe);
+        }
+    }
+
+    private void
+    define(String name, Formula compiledFormula, String[] inputNames) throws CompileException {
+        Node[] inputs = new Node[inputNames.length];
+        for (int i = 0; i < inputs.length; i++) inputs[i] = this.node(inputNames[i]);
+
+        this.redefine(this.node(name), compiledFormula, inputs);
+    }
+
+    private Node
+    node(String name) {
+        Node result = (Node) this.nodes.get(name);
+        if (result == null) {
+            result = new Node(name, this.nodes.size());
+            this.nodes.put(name, result);
+        }
+        return result;
+    }
+
+    /**
+     * Compiles a formula into a script which copies the inputs into local variables, and then returns the value of
+     * the formula.
+     */
+    private Formula
+    compile(String name, String formula, String[] inputNames) throws CompileException {
+
+        StringBuilder sb = new StringBuilder();
+        DataflowEngine.appendScript(formula, inputNames, sb);
+
+        ScriptEvaluator se = new ScriptEvaluator();
+        se.setParentClassLoader(this.optionalParentClassLoader);
+        se.setDefaultImports(this.optionalDefaultImports);
+        try {
+            return (Formula) se.createFastEvaluator(
+                new Scanner(name, new StringReader(sb.toString())),
+                Formula.class,
+                new String[] { DataflowEngine.INPUTS }
+            );
+        } catch (CompileException ce) {
+
+            // The error location refers to the generated script; compile the formula alone to report its own error.
+            ExpressionEvaluator ee = new ExpressionEvaluator();
+            ee.setParentClassLoader(this.optionalParentClassLoader);
+            ee.setDefaultImports(this.optionalDefaultImports);
+            ee.setExpressionType(double.class);
+            Class<?>[] inputTypes = new Class[inputNames.length];
+            for (int i = 0; i < inputTypes.length; i++) inputTypes[i] = double.class;
+            ee.setParameters(inputNames, inputTypes);
+            try {
+                ee.check(name, new StringReader(formula));
+            } catch (IOException ioe) {
+                throw new JaninoRuntimeException(ioe.toString(), ioe);
+            }
+            throw ce;
+        } catch (IOException ioe) {
+            throw new JaninoRuntimeException(ioe.toString(), ioe);
+        }
+    }
+
+    /**
+     * Compiles the formulas <var>from</var> ... <var>to</var>-1 into one class, which implements {@link Formula} by
+     * dispatching to one static method per formula. Iff that fails, then the formula with the compile error is
+     * compiled alone, so that it reports its own error; iff the error cannot be attributed to one formula (e.g.
+     * because the class exceeded a JVM limit), then the two halves of the range are compiled separately.
+     *
+     * @param result Receives the compiled formulas
+     */
+    private void
+    compile(String[] names, String[] formulas, String[][] inputNames, int from, int to, Formula[] result)
+    throws CompileException {
+
+        if (to - from == 1) {
+            result[from] = this.compile(names[from], formulas[from], inputNames[from]);
+            return;
+        }
+
+        // The class has an "int" field that selects the formula, and a static method for each formula.
+        StringBuilder sb = new StringBuilder();
+        sb.append("private final int $index;\n");
+        sb.append("public ").append(IClassBodyEvaluator.DEFAULT_CLASS_NAME);
+        sb.append("(int $index) { this.$index = $index; }\n");
+        sb.append("public double evaluate(double[] ").append(DataflowEngine.INPUTS).append(") {\n");
+        sb.append("    switch (this.$index) {\n");
+        for (int i = from; i < to; i++) {
+            sb.append("    case ").append(i - from).append(": return $").append(i - from).append('(');
+            sb.append(DataflowEngine.INPUTS).append(");\n");
+        }
+        sb.append("    default: throw new IllegalStateException();\n");
+        sb.append("    }\n");
+        sb.append("}\n");
+
+        // Remember the line where each formula's method begins, to attribute compile errors.
+        int[] firstLines = new int[to - from];
+        int   line       = 1;
+        for (int j = 0; j < sb.length(); j++) {
+            if (sb.charAt(j) == '\n') line++;
+        }
+        for (int i = from; i < to; i++) {
+            StringBuilder method = new StringBuilder();
+            method.append("private static double $").append(i - from).append("(double[] ");
+            method.append(DataflowEngine.INPUTS).append(") {\n");
+            DataflowEngine.appendScript(formulas[i], inputNames[i], method);
+            method.append("\n}\n");
+
+            firstLines[i - from] = line;
+            for (int j = 0; j < method.length(); j++) {
+                if (method.charAt(j) == '\n') line++;
+            }
+            sb.append(method);
+        }
+
+        ClassBodyEvaluator cbe = new ClassBodyEvaluator();
+        cbe.setParentClassLoader(this.optionalParentClassLoader);
+        cbe.setDefaultImports(this.optionalDefaultImports);
+        cbe.setImplementedInterfaces(new Class[] { Formula.class });
+        try {
+            cbe.cook(new StringReader(sb.toString()));
+        } catch (CompileException ce) {
+            Location loc = ce.getLocation();
+            if (loc != null) {
+                int idx = Arrays.binarySearch(firstLines, loc.getLineNumber());
+                if (idx < 0) idx = -idx - 2;
+                if (idx >= 0) {
+                    int i = from + idx;
+                    this.compile(names[i], formulas[i], inputNames[i]);
+                }
+            }
+
+            // No single formula has an error.
+            int middle = (from + to) >>> 1;
+            this.compile(names, formulas, inputNames, from, middle, result);
+            this.compile(names, formulas, inputNames, middle, to, result);
+            return;
+        } catch (IOException ioe) {
+            throw new JaninoRuntimeException(ioe.toString(), ioe);
+        }
+
+        try {
+            Constructor<?> constructor = cbe.getClazz().getConstructor(new Class[] { int.class });
+            for (int i = from; i < to; i++) {
+                result[i] = (Formula) constructor.newInstance(new Object[] { new Integer(i - from) });
+            }
+        } catch (Exception e) {
+            throw new JaninoRuntimeException(e.toString(), e);
+        }
+    }
+
+    /**
+     * Appends a script which copies the inputs into local variables, and then returns the value of the formula.
+     */
+    private static void
+    appendScript(String formula, String[] inputNames, StringBuilder sb) {
+
+        // Put the formula on a separate line, because it may end with a "//" comment.
+        for (int i = 0; i < inputNames.length; i++) {
+            sb.append("double ").append(inputNames[i]).append(" = ").append(DataflowEngine.INPUTS);
+            sb.append('[').append(i).append("]; ");
+        }
+        sb.append("return\n").append(formula).append("\n;");
+    }
+
+    /**
+     * Replaces the formula and the inputs of the node, and updates the levels of the node and its dependents.
+     *
+     * @param optionalFormula {@code null} turns the node into an input
+     */
+    private void
+    redefine(Node node, @Nullable Formula optionalFormula, Node[] inputs) throws CompileException {
+
+        // Determine the node and its (direct and indirect) dependents, in topological order.
+        List<Node> affected = DataflowEngine.dependents(node);
+
+        // Check whether the new inputs would close a cycle.
+        {
+            Set<Node> affectedSet = new HashSet<Node>(affected);
+            for (Node input : inputs) {
+                if (affectedSet.contains(input)) {
+                    throw new CompileException(
+                        "Cell \"" + node.name + "\" would depend on itself through \"" + input.name + "\"",
+                        null
+                    );
+                }
+            }
+        }
+
+        for (Node input : node.inputs) input.dependents.remove(node);
+        node.formula = optionalFormula;
+        node.inputs  = inputs;
+        for (Node input : inputs) input.dependents.add(node);
+
+        // The levels of the affected nodes may change, which would corrupt the order of the dirty set; thus remove
+        // them, and re-add them afterwards.
+        Set<Node> wereDirty = new HashSet<Node>();
+        for (Node n : affected) {
+            if (this.dirty.remove(n)) wereDirty.add(n);
+        }
+        wereDirty.remove(node);
+
+        for (Node n : affected) {
+            int level = 0;
+            if (n.formula != null) {
+                level = 1;
+                for (Node input : n.inputs) level = Math.max(level, input.level + 1);
+            }
+            n.level = level;
+        }
+
+        this.dirty.addAll(wereDirty);
+        if (optionalFormula != null) this.dirty.add(node);
+    }
+
+    /**
+     * @return The node and its direct and indirect dependents, in topological order
+     */
+    private static List<Node>
+    dependents(Node node) {
+
+        // Collect the nodes.
+        Set<Node>  result = new HashSet<Node>();
+        List<Node> queue  = new LinkedList<Node>();
+        result.add(node);
+        queue.add(node);
+        while (!queue.isEmpty()) {
+            for (Node dependent : ((Node) queue.remove(0)).dependents) {
+                if (result.add(dependent)) queue.add(dependent);
+            }
+        }
+
+        // Sort them topologically.
+        Map<Node, int[]> pendingInputs = new HashMap<Node, int[]>();
+        for (Node n : result) {
+            int count = 0;
+            for (Node input : n.inputs) {
+                if (result.contains(input)) count++;
+            }
+            pendingInputs.put(n, new int[] { count });
+        }
+        List<Node> sorted = new ArrayList<Node>(result.size());
+        queue.add(node);
+        while (!queue.isEmpty()) {
+            Node n = (Node) queue.remove(0);
+            sorted.add(n);
+            for (Node dependent : n.dependents) {
+                if (--((int[]) pendingInputs.get(dependent))[0] == 0) queue.add(dependent);
+            }
+        }
+        return sorted;
+    }
+
+    /**
+     * Evaluates the given, independent formulas, possibly in parallel, and records for each of them whether it was
+     * evaluated, and whether its value changed.
+     *
+     * @return The first exception that was thrown by any of the formulas, or {@code null}
+     */
+    @Nullable private RuntimeException
+    evaluate(final List<Node> batch, final byte[] states) {
+
+        ExecutorService executor = this.optionalExecutor;
+        if (executor == null || batch.size() < 2 * DataflowEngine.PARALLEL_CHUNK_SIZE) {
+            try {
+                DataflowEngine.evaluate(batch, 0, batch.size(), states);
+            } catch (RuntimeException re) {
+                return re;
+            }
+            return null;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < batch.size(); i += DataflowEngine.PARALLEL_CHUNK_SIZE) {
+            final int from = i;
+            final int to   = Math.min(i + DataflowEngine.PARALLEL_CHUNK_SIZE, batch.size());
+            tasks.add(new Callable<Void>() {
+
+                @Override @Nullable public Void
+                call() {
+                    DataflowEngine.evaluate(batch, from, to, states);
+                    return null;
+                }
+            });
+        }
+
+        List<Future<Void>> futures;
+        try {
+            futures = executor.invokeAll(tasks);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new JaninoRuntimeException(ie.toString(), ie);
+        }
+
+        // "invokeAll()" waits for all tasks, which also makes the values that they computed visible to this thread.
+        RuntimeException result = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new JaninoRuntimeException(ie.toString(), ie);
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                if (cause instanceof Error) throw (Error) cause;
+                if (result == null) {
+                    result = (
+                        cause instanceof RuntimeException
+                        ? (RuntimeException) cause
+                        : new JaninoRuntimeException(String.valueOf(cause), cause)
+                    );
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void
+    evaluate(List<Node> batch, int from, int to, byte[] states) {
+        for (int i = from; i < to; i++) {
+            Node node = (Node) batch.get(i);
+
+            Formula formula = node.formula;
+            assert formula != null;
+
+            double[] inputValues = new double[node.inputs.length];
+            for (int j = 0; j < inputValues.length; j++) inputValues[j] = node.inputs[j].value;
+
+            double value = formula.evaluate(inputValues);
+            states[i]  = Double.compare(value, node.value) == 0 ? Node.UNCHANGED : Node.CHANGED;
+            node.value = value;
+        }
+    }
+
+    /**
+     * One cell of the graph.
+     */
+    private static final
+    class Node {
+
+        /**
+         * Orders the nodes by level, so that all inputs of a formula precede it.
+         */
+        static final Comparator<Object> TOPOLOGICAL_ORDER = new Comparator<Object>() {
+
+            @Override public int
+            compare(@Nullable Object o1, @Nullable Object o2) {
+                assert o1 != null;
+                assert o2 != null;
+                Node n1 = (Node) o1, n2 = (Node) o2;
+                return (
+                    n1.level != n2.level ? (n1.level < n2.level ? -1 : 1) :
+                    n1.sequence != n2.sequence ? (n1.sequence < n2.sequence ? -1 : 1) :
+                    0
+                );
+            }
+        };
+
+        // The states of a node during one step of the recomputation.
+        static final byte NOT_EVALUATED = 0;
+        static final byte UNCHANGED     = 1;
+        static final byte CHANGED       = 2;
+
+        final String      name;
+        final int         sequence;
+        @Nullable Formula formula;                             // null=input
+        Node[]            inputs     = DataflowEngine.NO_NODES;
+        final List<Node>  dependents = new ArrayList<Node>();
+
+        /**
+         * 0 for inputs, otherwise the length of the longest path from an input; all inputs of a formula have lower
+         * levels than the formula itself.
+         */
+        int level;
+
+        double value;
+
+        Node(String name, int sequence) {
+            this.name     = name;
+            this.sequence = sequence;
+        }
+
+        @Override public String
+        toString() { return this.name; }
+    }
+}
@@ -0,0 +1,408 @@
+
+/*
+ * Janino - An embedded Java[TM] compiler
+ *
+ * Copyright (c) 2001-2010, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codehaus.janino;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.codehaus.commons.compiler.CompileException;
+import org.codehaus.janino.Java.AmbiguousName;
+import org.codehaus.janino.Java.Atom;
+import org.codehaus.janino.Java.CompilationUnit.ImportDeclaration;
+import org.codehaus.janino.Java.CompilationUnit.SingleTypeImportDeclaration;
+import org.codehaus.janino.Java.FunctionDeclarator.FormalParameter;
+import org.codehaus.janino.Java.Rvalue;
+import org.codehaus.janino.Java.VariableDeclarator;
+import org.codehaus.janino.util.Traverser;
+
+/**
+ * The names that an expression or a script depends on, as determined by a quick, purely syntactic analysis.
+ * <p>
+ *   The expression or script is parsed, but <em>not</em> compiled, so the analysis requires neither the parameter
+ *   types nor the referenced classes, and is cheap enough to run on every edit. E.g. a spreadsheet-like engine can
+ *   use the {@link #getFreeVariables() free variables} to build the graph of its cells, and re-evaluate only the
+ *   expressions whose inputs changed.
+ * </p>
+ * <p>
+ *   Because no types are resolved, an ambiguous name like {@code a.b.c} is classified by the same heuristic as
+ *   {@link ExpressionEvaluator#guessParameterNames(Scanner)}: The components up to and including the first component
+ *   that starts with an upper-case letter are assumed to be a type name (e.g. {@code java.lang.System} in {@code
+ *   java.lang.System.out}); if no component starts with an upper-case letter, then the first component is assumed
+ *   to be a variable, unless it is declared within the script.
+ * </p>
+ * <p>
+ *   Like in Java, a local variable (or a local class) declared within the script hides a free variable (or a
+ *   referenced type) of the same name only from its declaration to the end of its enclosing block. The formal
+ *   parameters, fields and local variables of classes declared within the expression or script are visible only
+ *   inside these classes.
+ * </p>
+ * <p>
+ *   Members of types are reported in qualified form (e.g. {@code Math.max} and {@code System.out}); members of
+ *   objects, whose types are unknown, are reported by their simple names (e.g. {@code length} for {@code
+ *   s.length()}).
+ * </p>
+ */
+public final
+class Dependencies {
+
+    private final Set<String> freeVariables   = new LinkedHashSet<String>();
+    private final Set<String> referencedTypes = new LinkedHashSet<String>();
+    private final Set<String> invokedMethods  = new LinkedHashSet<String>();
+    private final Set<String> accessedFields  = new LinkedHashSet<String>();
+
+    private Dependencies() {}
+
+    /**
+     * Parses an expression (optionally preceded by import declarations) and analyzes its dependencies.
+     *
+     * @see ExpressionEvaluator#cook(Reader)
+     */
+    public static Dependencies
+    analyzeExpression(Scanner scanner) throws CompileException, IOException {
+        Parser       parser = new Parser(scanner);
+        Dependencies result = new Dependencies();
+
+        result.analyzeImports(parser);
+
+        Rvalue rvalue = parser.parseExpression().toRvalueOrCompileException();
+        if (!parser.peek(TokenType.END_OF_INPUT)) {
+            throw new CompileException("Unexpected token \"" + parser.peek() + "\"", scanner.location());
+        }
+
+        result.new Analyzer().analyze(rvalue);
+        return result;
+    }
+
+    /**
+     * Parses a script (optionally preceded by import declarations) and analyzes its dependencies.
+     *
+     * @see ScriptEvaluator#cook(Reader)
+     */
+    public static Dependencies
+    analyzeScript(Scanner scanner) throws CompileException, IOException {
+        Parser       parser = new Parser(scanner);
+        Dependencies result = new Dependencies();
+
+        result.analyzeImports(parser);
+
+        Java.Block block = new Java.Block(scanner.location());
+        while (!parser.peek(TokenType.END_OF_INPUT)) block.addStatement(parser.parseBlockStatement());
+
+        result.new Analyzer().analyze(block);
+        return result;
+    }
+
+    /**
+     * @return The names of the variables that are used, but not declared, by the expression or script, i.e. the
+     *         names of its probable parameters, in the order of their first occurrence
+     */
+    public Set<String>
+    getFreeVariables() { return Collections.unmodifiableSet(this.freeVariables); }
+
+    /**
+     * @return The names of the types that are referenced by the expression or script, as written in the source code
+     *         (e.g. {@code String} or {@code java.util.List}), in the order of their first occurrence; excludes
+     *         primitive types and types that are declared within the script
+     */
+    public Set<String>
+    getReferencedTypes() { return Collections.unmodifiableSet(this.referencedTypes); }
+
+    /**
+     * @return The methods that are invoked by the expression or script, in the order of their first occurrence;
+     *         static methods invoked through a type name are qualified with that type name (e.g. {@code Math.max})
+     */
+    public Set<String>
+    getInvokedMethods() { return Collections.unmodifiableSet(this.invokedMethods); }
+
+    /**
+     * @return The fields that are read or written by the expression or script, in the order of their first
+     *         occurrence; fields accessed through a type name are qualified with that type name (e.g. {@code
+     *         System.out})
+     */
+    public Set<String>
+    getAccessedFields() { return Collections.unmodifiableSet(this.accessedFields); }
+
+    @Override public String
+    toString() {
+        return (
+            "freeVariables="
+            + this.freeVariables
+            + ", referencedTypes="
+            + this.referencedTypes
+            + ", invokedMethods="
+            + this.invokedMethods
+            + ", accessedFields="
+            + this.accessedFields
+        );
+    }
+
+    private void
+    analyzeImports(Parser parser) throws CompileException, IOException {
+        while (parser.peek("import")) {
+            ImportDeclaration id = parser.parseImportDeclaration();
+            if (id instanceof SingleTypeImportDeclaration) {
+                this.referencedTypes.add(Java.join(((SingleTypeImportDeclaration) id).identifiers, "."));
+            }
+        }
+    }
+
+    /**
+     * Collects the dependencies while traversing the AST.
+     */
+    private
+    class Analyzer extends Traverser<RuntimeException> {
+
+        /**
+         * The variable names that are declared in the enclosing scopes, innermost last. A name is declared iff it
+         * was declared <em>before</em> in the same or in an enclosing scope.
+         */
+        private final List<Set<String>> variableScopes = new ArrayList<Set<String>>();
+
+        /**
+         * The names of the classes that are declared in the enclosing scopes, innermost last.
+         */
+        private final List<Set<String>> typeScopes = new ArrayList<Set<String>>();
+
+        Analyzer() { this.enterScope(); }
+
+        void
+        analyze(Atom a) { this.visitAtom(a); }
+
+        void
+        analyze(Java.BlockStatement bs) { this.visitBlockStatement(bs); }
+
+        private void
+        enterScope() {
+            this.variableScopes.add(new HashSet<String>());
+            this.typeScopes.add(new HashSet<String>());
+        }
+
+        private void
+        leaveScope() {
+            this.variableScopes.remove(this.variableScopes.size() - 1);
+            this.typeScopes.remove(this.typeScopes.size() - 1);
+        }
+
+        private void
+        declareVariable(String name) { this.variableScopes.get(this.variableScopes.size() - 1).add(name); }
+
+        private void
+        declareType(String name) { this.typeScopes.get(this.typeScopes.size() - 1).add(name); }
+
+        private boolean
+        isVariableDeclared(String name) { return Dependencies.isDeclared(name, this.variableScopes); }
+
+        private boolean
+        isTypeDeclared(String name) { return Dependencies.isDeclared(name, this.typeScopes); }
+
+        @Override public void
+        traverseAmbiguousName(AmbiguousName an) {
+            String[] identifiers = an.identifiers;
+            int      n           = an.n;
+
+            int typeNameLength = Dependencies.typeNameLength(an);
+            if (typeNameLength > 0) {
+                String typeName = Java.join(identifiers, ".", 0, typeNameLength);
+                if (!this.isTypeDeclared(identifiers[0])) Dependencies.this.referencedTypes.add(typeName);
+                if (typeNameLength < n) {
+                    Dependencies.this.accessedFields.add(typeName + '.' + identifiers[typeNameLength]);
+                }
+                for (int i = typeNameLength + 1; i < n; i++) Dependencies.this.accessedFields.add(identifiers[i]);
+                return;
+            }
+
+            if (!this.isVariableDeclared(identifiers[0])) Dependencies.this.freeVariables.add(identifiers[0]);
+            for (int i = 1; i < n; i++) Dependencies.this.accessedFields.add(identifiers[i]);
+        }
+
+        @Override public void
+        traverseMethodInvocation(Java.MethodInvocation mi) {
+            Atom target = mi.optionalTarget;
+            if (
+                target instanceof AmbiguousName
+                && Dependencies.typeNameLength((AmbiguousName) target) == ((AmbiguousName) target).n
+            ) {
+                Dependencies.this.invokedMethods.add(target.toString() + '.' + mi.methodName);
+            } else {
+                Dependencies.this.invokedMethods.add(mi.methodName);
+            }
+            super.traverseMethodInvocation(mi);
+        }
+
+        @Override public void
+        traverseFieldAccessExpression(Java.FieldAccessExpression fae) {
+            Dependencies.this.accessedFields.add(fae.fieldName);
+            super.traverseFieldAccessExpression(fae);
+        }
+
+        @Override public void
+        traverseReferenceType(Java.ReferenceType rt) {
+            if (!this.isTypeDeclared(rt.identifiers[0])) {
+                Dependencies.this.referencedTypes.add(Java.join(rt.identifiers, "."));
+            }
+            if (rt.optionalTypeArguments != null) {
+                for (Java.TypeArgument ta : rt.optionalTypeArguments) {
+                    if (ta instanceof Java.Type) {
+                        this.visitAtom((Java.Type) ta);
+                    } else
+                    if (ta instanceof Java.Wildcard && ((Java.Wildcard) ta).referenceType != null) {
+                        this.visitAtom(((Java.Wildcard) ta).referenceType);
+                    }
+                }
+            }
+            super.traverseReferenceType(rt);
+        }
+
+        @Override public void
+        traverseLocalVariableDeclarationStatement(Java.LocalVariableDeclarationStatement lvds) {
+            for (VariableDeclarator vd : lvds.variableDeclarators) this.declareVariable(vd.name);
+            super.traverseLocalVariableDeclarationStatement(lvds);
+        }
+
+        @Override public void
+        traverseFormalParameter(FormalParameter formalParameter) {
+            this.declareVariable(formalParameter.name);
+            super.traverseFormalParameter(formalParameter);
+        }
+
+        @Override public void
+        traverseBlock(Java.Block b) {
+            this.enterScope();
+            super.traverseBlock(b);
+            this.leaveScope();
+        }
+
+        @Override public void
+        traverseForStatement(Java.ForStatement fs) {
+            this.enterScope();
+            super.traverseForStatement(fs);
+            this.leaveScope();
+        }
+
+        @Override public void
+        traverseForEachStatement(Java.ForEachStatement fes) {
+
+            // The loop variable is not in scope in the expression.
+            this.visitAtom(fes.expression);
+            this.enterScope();
+            this.traverseFormalParameter(fes.currentElement);
+            this.visitBlockStatement(fes.body);
+            this.leaveScope();
+            this.traverseContinuableStatement(fes);
+        }
+
+        @Override public void
+        traverseSwitchStatement(Java.SwitchStatement ss) {
+            this.enterScope();
+            super.traverseSwitchStatement(ss);
+            this.leaveScope();
+        }
+
+        @Override public void
+        traverseTryStatement(Java.TryStatement ts) {
+
+            // The "Traverser" does not visit the catch parameters, which are in scope only in their catch clause.
+            this.visitBlockStatement(ts.body);
+            for (Java.CatchClause cc : ts.catchClauses) {
+                this.enterScope();
+                this.traverseFormalParameter(cc.caughtException);
+                this.visitBlockStatement(cc.body);
+                this.leaveScope();
+            }
+            if (ts.optionalFinally != null) this.visitBlockStatement(ts.optionalFinally);
+            this.traverseStatement(ts);
+        }
+
+        @Override public void
+        traverseNamedClassDeclaration(Java.NamedClassDeclaration ncd) {
+
+            // A local class is in scope from its declaration on, and in its own body.
+            this.declareType(ncd.name);
+            super.traverseNamedClassDeclaration(ncd);
+        }
+
+        @Override public void
+        traverseClassDeclaration(Java.AbstractClassDeclaration cd) {
+
+            // The fields and the member types of a class are in scope in the entire class body, but not outside.
+            this.enterScope();
+            for (Java.BlockStatement vdoi : cd.variableDeclaratorsAndInitializers) {
+                if (vdoi instanceof Java.FieldDeclaration) {
+                    for (VariableDeclarator vd : ((Java.FieldDeclaration) vdoi).variableDeclarators) {
+                        this.declareVariable(vd.name);
+                    }
+                }
+            }
+            for (Java.MemberTypeDeclaration mtd : cd.getMemberTypeDeclarations()) this.declareType(mtd.getName());
+            super.traverseClassDeclaration(cd);
+            this.leaveScope();
+        }
+
+        @Override public void
+        traverseConstructorDeclarator(Java.ConstructorDeclarator cd) {
+
+            // The formal parameters are in scope in the "this(...)" or "super(...)" invocation, too.
+            this.enterScope();
+            this.traverseFormalParameters(cd.formalParameters);
+            super.traverseConstructorDeclarator(cd);
+            this.leaveScope();
+        }
+
+        @Override public void
+        traverseFunctionDeclarator(Java.FunctionDeclarator fd) {
+            this.enterScope();
+            super.traverseFunctionDeclarator(fd);
+            this.leaveScope();
+        }
+    }
+
+    private static boolean
+    isDeclared(String name, List<Set<String>> scopes) {
+        for (Set<String> scope : scopes) {
+            if (scope.contains(name)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The number of leading components of the ambiguous name which are assumed to denote a type, or 0 iff it
+     *         is assumed to start with a variable name
+     */
+    private static int
+    typeNameLength(AmbiguousName an) {
+        for (int i = 0; i < an.n; i++) {
+            if (Character.isUpperCase(an.identifiers[i].charAt(0))) return i + 1;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,302 @@
+
+/*
+ * Janino - An embedded Java[TM] compiler
+ *
+ * Copyright (c) 2001-2010, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codehaus.janino;
+
+import java.lang.reflect.Array;
+
+import org.codehaus.commons.nullanalysis.Nullable;
+
+/**
+ * Limits the execution of code that was compiled with {@link SimpleCompiler#setExecutionBudgetChecks(boolean,
+ * boolean) execution budget checks}. Such code "ticks" the budget of the current thread on each method entry and on
+ * each loop iteration, and (optionally) charges the estimated size of each object and array that it creates with
+ * "{@code new}"; when the budget is exhausted, an {@link ExecutionBudgetExceededError} is thrown.
+ * <p>
+ *   Usage:
+ * </p>
+ * <pre>
+ *     ExecutionBudget budget = new ExecutionBudget(10000000, 10 * 1024 * 1024);
+ *     budget.setTimeout(100);
+ *     budget.enter();
+ *     try {
+ *         scriptEvaluator.evaluate(arguments);
+ *     } finally {
+ *         budget.leave();
+ *     }
+ * </pre>
+ * <p>
+ *   The checks are cooperative: Time spent outside of the checked code (e.g. in a JRE method like {@link
+ *   Thread#sleep(long)}) is not interrupted, but charged at the next check. Any thread may {@link #cancel()} the
+ *   budget, e.g. a single watchdog thread that serves many evaluations.
+ * </p>
+ * <p>
+ *   For efficiency, the tick counter is decremented in "slices" of {@value #SLICE} ticks; only at the end of each
+ *   slice the timeout and the cancellation are checked.
+ * </p>
+ * <p>
+ *   Once exceeded, a budget stays exceeded, i.e. each following check throws again; thus the checked code cannot
+ *   continue by catching the {@link ExecutionBudgetExceededError}.
+ * </p>
+ */
+public final
+class ExecutionBudget {
+
+    /**
+     * Value for the <var>maxTicks</var> and <var>maxAllocatedBytes</var> parameters of {@link #ExecutionBudget(long,
+     * long)} which indicates "no limit".
+     */
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    /**
+     * The number of ticks between two checks of the timeout and the cancellation.
+     */
+    public static final int SLICE = 1024;
+
+    /**
+     * The charge for the header of each object and array.
+     */
+    private static final int OBJECT_HEADER_SIZE = 16;
+
+    private final long maxTicks;
+    private final long maxAllocatedBytes;
+    private long       timeoutMillis = ExecutionBudget.UNLIMITED;
+
+    // The ticks of the current slice that have not yet been consumed.
+    private long countdown;
+
+    // The ticks that have not yet been handed out in slices.
+    private long remainingTicks;
+
+    private long remainingBytes;
+
+    private long             deadline = Long.MAX_VALUE;
+    private volatile boolean cancelled;
+
+    // Iff non-null, then this budget is exceeded, for the given reason.
+    @Nullable private String exceeded;
+
+    // The budget that was installed before "enter()"; valid only while entered.
+    @Nullable private ExecutionBudget previous;
+    private boolean                   entered;
+
+    /**
+     * @param maxTicks          The number of method entries plus loop iterations that checked code may execute, or
+     *                          {@link #UNLIMITED}
+     * @param maxAllocatedBytes The number of bytes that checked code may allocate (only if compiled with allocation
+     *                          checks), or {@link #UNLIMITED}
+     */
+    public
+    ExecutionBudget(long maxTicks, long maxAllocatedBytes) {
+        this.maxTicks          = maxTicks;
+        this.maxAllocatedBytes = maxAllocatedBytes;
+        this.reset();
+    }
+
+    /**
+     * @param timeoutMillis The wall time, in milliseconds, that checked code may execute after {@link #enter()}, or
+     *                      {@link #UNLIMITED}
+     */
+    public void
+    setTimeout(long timeoutMillis) { this.timeoutMillis = timeoutMillis; }
+
+    /**
+     * Installs this budget for the current thread, and starts the timeout; must be followed by exactly one {@link
+     * #leave()}.
+     *
+     * @throws IllegalStateException This budget is already entered
+     */
+    public void
+    enter() {
+        if (this.entered) throw new IllegalStateException("Budget is already entered");
+
+        this.deadline = (
+            this.timeoutMillis == ExecutionBudget.UNLIMITED
+            ? Long.MAX_VALUE
+            : System.nanoTime() + this.timeoutMillis * 1000000L
+        );
+        this.previous = (ExecutionBudget) ExecutionBudget.CURRENT.get();
+        this.entered  = true;
+        ExecutionBudget.CURRENT.set(this);
+    }
+
+    /**
+     * Re-installs the budget that was installed before {@link #enter()}.
+     */
+    public void
+    leave() {
+        if (!this.entered) throw new IllegalStateException("Budget is not entered");
+
+        ExecutionBudget.CURRENT.set(this.previous);
+        this.previous = null;
+        this.entered  = false;
+    }
+
+    /**
+     * Restores the full budget, so that it can be {@link #enter()}ed again.
+     */
+    public void
+    reset() {
+        long n = Math.min(ExecutionBudget.SLICE, this.maxTicks);
+
+        this.countdown      = n;
+        this.remainingTicks = this.maxTicks - n;
+        this.remainingBytes = this.maxAllocatedBytes;
+        this.cancelled      = false;
+        this.exceeded       = null;
+    }
+
+    /**
+     * Causes the next timeout check (see {@link #SLICE}) to throw an {@link ExecutionBudgetExceededError}. May be
+     * invoked by any thread.
+     */
+    public void
+    cancel() { this.cancelled = true; }
+
+    /**
+     * @return Whether checked code exceeded this budget (even if the {@link ExecutionBudgetExceededError} was caught)
+     */
+    public boolean
+    isExceeded() { return this.exceeded != null; }
+
+    /**
+     * @return The number of ticks that checked code consumed since construction or the last {@link #reset()}
+     */
+    public long
+    getTicks() { return this.maxTicks - this.remainingTicks - Math.max(0, this.countdown); }
+
+    /**
+     * @return The number of bytes that checked code allocated since construction or the last {@link #reset()}
+     */
+    public long
+    getAllocatedBytes() { return this.maxAllocatedBytes - this.remainingBytes; }
+
+    /**
+     * @return The budget that is installed for the current thread; if none is {@link #enter()}ed, then an unlimited
+     *         budget that is private to the current thread
+     */
+    public static ExecutionBudget
+    current() { return (ExecutionBudget) ExecutionBudget.CURRENT.get(); }
+
+    // ---------------- Methods that are invoked by the checked code ----------------
+
+    /**
+     * Consumes one tick; invoked by checked code on each method entry and each loop iteration.
+     *
+     * @throws ExecutionBudgetExceededError
+     */
+    public void
+    tick() { if (--this.countdown < 0) this.endOfSlice(); }
+
+    /**
+     * Charges the estimated size of an object; invoked by checked code before it creates an object.
+     *
+     * @throws ExecutionBudgetExceededError
+     */
+    public void
+    allocate(int size) { this.charge(size); }
+
+    /**
+     * Charges the estimated size of an array; invoked by checked code before it creates a one-dimensional array.
+     *
+     * @throws ExecutionBudgetExceededError
+     */
+    public void
+    allocateArray(int length, int elementSize) {
+        if (length > 0) this.charge(ExecutionBudget.OBJECT_HEADER_SIZE + (long) length * elementSize);
+    }
+
+    /**
+     * Charges the estimated size of the given array and all its subarrays; invoked by checked code after it created a
+     * multi-dimensional array.
+     *
+     * @throws ExecutionBudgetExceededError
+     */
+    public void
+    allocateMultiArray(Object array) {
+        int      length        = Array.getLength(array);
+        Class<?> componentType = array.getClass().getComponentType();
+        if (componentType.isArray()) {
+            this.allocateArray(length, 4);
+            for (Object subarray : (Object[]) array) {
+                if (subarray != null) this.allocateMultiArray(subarray);
+            }
+        } else {
+            this.allocateArray(length, ExecutionBudget.sizeOf(componentType));
+        }
+    }
+
+    /**
+     * @return The estimated size of a value of the given type, in bytes
+     */
+    static int
+    sizeOf(Class<?> type) {
+        return (
+            type == long.class || type == double.class ? 8 :
+            type == byte.class || type == boolean.class ? 1 :
+            type == short.class || type == char.class ? 2 :
+            4
+        );
+    }
+
+    private void
+    charge(long bytes) {
+        if ((this.remainingBytes -= bytes) < 0) this.exceed("Allocation limit of " + this.maxAllocatedBytes + " bytes");
+    }
+
+    private void
+    endOfSlice() {
+
+        if (this.exceeded != null) this.exceed(this.exceeded);
+
+        if (this.remainingTicks == 0) this.exceed("Tick limit of " + this.maxTicks);
+
+        if (this.cancelled) this.exceed("Cancelled");
+
+        if (this.deadline != Long.MAX_VALUE && System.nanoTime() - this.deadline > 0) {
+            this.exceed("Timeout of " + this.timeoutMillis + " ms");
+        }
+
+        // Start the next slice; notice that the current tick was already consumed.
+        long n = Math.min(ExecutionBudget.SLICE, this.remainingTicks);
+        this.countdown       = n - 1;
+        this.remainingTicks -= n;
+    }
+
+    private void
+    exceed(String reason) {
+        this.exceeded       = reason;
+        this.countdown      = -1;
+        this.remainingBytes = Math.min(this.remainingBytes, -1);
+        throw new ExecutionBudgetExceededError(reason);
+    }
+
+    private static final ThreadLocal<ExecutionBudget> CURRENT = new ThreadLocal<ExecutionBudget>() {
+
+        @Override protected ExecutionBudget
+        initialValue() { return new ExecutionBudget(ExecutionBudget.UNLIMITED, ExecutionBudget.UNLIMITED); }
+    };
+}
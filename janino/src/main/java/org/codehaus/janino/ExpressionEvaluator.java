@@ -29,7 +29,6 @@ package org.codehaus.janino;
 import java.io.IOException;
 import java.io.Reader;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -41,10 +40,8 @@ import org.codehaus.commons.compiler.IExpressionEvaluator;
 import org.codehaus.commons.compiler.IScriptEvaluator;
 import org.codehaus.commons.compiler.ISimpleCompiler;
 import org.codehaus.commons.nullanalysis.Nullable;
-import org.codehaus.janino.Java.AmbiguousName;
 import org.codehaus.janino.Java.BlockStatement;
 import org.codehaus.janino.Java.Rvalue;
-import org.codehaus.janino.util.Traverser;
 
 /**
  * This {@link IExpressionEvaluator} is implemented by creating and compiling a temporary compilation unit defining one
@@ -359,38 +356,11 @@ class ExpressionEvaluator extends ScriptEvaluator implements IExpressionEvaluato
      * </ul>
      *
      * @see Scanner#Scanner(String, Reader)
+     * @see Dependencies#analyzeExpression(Scanner)
      */
     public static String[]
     guessParameterNames(Scanner scanner) throws CompileException, IOException {
-        Parser parser = new Parser(scanner);
-
-        // Eat optional leading import declarations.
-        while (parser.peek("import")) parser.parseImportDeclaration();
-
-        // Parse the expression.
-        Rvalue rvalue = parser.parseExpression().toRvalueOrCompileException();
-        if (!parser.peek(TokenType.END_OF_INPUT)) {
-            throw new CompileException("Unexpected token \"" + parser.peek() + "\"", scanner.location());
-        }
-
-        // Traverse the expression for ambiguous names and guess which of them are parameter names.
-        final Set<String> parameterNames = new HashSet<String>();
-        new Traverser<RuntimeException>() {
-
-            @Override public void
-            traverseAmbiguousName(AmbiguousName an) {
-
-                // If any of the components starts with an upper-case letter, then the ambiguous
-                // name is most probably a type name, e.g. "System.out" or "java.lang.System.out".
-                for (String identifier : an.identifiers) {
-                    if (Character.isUpperCase(identifier.charAt(0))) return;
-                }
-
-                // It's most probably a parameter name (although it could be a field name as well).
-                parameterNames.add(an.identifiers[0]);
-            }
-        }.visitAtom(rvalue);
-
+        Set<String> parameterNames = Dependencies.analyzeExpression(scanner).getFreeVariables();
         return (String[]) parameterNames.toArray(new String[parameterNames.size()]);
     }
 }
@@ -0,0 +1,79 @@
+
+/*
+ * Janino - An embedded Java[TM] compiler
+ *
+ * Copyright (c) 2001-2010, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codehaus.janino;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.codehaus.commons.compiler.CompileException;
+import org.codehaus.commons.nullanalysis.Nullable;
+
+/**
+ * Like {@link ScriptEvaluatorTemplate}, but for {@link ExpressionEvaluator}s.
+ */
+public
+class ExpressionEvaluatorTemplate extends ScriptEvaluatorTemplate {
+
+    /**
+     * @param expressionType The type of the expressions; {@code null} means {@code Object.class}
+     * @see                  ScriptEvaluatorTemplate#ScriptEvaluatorTemplate(String[], Class, Class[], Class,
+     *                       String[], Class[], Class[], ClassLoader)
+     */
+    public
+    ExpressionEvaluatorTemplate(
+        @Nullable String[]    optionalDefaultImports,
+        @Nullable Class<?>    optionalExtendedClass,
+        Class<?>[]            implementedInterfaces,
+        @Nullable Class<?>    expressionType,
+        String[]              parameterNames,
+        Class<?>[]            parameterTypes,
+        Class<?>[]            thrownExceptions,
+        @Nullable ClassLoader optionalParentClassLoader
+    ) throws CompileException {
+        super(
+            optionalDefaultImports,
+            optionalExtendedClass,
+            implementedInterfaces,
+            expressionType,
+            parameterNames,
+            parameterTypes,
+            thrownExceptions,
+            optionalParentClassLoader
+        );
+    }
+
+    @Override public ExpressionEvaluator
+    cook(String expression) throws CompileException { return (ExpressionEvaluator) super.cook(expression); }
+
+    @Override public ExpressionEvaluator
+    cook(@Nullable String optionalFileName, Reader reader) throws CompileException, IOException {
+        return (ExpressionEvaluator) super.cook(optionalFileName, reader);
+    }
+
+    @Override protected ScriptEvaluator
+    newScriptEvaluator() { return new ExpressionEvaluator(); }
+}
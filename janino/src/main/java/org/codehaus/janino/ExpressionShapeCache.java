@@ -0,0 +1,532 @@
+
+/*
+ * Janino - An embedded Java[TM] compiler
+ *
+ * Copyright (c) 2001-2010, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codehaus.janino;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.commons.compiler.CompileException;
+import org.codehaus.commons.nullanalysis.Nullable;
+import org.codehaus.janino.Java.Atom;
+import org.codehaus.janino.Java.Rvalue;
+
+/**
+ * Cooks many expressions which share the same parameters, but compiles only one class per distinct expression
+ * <em>shape</em>.
+ * <p>
+ *   The shape of an expression is a canonical text which is generated from its parse tree; thus it does not depend
+ *   on white space, comments and redundant parentheses. Furthermore, the integer, floating-point, character and
+ *   string literals of the expression are replaced with placeholders, and their values are passed to the compiled
+ *   expression as extra parameters. E.g. {@code a > 5}, {@code (a)>7} and {@code a > /* limit *&#47; 0x10} all have
+ *   the same shape, and share one compiled class.
+ * </p>
+ * <p>
+ *   Literals are <em>not</em> lifted where that could change the meaning of the expression, i.e. as an operand of a
+ *   compound constant expression (e.g. {@code 1 << 3} or {@code (byte) 7}), and as the second or third operand of
+ *   the conditional operator (where the type of the result depends on the constant value). If an expression does not
+ *   compile with its literals lifted (e.g. because the expression type is {@code byte} and a constant is narrowed),
+ *   then it is compiled with its literals in place.
+ * </p>
+ * <p>
+ *   Example:
+ * </p>
+ * <pre>
+ *     ExpressionShapeCache esc = new ExpressionShapeCache();
+ *     esc.setExpressionType(boolean.class);
+ *     esc.setParameters(new String[] { "a" }, new Class[] { int.class });
+ *     ExpressionShapeCache.CachedExpression e1 = esc.cook("a &gt; 5");
+ *     ExpressionShapeCache.CachedExpression e2 = esc.cook("(a) &gt; 7");
+ *     e1.evaluate(new Object[] { 6 });                      // true
+ *     e2.evaluate(new Object[] { 6 });                      // false
+ *     esc.getClassCount();                                  // 1
+ * </pre>
+ * <p>
+ *   This class is thread-safe.
+ * </p>
+ */
+public
+class ExpressionShapeCache {
+
+    // The names of the parameters that receive the lifted constants; "$" avoids clashes with the expression's own
+    // parameters.
+    private static final String CONSTANT_PREFIX = "$constant";
+
+    @Nullable private ClassLoader optionalParentClassLoader;
+    @Nullable private String[]    optionalDefaultImports;
+    private Class<?>              expressionType   = Object.class;
+    private String[]              parameterNames   = new String[0];
+    private Class<?>[]            parameterTypes   = new Class[0];
+    private Class<?>[]            thrownExceptions = new Class[0];
+
+    /**
+     * The compiled expressions, keyed by shape.
+     */
+    private final Map<String, ExpressionEvaluator> shapes = new HashMap<String, ExpressionEvaluator>();
+
+    /**
+     * The shapes which do not compile with their literals lifted.
+     */
+    private final Set<String> unliftableShapes = new HashSet<String>();
+
+    /**
+     * Is used to compute the values of the literals, exactly as the compiler does.
+     */
+    private final UnitCompiler literalEvaluator = new UnitCompiler(
+        new Java.CompilationUnit(null),
+        new ClassLoaderIClassLoader(ExpressionShapeCache.class.getClassLoader())
+    );
+
+    /**
+     * @see ScriptEvaluator#setParentClassLoader(ClassLoader)
+     */
+    public synchronized void
+    setParentClassLoader(@Nullable ClassLoader optionalParentClassLoader) {
+        this.optionalParentClassLoader = optionalParentClassLoader;
+        this.clear();
+    }
+
+    /**
+     * @see ScriptEvaluator#setDefaultImports(String[])
+     */
+    public synchronized void
+    setDefaultImports(@Nullable String[] optionalDefaultImports) {
+        this.optionalDefaultImports = optionalDefaultImports == null ? null : (String[]) optionalDefaultImports.clone();
+        this.clear();
+    }
+
+    /**
+     * @see ExpressionEvaluator#setExpressionType(Class)
+     */
+    public synchronized void
+    setExpressionType(Class<?> expressionType) {
+        this.expressionType = expressionType;
+        this.clear();
+    }
+
+    /**
+     * Defines the parameters that <em>all</em> expressions share.
+     *
+     * @see ScriptEvaluator#setParameters(String[], Class[])
+     */
+    public synchronized void
+    setParameters(String[] parameterNames, Class<?>[] parameterTypes) {
+        if (parameterNames.length != parameterTypes.length) throw new IllegalArgumentException("parameterTypes");
+        this.parameterNames = (String[]) parameterNames.clone();
+        this.parameterTypes = (Class[]) parameterTypes.clone();
+        this.clear();
+    }
+
+    /**
+     * @see ScriptEvaluator#setThrownExceptions(Class[])
+     */
+    public synchronized void
+    setThrownExceptions(Class<?>[] thrownExceptions) {
+        this.thrownExceptions = (Class[]) thrownExceptions.clone();
+        this.clear();
+    }
+
+    /**
+     * @see #cook(String, String)
+     */
+    public final CachedExpression
+    cook(String expression) throws CompileException { return this.cook(null, expression); }
+
+    /**
+     * Parses the expression, and compiles it iff no expression with the same shape was cooked before.
+     *
+     * @param optionalFileName Is used in compile error messages
+     */
+    public synchronized CachedExpression
+    cook(@Nullable String optionalFileName, String expression) throws CompileException {
+
+        // Parse the expression.
+        Rvalue rvalue;
+        try {
+            Scanner scanner = new Scanner(optionalFileName, new StringReader(expression));
+            Parser  parser  = new Parser(scanner);
+            rvalue = parser.parseExpression().toRvalueOrCompileException();
+            if (!parser.peek(TokenType.END_OF_INPUT)) {
+                throw new CompileException("Unexpected token \"" + parser.peek() + "\"", scanner.location());
+            }
+        } catch (IOException ioe) {
+            throw new JaninoRuntimeException(ioe.toString(), ioe);
+        }
+
+        // Attempt to use (or compile) the shape with the literals lifted.
+        {
+            ShapePrinter sp    = new ShapePrinter(true);
+            String       shape = sp.print(rvalue);
+
+            // The same shape may have constants of different types, e.g. "a > 5" and "a > 5L".
+            String key = shape + sp.constantTypes;
+            if (!this.unliftableShapes.contains(key)) {
+                ExpressionEvaluator ee = (ExpressionEvaluator) this.shapes.get(key);
+                if (ee == null) {
+                    Class<?>[] constantTypes = (Class[]) sp.constantTypes.toArray(new Class[sp.constantTypes.size()]);
+                    String[]   allNames      = new String[this.parameterNames.length + constantTypes.length];
+                    Class<?>[] allTypes      = new Class[allNames.length];
+                    System.arraycopy(this.parameterNames, 0, allNames, 0, this.parameterNames.length);
+                    System.arraycopy(this.parameterTypes, 0, allTypes, 0, this.parameterTypes.length);
+                    for (int i = 0; i < constantTypes.length; i++) {
+                        allNames[this.parameterNames.length + i] = ExpressionShapeCache.CONSTANT_PREFIX + i;
+                        allTypes[this.parameterNames.length + i] = constantTypes[i];
+                    }
+                    try {
+                        ee = this.newExpressionEvaluator(allNames, allTypes);
+                        ee.cook(shape);
+                        this.shapes.put(key, ee);
+                    } catch (CompileException ce) {
+                        this.unliftableShapes.add(key);
+                        ee = null;
+                    }
+                }
+                if (ee != null) return new CachedExpression(shape, ee, sp.constantValues.toArray());
+            }
+        }
+
+        // Fall back to the shape with the literals in place; the original text is compiled so that compile errors
+        // report meaningful locations.
+        String              shape = new ShapePrinter(false).print(rvalue);
+        ExpressionEvaluator ee    = (ExpressionEvaluator) this.shapes.get(shape);
+        if (ee == null) {
+            ee = this.newExpressionEvaluator(this.parameterNames, this.parameterTypes);
+            try {
+                ee.cook(optionalFileName, new StringReader(expression));
+            } catch (IOException ioe) {
+                throw new JaninoRuntimeException(ioe.toString(), ioe);
+            }
+            this.shapes.put(shape, ee);
+        }
+        return new CachedExpression(shape, ee, new Object[0]);
+    }
+
+    /**
+     * @return The number of classes that were compiled since the cache was configured, i.e. the number of distinct
+     *         shapes of the cooked expressions
+     */
+    public synchronized int
+    getClassCount() { return this.shapes.size(); }
+
+    /**
+     * One cooked expression, i.e. a reference to the compiled shape plus the values of its lifted literals.
+     */
+    public static final
+    class CachedExpression {
+
+        private final String              shape;
+        private final ExpressionEvaluator expressionEvaluator;
+        private final Object[]            constants;
+
+        CachedExpression(String shape, ExpressionEvaluator expressionEvaluator, Object[] constants) {
+            this.shape               = shape;
+            this.expressionEvaluator = expressionEvaluator;
+            this.constants           = constants;
+        }
+
+        /**
+         * @return The canonical text of the expression, where {@code $constant<var>n</var>} denotes the
+         *         <var>n</var>th lifted literal
+         */
+        public String
+        getShape() { return this.shape; }
+
+        /**
+         * @return The values of the lifted literals, in the order of their placeholders
+         */
+        public Object[]
+        getConstants() { return (Object[]) this.constants.clone(); }
+
+        /**
+         * Evaluates the expression with the given arguments.
+         *
+         * @param arguments The values of the parameters that were configured with {@link
+         *                  ExpressionShapeCache#setParameters(String[], Class[])}
+         * @see             ScriptEvaluator#evaluate(Object[])
+         */
+        @Nullable public Object
+        evaluate(@Nullable Object[] arguments) throws InvocationTargetException {
+
+            if (this.constants.length == 0) return this.expressionEvaluator.evaluate(arguments);
+
+            int      argumentCount = arguments == null ? 0 : arguments.length;
+            Object[] allArguments  = new Object[argumentCount + this.constants.length];
+            if (arguments != null) System.arraycopy(arguments, 0, allArguments, 0, argumentCount);
+            System.arraycopy(this.constants, 0, allArguments, argumentCount, this.constants.length);
+            return this.expressionEvaluator.evaluate(allArguments);
+        }
+    }
+
+    private ExpressionEvaluator
+    newExpressionEvaluator(String[] parameterNames, Class<?>[] parameterTypes) {
+        ExpressionEvaluator ee = new ExpressionEvaluator();
+        ee.setParentClassLoader(this.optionalParentClassLoader);
+        ee.setDefaultImports(this.optionalDefaultImports);
+        ee.setExpressionType(this.expressionType);
+        ee.setParameters(parameterNames, parameterTypes);
+        ee.setThrownExceptions(this.thrownExceptions);
+        return ee;
+    }
+
+    private void
+    clear() {
+        this.shapes.clear();
+        this.unliftableShapes.clear();
+    }
+
+    /**
+     * Generates the shape of an expression, i.e. a fully parenthesized text without white space variations, comments
+     * and redundant parentheses. Those kinds of atoms which hardly ever vary only in their literals are printed by
+     * the {@link Unparser}.
+     */
+    private
+    class ShapePrinter {
+
+        private final boolean       liftLiterals;
+        private final StringBuilder sb = new StringBuilder();
+
+        final List<Class<?>> constantTypes  = new ArrayList<Class<?>>();
+        final List<Object>   constantValues = new ArrayList<Object>();
+
+        ShapePrinter(boolean liftLiterals) { this.liftLiterals = liftLiterals; }
+
+        String
+        print(Rvalue rv) throws CompileException {
+            this.sb.setLength(0);
+            this.constantTypes.clear();
+            this.constantValues.clear();
+            this.printAtom(rv, this.liftLiterals);
+            return this.sb.toString();
+        }
+
+        private void
+        printAtom(Atom a, boolean lift) throws CompileException {
+
+            if (a instanceof Java.ParenthesizedExpression) {
+                this.printAtom(((Java.ParenthesizedExpression) a).value, lift);
+                return;
+            }
+
+            if (lift && a instanceof Rvalue && this.liftConstant((Rvalue) a)) return;
+
+            // Operators of compound constant expressions are left alone, because their result may differ from the
+            // result of the same operators on variables, e.g. "(byte) 7" is assignable to a "byte" variable.
+            if (lift && a instanceof Rvalue && ExpressionShapeCache.isConstantExpression((Rvalue) a)) lift = false;
+
+            if (a instanceof Java.BinaryOperation) {
+                Java.BinaryOperation bo = (Java.BinaryOperation) a;
+                this.sb.append('(');
+                this.printAtom(bo.lhs, lift);
+                this.sb.append(' ').append(bo.op).append(' ');
+                this.printAtom(bo.rhs, lift);
+                this.sb.append(')');
+            } else
+            if (a instanceof Java.UnaryOperation) {
+                Java.UnaryOperation uo = (Java.UnaryOperation) a;
+                this.sb.append('(').append(uo.operator);
+                this.printAtom(uo.operand, lift);
+                this.sb.append(')');
+            } else
+            if (a instanceof Java.ConditionalExpression) {
+                Java.ConditionalExpression ce = (Java.ConditionalExpression) a;
+                this.sb.append('(');
+                this.printAtom(ce.lhs, lift);
+                this.sb.append(" ? ");
+
+                // The type of the result depends on the values of constant operands, e.g. "b ? 1 : 'a'" is a "char",
+                // and "b ? x : -1" is a "byte" iff "x" is a "byte". That applies to (negated) literals as well as to
+                // compound constant expressions.
+                this.printAtom(ce.mhs, lift && !ExpressionShapeCache.isLiteralTree(ce.mhs));
+                this.sb.append(" : ");
+                this.printAtom(ce.rhs, lift && !ExpressionShapeCache.isLiteralTree(ce.rhs));
+                this.sb.append(')');
+            } else
+            if (a instanceof Java.Cast) {
+                Java.Cast c = (Java.Cast) a;
+                this.sb.append("((").append(ExpressionShapeCache.unparse(c.targetType)).append(") ");
+                this.printAtom(c.value, lift);
+                this.sb.append(')');
+            } else
+            if (a instanceof Java.Instanceof) {
+                Java.Instanceof io = (Java.Instanceof) a;
+                this.sb.append('(');
+                this.printAtom(io.lhs, lift);
+                this.sb.append(" instanceof ").append(ExpressionShapeCache.unparse(io.rhs)).append(')');
+            } else
+            if (a instanceof Java.MethodInvocation) {
+                Java.MethodInvocation mi = (Java.MethodInvocation) a;
+                if (mi.optionalTarget != null) {
+                    this.printAtom(mi.optionalTarget, lift);
+                    this.sb.append('.');
+                }
+                this.sb.append(mi.methodName).append('(');
+                for (int i = 0; i < mi.arguments.length; i++) {
+                    if (i > 0) this.sb.append(", ");
+                    this.printAtom(mi.arguments[i], lift);
+                }
+                this.sb.append(')');
+            } else
+            if (a instanceof Java.FieldAccessExpression) {
+                Java.FieldAccessExpression fae = (Java.FieldAccessExpression) a;
+                this.printAtom(fae.lhs, lift);
+                this.sb.append('.').append(fae.fieldName);
+            } else
+            if (a instanceof Java.ArrayAccessExpression) {
+                Java.ArrayAccessExpression aae = (Java.ArrayAccessExpression) a;
+                this.printAtom(aae.lhs, lift);
+                this.sb.append('[');
+                this.printAtom(aae.index, lift);
+                this.sb.append(']');
+            } else
+            if (a instanceof Java.AmbiguousName || a instanceof Java.Literal || !(a instanceof Rvalue)) {
+                this.sb.append(ExpressionShapeCache.unparse(a));
+            } else
+            {
+
+                // E.g. an assignment or a class instance creation; parenthesize it, because it may be the operand of
+                // an operator.
+                this.sb.append('(').append(ExpressionShapeCache.unparse(a)).append(')');
+            }
+        }
+
+        /**
+         * Iff the given rvalue is a liftable literal (or a negated numeric literal), prints a placeholder for it and
+         * records its type and value.
+         *
+         * @return Whether the rvalue was lifted
+         */
+        private boolean
+        liftConstant(Rvalue rv) throws CompileException {
+
+            Rvalue literal = rv;
+            if (rv instanceof Java.UnaryOperation && "-".equals(((Java.UnaryOperation) rv).operator)) {
+                literal = ExpressionShapeCache.stripParentheses(((Java.UnaryOperation) rv).operand);
+                if (!(literal instanceof Java.IntegerLiteral) && !(literal instanceof Java.FloatingPointLiteral)) {
+                    return false;
+                }
+            }
+            if (
+                !(literal instanceof Java.IntegerLiteral)
+                && !(literal instanceof Java.FloatingPointLiteral)
+                && !(literal instanceof Java.CharacterLiteral)
+                && !(literal instanceof Java.StringLiteral)
+            ) return false;
+
+            Object value = ExpressionShapeCache.this.literalEvaluator.getConstantValue(rv);
+
+            Class<?> type;
+            if (value instanceof Integer) {
+                type = int.class;
+            } else
+            if (value instanceof Long) {
+                type = long.class;
+            } else
+            if (value instanceof Float) {
+                type = float.class;
+            } else
+            if (value instanceof Double) {
+                type = double.class;
+            } else
+            if (value instanceof Character) {
+                type = char.class;
+            } else
+            if (value instanceof String) {
+
+                // String literals are interned, so "==" must continue to work for them.
+                value = ((String) value).intern();
+                type  = String.class;
+            } else
+            {
+                return false;
+            }
+
+            this.sb.append(ExpressionShapeCache.CONSTANT_PREFIX).append(this.constantTypes.size());
+            this.constantTypes.add(type);
+            this.constantValues.add(value);
+            return true;
+        }
+    }
+
+    /**
+     * @return Whether the given rvalue is composed of literals and operators only, and is not just a (negated) literal
+     */
+    private static boolean
+    isConstantExpression(Rvalue rv) {
+        rv = ExpressionShapeCache.stripParentheses(rv);
+        if (rv instanceof Java.Literal) return false;
+        if (rv instanceof Java.UnaryOperation) {
+            Rvalue operand = ExpressionShapeCache.stripParentheses(((Java.UnaryOperation) rv).operand);
+            if ("-".equals(((Java.UnaryOperation) rv).operator) && operand instanceof Java.Literal) return false;
+        }
+        return ExpressionShapeCache.isLiteralTree(rv);
+    }
+
+    private static boolean
+    isLiteralTree(Rvalue rv) {
+        rv = ExpressionShapeCache.stripParentheses(rv);
+        if (rv instanceof Java.Literal) return true;
+        if (rv instanceof Java.UnaryOperation) {
+            return ExpressionShapeCache.isLiteralTree(((Java.UnaryOperation) rv).operand);
+        }
+        if (rv instanceof Java.BinaryOperation) {
+            Java.BinaryOperation bo = (Java.BinaryOperation) rv;
+            return ExpressionShapeCache.isLiteralTree(bo.lhs) && ExpressionShapeCache.isLiteralTree(bo.rhs);
+        }
+        if (rv instanceof Java.Cast) return ExpressionShapeCache.isLiteralTree(((Java.Cast) rv).value);
+        if (rv instanceof Java.ConditionalExpression) {
+            Java.ConditionalExpression ce = (Java.ConditionalExpression) rv;
+            return (
+                ExpressionShapeCache.isLiteralTree(ce.lhs)
+                && ExpressionShapeCache.isLiteralTree(ce.mhs)
+                && ExpressionShapeCache.isLiteralTree(ce.rhs)
+            );
+        }
+        return false;
+    }
+
+    private static Rvalue
+    stripParentheses(Rvalue rv) {
+        while (rv instanceof Java.ParenthesizedExpression) rv = ((Java.ParenthesizedExpression) rv).value;
+        return rv;
+    }
+
+    private static String
+    unparse(Atom a) {
+        StringWriter sw = new StringWriter();
+        Unparser     u  = new Unparser(sw);
+        u.unparseAtom(a);
+        u.close();
+        return sw.toString();
+    }
+}
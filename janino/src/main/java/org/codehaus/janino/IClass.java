@@ -45,6 +45,10 @@ import org.codehaus.commons.nullanalysis.Nullable;
 /**
  * A simplified equivalent to "java.lang.reflect".
  * <p>
+ *   The lazily computed properties of an {@link IClass} are cached in {@code volatile} fields, so that {@link
+ *   IClass}es can be shared between threads, e.g. through a {@link ScriptEvaluatorTemplate}.
+ * </p>
+ * <p>
  *   'JLS7' means a reference to the <a href="http://docs.oracle.com/javase/specs/">Java Language Specification, Java
  *   SE 7 Edition</a>.
  * </p>
@@ -146,7 +150,7 @@ class IClass {
 
         return (this.declaredIConstructorsCache = this.getDeclaredIConstructors2());
     }
-    @Nullable private IConstructor[] declaredIConstructorsCache;
+    @Nullable private volatile IConstructor[] declaredIConstructorsCache;
 
     /**
      * The uncached version of {@link #getDeclaredIConstructors()} which must be implemented by derived classes.
@@ -165,7 +169,7 @@ class IClass {
         if (this.declaredIMethodsCache != null) return this.declaredIMethodsCache;
         return (this.declaredIMethodsCache = this.getDeclaredIMethods2());
     }
-    @Nullable private IMethod[] declaredIMethodsCache;
+    @Nullable private volatile IMethod[] declaredIMethodsCache;
 
     /**
      * The uncached version of {@link #getDeclaredIMethods()} which must be implemented by derived classes.
@@ -221,7 +225,7 @@ class IClass {
         IMethod[] methods = (IMethod[]) dimc.get(methodName);
         return methods == null ? IClass.NO_IMETHODS : methods;
     }
-    @Nullable private Map<String /*methodName*/, Object /*IMethod-or-List<IMethod>*/> declaredIMethodCache;
+    @Nullable private volatile Map<String /*methodName*/, Object /*IMethod-or-List<IMethod>*/> declaredIMethodCache;
 
     /**
      * Returns all methods declared in the class or interface, its superclasses and its superinterfaces.
@@ -237,7 +241,7 @@ class IClass {
         this.getIMethods(iMethods);
         return (this.iMethodCache = (IMethod[]) iMethods.toArray(new IMethod[iMethods.size()]));
     }
-    @Nullable private IMethod[] iMethodCache;
+    @Nullable private volatile IMethod[] iMethodCache;
 
     private void
     getIMethods(List<IMethod> result) throws CompileException {
@@ -364,7 +368,7 @@ class IClass {
     protected void
     clearIFieldCaches() { this.declaredIFieldsCache = null; }
 
-    @Nullable private Map<String /*fieldName*/, IField> declaredIFieldsCache;
+    @Nullable private volatile Map<String /*fieldName*/, IField> declaredIFieldsCache;
 
     /**
      * Uncached version of {@link #getDeclaredIFields()}.
@@ -389,7 +393,7 @@ class IClass {
         if (this.declaredIClassesCache != null) return this.declaredIClassesCache;
         return (this.declaredIClassesCache = this.getDeclaredIClasses2());
     }
-    @Nullable private IClass[] declaredIClassesCache;
+    @Nullable private volatile IClass[] declaredIClassesCache;
 
     /**
      * @return The member types of this type
@@ -407,8 +411,8 @@ class IClass {
         }
         return this.declaringIClassCache;
     }
-    private boolean          declaringIClassIsCached;
-    @Nullable private IClass declaringIClassCache;
+    private volatile boolean          declaringIClassIsCached;
+    @Nullable private volatile IClass declaringIClassCache;
 
     /**
      * @return If this class is a member class, the declaring class, otherwise {@code null}
@@ -430,11 +434,13 @@ class IClass {
     getOuterIClass() throws CompileException {
         if (this.outerIClassIsCached) return this.outerIClassCache;
 
+        IClass oc = this.getOuterIClass2();
+        this.outerIClassCache    = oc;
         this.outerIClassIsCached = true;
-        return (this.outerIClassCache = this.getOuterIClass2());
+        return oc;
     }
-    private boolean          outerIClassIsCached;
-    @Nullable private IClass outerIClassCache;
+    private volatile boolean          outerIClassIsCached;
+    @Nullable private volatile IClass outerIClassCache;
 
     /**
      * @see #getOuterIClass()
@@ -459,11 +465,12 @@ class IClass {
                 null
             );
         }
+        this.superclassCache    = sc;
         this.superclassIsCached = true;
-        return (this.superclassCache = sc);
+        return sc;
     }
-    private boolean          superclassIsCached;
-    @Nullable private IClass superclassCache;
+    private volatile boolean          superclassIsCached;
+    @Nullable private volatile IClass superclassCache;
 
     /**
      * @see #getSuperclass()
@@ -505,7 +512,7 @@ class IClass {
         }
         return (this.interfacesCache = is);
     }
-    @Nullable private IClass[] interfacesCache;
+    @Nullable private volatile IClass[] interfacesCache;
 
     /**
      * @see #getInterfaces()
@@ -527,7 +534,7 @@ class IClass {
         if (this.descriptorCache != null) return this.descriptorCache;
         return (this.descriptorCache = this.getDescriptor2());
     }
-    @Nullable private String descriptorCache;
+    @Nullable private volatile String descriptorCache;
 
     /**
      * @return The field descriptor for the type as defined by JVMS 4.3.2.
@@ -580,11 +587,13 @@ class IClass {
     getComponentType() {
         if (this.componentTypeIsCached) return this.componentTypeCache;
 
+        IClass ct = this.getComponentType2();
+        this.componentTypeCache    = ct;
         this.componentTypeIsCached = true;
-        return (this.componentTypeCache = this.getComponentType2());
+        return ct;
     }
-    private boolean          componentTypeIsCached;
-    @Nullable private IClass componentTypeCache;
+    private volatile boolean          componentTypeIsCached;
+    @Nullable private volatile IClass componentTypeCache;
 
     /**
      * @see #getComponentType()
@@ -883,7 +892,7 @@ class IClass {
         if (this.iAnnotationsCache != null) return this.iAnnotationsCache;
         return (this.iAnnotationsCache = this.getIAnnotations2());
     }
-    @Nullable private IAnnotation[] iAnnotationsCache;
+    @Nullable private volatile IAnnotation[] iAnnotationsCache;
 
     /**
      * @throws CompileException
@@ -926,20 +935,6 @@ class IClass {
     public abstract
     class IInvocable implements IMember {
 
-        private boolean argsNeedAdjust;
-
-        /**
-         * TODO
-         */
-        public void
-        setArgsNeedAdjust(boolean newVal) { this.argsNeedAdjust = newVal; }
-
-        /**
-         * TODO
-         */
-        public boolean
-        argsNeedAdjust() { return this.argsNeedAdjust; }
-
         /**
          * @return Whether this invocable is 'variable arity', i.e. its last parameter has an ellipsis ('...') after
          *         the type
@@ -959,7 +954,7 @@ class IClass {
             if (this.parameterTypesCache != null) return this.parameterTypesCache;
             return (this.parameterTypesCache = this.getParameterTypes2());
         }
-        @Nullable private IClass[] parameterTypesCache;
+        @Nullable private volatile IClass[] parameterTypesCache;
 
         /**
          * Opposed to the {@link Constructor}, there is no magic "{@code this$0}" parameter.
@@ -982,7 +977,7 @@ class IClass {
             if (this.descriptorCache != null) return this.descriptorCache;
             return (this.descriptorCache = this.getDescriptor2());
         }
-        @Nullable private String descriptorCache;
+        @Nullable private volatile String descriptorCache;
 
         /**
          * Uncached implementation of {@link #getDescriptor()}.
@@ -998,7 +993,7 @@ class IClass {
             if (this.thrownExceptionsCache != null) return this.thrownExceptionsCache;
             return (this.thrownExceptionsCache = this.getThrownExceptions2());
         }
-        @Nullable private IClass[] thrownExceptionsCache;
+        @Nullable private volatile IClass[] thrownExceptionsCache;
 
         /**
          * @return The types thrown by this constructor or method
@@ -1282,6 +1277,11 @@ class IClass {
          */
         public abstract boolean isStatic();
 
+        /**
+         * @return Whether this field is FINAL; the default implementation conservatively returns {@code false}
+         */
+        public boolean isFinal() { return false; }
+
         /**
          * @return The type of this field
          */
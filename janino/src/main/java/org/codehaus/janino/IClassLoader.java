@@ -88,6 +88,9 @@ class IClassLoader {
     public IMethod METH_java_lang_Enum__ordinal;
     public IMethod METH_java_lang_Iterable__iterator;
     public IMethod METH_java_lang_String__concat__java_lang_String;
+    public IMethod METH_java_lang_String__equals__java_lang_Object;
+    public IMethod METH_java_lang_String__hashCode;
+    public IMethod METH_java_lang_String__length;
     public IMethod METH_java_lang_String__valueOf__int;
     public IMethod METH_java_lang_String__valueOf__long;
     public IMethod METH_java_lang_String__valueOf__float;
@@ -108,6 +111,7 @@ class IClassLoader {
     public IMethod METH_java_util_Iterator__next;
 
     // Representations of commonly used constrcutors.
+    @Nullable public IConstructor CTOR_java_lang_StringBuilder__int;
     @Nullable public IConstructor CTOR_java_lang_StringBuilder__java_lang_String;
 
     // CHECKSTYLE JavadocVariable:ON
@@ -153,10 +157,13 @@ class IClassLoader {
             this.TYPE_java_io_Serializable           = this.requireType(Descriptor.JAVA_IO_SERIALIZABLE);
             this.TYPE_java_util_Iterator             = this.requireType(Descriptor.JAVA_UTIL_ITERATOR);
 
-            // SUPPRESS CHECKSTYLE LineLength:21
+            // SUPPRESS CHECKSTYLE LineLength:24
             this.METH_java_lang_Enum__ordinal                           = IClassLoader.requireMethod(this.TYPE_java_lang_Enum,          "ordinal");
             this.METH_java_lang_Iterable__iterator                      = IClassLoader.requireMethod(this.TYPE_java_lang_Iterable,      "iterator");
             this.METH_java_lang_String__concat__java_lang_String        = IClassLoader.requireMethod(this.TYPE_java_lang_String,        "concat",   this.TYPE_java_lang_String);
+            this.METH_java_lang_String__equals__java_lang_Object        = IClassLoader.requireMethod(this.TYPE_java_lang_String,        "equals",   this.TYPE_java_lang_Object);
+            this.METH_java_lang_String__hashCode                        = IClassLoader.requireMethod(this.TYPE_java_lang_String,        "hashCode");
+            this.METH_java_lang_String__length                          = IClassLoader.requireMethod(this.TYPE_java_lang_String,        "length");
             this.METH_java_lang_String__valueOf__int                    = IClassLoader.requireMethod(this.TYPE_java_lang_String,        "valueOf",  IClass.INT);
             this.METH_java_lang_String__valueOf__long                   = IClassLoader.requireMethod(this.TYPE_java_lang_String,        "valueOf",  IClass.LONG);
             this.METH_java_lang_String__valueOf__float                  = IClassLoader.requireMethod(this.TYPE_java_lang_String,        "valueOf",  IClass.FLOAT);
@@ -176,7 +183,8 @@ class IClassLoader {
             this.METH_java_util_Iterator__hasNext                       = IClassLoader.requireMethod(this.TYPE_java_util_Iterator,      "hasNext");
             this.METH_java_util_Iterator__next                          = IClassLoader.requireMethod(this.TYPE_java_util_Iterator,      "next");
 
-            // SUPPRESS CHECKSTYLE LineLength:1
+            // SUPPRESS CHECKSTYLE LineLength:2
+            this.CTOR_java_lang_StringBuilder__int              = IClassLoader.requireConstructor(this.TYPE_java_lang_StringBuilder, IClass.INT);
             this.CTOR_java_lang_StringBuilder__java_lang_String = IClassLoader.requireConstructor(this.TYPE_java_lang_StringBuilder, this.TYPE_java_lang_String);
 
         } catch (Exception e) {
@@ -291,7 +299,19 @@ class IClassLoader {
             // Load the class through the {@link #findIClass(String)} method implemented by the
             // derived class.
             IClassLoader.LOGGER.log(Level.FINE, "About to call \"findIClass({0})\"", fieldDescriptor);
-            result = this.findIClass(fieldDescriptor);
+            CompilationMetrics.enter(CompilationMetrics.Phase.TYPE_RESOLUTION);
+            try {
+                JfrEvents.Recorder recorder = JfrEvents.recorder();
+                if (recorder == null) {
+                    result = this.findIClass(fieldDescriptor);
+                } else {
+                    Object event = recorder.beginFindIClass();
+                    result = this.findIClass(fieldDescriptor);
+                    recorder.endFindIClass(event, fieldDescriptor, result != null);
+                }
+            } finally {
+                CompilationMetrics.leave();
+            }
             if (result == null) {
                 this.unloadableIClasses.add(fieldDescriptor);
                 return null;
@@ -102,22 +102,36 @@ class Java {
          */
         public static final Located NOWHERE = new Located(Location.NOWHERE) {};
 
-        private final Location location;
+        // The location is not stored as a "Location" object, because an AST easily has millions of nodes. The file
+        // name is shared with the scanner, and the line and column number are packed into one "int"; like the
+        // scanner, which counts them in "short"s, and the LineNumberTable attribute, this limits them to 16 bits.
+        @Nullable private final String optionalFileName;
+        private final int              lineAndColumnNumber;
 
         protected
         Located(Location location) {
             //assert location != null;
-            this.location = location;
+            this.optionalFileName    = location.getFileName();
+            this.lineAndColumnNumber = location.getLineNumber() << 16 | location.getColumnNumber() & 0xffff;
         }
 
         // Implement "Locatable".
 
+        /**
+         * @return A new {@link Location} object on each invocation
+         */
         @Override public Location
-        getLocation() { return this.location; }
+        getLocation() {
+            return new Location(
+                this.optionalFileName,
+                (short) (this.lineAndColumnNumber >> 16),
+                (short) this.lineAndColumnNumber
+            );
+        }
 
         @Override public void
         throwCompileException(String message) throws CompileException {
-            throw new CompileException(message, this.location);
+            throw new CompileException(message, this.getLocation());
         }
     }
 
@@ -284,6 +298,9 @@ class Java {
             accept(Visitor.ImportVisitor<R, EX> visitor) throws EX {
                 return visitor.visitSingleStaticImportDeclaration(this);
             }
+
+            @Override public String
+            toString() { return "import static " + Java.join(this.identifiers, ".") + ';'; }
         }
 
         /**
@@ -310,6 +327,9 @@ class Java {
             accept(Visitor.ImportVisitor<R, EX> visitor) throws EX {
                 return visitor.visitStaticImportOnDemandDeclaration(this);
             }
+
+            @Override public String
+            toString() { return "import static " + Java.join(this.identifiers, ".") + ".*;"; }
         }
 
         /**
@@ -483,6 +503,8 @@ class Java {
     public static
     class Modifiers {
 
+        private static final Annotation[] NO_ANNOTATIONS = new Annotation[0];
+
         /**
          * The or'ed constants declared in {@link Mod}.
          */
@@ -499,7 +521,7 @@ class Java {
         public
         Modifiers() {
             this.accessFlags = Mod.NONE;
-            this.annotations = new Annotation[0];
+            this.annotations = Modifiers.NO_ANNOTATIONS;
         }
 
         /**
@@ -508,7 +530,7 @@ class Java {
         public
         Modifiers(short modifiers) {
             this.accessFlags = modifiers;
-            this.annotations = new Annotation[0];
+            this.annotations = Modifiers.NO_ANNOTATIONS;
         }
 
         public
@@ -5477,6 +5499,13 @@ class Java {
          */
         public void setEnd(Offset end) { assert this.end == null; this.end = end; }
 
+        /**
+         * Forgets the start and the end {@link Offset}, which are no longer needed when the code attribute has been
+         * stored, and would otherwise keep the entire {@link CodeContext} from being garbage-collected.
+         */
+        public void
+        releaseOffsets() { this.start = null; this.end = null; }
+
         /**
          * @return the resolved type of this local variable
          */
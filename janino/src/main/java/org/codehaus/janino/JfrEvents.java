@@ -0,0 +1,328 @@
+
+/*
+ * Janino - An embedded Java[TM] compiler
+ *
+ * Copyright (c) 2001-2010, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codehaus.janino;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.codehaus.commons.nullanalysis.Nullable;
+
+/**
+ * Emits custom Java Flight Recorder events for cooks, unit compilations, {@link IClassLoader#findIClass(String)
+ * type loads} and class definitions through the {@link ByteArrayClassLoader}.
+ * <p>
+ *   Because JANINO runs on JVMs that have no {@code jdk.jfr} package, the event classes are not part of the JANINO
+ *   JAR, but are compiled (by JANINO itself) and defined into this package. That happens only when a flight
+ *   recording is started for the first time, and only iff the running JVM supports flight recording <em>and</em>
+ *   {@code Lookup.defineClass()} (JDK 11 and later; JDK 8u262 and later have JFR, but not that method). Until then,
+ *   {@link #recorder()} returns {@code null}, and the instrumented code skips all event handling.
+ * </p>
+ * <p>
+ *   The events are named "{@code org.codehaus.janino.Cook}", "{@code org.codehaus.janino.CompileUnit}", "{@code
+ *   org.codehaus.janino.FindIClass}" and "{@code org.codehaus.janino.DefineClass}", and appear in the "JANINO"
+ *   category.
+ * </p>
+ */
+final
+class JfrEvents {
+
+    private static final Logger LOGGER = Logger.getLogger(JfrEvents.class.getName());
+
+    private JfrEvents() {}
+
+    /**
+     * Creates and commits the events. Each "{@code begin...()}" method returns an event object, which must be passed
+     * to the corresponding "{@code end...()}" method.
+     */
+    interface Recorder {
+
+        /**
+         * Begins a {@link SimpleCompiler#cook(Java.CompilationUnit)}, or one of its variants.
+         */
+        Object beginCook();
+
+        /**
+         * @param evaluator The name of the class of the cooked object, e.g. "{@code
+         *                  org.codehaus.janino.ExpressionEvaluator}"
+         */
+        void endCook(Object event, String evaluator, @Nullable String source);
+
+        /**
+         * Begins a {@link UnitCompiler#compileUnit(boolean, boolean, boolean)}.
+         */
+        Object beginCompileUnit();
+
+        /**
+         * @param classNames The comma-separated names of the generated classes
+         */
+        void endCompileUnit(Object event, @Nullable String source, String classNames, int classCount);
+
+        /**
+         * Begins a {@link IClassLoader#findIClass(String)}.
+         */
+        Object beginFindIClass();
+
+        void endFindIClass(Object event, String descriptor, boolean found);
+
+        /**
+         * Begins the definition of a class by a {@link ByteArrayClassLoader}.
+         */
+        Object beginDefineClass();
+
+        void endDefineClass(Object event, String className, int byteSize);
+    }
+
+    /**
+     * @return {@code null} iff no flight recording was started yet, or the running JVM does not support flight
+     *         recording
+     */
+    @Nullable static Recorder
+    recorder() {
+        Recorder result = JfrEvents.recorder;
+        if (result != null || !JfrEvents.recordingStarted) return result;
+        return JfrEvents.loadRecorder();
+    }
+
+    @Nullable private static volatile Recorder recorder;
+
+    /**
+     * Whether a flight recording was started (since this class was initialized), which is when the event classes
+     * must be compiled.
+     */
+    private static volatile boolean recordingStarted;
+
+    /**
+     * Whether the event classes are being compiled, or failed to compile.
+     */
+    private static boolean loadingOrFailed;
+
+    static { JfrEvents.watchRecordings(); }
+
+    /**
+     * Iff the running JVM supports flight recording and {@code Lookup.defineClass()}, registers a listener that sets
+     * {@link #recordingStarted} as soon as a recording is running. This is cheap, in contrast with compiling the
+     * event classes.
+     */
+    private static void
+    watchRecordings() {
+        try {
+            final Class<?> flightRecorderClass = Class.forName("jdk.jfr.FlightRecorder");
+            if (!((Boolean) flightRecorderClass.getMethod("isAvailable").invoke(null)).booleanValue()) return;
+
+            // "Lookup.defineClass()" puts the event classes into this package (and class loader), so that they can
+            // access the package-private "Recorder" interface.
+            Class.forName("java.lang.invoke.MethodHandles$Lookup").getMethod("defineClass", byte[].class);
+
+            // The listener is a proxy, because "jdk.jfr.FlightRecorderListener" is not available at compile time.
+            Class<?> listenerClass = Class.forName("jdk.jfr.FlightRecorderListener");
+            Object   listener      = Proxy.newProxyInstance(
+                listenerClass.getClassLoader(),
+                new Class<?>[] { listenerClass },
+                new InvocationHandler() {
+
+                    @Override @Nullable public Object
+                    invoke(Object proxy, Method method, @Nullable Object[] args) throws Exception {
+                        String name = method.getName();
+                        if ("recordingStateChanged".equals(name)) {
+                            assert args != null;
+                            JfrEvents.recordingStateChanged(args[0]);
+                        } else
+                        if ("equals".equals(name)) {
+                            assert args != null;
+                            return Boolean.valueOf(proxy == args[0]);
+                        } else
+                        if ("hashCode".equals(name)) {
+                            return new Integer(System.identityHashCode(proxy));
+                        } else
+                        if ("toString".equals(name)) {
+                            return JfrEvents.class.getName() + " listener";
+                        }
+                        return null;
+                    }
+                }
+            );
+            flightRecorderClass.getMethod("addListener", listenerClass).invoke(null, listener);
+
+            // Recordings that are already running when this class initializes.
+            if (((Boolean) flightRecorderClass.getMethod("isInitialized").invoke(null)).booleanValue()) {
+                Object flightRecorder = flightRecorderClass.getMethod("getFlightRecorder").invoke(null);
+                for (Object recording : (java.util.List<?>) flightRecorderClass.getMethod("getRecordings").invoke(
+                    flightRecorder
+                )) JfrEvents.recordingStateChanged(recording);
+            }
+        } catch (ClassNotFoundException cnfe) {
+
+            // No "jdk.jfr" and/or no "java.lang.invoke" - this is not an error.
+            ;
+        } catch (NoSuchMethodException nsme) {
+
+            // E.g. JDK 8u262+, which has JFR, but no "Lookup.defineClass()" - this is not an error.
+            ;
+        } catch (Exception e) {
+            JfrEvents.LOGGER.log(Level.FINE, "Flight recorder events are not available", e);
+        } catch (LinkageError le) {
+            JfrEvents.LOGGER.log(Level.FINE, "Flight recorder events are not available", le);
+        }
+    }
+
+    private static void
+    recordingStateChanged(Object recording) throws Exception {
+        Object state = recording.getClass().getMethod("getState").invoke(recording);
+        if ("RUNNING".equals(String.valueOf(state))) JfrEvents.recordingStarted = true;
+    }
+
+    @Nullable private static synchronized Recorder
+    loadRecorder() {
+
+        // Notice: Compiling the event classes re-enters this method.
+        if (JfrEvents.recorder != null || JfrEvents.loadingOrFailed) return JfrEvents.recorder;
+        JfrEvents.loadingOrFailed = true;
+
+        String implName = JfrEvents.class.getName() + "Impl";
+        try {
+            Object lookup = Class.forName("java.lang.invoke.MethodHandles").getMethod("lookup").invoke(null);
+
+            SimpleCompiler sc = new SimpleCompiler();
+            sc.setParentClassLoader(JfrEvents.class.getClassLoader());
+            sc.setDefinitionLookup(lookup);
+            sc.cook(JfrEvents.class.getName() + ".java", new java.io.StringReader(JfrEvents.IMPL_SOURCE));
+
+            Recorder result = (Recorder) Class.forName(implName, true, JfrEvents.class.getClassLoader()).newInstance();
+            JfrEvents.recorder        = result;
+            JfrEvents.loadingOrFailed = false;
+            return result;
+        } catch (Exception e) {
+            JfrEvents.LOGGER.log(Level.FINE, "Flight recorder events are not available", e);
+            return null;
+        } catch (LinkageError le) {
+            JfrEvents.LOGGER.log(Level.FINE, "Flight recorder events are not available", le);
+            return null;
+        }
+    }
+
+    // Needs Java 9 for "Lookup.defineClass()", which is not available in the JDK 8 updates that have JFR; see
+    // "watchRecordings()". The event classes are package member classes, because JANINO does not yet support
+    // annotations on member classes.
+    private static final String IMPL_SOURCE = (
+        ""
+        + "package org.codehaus.janino;\n"
+        + "\n"
+        + "import jdk.jfr.*;\n"
+        + "\n"
+        + "@Name(\"org.codehaus.janino.Cook\") @Label(\"Cook\") @Category({ \"JANINO\" })\n"
+        + "final class JfrCookEvent extends Event {\n"
+        + "    @Label(\"Evaluator\") String evaluator;\n"
+        + "    @Label(\"Source\")    String source;\n"
+        + "}\n"
+        + "\n"
+        + "@Name(\"org.codehaus.janino.CompileUnit\") @Label(\"Compile Unit\") @Category({ \"JANINO\" })\n"
+        + "final class JfrCompileUnitEvent extends Event {\n"
+        + "    @Label(\"Source\")      String source;\n"
+        + "    @Label(\"Class Names\") String classNames;\n"
+        + "    @Label(\"Class Count\") int    classCount;\n"
+        + "}\n"
+        + "\n"
+        + "@Name(\"org.codehaus.janino.FindIClass\") @Label(\"Find IClass\") @Category({ \"JANINO\" })\n"
+        + "final class JfrFindIClassEvent extends Event {\n"
+        + "    @Label(\"Descriptor\") String  descriptor;\n"
+        + "    @Label(\"Found\")      boolean found;\n"
+        + "}\n"
+        + "\n"
+        + "@Name(\"org.codehaus.janino.DefineClass\") @Label(\"Define Class\") @Category({ \"JANINO\" })\n"
+        + "final class JfrDefineClassEvent extends Event {\n"
+        + "    @Label(\"Class Name\")                       String className;\n"
+        + "    @Label(\"Byte Size\") @DataAmount(\"BYTES\") int    byteSize;\n"
+        + "}\n"
+        + "\n"
+        + "public final class JfrEventsImpl implements JfrEvents.Recorder {\n"
+        + "\n"
+        + "    public Object beginCook() {\n"
+        + "        JfrCookEvent e = new JfrCookEvent();\n"
+        + "        e.begin();\n"
+        + "        return e;\n"
+        + "    }\n"
+        + "\n"
+        + "    public void endCook(Object event, String evaluator, String source) {\n"
+        + "        JfrCookEvent e = (JfrCookEvent) event;\n"
+        + "        e.end();\n"
+        + "        if (!e.shouldCommit()) return;\n"
+        + "        e.evaluator = evaluator;\n"
+        + "        e.source    = source;\n"
+        + "        e.commit();\n"
+        + "    }\n"
+        + "\n"
+        + "    public Object beginCompileUnit() {\n"
+        + "        JfrCompileUnitEvent e = new JfrCompileUnitEvent();\n"
+        + "        e.begin();\n"
+        + "        return e;\n"
+        + "    }\n"
+        + "\n"
+        + "    public void endCompileUnit(Object event, String source, String classNames, int classCount) {\n"
+        + "        JfrCompileUnitEvent e = (JfrCompileUnitEvent) event;\n"
+        + "        e.end();\n"
+        + "        if (!e.shouldCommit()) return;\n"
+        + "        e.source     = source;\n"
+        + "        e.classNames = classNames;\n"
+        + "        e.classCount = classCount;\n"
+        + "        e.commit();\n"
+        + "    }\n"
+        + "\n"
+        + "    public Object beginFindIClass() {\n"
+        + "        JfrFindIClassEvent e = new JfrFindIClassEvent();\n"
+        + "        e.begin();\n"
+        + "        return e;\n"
+        + "    }\n"
+        + "\n"
+        + "    public void endFindIClass(Object event, String descriptor, boolean found) {\n"
+        + "        JfrFindIClassEvent e = (JfrFindIClassEvent) event;\n"
+        + "        e.end();\n"
+        + "        if (!e.shouldCommit()) return;\n"
+        + "        e.descriptor = descriptor;\n"
+        + "        e.found      = found;\n"
+        + "        e.commit();\n"
+        + "    }\n"
+        + "\n"
+        + "    public Object beginDefineClass() {\n"
+        + "        JfrDefineClassEvent e = new JfrDefineClassEvent();\n"
+        + "        e.begin();\n"
+        + "        return e;\n"
+        + "    }\n"
+        + "\n"
+        + "    public void endDefineClass(Object event, String className, int byteSize) {\n"
+        + "        JfrDefineClassEvent e = (JfrDefineClassEvent) event;\n"
+        + "        e.end();\n"
+        + "        if (!e.shouldCommit()) return;\n"
+        + "        e.className = className;\n"
+        + "        e.byteSize  = byteSize;\n"
+        + "        e.commit();\n"
+        + "    }\n"
+        + "}\n"
+    );
+}
@@ -0,0 +1,557 @@
+
+/*
+ * Janino - An embedded Java[TM] compiler
+ *
+ * Copyright (c) 2001-2010, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codehaus.janino;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.commons.compiler.CompileException;
+import org.codehaus.commons.nullanalysis.Nullable;
+import org.codehaus.janino.Java.Rvalue;
+
+/**
+ * Cooks a large set of boolean predicates, which share the same parameters, into <em>one</em> "decision network", and
+ * evaluates all of them at once.
+ * <p>
+ *   Cooking each predicate with its own {@link ExpressionEvaluator} and evaluating all of them against the same
+ *   arguments repeats any sub-condition that occurs in more than one predicate (e.g. {@code x.type == 3}) for each of
+ *   these predicates. This class, in contrast, breaks the predicates up at their {@code &&}, {@code ||}, {@code !}
+ *   and {@code ?:} operators into <em>tests</em>, identifies equal tests by their {@link Unparser unparsed} text,
+ *   and generates one class that computes each test at most once per evaluation. Thus the cost of an evaluation
+ *   scales with the number of <em>distinct</em> tests rather than with the number of predicates.
+ * </p>
+ * <p>
+ *   The short-circuit semantics of the operators are retained: A test is only computed when one of the predicates
+ *   needs its value, so a predicate like {@code s != null && s.startsWith("a")} is safe, even if another predicate
+ *   shares only the {@code s.startsWith("a")} test.
+ * </p>
+ * <p>
+ *   Example:
+ * </p>
+ * <pre>
+ *     PredicateSetEvaluator pse = new PredicateSetEvaluator();
+ *     pse.setParameters(new String[] { "type", "s" }, new Class[] { int.class, String.class });
+ *     pse.cook(new String[] {
+ *         "type == 3 &amp;&amp; s.startsWith(\"a\")",
+ *         "type == 3 &amp;&amp; s.length() &gt; 10",
+ *         "!s.startsWith(\"a\")",
+ *     });
+ *     BitSet matches = pse.evaluate(new Object[] { 3, "abc" }); // {0}
+ * </pre>
+ */
+public
+class PredicateSetEvaluator {
+
+    /**
+     * The maximum length of the generated source code per method, which keeps the generated methods well below the
+     * JVM limit of 64 kB of bytecode.
+     */
+    private static final int MAX_METHOD_SOURCE_LENGTH = 0x2000;
+
+    // Names of the generated methods and of their implicit parameters; "$" avoids clashes with predicate parameters.
+    private static final String EVALUATE_METHOD_NAME = "evaluate";
+    private static final String RULES_METHOD_PREFIX  = "$rules";
+    private static final String TEST_METHOD_PREFIX   = "$test";
+    private static final String RESULT               = "$result";
+    private static final String TESTS                = "$tests";
+
+    @Nullable private ClassLoader optionalParentClassLoader;
+    @Nullable private String[]    optionalDefaultImports;
+    private String[]              parameterNames   = new String[0];
+    private Class<?>[]            parameterTypes   = new Class[0];
+    private Class<?>[]            thrownExceptions = new Class[0];
+
+    @Nullable private Method result; // null=uncooked
+    private int              predicateCount;
+    private int              testCount;
+
+    /**
+     * @see ScriptEvaluator#setParentClassLoader(ClassLoader)
+     */
+    public void
+    setParentClassLoader(@Nullable ClassLoader optionalParentClassLoader) {
+        this.optionalParentClassLoader = optionalParentClassLoader;
+    }
+
+    /**
+     * @see ScriptEvaluator#setDefaultImports(String[])
+     */
+    public void
+    setDefaultImports(@Nullable String[] optionalDefaultImports) {
+        this.optionalDefaultImports = optionalDefaultImports == null ? null : (String[]) optionalDefaultImports.clone();
+    }
+
+    /**
+     * Defines the parameters that <em>all</em> predicates share.
+     *
+     * @see ScriptEvaluator#setParameters(String[], Class[])
+     */
+    public void
+    setParameters(String[] parameterNames, Class<?>[] parameterTypes) {
+        if (parameterNames.length != parameterTypes.length) throw new IllegalArgumentException("parameterTypes");
+        this.parameterNames = (String[]) parameterNames.clone();
+        this.parameterTypes = (Class[]) parameterTypes.clone();
+    }
+
+    /**
+     * @see ScriptEvaluator#setThrownExceptions(Class[])
+     */
+    public void
+    setThrownExceptions(Class<?>[] thrownExceptions) { this.thrownExceptions = (Class[]) thrownExceptions.clone(); }
+
+    /**
+     * @see #cook(String[], String[])
+     */
+    public final void
+    cook(String[] predicates) throws CompileException { this.cook(null, predicates); }
+
+    /**
+     * Cooks the given predicates into one decision network.
+     *
+     * @param optionalFileNames Are used in compile error messages to identify the predicate
+     * @throws CompileException Any of the predicates has a compile error, or is not of type {@code boolean}; iff more
+     *                          than one of the predicates have compile errors, then the one for the predicate with the
+     *                          lowest index is thrown
+     */
+    public final void
+    cook(@Nullable String[] optionalFileNames, String[] predicates) throws CompileException {
+
+        if (optionalFileNames != null && optionalFileNames.length != predicates.length) {
+            throw new IllegalStateException("fileNames count");
+        }
+
+        this.result = null;
+
+        // Parse the predicates.
+        Rvalue[] rvalues = new Rvalue[predicates.length];
+        for (int i = 0; i < predicates.length; i++) {
+            try {
+                Scanner scanner = new Scanner(
+                    optionalFileNames == null ? null : optionalFileNames[i],
+                    new StringReader(predicates[i])
+                );
+                Parser parser = new Parser(scanner);
+                rvalues[i] = parser.parseExpression().toRvalueOrCompileException();
+                if (!parser.peek(TokenType.END_OF_INPUT)) {
+                    throw new CompileException("Unexpected token \"" + parser.peek() + "\"", scanner.location());
+                }
+            } catch (IOException ioe) {
+                throw new JaninoRuntimeException(ioe.toString(), ioe);
+            }
+        }
+
+        // Identify the distinct tests, and count how often each of them is needed.
+        Network network = new Network();
+        for (Rvalue rv : rvalues) network.count(rv);
+
+        // Generate the source code of the rules, split into methods of limited size.
+        List<String> rulesMethods = new ArrayList<String>();
+        {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < rvalues.length; i++) {
+                sb.append("if (").append(network.reference(rvalues[i])).append(") ");
+                sb.append(PredicateSetEvaluator.RESULT).append(".set(").append(i).append(");\n");
+                if (sb.length() > PredicateSetEvaluator.MAX_METHOD_SOURCE_LENGTH || i == rvalues.length - 1) {
+                    rulesMethods.add(sb.toString());
+                    sb.setLength(0);
+                }
+            }
+        }
+
+        // The tests' methods are generated last, because generating a reference may allocate a new test.
+        List<String> testMethods = network.testMethods();
+
+        // Now set up a script evaluator with one method that creates the result and the test states, one method per
+        // chunk of rules, and one method per shared test.
+        int          methodCount   = 1 + rulesMethods.size() + testMethods.size();
+        String[]     methodNames   = new String[methodCount];
+        Class<?>[]   returnTypes   = new Class[methodCount];
+        String[][]   allNames      = new String[methodCount][];
+        Class<?>[][] allTypes      = new Class[methodCount][];
+        Class<?>[][] allThrown     = new Class[methodCount][];
+        String[]     scripts       = new String[methodCount];
+
+        StringBuilder main = new StringBuilder();
+        main.append("java.util.BitSet ").append(PredicateSetEvaluator.RESULT);
+        main.append(" = new java.util.BitSet(").append(rvalues.length).append(");\n");
+        main.append("int[] ").append(PredicateSetEvaluator.TESTS);
+        main.append(" = new int[").append(testMethods.size()).append("];\n");
+        for (int i = 0; i < rulesMethods.size(); i++) {
+            main.append(PredicateSetEvaluator.RULES_METHOD_PREFIX).append(i).append('(');
+            main.append(PredicateSetEvaluator.RESULT).append(", ").append(this.arguments()).append(");\n");
+        }
+        main.append("return ").append(PredicateSetEvaluator.RESULT).append(';');
+        methodNames[0] = PredicateSetEvaluator.EVALUATE_METHOD_NAME;
+        returnTypes[0] = BitSet.class;
+        allNames[0]    = this.parameterNames;
+        allTypes[0]    = this.parameterTypes;
+        scripts[0]     = main.toString();
+
+        int idx = 1;
+        for (int i = 0; i < rulesMethods.size(); i++, idx++) {
+            methodNames[idx] = PredicateSetEvaluator.RULES_METHOD_PREFIX + i;
+            returnTypes[idx] = void.class;
+            allNames[idx]    = PredicateSetEvaluator.prepend(
+                PredicateSetEvaluator.RESULT,
+                PredicateSetEvaluator.prepend(PredicateSetEvaluator.TESTS, this.parameterNames)
+            );
+            allTypes[idx]    = PredicateSetEvaluator.prepend(
+                BitSet.class,
+                PredicateSetEvaluator.prepend(int[].class, this.parameterTypes)
+            );
+            scripts[idx]     = (String) rulesMethods.get(i);
+        }
+        for (int i = 0; i < testMethods.size(); i++, idx++) {
+            methodNames[idx] = PredicateSetEvaluator.TEST_METHOD_PREFIX + i;
+            returnTypes[idx] = boolean.class;
+            allNames[idx]    = PredicateSetEvaluator.prepend(PredicateSetEvaluator.TESTS, this.parameterNames);
+            allTypes[idx]    = PredicateSetEvaluator.prepend(int[].class, this.parameterTypes);
+            scripts[idx]     = (String) testMethods.get(i);
+        }
+        for (int i = 0; i < methodCount; i++) allThrown[i] = this.thrownExceptions;
+
+        ScriptEvaluator se = new ScriptEvaluator();
+        se.setParentClassLoader(this.optionalParentClassLoader);
+        se.setDefaultImports(this.optionalDefaultImports);
+        se.setMethodNames(methodNames);
+        se.setReturnTypes(returnTypes);
+        se.setParameters(allNames, allTypes);
+        se.setThrownExceptions(allThrown);
+        try {
+            se.cook(scripts);
+        } catch (CompileException ce) {
+
+            // The error location refers to the generated code; find the culprit and report its own error instead.
+            this.checkPredicates(optionalFileNames, predicates);
+            throw ce;
+        }
+
+        this.result         = se.getMethod(0);
+        this.predicateCount = predicates.length;
+        this.testCount      = network.testCount();
+    }
+
+    /**
+     * @return The number of predicates that were cooked
+     */
+    public int
+    getPredicateCount() {
+        this.assertCooked();
+        return this.predicateCount;
+    }
+
+    /**
+     * @return The number of distinct tests of the cooked predicates; this is the maximum number of tests that are
+     *         computed by one {@link #evaluate(Object[])}
+     */
+    public int
+    getTestCount() {
+        this.assertCooked();
+        return this.testCount;
+    }
+
+    /**
+     * @return The generated {@code static} method that evaluates the network; its parameters are those configured
+     *         with {@link #setParameters(String[], Class[])}, and it returns a {@link BitSet}
+     */
+    public Method
+    getMethod() { return this.assertCooked(); }
+
+    /**
+     * Evaluates all predicates.
+     *
+     * @return The indexes of the predicates that evaluated to {@code true}
+     */
+    public BitSet
+    evaluate(@Nullable Object[] arguments) throws InvocationTargetException {
+        try {
+            return (BitSet) this.assertCooked().invoke(null, arguments);
+        } catch (IllegalAccessException ex) {
+            throw new JaninoRuntimeException(ex.toString(), ex);
+        }
+    }
+
+    private Method
+    assertCooked() {
+
+        if (this.result != null) return this.result;
+
+        throw new IllegalStateException("Must only be called after \"cook()\"");
+    }
+
+    /**
+     * Cooks each predicate with its own {@link ExpressionEvaluator}, in order to produce a compile error message with
+     * a meaningful location.
+     */
+    private void
+    checkPredicates(@Nullable String[] optionalFileNames, String[] predicates) throws CompileException {
+        for (int i = 0; i < predicates.length; i++) {
+            ExpressionEvaluator ee = new ExpressionEvaluator();
+            ee.setParentClassLoader(this.optionalParentClassLoader);
+            ee.setDefaultImports(this.optionalDefaultImports);
+            ee.setExpressionType(boolean.class);
+            ee.setParameters(this.parameterNames, this.parameterTypes);
+            ee.setThrownExceptions(this.thrownExceptions);
+            try {
+                ee.check(optionalFileNames == null ? null : optionalFileNames[i], new StringReader(predicates[i]));
+            } catch (IOException ioe) {
+                throw new JaninoRuntimeException(ioe.toString(), ioe);
+            }
+        }
+    }
+
+    /**
+     * @return The comma-separated list of the implicit {@link #TESTS} argument plus the predicate parameters
+     */
+    private String
+    arguments() {
+        StringBuilder sb = new StringBuilder(PredicateSetEvaluator.TESTS);
+        for (String pn : this.parameterNames) sb.append(", ").append(pn);
+        return sb.toString();
+    }
+
+    /**
+     * The tests of the predicates, and how they are computed.
+     */
+    private
+    class Network {
+
+        /**
+         * How often each distinct test (identified by its unparsed text) is needed.
+         */
+        private final Map<String, int[]> occurrences = new HashMap<String, int[]>();
+
+        /**
+         * The index of each test that is needed more than once; its value is computed by a dedicated method and
+         * memorized in element <var>index</var> of the {@link #TESTS} array.
+         */
+        private final Map<String, Integer> sharedTests = new HashMap<String, Integer>();
+
+        private final List<String>        testMethods = new ArrayList<String>();
+        private final Map<Rvalue, String> keys        = new IdentityHashMap<Rvalue, String>();
+
+        /**
+         * Counts the occurrences of the given test, and, iff it is seen for the first time, of its sub-tests.
+         */
+        void
+        count(Rvalue rv) {
+            rv = this.stripNegations(rv);
+
+            int[] occ = (int[]) this.occurrences.get(this.key(rv));
+            if (occ != null) {
+                occ[0]++;
+                return;
+            }
+            this.occurrences.put(this.key(rv), new int[] { 1 });
+
+            for (Rvalue operand : this.operands(rv)) this.count(operand);
+        }
+
+        /**
+         * @return Java code that evaluates the given test; iff the test is shared, then that code computes it only
+         *         once, and returns its memorized value afterwards
+         */
+        String
+        reference(Rvalue rv) {
+
+            boolean negated = false;
+            while (true) {
+                if (rv instanceof Java.ParenthesizedExpression) {
+                    rv = ((Java.ParenthesizedExpression) rv).value;
+                } else
+                if (rv instanceof Java.UnaryOperation && "!".equals(((Java.UnaryOperation) rv).operator)) {
+                    rv      = ((Java.UnaryOperation) rv).operand;
+                    negated = !negated;
+                } else
+                {
+                    break;
+                }
+            }
+
+            String key = this.key(rv);
+            int[]  occ = (int[]) this.occurrences.get(key);
+            assert occ != null;
+
+            String code;
+            if (occ[0] <= 1) {
+                code = this.compute(rv);
+            } else {
+                Integer index = (Integer) this.sharedTests.get(key);
+                if (index == null) {
+                    index = new Integer(this.sharedTests.size());
+                    this.sharedTests.put(key, index);
+                    this.testMethods.add(null);
+                    this.testMethods.set(index.intValue(), (
+                        "boolean $value = "
+                        + this.compute(rv)
+                        + ";\n"
+                        + PredicateSetEvaluator.TESTS
+                        + '['
+                        + index
+                        + "] = $value ? 1 : 2;\n"
+                        + "return $value;"
+                    ));
+                }
+                String state = PredicateSetEvaluator.TESTS + '[' + index + ']';
+                code = (
+                    "("
+                    + state
+                    + " == 0 ? "
+                    + PredicateSetEvaluator.TEST_METHOD_PREFIX
+                    + index
+                    + '('
+                    + PredicateSetEvaluator.this.arguments()
+                    + ") : "
+                    + state
+                    + " == 1)"
+                );
+            }
+
+            return negated ? "!" + code : code;
+        }
+
+        /**
+         * @return The number of distinct tests
+         */
+        int
+        testCount() { return this.occurrences.size(); }
+
+        /**
+         * @return The bodies of the methods that compute the shared tests
+         */
+        List<String>
+        testMethods() { return this.testMethods; }
+
+        /**
+         * @return Java code that computes the given test, with references to its sub-tests
+         */
+        private String
+        compute(Rvalue rv) {
+
+            if (rv instanceof Java.BinaryOperation) {
+                Java.BinaryOperation bo = (Java.BinaryOperation) rv;
+                if ("&&".equals(bo.op) || "||".equals(bo.op)) {
+                    return "(" + this.reference(bo.lhs) + ' ' + bo.op + ' ' + this.reference(bo.rhs) + ')';
+                }
+            } else
+            if (rv instanceof Java.ConditionalExpression) {
+                Java.ConditionalExpression ce = (Java.ConditionalExpression) rv;
+                return (
+                    "("
+                    + this.reference(ce.lhs)
+                    + " ? "
+                    + this.reference(ce.mhs)
+                    + " : "
+                    + this.reference(ce.rhs)
+                    + ")"
+                );
+            }
+
+            return "(" + this.key(rv) + ")";
+        }
+
+        /**
+         * @return The text that identifies the given test
+         */
+        private String
+        key(Rvalue rv) {
+
+            String result = (String) this.keys.get(rv);
+            if (result != null) return result;
+
+            StringWriter sw = new StringWriter();
+            Unparser     u  = new Unparser(sw);
+            u.unparseAtom(rv);
+            u.close();
+            result = sw.toString();
+
+            this.keys.put(rv, result);
+            return result;
+        }
+
+        /**
+         * @return The given test, without enclosing parentheses and {@code !} operators
+         */
+        private Rvalue
+        stripNegations(Rvalue rv) {
+            for (;;) {
+                if (rv instanceof Java.ParenthesizedExpression) {
+                    rv = ((Java.ParenthesizedExpression) rv).value;
+                } else
+                if (rv instanceof Java.UnaryOperation && "!".equals(((Java.UnaryOperation) rv).operator)) {
+                    rv = ((Java.UnaryOperation) rv).operand;
+                } else
+                {
+                    return rv;
+                }
+            }
+        }
+
+        /**
+         * @return The sub-tests of the given test, or an empty array iff the test cannot be broken up
+         */
+        private Rvalue[]
+        operands(Rvalue rv) {
+
+            if (rv instanceof Java.BinaryOperation) {
+                Java.BinaryOperation bo = (Java.BinaryOperation) rv;
+                if ("&&".equals(bo.op) || "||".equals(bo.op)) return new Rvalue[] { bo.lhs, bo.rhs };
+            } else
+            if (rv instanceof Java.ConditionalExpression) {
+                Java.ConditionalExpression ce = (Java.ConditionalExpression) rv;
+                return new Rvalue[] { ce.lhs, ce.mhs, ce.rhs };
+            }
+
+            return new Rvalue[0];
+        }
+    }
+
+    private static String[]
+    prepend(String s, String[] a) {
+        String[] result = new String[a.length + 1];
+        result[0] = s;
+        System.arraycopy(a, 0, result, 1, a.length);
+        return result;
+    }
+
+    private static Class<?>[]
+    prepend(Class<?> c, Class<?>[] a) {
+        Class<?>[] result = new Class[a.length + 1];
+        result[0] = c;
+        System.arraycopy(a, 0, result, 1, a.length);
+        return result;
+    }
+}
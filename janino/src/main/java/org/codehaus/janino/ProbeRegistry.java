@@ -0,0 +1,162 @@
+
+/*
+ * Janino - An embedded Java[TM] compiler
+ *
+ * Copyright (c) 2001-2010, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codehaus.janino;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.commons.nullanalysis.Nullable;
+
+/**
+ * Maps the IDs that instrumented code passes to the {@link Profiler} and to {@link Coverage} to the objects that
+ * record the executions, and groups these objects by the name of their evaluator.
+ * <p>
+ *   The objects are stored in chunks of {@value #CHUNK_SIZE}, so adding an object never copies the others, and {@link
+ *   #get(int)} requires no synchronization. IDs are never reused: {@link #remove(String)} clears the slots of the
+ *   evaluator's objects and frees the chunks that have no objects left, so instrumented code of a removed evaluator
+ *   that is still executing gets {@code null} for its IDs.
+ * </p>
+ *
+ * @param <T> The type of the registered objects
+ */
+final
+class ProbeRegistry<T> {
+
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << ProbeRegistry.CHUNK_BITS;
+
+    /**
+     * Is re-assigned after each modification, so that {@link #get(int)} sees the modified slots.
+     */
+    private volatile Object[][] chunks = new Object[1][];
+
+    /**
+     * The number of objects in each chunk.
+     */
+    private int[] chunkSizes = new int[1];
+
+    private int nextId;
+
+    /**
+     * The IDs of the objects of each evaluator, in the order of the registration of the evaluators resp. the objects.
+     */
+    private final Map<String, List<Integer>> idsByEvaluatorName = new LinkedHashMap<String, List<Integer>>();
+
+    /**
+     * @return The object with the given ID, or {@code null} iff it was removed
+     */
+    @Nullable public T
+    get(int id) {
+        Object[] chunk = this.chunks[id >>> ProbeRegistry.CHUNK_BITS];
+        if (chunk == null) return null;
+
+        @SuppressWarnings("unchecked") T result = (T) chunk[id & (ProbeRegistry.CHUNK_SIZE - 1)];
+        return result;
+    }
+
+    /**
+     * Adds an object to the objects of the given evaluator.
+     *
+     * @return The ID of the object
+     */
+    public synchronized int
+    add(String evaluatorName, T object) {
+        int id         = this.nextId++;
+        int chunkIndex = id >>> ProbeRegistry.CHUNK_BITS;
+
+        Object[][] chunks = this.chunks;
+        if (chunkIndex == chunks.length) {
+            Object[][] newChunks = new Object[2 * chunks.length][];
+            System.arraycopy(chunks, 0, newChunks, 0, chunks.length);
+            chunks = newChunks;
+
+            int[] newChunkSizes = new int[newChunks.length];
+            System.arraycopy(this.chunkSizes, 0, newChunkSizes, 0, this.chunkSizes.length);
+            this.chunkSizes = newChunkSizes;
+        }
+        if (chunks[chunkIndex] == null) chunks[chunkIndex] = new Object[ProbeRegistry.CHUNK_SIZE];
+
+        chunks[chunkIndex][id & (ProbeRegistry.CHUNK_SIZE - 1)] = object;
+        this.chunkSizes[chunkIndex]++;
+        this.chunks = chunks;
+
+        List<Integer> ids = (List<Integer>) this.idsByEvaluatorName.get(evaluatorName);
+        if (ids == null) this.idsByEvaluatorName.put(evaluatorName, (ids = new ArrayList<Integer>()));
+        ids.add(new Integer(id));
+
+        return id;
+    }
+
+    /**
+     * Removes all objects of the given evaluator.
+     */
+    public synchronized void
+    remove(String evaluatorName) {
+        List<Integer> ids = (List<Integer>) this.idsByEvaluatorName.remove(evaluatorName);
+        if (ids == null) return;
+
+        Object[][] chunks            = this.chunks;
+        int        currentChunkIndex = this.nextId >>> ProbeRegistry.CHUNK_BITS;
+        for (Integer i : ids) {
+            int id         = i.intValue();
+            int chunkIndex = id >>> ProbeRegistry.CHUNK_BITS;
+            chunks[chunkIndex][id & (ProbeRegistry.CHUNK_SIZE - 1)] = null;
+
+            // The current chunk is kept, because "add()" will fill it.
+            if (--this.chunkSizes[chunkIndex] == 0 && chunkIndex != currentChunkIndex) chunks[chunkIndex] = null;
+        }
+        this.chunks = chunks;
+    }
+
+    /**
+     * @return The names of the evaluators that have objects, in the order of their (most recent) registration
+     */
+    public synchronized Set<String>
+    getEvaluatorNames() { return new LinkedHashSet<String>(this.idsByEvaluatorName.keySet()); }
+
+    /**
+     * @return The objects of the given evaluator, in the order of their registration
+     */
+    public synchronized List<T>
+    getObjects(String evaluatorName) {
+        List<T> result = new ArrayList<T>();
+
+        List<Integer> ids = (List<Integer>) this.idsByEvaluatorName.get(evaluatorName);
+        if (ids == null) return result;
+
+        for (Integer id : ids) {
+            T object = this.get(id.intValue());
+            assert object != null;
+            result.add(object);
+        }
+        return result;
+    }
+}
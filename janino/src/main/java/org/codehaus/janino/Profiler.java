@@ -0,0 +1,304 @@
+
+/*
+ * Janino - An embedded Java[TM] compiler
+ *
+ * Copyright (c) 2001-2010, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codehaus.janino;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+/**
+ * Collects the counters and timers of code that was compiled with {@link SimpleCompiler#setProfiling(boolean,
+ * boolean) profiling instrumentation}, and exposes them through the {@link ProfilerMXBean}, which is registered with
+ * the platform MBean server under the name {@value #OBJECT_NAME}.
+ * <p>
+ *   Each <em>probe</em> is identified by the name of the evaluator (i.e. the "file name" that was passed to {@code
+ *   cook()}, or, if none was passed, the name of the generated class plus a suffix that is unique within the JVM, e.g.
+ *   "SC#7"), the name of the method, and a source line:
+ * </p>
+ * <dl>
+ *   <dt>{@link #METHOD}</dt>
+ *   <dd>
+ *     Counts the invocations of a method, and, iff timers are enabled, sums up the nanoseconds spent in the method
+ *     (not counting invocations that complete abruptly by throwing an exception)
+ *   </dd>
+ *   <dt>{@link #BLOCK}</dt>
+ *   <dd>
+ *     Counts the executions of the first statement of a "basic block", i.e. a sequence of statements that are
+ *     executed one after the other; thus the count applies to all statements up to the next probe
+ *   </dd>
+ * </dl>
+ * <p>
+ *   The counters and timers are atomic, so they are exact even if the instrumented code is executed by several
+ *   threads at the same time.
+ * </p>
+ * <p>
+ *   The probes are registered at compile time. When an evaluator is compiled again under the same file name, its
+ *   previous probes are removed; applications that cook an unlimited number of evaluators under different (or no)
+ *   file names must {@link #remove(String) remove} the probes of the evaluators they no longer use.
+ * </p>
+ * <p>
+ *   The instrumented code needs this class at runtime, so the {@link SimpleCompiler#setParentClassLoader(ClassLoader)
+ *   parent class loader} must load the <em>same</em> {@link Profiler} class as the compiler.
+ * </p>
+ */
+public final
+class Profiler {
+
+    /**
+     * The name under which the {@link ProfilerMXBean} is registered with the platform MBean server.
+     */
+    public static final String OBJECT_NAME = "org.codehaus.janino:type=Profiler";
+
+    /**
+     * The kind of a probe that counts (and optionally times) the invocations of a method.
+     */
+    public static final String METHOD = "METHOD";
+
+    /**
+     * The kind of a probe that counts the executions of a basic block.
+     */
+    public static final String BLOCK = "BLOCK";
+
+    private Profiler() {}
+
+    /**
+     * The management interface of the {@link Profiler}.
+     */
+    public
+    interface ProfilerMXBean {
+
+        /**
+         * @return The names of the evaluators that have probes, in the order of their compilation
+         */
+        String[] getEvaluatorNames();
+
+        /**
+         * @return The current counts and times of the probes of the given evaluator, in the order of their
+         *         registration
+         */
+        ProbeData[] getProfile(String evaluatorName);
+
+        /**
+         * Sets the counts and times of all probes to zero.
+         */
+        void reset();
+    }
+
+    /**
+     * A snapshot of the state of one probe.
+     */
+    public static final
+    class ProbeData {
+
+        private final String evaluatorName;
+        private final String methodName;
+        private final int    lineNumber;
+        private final String kind;
+        private final long   count;
+        private final long   totalNanos;
+
+        ProbeData(String evaluatorName, String methodName, int lineNumber, String kind, long count, long totalNanos) {
+            this.evaluatorName = evaluatorName;
+            this.methodName    = methodName;
+            this.lineNumber    = lineNumber;
+            this.kind          = kind;
+            this.count         = count;
+            this.totalNanos    = totalNanos;
+        }
+
+        /**
+         * @return The name of the evaluator, see {@link Profiler}
+         */
+        public String
+        getEvaluatorName() { return this.evaluatorName; }
+
+        /**
+         * @return The name of the instrumented method, e.g. "{@code SC.eval0}"
+         */
+        public String
+        getMethodName() { return this.methodName; }
+
+        /**
+         * @return The source line of the method declaration resp. of the first statement of the basic block, or -1
+         */
+        public int
+        getLineNumber() { return this.lineNumber; }
+
+        /**
+         * @return {@link Profiler#METHOD} or {@link Profiler#BLOCK}
+         */
+        public String
+        getKind() { return this.kind; }
+
+        /**
+         * @return The number of executions
+         */
+        public long
+        getCount() { return this.count; }
+
+        /**
+         * @return For {@link Profiler#METHOD} probes, the nanoseconds spent in the method (if timers are enabled),
+         *         otherwise 0
+         */
+        public long
+        getTotalNanos() { return this.totalNanos; }
+
+        @Override public String
+        toString() {
+            return (
+                this.methodName
+                + ":"
+                + this.lineNumber
+                + " "
+                + this.kind
+                + " count="
+                + this.count
+                + " totalNanos="
+                + this.totalNanos
+            );
+        }
+    }
+
+    /**
+     * Increments the count of the given probe (unless it was removed). Invoked by the instrumented code.
+     */
+    public static void
+    count(int probeId) {
+        Probe p = (Probe) Profiler.PROBES.get(probeId);
+        if (p != null) p.count.incrementAndGet();
+    }
+
+    /**
+     * Adds the nanoseconds since <var>startNanos</var> to the given probe (unless it was removed). Invoked by the
+     * instrumented code.
+     */
+    public static void
+    time(long startNanos, int probeId) {
+        Probe p = (Probe) Profiler.PROBES.get(probeId);
+        if (p != null) p.totalNanos.addAndGet(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Removes all probes of the given evaluator. Code of that evaluator that is executed afterwards is no longer
+     * counted.
+     */
+    public static void
+    remove(String evaluatorName) { Profiler.PROBES.remove(evaluatorName); }
+
+    /**
+     * @return The {@link ProfilerMXBean}, which is also registered with the platform MBean server (if possible)
+     */
+    public static ProfilerMXBean
+    getMXBean() { return Profiler.MX_BEAN; }
+
+    /**
+     * Registers a new probe; invoked by the {@link UnitCompiler}.
+     *
+     * @param kind {@link #METHOD} or {@link #BLOCK}
+     * @return     The ID of the new probe, which the instrumented code passes to {@link #count(int)} and {@link
+     *             #time(long, int)}
+     */
+    static synchronized int
+    registerProbe(String evaluatorName, String methodName, int lineNumber, String kind) {
+
+        if (!Profiler.mxBeanRegistered) {
+            Profiler.mxBeanRegistered = true;
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    Profiler.MX_BEAN,
+                    new ObjectName(Profiler.OBJECT_NAME)
+                );
+            } catch (Exception e) {
+
+                // E.g. JMX is not available, or another copy of this class has registered its MXBean already;
+                // profiling works nonetheless, through "getMXBean()".
+            }
+        }
+
+        return Profiler.PROBES.add(evaluatorName, new Probe(evaluatorName, methodName, lineNumber, kind));
+    }
+
+    private static
+    class Probe {
+
+        final String     evaluatorName;
+        final String     methodName;
+        final int        lineNumber;
+        final String     kind;
+        final AtomicLong count      = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+
+        Probe(String evaluatorName, String methodName, int lineNumber, String kind) {
+            this.evaluatorName = evaluatorName;
+            this.methodName    = methodName;
+            this.lineNumber    = lineNumber;
+            this.kind          = kind;
+        }
+    }
+
+    private static final ProbeRegistry<Probe> PROBES = new ProbeRegistry<Probe>();
+    private static boolean                    mxBeanRegistered;
+
+    private static final ProfilerMXBean MX_BEAN = new ProfilerMXBean() {
+
+        @Override public String[]
+        getEvaluatorNames() {
+            return (String[]) Profiler.PROBES.getEvaluatorNames().toArray(new String[0]);
+        }
+
+        @Override public ProbeData[]
+        getProfile(String evaluatorName) {
+            List<ProbeData> result = new ArrayList<ProbeData>();
+            for (Object o : Profiler.PROBES.getObjects(evaluatorName)) {
+                Probe p = (Probe) o;
+                result.add(new ProbeData(
+                    p.evaluatorName,
+                    p.methodName,
+                    p.lineNumber,
+                    p.kind,
+                    p.count.get(),
+                    p.totalNanos.get()
+                ));
+            }
+            return (ProbeData[]) result.toArray(new ProbeData[result.size()]);
+        }
+
+        @Override public void
+        reset() {
+            for (String evaluatorName : Profiler.PROBES.getEvaluatorNames()) {
+                for (Object o : Profiler.PROBES.getObjects(evaluatorName)) {
+                    Probe p = (Probe) o;
+                    p.count.set(0);
+                    p.totalNanos.set(0);
+                }
+            }
+        }
+    };
+}
@@ -378,6 +378,9 @@ class ReflectionIClass extends IClass {
         @Override public boolean
         isStatic() { return Modifier.isStatic(this.field.getModifiers()); }
 
+        @Override public boolean
+        isFinal() { return Modifier.isFinal(this.field.getModifiers()); }
+
         @Override public IClass
         getType() { return ReflectionIClass.this.classToIClass(this.field.getType()); }
 
@@ -0,0 +1,344 @@
+
+/*
+ * Janino - An embedded Java[TM] compiler
+ *
+ * Copyright (c) 2001-2010, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codehaus.janino;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.commons.compiler.ICookable;
+import org.codehaus.commons.nullanalysis.Nullable;
+import org.codehaus.janino.util.ClassFile;
+import org.codehaus.janino.util.resource.Resource;
+import org.codehaus.janino.util.resource.ResourceFinder;
+
+/**
+ * Loads classes from Java source files like the {@link JavaSourceClassLoader}, but allows for picking up modified
+ * source files without discarding all loaded classes.
+ * <p>
+ *   The classes are loaded in <em>generations</em>; each generation is a {@link JavaSourceClassLoader}. When {@link
+ *   #reload()} detects that source files have changed, then it creates a new generation, which loads the classes
+ *   declared in the changed source files, plus all classes that (directly or indirectly) reference these, from
+ *   source. All other classes that were loaded by previous generations are shared with the new generation, i.e.
+ *   they are neither re-compiled nor re-loaded, and keep their static state and their JIT-compiled code.
+ * </p>
+ * <p>
+ *   The application must get the classes through the <em>current</em> generation, i.e. through {@link
+ *   #loadClass(String)} or {@link #getClassLoader()}; classes that it obtained before the reload continue to work,
+ *   but remain the old versions.
+ * </p>
+ * <p>
+ *   The references between classes are determined from their bytecode. Notice that the values of constant
+ *   variables (JLS7 4.12.4) are inlined by the compiler, so modifying a constant does not reload the classes that
+ *   use it; create a new {@link ReloadingJavaSourceClassLoader} in that case.
+ * </p>
+ */
+public
+class ReloadingJavaSourceClassLoader {
+
+    private final ClassLoader      parentClassLoader;
+    private final ResourceFinder   sourceFinder;
+    @Nullable private final String optionalCharacterEncoding;
+
+    private boolean debugSource = Boolean.getBoolean(ICookable.SYSTEM_PROPERTY_SOURCE_DEBUGGING_ENABLE);
+    private boolean debugLines  = this.debugSource;
+    private boolean debugVars   = this.debugSource;
+
+    private Generation currentGeneration;
+
+    // Class name => the generation that generated the class.
+    private final Map<String, Generation> generations = new HashMap<String, Generation>();
+
+    // Class name => the digest of its source file at the time the class was generated.
+    private final Map<String, String> sourceDigests = new HashMap<String, String>();
+
+    // Class name => the names of the classes that its bytecode references.
+    private final Map<String, Set<String>> references = new HashMap<String, Set<String>>();
+
+    /**
+     * @param parentClassLoader         Loads all classes that are not found through the <var>sourceFinder</var>
+     * @param sourceFinder              Finds the Java source code for class {@code pkg.Cls} in resource {@code
+     *                                  pkg/Cls.java}
+     * @param optionalCharacterEncoding The encoding of the Java source files ({@code null} for platform default
+     *                                  encoding)
+     */
+    public
+    ReloadingJavaSourceClassLoader(
+        ClassLoader      parentClassLoader,
+        ResourceFinder   sourceFinder,
+        @Nullable String optionalCharacterEncoding
+    ) {
+        this.parentClassLoader         = parentClassLoader;
+        this.sourceFinder              = sourceFinder;
+        this.optionalCharacterEncoding = optionalCharacterEncoding;
+        this.currentGeneration         = new Generation(this, 0);
+    }
+
+    /**
+     * Configures the debugging information of the current generation and of all future generations.
+     *
+     * @see JavaSourceClassLoader#setDebuggingInfo(boolean, boolean, boolean)
+     */
+    public synchronized void
+    setDebuggingInfo(boolean debugSource, boolean debugLines, boolean debugVars) {
+        this.debugSource = debugSource;
+        this.debugLines  = debugLines;
+        this.debugVars   = debugVars;
+        this.currentGeneration.setDebuggingInfo(debugSource, debugLines, debugVars);
+    }
+
+    /**
+     * @return The {@link ClassLoader} of the current generation
+     */
+    public synchronized ClassLoader
+    getClassLoader() { return this.currentGeneration; }
+
+    /**
+     * @return The number of the current generation, starting at zero
+     */
+    public synchronized int
+    getGeneration() { return this.currentGeneration.number; }
+
+    /**
+     * Loads the named class through the current generation.
+     */
+    public Class<?>
+    loadClass(String className) throws ClassNotFoundException { return this.getClassLoader().loadClass(className); }
+
+    /**
+     * Checks whether the source files of the classes loaded so far have changed or vanished, and, iff so, creates a
+     * new generation that re-loads these classes and the classes that depend on them.
+     *
+     * @return The names of the classes that the new generation re-loads (empty iff no source file has changed)
+     */
+    public synchronized Set<String>
+    reload() throws IOException {
+
+        // Determine the classes with changed sources.
+        Set<String>         invalidated = new HashSet<String>();
+        Map<String, String> digests     = new HashMap<String, String>();
+        for (Map.Entry<String, String> me : this.sourceDigests.entrySet()) {
+            String className          = (String) me.getKey();
+            String sourceResourceName = ClassFile.getSourceResourceName(className);
+
+            String digest = (String) digests.get(sourceResourceName);
+            if (digest == null) {
+                Resource sourceResource = this.sourceFinder.findResource(sourceResourceName);
+                digest = sourceResource == null ? "" : CachingJavaSourceClassLoader.digest(sourceResource);
+                digests.put(sourceResourceName, digest);
+            }
+
+            if (!digest.equals(me.getValue())) invalidated.add(className);
+        }
+        if (invalidated.isEmpty()) return invalidated;
+
+        // Add the classes that reference invalidated classes, until no more are added.
+        for (boolean added = true; added;) {
+            added = false;
+            for (Map.Entry<String, Set<String>> me : this.references.entrySet()) {
+                String className = (String) me.getKey();
+                if (invalidated.contains(className)) continue;
+                for (String referencedClassName : me.getValue()) {
+                    if (invalidated.contains(referencedClassName)) {
+                        invalidated.add(className);
+                        added = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        // Forget the invalidated classes, so that the new generation loads them from source.
+        for (String className : invalidated) {
+            this.generations.remove(className);
+            this.sourceDigests.remove(className);
+            this.references.remove(className);
+        }
+
+        this.currentGeneration = new Generation(this, this.currentGeneration.number + 1);
+        this.currentGeneration.setDebuggingInfo(this.debugSource, this.debugLines, this.debugVars);
+
+        return invalidated;
+    }
+
+    /**
+     * @return The generation before <var>generation</var> that generated the named class, or {@code null}
+     */
+    @Nullable private synchronized Generation
+    getPreviousGeneration(String className, Generation generation) {
+        Generation result = (Generation) this.generations.get(className);
+        return result != null && result.number < generation.number ? result : null;
+    }
+
+    /**
+     * Records the given generated classes, their references and the digests of their source files.
+     */
+    private synchronized void
+    generated(Map<String, byte[]> bytecodes, Generation generation) throws IOException {
+
+        Map<String, String> digests = new HashMap<String, String>();
+        for (Map.Entry<String, byte[]> me : bytecodes.entrySet()) {
+            String className          = (String) me.getKey();
+            String sourceResourceName = ClassFile.getSourceResourceName(className);
+
+            String digest = (String) digests.get(sourceResourceName);
+            if (digest == null) {
+                Resource sourceResource = this.sourceFinder.findResource(sourceResourceName);
+                if (sourceResource == null) continue;
+                digests.put(sourceResourceName, (digest = CachingJavaSourceClassLoader.digest(sourceResource)));
+            }
+
+            this.generations.put(className, generation);
+            this.sourceDigests.put(className, digest);
+            this.references.put(className, ReloadingJavaSourceClassLoader.getReferencedClassNames(
+                new ClassFile(new ByteArrayInputStream((byte[]) me.getValue()))
+            ));
+        }
+    }
+
+    /**
+     * @return The names of all classes that the given class file references through its constant pool
+     */
+    private static Set<String>
+    getReferencedClassNames(ClassFile cf) {
+        Set<String> result = new HashSet<String>();
+        for (int i = 1; i < cf.getConstantPoolSize(); ++i) {
+            ClassFile.ConstantPoolInfo cpi = cf.getConstantPoolInfo((short) i);
+            if (cpi instanceof ClassFile.ConstantClassInfo) {
+                String name = ((ClassFile.ConstantClassInfo) cpi).getName(cf);
+                if (name.startsWith("[")) {
+                    ReloadingJavaSourceClassLoader.addClassNames(name, result);
+                } else
+                {
+                    result.add(name.replace('/', '.'));
+                }
+            } else
+            if (cpi instanceof ClassFile.ConstantNameAndTypeInfo) {
+                ReloadingJavaSourceClassLoader.addClassNames(
+                    ((ClassFile.ConstantNameAndTypeInfo) cpi).getDescriptor(cf),
+                    result
+                );
+            }
+        }
+        for (ClassFile.FieldInfo fi : cf.fieldInfos) {
+            ReloadingJavaSourceClassLoader.addClassNames(fi.getDescriptor(cf), result);
+        }
+        for (ClassFile.MethodInfo mi : cf.methodInfos) {
+            ReloadingJavaSourceClassLoader.addClassNames(mi.getDescriptor(), result);
+        }
+        return result;
+    }
+
+    /**
+     * Adds the names of the classes that appear in the given field or method descriptor to <var>result</var>.
+     */
+    private static void
+    addClassNames(String descriptor, Set<String> result) {
+        for (int i = descriptor.indexOf('L'); i != -1; i = descriptor.indexOf('L', i)) {
+            int j = descriptor.indexOf(';', i);
+            if (j == -1) break;
+            result.add(descriptor.substring(i + 1, j).replace('/', '.'));
+            i = j;
+        }
+    }
+
+    /**
+     * One generation of classes; loads classes of previous generations through their generation, and all other
+     * classes that have source files from source.
+     */
+    private static
+    class Generation extends JavaSourceClassLoader {
+
+        private final ReloadingJavaSourceClassLoader rjscl;
+        private final int                            number;
+
+        Generation(ReloadingJavaSourceClassLoader rjscl, int number) {
+            this(rjscl, number, new PreviousGenerations(rjscl));
+        }
+
+        private
+        Generation(ReloadingJavaSourceClassLoader rjscl, int number, PreviousGenerations previousGenerations) {
+            super(previousGenerations, rjscl.sourceFinder, rjscl.optionalCharacterEncoding);
+            this.rjscl                     = rjscl;
+            this.number                    = number;
+            previousGenerations.generation = this;
+        }
+
+        @Override @Nullable protected Map<String /*name*/, byte[] /*bytecode*/>
+        generateBytecodes(String name) throws ClassNotFoundException {
+            Map<String, byte[]> bytecodes = super.generateBytecodes(name);
+            if (bytecodes == null) return null;
+
+            try {
+                this.rjscl.generated(bytecodes, this);
+            } catch (IOException ex) {
+                throw new ClassNotFoundException("Recording generated classes", ex);
+            }
+            return bytecodes;
+        }
+    }
+
+    /**
+     * The parent class loader of a {@link Generation}: Loads classes that were generated by previous generations
+     * through these, refuses to load all other classes that have source files (so that the generation loads them
+     * from source), and delegates all remaining classes to the {@link #parentClassLoader}.
+     */
+    private static
+    class PreviousGenerations extends ClassLoader {
+
+        private final ReloadingJavaSourceClassLoader rjscl;
+        @Nullable private Generation                 generation;
+
+        PreviousGenerations(ReloadingJavaSourceClassLoader rjscl) {
+            super(rjscl.parentClassLoader);
+            this.rjscl = rjscl;
+        }
+
+        @Override protected Class<?>
+        loadClass(@Nullable String className, boolean resolve) throws ClassNotFoundException {
+            assert className != null;
+
+            // Notice: While the generation is being constructed, some "java.lang" classes are loaded.
+            Generation g = this.generation;
+            if (g != null) {
+                Generation pg = this.rjscl.getPreviousGeneration(className, g);
+                if (pg != null) return pg.loadClass(className);
+            }
+
+            if (
+                !className.startsWith("java.")
+                && this.rjscl.sourceFinder.findResource(ClassFile.getSourceResourceName(className)) != null
+            ) throw new ClassNotFoundException(className);
+
+            return super.loadClass(className, resolve);
+        }
+    }
+}
@@ -34,7 +34,9 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import org.codehaus.commons.compiler.CompileException;
@@ -275,6 +277,16 @@ class Scanner {
             || tokenType == TokenType.OPERATOR
         ) tokenValue = tokenValue.intern();
 
+        // Identifiers repeat a lot, esp. in generated code, so let all equal identifiers share one string.
+        if (tokenType == TokenType.IDENTIFIER) {
+            String s = (String) this.identifiers.get(tokenValue);
+            if (s != null) {
+                tokenValue = s;
+            } else {
+                this.identifiers.put(tokenValue, tokenValue);
+            }
+        }
+
         return this.token(tokenType, tokenValue);
     }
 
@@ -787,6 +799,11 @@ class Scanner {
      */
     private short tokenColumnNumber;
 
+    /**
+     * The identifiers that were scanned so far, for sharing.
+     */
+    private final Map<String, String> identifiers = new HashMap<String, String>();
+
     private static final Set<String> JAVA_KEYWORDS = new HashSet<String>(Arrays.asList(
 
         // SUPPRESS CHECKSTYLE WrapMethod:16
@@ -30,11 +30,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.io.StringReader;
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -58,7 +58,6 @@ import org.codehaus.janino.Java.PrimitiveType;
 import org.codehaus.janino.Java.Type;
 import org.codehaus.janino.Java.VariableDeclarator;
 import org.codehaus.janino.Parser.ClassDeclarationContext;
-import org.codehaus.janino.util.Traverser;
 
 /**
  * An implementation of {@link IScriptEvaluator} that utilizes the JANINO Java compiler.
@@ -97,6 +96,10 @@ class ScriptEvaluator extends ClassBodyEvaluator implements IScriptEvaluator {
     @Nullable private Class<?>[][] optionalParameterTypes;
     @Nullable private Class<?>[][] optionalThrownExceptions;
 
+    @Nullable private String[]   optionalBoundParameterNames;
+    @Nullable private Class<?>[] optionalBoundParameterTypes;
+    @Nullable private Object[]   optionalBoundParameterValues;
+
     @Nullable private Method[] result; // null=uncooked
 
     /**
@@ -457,6 +460,65 @@ class ScriptEvaluator extends ClassBodyEvaluator implements IScriptEvaluator {
     @Override public void
     setThrownExceptions(Class<?>[][] thrownExceptions) { this.optionalThrownExceptions = thrownExceptions.clone(); }
 
+    /**
+     * Binds parameters to values that are fixed at cook time, as opposed to the "normal" parameters (see {@link
+     * #setParameters(String[], Class[])}), which are passed each time the script is evaluated.
+     * <p>
+     *   Bound parameters apply to all scripts that are cooked; if a bound parameter has the same name as a normal
+     *   parameter, then the normal parameter is removed from the generated method's signature, i.e. it must
+     *   <em>not</em> be passed to {@link #evaluate(int, Object[])}.
+     * </p>
+     * <p>
+     *   A bound parameter of primitive type or of type {@link String} (with a non-{@code null} value) is a constant
+     *   variable (JLS7 4.12.4), and is thus subject to constant folding: Expressions that depend only on constants
+     *   are evaluated at compile time, and IF statements, conditional expressions, and conditional-and and
+     *   conditional-or operations with constant conditions generate code only for the "live" branch. This allows
+     *   for compiling a method that is specialized for one particular set of bound values, e.g. thresholds or feature
+     *   flags.
+     * </p>
+     * <p>
+     *   Bound parameters of other types, e.g. lookup tables, are not constant; they are stored in static fields of
+     *   the generated class.
+     * </p>
+     *
+     * @param values                    The values of the bound parameters; values of primitive parameter types must
+     *                                  be wrapper objects of the respective type, e.g. an {@link Integer} for an
+     *                                  {@code int} parameter
+     * @throws IllegalArgumentException The array lengths do not match, or a value is not assignable to its parameter
+     *                                  type
+     */
+    public void
+    setBoundParameters(String[] parameterNames, Class<?>[] parameterTypes, Object[] values) {
+
+        if (parameterTypes.length != parameterNames.length || values.length != parameterNames.length) {
+            throw new IllegalArgumentException("Bound parameter count");
+        }
+
+        for (int i = 0; i < parameterNames.length; ++i) {
+            Class<?> type  = parameterTypes[i];
+            Object   value = values[i];
+            if (
+                type.isPrimitive()
+                ? value == null || value.getClass() != ScriptEvaluator.wrapperType(type)
+                : value != null && !type.isInstance(value)
+            ) {
+                throw new IllegalArgumentException(
+                    "Value \""
+                    + value
+                    + "\" of bound parameter \""
+                    + parameterNames[i]
+                    + "\" is not assignable to \""
+                    + type
+                    + "\""
+                );
+            }
+        }
+
+        this.optionalBoundParameterNames  = parameterNames.clone();
+        this.optionalBoundParameterTypes  = parameterTypes.clone();
+        this.optionalBoundParameterValues = values.clone();
+    }
+
     /**
      * Like {@link #cook(Scanner)}, but cooks a <em>set</em> of scripts into one class. Notice that if <em>any</em> of
      * the scripts causes trouble, the entire compilation will fail. If you need to report <em>which</em> of the
@@ -495,12 +557,27 @@ class ScriptEvaluator extends ClassBodyEvaluator implements IScriptEvaluator {
     public final void
     cook(Parser[] parsers) throws CompileException, IOException {
 
+        // Charge the parsing to "PARSE"; the compilation enters its own phases.
+        this.beginCompilation(parsers.length == 0 ? null : parsers[0].getScanner().getFileName());
+        CompilationMetrics.enter(CompilationMetrics.Phase.PARSE);
+        try {
+            this.cook2(parsers);
+        } finally {
+            CompilationMetrics.leave();
+            this.endCompilation();
+        }
+    }
+
+    private void
+    cook2(Parser[] parsers) throws CompileException, IOException {
+
         final Class<?>[]   orts = this.optionalReturnTypes;
         final String[][]   opns = this.optionalParameterNames;
         final Class<?>[][] opts = this.optionalParameterTypes;
         final boolean[]    osm  = this.optionalStaticMethod;
         final Class<?>[][] otes = this.optionalThrownExceptions;
         final String[]     omns = this.optionalMethodNames;
+        final String[]     bpns = this.optionalBoundParameterNames;
 
         // The "dimension" of this ScriptEvaluator, i.e. how many scripts are cooked at the same
         // time.
@@ -536,17 +613,14 @@ class ScriptEvaluator extends ClassBodyEvaluator implements IScriptEvaluator {
         final Java.AbstractClassDeclaration
         cd = this.addPackageMemberClassDeclaration(parsers[0].location(), compilationUnit);
 
+        // Declare the bound parameters as static fields.
+        if (bpns != null) this.addBoundParameterFields(parsers[0].location(), cd);
+
         // Determine method names.
-        String[] methodNames;
-        if (omns == null) {
-            methodNames = new String[count];
-            for (int i = 0; i < count; ++i) methodNames[i] = "eval" + i;
-        } else
-        {
-            methodNames = omns;
-        }
+        String[] methodNames = this.getMethodNames(count);
 
         // Create methods with one block each.
+        Class<?>[][] methodParameterTypes = new Class[count][];
         for (int i = 0; i < count; ++i) {
             Parser parser = parsers[i];
 
@@ -570,6 +644,17 @@ class ScriptEvaluator extends ClassBodyEvaluator implements IScriptEvaluator {
             Class<?>[] parameterTypes   = opts == null ? new Class[0] : opts[i];
             Class<?>[] thrownExceptions = otes == null ? new Class[0] : otes[i];
 
+            // Bound parameters are not passed to the method.
+            if (bpns != null) {
+                List<String> pns = new ArrayList<String>();
+                for (String pn : parameterNames) {
+                    if (ScriptEvaluator.indexOf(bpns, pn) == -1) pns.add(pn);
+                }
+                parameterTypes = this.getUnboundParameterTypes(parameterNames, parameterTypes);
+                parameterNames = (String[]) pns.toArray(new String[pns.size()]);
+            }
+            methodParameterTypes[i] = parameterTypes;
+
             // If the method is non-static, assume that it overrides a method in a supertype.
             Location loc = parser.location();
             cd.addDeclaredMethod(this.makeMethodDeclaration(
@@ -593,18 +678,114 @@ class ScriptEvaluator extends ClassBodyEvaluator implements IScriptEvaluator {
             }
         }
 
+        // Only check the compilation unit iff "check()"ing.
+        if (this.isCheckOnly()) {
+            this.checkCompilationUnit(compilationUnit);
+            return;
+        }
+
         // Compile and load the compilation unit.
         Class<?> c = this.compileToClass(compilationUnit);
 
+        // Initialize the fields of the non-constant bound parameters.
+        if (bpns != null) this.initializeBoundParameterFields(c);
+
         // Find the script methods by name.
+        this.result = ScriptEvaluator.findMethods(c, methodNames, methodParameterTypes);
+    }
+
+    @Override protected void
+    appendArchiveKey(StringBuilder sb) {
+        super.appendArchiveKey(sb);
+        SimpleCompiler.appendArchiveKeyElement(sb, this.optionalOverrideMethod);
+        SimpleCompiler.appendArchiveKeyElement(sb, this.optionalStaticMethod);
+        SimpleCompiler.appendArchiveKeyElement(sb, this.optionalReturnTypes);
+        SimpleCompiler.appendArchiveKeyElement(sb, this.getDefaultReturnType());
+        SimpleCompiler.appendArchiveKeyElement(sb, this.optionalMethodNames);
+        SimpleCompiler.appendArchiveKeyElement(sb, this.optionalParameterNames);
+        SimpleCompiler.appendArchiveKeyElement(sb, this.optionalParameterTypes);
+        SimpleCompiler.appendArchiveKeyElement(sb, this.optionalThrownExceptions);
+
+        // Only the values of the constant bound parameters go into the bytecode.
+        String[]   bpns = this.optionalBoundParameterNames;
+        Class<?>[] bpts = this.optionalBoundParameterTypes;
+        Object[]   bpvs = this.optionalBoundParameterValues;
+        if (bpns != null && bpts != null && bpvs != null) {
+            for (int i = 0; i < bpns.length; ++i) {
+                SimpleCompiler.appendArchiveKeyElement(sb, bpns[i]);
+                SimpleCompiler.appendArchiveKeyElement(sb, bpts[i]);
+                SimpleCompiler.appendArchiveKeyElement(sb, (
+                    ScriptEvaluator.optionalConstant(Location.NOWHERE, bpts[i], bpvs[i]) != null
+                    ? bpvs[i]
+                    : null
+                ));
+            }
+        }
+    }
+
+    @Override protected void
+    loadArchived(ClassLoader classLoader, int count) {
+
+        Class<?> c = this.loadGeneratedClass(classLoader);
+
+        if (this.optionalBoundParameterNames != null) this.initializeBoundParameterFields(c);
+
+        final String[][]   opns = this.optionalParameterNames;
+        final Class<?>[][] opts = this.optionalParameterTypes;
+
+        Class<?>[][] methodParameterTypes = new Class[count][];
+        for (int i = 0; i < count; ++i) {
+            methodParameterTypes[i] = this.getUnboundParameterTypes(
+                opns == null ? new String[0] : opns[i],
+                opts == null ? new Class[0] : opts[i]
+            );
+        }
+
+        this.result = ScriptEvaluator.findMethods(c, this.getMethodNames(count), methodParameterTypes);
+    }
+
+    /**
+     * @return The configured method names, or "eval0", "eval1", ... iff none are configured
+     */
+    private String[]
+    getMethodNames(int count) {
+
+        String[] omns = this.optionalMethodNames;
+        if (omns != null) return omns;
+
+        String[] methodNames = new String[count];
+        for (int i = 0; i < count; ++i) methodNames[i] = "eval" + i;
+        return methodNames;
+    }
+
+    /**
+     * @return The given <var>parameterTypes</var>, less those of the bound parameters
+     */
+    private Class<?>[]
+    getUnboundParameterTypes(String[] parameterNames, Class<?>[] parameterTypes) {
+
+        String[] bpns = this.optionalBoundParameterNames;
+        if (bpns == null) return parameterTypes;
+
+        List<Class<?>> pts = new ArrayList<Class<?>>();
+        for (int j = 0; j < parameterNames.length && j < parameterTypes.length; ++j) {
+            if (ScriptEvaluator.indexOf(bpns, parameterNames[j]) == -1) pts.add(parameterTypes[j]);
+        }
+        return (Class[]) pts.toArray(new Class[pts.size()]);
+    }
+
+    /**
+     * @return The methods of the given class with the given names and parameter types
+     */
+    private static Method[]
+    findMethods(Class<?> c, String[] methodNames, Class<?>[][] methodParameterTypes) {
+
+        int      count   = methodNames.length;
         Method[] methods = new Method[count];
         if (count <= 10) {
             for (int i = 0; i < count; ++i) {
                 try {
-                    methods[i] = c.getDeclaredMethod(
-                        methodNames[i],
-                        opts == null ? new Class[0] : opts[i]
-                    );
+                    methods[i] = c.getDeclaredMethod(methodNames[i], methodParameterTypes[i]);
                 } catch (NoSuchMethodException ex) {
                     throw new JaninoRuntimeException((
                         "SNO: Loaded class does not declare method \""
@@ -649,10 +830,7 @@ class ScriptEvaluator extends ClassBodyEvaluator implements IScriptEvaluator {
             Map<MethodWrapper, Method> dms = new HashMap<MethodWrapper, Method>(2 * count);
             for (Method m : ma) dms.put(new MethodWrapper(m.getName(), m.getParameterTypes()), m);
             for (int i = 0; i < count; ++i) {
-                Method m = (Method) dms.get(new MethodWrapper(
-                    methodNames[i],
-                    opts == null ? new Class[0] : opts[i]
-                ));
+                Method m = (Method) dms.get(new MethodWrapper(methodNames[i], methodParameterTypes[i]));
                 if (m == null) {
                     throw new JaninoRuntimeException(
                         "SNO: Loaded class does not declare method \""
@@ -664,7 +842,107 @@ class ScriptEvaluator extends ClassBodyEvaluator implements IScriptEvaluator {
             }
         }
 
-        this.result = methods;
+        return methods;
+    }
+
+    /**
+     * Adds one PRIVATE STATIC field per bound parameter to the given class declaration. Iff the bound parameter is a
+     * constant variable, then the field is FINAL and initialized with the constant value; otherwise it is initialized
+     * through {@link #initializeBoundParameterFields(Class)} after the class was loaded.
+     */
+    private void
+    addBoundParameterFields(Location location, Java.AbstractClassDeclaration cd) {
+
+        String[]   bpns = this.optionalBoundParameterNames;
+        Class<?>[] bpts = this.optionalBoundParameterTypes;
+        Object[]   bpvs = this.optionalBoundParameterValues;
+        assert bpns != null && bpts != null && bpvs != null;
+
+        for (int i = 0; i < bpns.length; ++i) {
+            Java.Rvalue optionalInitializer = ScriptEvaluator.optionalConstant(location, bpts[i], bpvs[i]);
+            cd.addFieldDeclaration(new Java.FieldDeclaration(
+                location,                                                       // location
+                null,                                                           // optionalDocComment
+                new Java.Modifiers(                                             // modifiers
+                    optionalInitializer != null
+                    ? (short) (Mod.PRIVATE | Mod.STATIC | Mod.FINAL)
+                    : (short) (Mod.PRIVATE | Mod.STATIC)
+                ),
+                this.classToType(location, bpts[i]),                            // type
+                new VariableDeclarator[] {                                      // variableDeclarators
+                    new VariableDeclarator(location, bpns[i], 0, optionalInitializer),
+                }
+            ));
+        }
+    }
+
+    /**
+     * Assigns the values of the non-constant bound parameters to their fields in the loaded class.
+     */
+    private void
+    initializeBoundParameterFields(Class<?> c) {
+
+        String[]   bpns = this.optionalBoundParameterNames;
+        Class<?>[] bpts = this.optionalBoundParameterTypes;
+        Object[]   bpvs = this.optionalBoundParameterValues;
+        assert bpns != null && bpts != null && bpvs != null;
+
+        for (int i = 0; i < bpns.length; ++i) {
+            if (bpvs[i] == null || ScriptEvaluator.optionalConstant(Location.NOWHERE, bpts[i], bpvs[i]) != null) {
+                continue;
+            }
+            try {
+                Field f = c.getDeclaredField(bpns[i]);
+                f.setAccessible(true);
+                f.set(null, bpvs[i]);
+            } catch (NoSuchFieldException ex) {
+                throw new JaninoRuntimeException("SNO: Loaded class does not declare field \"" + bpns[i] + "\"", ex);
+            } catch (IllegalAccessException ex) {
+                throw new JaninoRuntimeException(ex.toString(), ex);
+            }
+        }
+    }
+
+    /**
+     * @return A {@link Java.SimpleConstant} that represents the given value, or {@code null} iff a variable of the
+     *         given type and with the given value would not be a constant variable
+     */
+    @Nullable private static Java.Rvalue
+    optionalConstant(Location location, Class<?> type, @Nullable Object value) {
+        if (value == null) return null;
+        if (type == boolean.class) return new Java.SimpleConstant(location, ((Boolean) value).booleanValue());
+        if (type == byte.class)    return new Java.SimpleConstant(location, ((Byte) value).byteValue());
+        if (type == short.class)   return new Java.SimpleConstant(location, ((Short) value).shortValue());
+        if (type == int.class)     return new Java.SimpleConstant(location, ((Integer) value).intValue());
+        if (type == long.class)    return new Java.SimpleConstant(location, ((Long) value).longValue());
+        if (type == float.class)   return new Java.SimpleConstant(location, ((Float) value).floatValue());
+        if (type == double.class)  return new Java.SimpleConstant(location, ((Double) value).doubleValue());
+        if (type == char.class)    return new Java.SimpleConstant(location, ((Character) value).charValue());
+        if (type == String.class)  return new Java.SimpleConstant(location, (String) value);
+        return null;
+    }
+
+    @Nullable private static Class<?>
+    wrapperType(Class<?> primitiveType) {
+        return (
+            primitiveType == boolean.class ? Boolean.class   :
+            primitiveType == byte.class    ? Byte.class      :
+            primitiveType == short.class   ? Short.class     :
+            primitiveType == int.class     ? Integer.class   :
+            primitiveType == long.class    ? Long.class      :
+            primitiveType == float.class   ? Float.class     :
+            primitiveType == double.class  ? Double.class    :
+            primitiveType == char.class    ? Character.class :
+            null
+        );
+    }
+
+    private static int
+    indexOf(String[] strings, String s) {
+        for (int i = 0; i < strings.length; ++i) {
+            if (strings[i].equals(s)) return i;
+        }
+        return -1;
     }
 
     @Override public final void
@@ -684,11 +962,19 @@ class ScriptEvaluator extends ClassBodyEvaluator implements IScriptEvaluator {
      */
     @Override public final void
     cook(@Nullable String[] optionalFileNames, Reader[] readers) throws CompileException, IOException {
-        Scanner[] scanners = new Scanner[readers.length];
-        for (int i = 0; i < readers.length; ++i) {
-            scanners[i] = new Scanner(optionalFileNames == null ? null : optionalFileNames[i], readers[i]);
+
+        Reader[] rs = this.cookFromArchive(optionalFileNames, readers);
+        if (rs == null) return;
+
+        try {
+            Scanner[] scanners = new Scanner[rs.length];
+            for (int i = 0; i < rs.length; ++i) {
+                scanners[i] = new Scanner(optionalFileNames == null ? null : optionalFileNames[i], rs[i]);
+            }
+            this.cook(scanners);
+        } finally {
+            this.clearArchiveKey();
         }
-        this.cook(scanners);
     }
 
     @Override public final void
@@ -1108,10 +1394,11 @@ class ScriptEvaluator extends ClassBodyEvaluator implements IScriptEvaluator {
      *     If any component starts with an upper-case letter, then ambiguous name is assumed to be a type name.
      *   </li>
      *   <li>
-     *     Otherwise, if the first component of the ambiguous name matches the name of a previously defined local
-     *     variable, then the first component of the ambiguous name is assumed to be a local variable name. (Notice
-     *     that this strategy does not consider that the scope of a local variable declaration may end before the end
-     *     of the script.)
+     *     Otherwise, if the first component of the ambiguous name matches the name of a local variable (or a catch
+     *     parameter, a for-each variable, a method parameter, or a field of a local or anonymous class) that is in
+     *     scope, then the first component of the ambiguous name is assumed to be a local variable name. As in Java, a
+     *     local variable is in scope from its declaration to the end of the enclosing block, and a field throughout
+     *     the body of its class; e.g. in "{@code { int a = 3; } return a;}", "a" is a parameter name.
      *   </li>
      *   <li>
      *     Otherwise, the first component of the ambiguous name is assumed to be a parameter name.
@@ -1119,46 +1406,11 @@ class ScriptEvaluator extends ClassBodyEvaluator implements IScriptEvaluator {
      * </ul>
      *
      * @see Scanner#Scanner(String, Reader)
+     * @see Dependencies#analyzeScript(Scanner)
      */
     public static String[]
     guessParameterNames(Scanner scanner) throws CompileException, IOException {
-        Parser parser = new Parser(scanner);
-
-        // Eat optional leading import declarations.
-        while (parser.peek("import")) parser.parseImportDeclaration();
-
-        // Parse the script statements into a block.
-        Java.Block block = new Java.Block(scanner.location());
-        while (!parser.peek(TokenType.END_OF_INPUT)) block.addStatement(parser.parseBlockStatement());
-
-        // Traverse the block for ambiguous names and guess which of them are parameter names.
-        final Set<String> localVariableNames = new HashSet<String>();
-        final Set<String> parameterNames     = new HashSet<String>();
-        new Traverser<RuntimeException>() {
-
-            @Override public void
-            traverseLocalVariableDeclarationStatement(Java.LocalVariableDeclarationStatement lvds) {
-                for (VariableDeclarator vd : lvds.variableDeclarators) localVariableNames.add(vd.name);
-                super.traverseLocalVariableDeclarationStatement(lvds);
-            }
-
-            @Override public void
-            traverseAmbiguousName(Java.AmbiguousName an) {
-
-                // If any of the components starts with an upper-case letter, then the ambiguous
-                // name is most probably a type name, e.g. "System.out" or "java.lang.System.out".
-                for (int i = 0; i < an.identifiers.length; ++i) {
-                    if (Character.isUpperCase(an.identifiers[i].charAt(0))) return;
-                }
-
-                // Is it a local variable's name?
-                if (localVariableNames.contains(an.identifiers[0])) return;
-
-                // It's most probably a parameter name (although it could be a field name as well).
-                parameterNames.add(an.identifiers[0]);
-            }
-        }.visitBlockStatement(block);
-
+        Set<String> parameterNames = Dependencies.analyzeScript(scanner).getFreeVariables();
         return (String[]) parameterNames.toArray(new String[parameterNames.size()]);
     }
 
@@ -0,0 +1,162 @@
+
+/*
+ * Janino - An embedded Java[TM] compiler
+ *
+ * Copyright (c) 2001-2010, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codehaus.janino;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import org.codehaus.commons.compiler.CompileException;
+import org.codehaus.commons.nullanalysis.Nullable;
+
+/**
+ * An immutable and thread-safe template for {@link ScriptEvaluator}s that share the same default imports, base
+ * class, implemented interfaces, return type, parameters and thrown exceptions.
+ * <p>
+ *   The default imports are parsed only once, when the template is constructed, and all scripts are compiled
+ *   against one {@link ClassLoaderIClassLoader}, so the {@link IClass}es of the JRE classes and of the other classes
+ *   that the scripts reference are loaded only once. Consequently, {@link #cook(String)} only pays for scanning,
+ *   parsing and compiling the script itself.
+ * </p>
+ * <p>
+ *   Example:
+ * </p>
+ * <pre>
+ *     ScriptEvaluatorTemplate template = new ScriptEvaluatorTemplate(
+ *         new String[] { "java.util.*" },       // optionalDefaultImports
+ *         null,                                 // optionalExtendedClass
+ *         new Class[0],                         // implementedInterfaces
+ *         int.class,                            // returnType
+ *         new String[] { "a", "b" },            // parameterNames
+ *         new Class[] { int.class, int.class }, // parameterTypes
+ *         new Class[0],                         // thrownExceptions
+ *         null                                  // optionalParentClassLoader
+ *     );
+ *
+ *     // E.g. in multiple threads:
+ *     ScriptEvaluator se = template.cook("return a + b;");
+ *     se.evaluate(new Object[] { 1, 2 });
+ * </pre>
+ *
+ * @see ExpressionEvaluatorTemplate
+ */
+public
+class ScriptEvaluatorTemplate {
+
+    private final Java.CompilationUnit.ImportDeclaration[] defaultImports;
+    @Nullable private final Class<?>                       optionalExtendedClass;
+    private final Class<?>[]                               implementedInterfaces;
+    @Nullable private final Class<?>                       optionalReturnType;
+    private final String[]                                 parameterNames;
+    private final Class<?>[]                               parameterTypes;
+    private final Class<?>[]                               thrownExceptions;
+    private final ClassLoaderIClassLoader                  iClassLoader;
+
+    /**
+     * @param returnType                The return type of the scripts; {@code null} means the "default return type"
+     *                                  of the evaluator, which is {@code void.class} for {@link ScriptEvaluator} and
+     *                                  {@code Object.class} for {@link ExpressionEvaluator}
+     * @param optionalParentClassLoader Loads the classes that the scripts reference, and is the parent of the class
+     *                                  loaders of the generated classes; {@code null} means the current thread's
+     *                                  context class loader
+     * @throws CompileException         One of the default imports is invalid
+     * @see ScriptEvaluator#setDefaultImports(String[])
+     * @see ScriptEvaluator#setExtendedClass(Class)
+     * @see ScriptEvaluator#setImplementedInterfaces(Class[])
+     * @see ScriptEvaluator#setReturnType(Class)
+     * @see ScriptEvaluator#setParameters(String[], Class[])
+     * @see ScriptEvaluator#setThrownExceptions(Class[])
+     */
+    public
+    ScriptEvaluatorTemplate(
+        @Nullable String[]    optionalDefaultImports,
+        @Nullable Class<?>    optionalExtendedClass,
+        Class<?>[]            implementedInterfaces,
+        @Nullable Class<?>    returnType,
+        String[]              parameterNames,
+        Class<?>[]            parameterTypes,
+        Class<?>[]            thrownExceptions,
+        @Nullable ClassLoader optionalParentClassLoader
+    ) throws CompileException {
+        if (parameterNames.length != parameterTypes.length) {
+            throw new IllegalArgumentException("Lengths of \"parameterNames\" and \"parameterTypes\" do not match");
+        }
+
+        this.defaultImports = (
+            optionalDefaultImports == null
+            ? new Java.CompilationUnit.ImportDeclaration[0]
+            : ClassBodyEvaluator.parseImportDeclarations(optionalDefaultImports)
+        );
+        this.optionalExtendedClass = optionalExtendedClass;
+        this.implementedInterfaces = (Class[]) implementedInterfaces.clone();
+        this.optionalReturnType    = returnType;
+        this.parameterNames        = (String[]) parameterNames.clone();
+        this.parameterTypes        = (Class[]) parameterTypes.clone();
+        this.thrownExceptions      = (Class[]) thrownExceptions.clone();
+        this.iClassLoader          = new ClassLoaderIClassLoader(
+            optionalParentClassLoader != null
+            ? optionalParentClassLoader
+            : Thread.currentThread().getContextClassLoader()
+        );
+    }
+
+    /**
+     * Creates a new {@link ScriptEvaluator} from this template, and cooks the given script with it.
+     */
+    public ScriptEvaluator
+    cook(String script) throws CompileException {
+        try {
+            return this.cook(null, new StringReader(script));
+        } catch (IOException ioe) {
+            throw new JaninoRuntimeException("SNO: IOException despite StringReader", ioe);
+        }
+    }
+
+    /**
+     * Creates a new {@link ScriptEvaluator} from this template, and cooks the script read from the given {@link
+     * Reader} with it.
+     */
+    public ScriptEvaluator
+    cook(@Nullable String optionalFileName, Reader reader) throws CompileException, IOException {
+        ScriptEvaluator se = this.newScriptEvaluator();
+        se.setSharedIClassLoader(this.iClassLoader);
+        se.setDefaultImportDeclarations(this.defaultImports);
+        se.setExtendedClass(this.optionalExtendedClass);
+        se.setImplementedInterfaces(this.implementedInterfaces);
+        if (this.optionalReturnType != null) se.setReturnTypes(new Class[] { this.optionalReturnType });
+        se.setParameters(this.parameterNames, this.parameterTypes);
+        se.setThrownExceptions(this.thrownExceptions);
+        se.cook(optionalFileName, reader);
+        return se;
+    }
+
+    /**
+     * @return A new, unconfigured {@link ScriptEvaluator}
+     */
+    protected ScriptEvaluator
+    newScriptEvaluator() { return new ScriptEvaluator(); }
+}
@@ -26,15 +26,27 @@
 
 package org.codehaus.janino;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.net.URL;
 import java.security.AccessController;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.codehaus.commons.compiler.CompileException;
@@ -48,6 +60,7 @@ import org.codehaus.commons.nullanalysis.Nullable;
 import org.codehaus.janino.Java.Type;
 import org.codehaus.janino.Visitor.AtomVisitor;
 import org.codehaus.janino.Visitor.TypeVisitor;
+import org.codehaus.janino.util.BytecodeArchive;
 import org.codehaus.janino.util.ClassFile;
 
 /**
@@ -61,13 +74,44 @@ class SimpleCompiler extends Cookable implements ISimpleCompiler {
 
     private ClassLoader parentClassLoader = Thread.currentThread().getContextClassLoader();
 
+    // A "java.lang.invoke.MethodHandles.Lookup"; typed as Object because that class exists only since Java 7.
+    @Nullable private Object optionalDefinitionLookup;
+
     // Set while "cook()"ing.
     @Nullable private ClassLoaderIClassLoader classLoaderIClassLoader;
 
+    // Set while "check()"ing.
+    private boolean checkOnly;
+
+    // Iff non-null, then this IClassLoader is used instead of a new one for each cook.
+    @Nullable private ClassLoaderIClassLoader optionalSharedIClassLoader;
+
+    @Nullable private BytecodeArchive optionalBytecodeArchive;
+
+    // Set while cooking a source that was not found in the archive; the generated classes are stored under this key.
+    @Nullable private String pendingArchiveKey;
+
     @Nullable private ClassLoader    result;
     @Nullable private ErrorHandler   optionalCompileErrorHandler;
     @Nullable private WarningHandler optionalWarningHandler;
 
+    @Nullable private CompilationListener optionalCompilationListener;
+
+    private boolean tickChecks;
+    private boolean allocationChecks;
+
+    private boolean            commonSubexpressionElimination;
+    private Collection<String> pureMethods = UnitCompiler.DEFAULT_PURE_METHODS;
+    private boolean            profilingCounters;
+    private boolean            profilingTimers;
+    private boolean            coverage;
+
+    // The state of the current compilation; see "beginCompilation()".
+    private int                          compilationDepth;
+    @Nullable private CompilationMetrics compilationMetrics;
+    @Nullable private Object             cookEvent;
+    @Nullable private String             cookSourceName;
+
     private boolean debugSource = Boolean.getBoolean(ICookable.SYSTEM_PROPERTY_SOURCE_DEBUGGING_ENABLE);
     private boolean debugLines  = this.debugSource;
     private boolean debugVars   = this.debugSource;
@@ -184,6 +228,88 @@ class SimpleCompiler extends Cookable implements ISimpleCompiler {
         );
     }
 
+    /**
+     * Configures that the generated classes are defined through the given {@code
+     * java.lang.invoke.MethodHandles.Lookup}, instead of through a new {@link ByteArrayClassLoader} for each cook.
+     * <p>
+     *   This means that the generated classes go into the class loader and the runtime package of the lookup class,
+     *   and can thus access package-private members of the "host" classes. Consequently, all classes declared by the
+     *   compilation unit must reside in the package of the lookup class, and the lookup must have {@code PACKAGE}
+     *   access. Also, the class loader of the lookup class is used to load referenced classes, i.e. any {@link
+     *   #setParentClassLoader(ClassLoader) parent class loader} is ignored.
+     * </p>
+     * <p>
+     *   Notice that classes defined this way cannot be unloaded separately from the lookup class's loader, and that
+     *   the same class name cannot be cooked twice into the same package.
+     * </p>
+     * <p>
+     *   Requires Java 9 or later, because {@code Lookup.defineClass(byte[])} exists only since then.
+     * </p>
+     *
+     * @param optionalLookup A {@code java.lang.invoke.MethodHandles.Lookup}, or {@code null} to restore the default
+     *                       behavior
+     * @throws IllegalArgumentException      <var>optionalLookup</var> is not a {@code Lookup}, or its lookup class
+     *                                       was loaded by the bootstrap class loader
+     * @throws UnsupportedOperationException The running JVM does not support {@code Lookup.defineClass(byte[])}
+     */
+    public void
+    setDefinitionLookup(@Nullable Object optionalLookup) {
+
+        if (optionalLookup == null) {
+            this.optionalDefinitionLookup = null;
+            return;
+        }
+
+        if (SimpleCompiler.LOOKUP__DEFINE_CLASS == null) {
+            throw new UnsupportedOperationException("\"Lookup.defineClass(byte[])\" requires Java 9 or later");
+        }
+        if (!SimpleCompiler.LOOKUP__DEFINE_CLASS.getDeclaringClass().isInstance(optionalLookup)) {
+            throw new IllegalArgumentException(
+                "\"" + optionalLookup.getClass().getName() + "\" is not a \"java.lang.invoke.MethodHandles.Lookup\""
+            );
+        }
+        if (SimpleCompiler.lookupClass(optionalLookup).getClassLoader() == null) {
+            throw new IllegalArgumentException("Lookup class must not be loaded by the bootstrap class loader");
+        }
+
+        this.optionalDefinitionLookup = optionalLookup;
+    }
+
+    /**
+     * Configures that the given {@link ClassLoaderIClassLoader}, and the {@link IClass}es that it has already
+     * loaded, are used for compilation, instead of a new one for each cook. The parent class loader is set to the
+     * {@link ClassLoaderIClassLoader}'s class loader.
+     *
+     * @see ScriptEvaluatorTemplate
+     */
+    void
+    setSharedIClassLoader(ClassLoaderIClassLoader sharedIClassLoader) {
+        this.optionalSharedIClassLoader = sharedIClassLoader;
+        this.setParentClassLoader(sharedIClassLoader.getClassLoader());
+    }
+
+    /**
+     * Configures that the classes generated by {@link #cook(String, Reader)} are stored in the given {@link
+     * BytecodeArchive}, and that, iff the archive already has classes for the same source code and the same
+     * settings, these are loaded instead of scanning, parsing and compiling the source code.
+     * <p>
+     *   The archive key is a digest of the source code, the file name, the JANINO build (version, location and
+     *   modification time of the JAR file or classes directory), and all settings that affect the generated bytecode.
+     *   Iff the JANINO build cannot be identified, then the archive is not used. The key does <em>not</em> reflect
+     *   the classes that the source code references; see {@link BytecodeArchive}.
+     * </p>
+     * <p>
+     *   The archive is not used when {@link #check(String, Reader) check}ing, and when a {@link
+     *   #setDefinitionLookup(Object) definition lookup} is configured.
+     * </p>
+     *
+     * @param optionalBytecodeArchive {@code null} to restore the default behavior
+     */
+    public void
+    setBytecodeArchive(@Nullable BytecodeArchive optionalBytecodeArchive) {
+        this.optionalBytecodeArchive = optionalBytecodeArchive;
+    }
+
     @Override public void
     setDebuggingInformation(boolean debugSource, boolean debugLines, boolean debugVars) {
         this.debugSource = debugSource;
@@ -197,7 +323,15 @@ class SimpleCompiler extends Cookable implements ISimpleCompiler {
      */
     @Override public final void
     cook(@Nullable String optionalFileName, Reader r) throws CompileException, IOException {
-        this.cook(new Scanner(optionalFileName, r));
+
+        Reader[] readers = this.cookFromArchive(new String[] { optionalFileName }, new Reader[] { r });
+        if (readers == null) return;
+
+        try {
+            this.cook(new Scanner(optionalFileName, readers[0]));
+        } finally {
+            this.clearArchiveKey();
+        }
     }
 
     /**
@@ -206,7 +340,21 @@ class SimpleCompiler extends Cookable implements ISimpleCompiler {
      */
     public void
     cook(Scanner scanner) throws CompileException, IOException {
-        this.compileToClassLoader(new Parser(scanner).parseCompilationUnit());
+
+        this.beginCompilation(scanner.getFileName());
+        try {
+            Java.CompilationUnit compilationUnit;
+            CompilationMetrics.enter(CompilationMetrics.Phase.PARSE);
+            try {
+                compilationUnit = new Parser(scanner).parseCompilationUnit();
+            } finally {
+                CompilationMetrics.leave();
+            }
+
+            this.cook(compilationUnit);
+        } finally {
+            this.endCompilation();
+        }
     }
 
     /**
@@ -217,8 +365,59 @@ class SimpleCompiler extends Cookable implements ISimpleCompiler {
     public void
     cook(Java.CompilationUnit compilationUnit) throws CompileException {
 
-        // Compile the classes and load them.
-        this.compileToClassLoader(compilationUnit);
+        this.beginCompilation(compilationUnit.optionalFileName);
+        try {
+
+            // Only check the compilation unit iff "check()"ing.
+            if (this.isCheckOnly()) {
+                this.checkCompilationUnit(compilationUnit);
+                return;
+            }
+
+            // Compile the classes and load them.
+            this.compileToClassLoader(compilationUnit);
+        } finally {
+            this.endCompilation();
+        }
+    }
+
+    /**
+     * Like {@link #cook(String, Reader)}, but only checks the input for compile errors: Scanning, parsing and the
+     * semantic analysis (name, type and overload resolution) take place as usual, and compile errors are reported
+     * through the {@link #setCompileErrorHandler(ErrorHandler) compile error handler}, or thrown. However no class
+     * files are completed or serialized, and no classes are defined, which makes checking significantly cheaper than
+     * cooking, e.g. for validating user input.
+     * <p>
+     *   Checking does not change the state of this object, i.e. it remains uncooked if it was uncooked before, and
+     *   it remains cooked if it was cooked before.
+     * </p>
+     */
+    public final void
+    check(@Nullable String optionalFileName, Reader r) throws CompileException, IOException {
+        this.checkOnly = true;
+        try {
+            this.cook(optionalFileName, r);
+        } finally {
+            this.checkOnly = false;
+        }
+    }
+
+    /**
+     * @see #check(String, Reader)
+     */
+    public final void
+    check(Reader r) throws CompileException, IOException { this.check(null, r); }
+
+    /**
+     * @see #check(String, Reader)
+     */
+    public final void
+    check(String s) throws CompileException {
+        try {
+            this.check(null, new StringReader(s));
+        } catch (IOException ioe) {
+            throw new JaninoRuntimeException("SNO: StringReader throws IOException", ioe);
+        }
     }
 
     @Override public ClassLoader
@@ -261,6 +460,141 @@ class SimpleCompiler extends Cookable implements ISimpleCompiler {
         this.optionalWarningHandler = optionalWarningHandler;
     }
 
+    /**
+     * Installs a listener that is notified with the {@link CompilationMetrics} of each compilation (but not of cooks
+     * that load their classes from the {@link #setBytecodeArchive(BytecodeArchive) bytecode archive}). While a
+     * listener is installed, the generated classes are defined eagerly (instead of on the first request), so that the
+     * {@link CompilationMetrics.Phase#CLASS_DEFINITION} can be measured.
+     *
+     * @param optionalCompilationListener {@code null} to restore the default behavior, which is to not measure at all
+     */
+    public void
+    setCompilationListener(@Nullable CompilationListener optionalCompilationListener) {
+        this.optionalCompilationListener = optionalCompilationListener;
+    }
+
+    /**
+     * Configures the generated code to check the {@link ExecutionBudget} of the current thread, so that runaway code
+     * (e.g. an endless loop or an endless recursion) can be stopped cooperatively, with an {@link
+     * ExecutionBudgetExceededError}.
+     * <p>
+     *   The checked code needs class {@link ExecutionBudget} at runtime, so that class must be loadable through the
+     *   {@link #setParentClassLoader(ClassLoader) parent class loader}.
+     * </p>
+     *
+     * @param tickChecks       Whether to consume one tick on each method entry and each loop iteration
+     * @param allocationChecks Whether to charge the estimated size of each object and array that is created with
+     *                         "{@code new}"
+     * @see                    UnitCompiler#setExecutionBudgetChecks(boolean, boolean)
+     */
+    public void
+    setExecutionBudgetChecks(boolean tickChecks, boolean allocationChecks) {
+        this.tickChecks       = tickChecks;
+        this.allocationChecks = allocationChecks;
+    }
+
+    /**
+     * Enables or disables the elimination of common subexpressions: A side-effect-free subexpression that occurs more
+     * than once within a method, e.g. {@code Math.sqrt(x * x + y * y)}, is computed only once. This is useful when
+     * the same formula terms are repeated in many places of a method, or of a script.
+     *
+     * @see UnitCompiler#setCommonSubexpressionElimination(boolean)
+     * @see #setPureMethods(Collection)
+     */
+    public void
+    setCommonSubexpressionElimination(boolean value) { this.commonSubexpressionElimination = value; }
+
+    /**
+     * Declares which methods are side-effect-free; defaults to {@link UnitCompiler#DEFAULT_PURE_METHODS}.
+     *
+     * @see UnitCompiler#setPureMethods(Collection)
+     */
+    public void
+    setPureMethods(Collection<String> pureMethods) { this.pureMethods = new ArrayList<String>(pureMethods); }
+
+    /**
+     * Instruments the generated code such that the {@link Profiler} counts the invocations of each method and the
+     * executions of each basic block, and optionally sums up the time spent in each method. The results are available
+     * through {@link Profiler#getMXBean()}, keyed by the "file name" that was passed to {@code cook()}, and by source
+     * line.
+     * <p>
+     *   When profiling is disabled (which is the default), then no instrumentation is generated at all.
+     * </p>
+     * <p>
+     *   The instrumented code needs class {@link Profiler} at runtime, so that class must be loadable through the
+     *   {@link #setParentClassLoader(ClassLoader) parent class loader}.
+     * </p>
+     *
+     * @param counters Whether to count method invocations and basic block executions
+     * @param timers   Whether to measure the time spent in each method, with {@link System#nanoTime()}; implies
+     *                 <var>counters</var>
+     * @see            UnitCompiler#setProfiling(boolean, boolean)
+     */
+    public void
+    setProfiling(boolean counters, boolean timers) {
+        this.profilingCounters = counters;
+        this.profilingTimers   = timers;
+    }
+
+    /**
+     * Instruments the generated code such that it records which source lines are executed. The results are available
+     * through {@link Coverage#snapshot(String)}, keyed by the "file name" that was passed to {@code cook()}.
+     * <p>
+     *   When coverage mode is disabled (which is the default), then no instrumentation is generated at all.
+     * </p>
+     * <p>
+     *   The instrumented code needs class {@link Coverage} at runtime, so that class must be loadable through the
+     *   {@link #setParentClassLoader(ClassLoader) parent class loader}.
+     * </p>
+     *
+     * @see UnitCompiler#setCoverage(boolean)
+     */
+    public void
+    setCoverage(boolean value) { this.coverage = value; }
+
+    /**
+     * Must be invoked when a compilation begins, and must be followed by exactly one {@link #endCompilation()}. Nested
+     * invocations are ignored.
+     */
+    void
+    beginCompilation(@Nullable String optionalSourceName) {
+
+        if (this.compilationDepth++ > 0) return;
+
+        // Notice: The first "JfrEvents.recorder()" during a flight recording compiles the event classes, which must
+        // happen before the metrics are opened.
+        JfrEvents.Recorder recorder = JfrEvents.recorder();
+        if (recorder != null) {
+            this.cookEvent      = recorder.beginCook();
+            this.cookSourceName = optionalSourceName;
+        }
+
+        this.compilationMetrics = CompilationMetrics.open(this.optionalCompilationListener);
+    }
+
+    /**
+     * @see #beginCompilation(String)
+     */
+    void
+    endCompilation() {
+
+        if (--this.compilationDepth > 0) return;
+
+        CompilationMetrics metrics = this.compilationMetrics;
+        if (metrics != null) {
+            this.compilationMetrics = null;
+            metrics.close();
+        }
+
+        JfrEvents.Recorder recorder = JfrEvents.recorder();
+        Object             event    = this.cookEvent;
+        if (recorder != null && event != null) {
+            this.cookEvent = null;
+            recorder.endCook(event, this.getClass().getName(), this.cookSourceName);
+        }
+        this.cookSourceName = null;
+    }
+
     /**
      * Wraps a reflection {@link Class} in a {@link Java.Type} object.
      */
@@ -390,6 +724,181 @@ class SimpleCompiler extends Cookable implements ISimpleCompiler {
         return types;
     }
 
+    /**
+     * @return Whether this object is currently {@link #check(String, Reader) check}ing, as opposed to cooking; iff
+     *         {@code true}, then derived classes must pass their compilation unit to {@link
+     *         #checkCompilationUnit(Java.CompilationUnit)} instead of compiling and loading it
+     */
+    protected final boolean
+    isCheckOnly() { return this.checkOnly; }
+
+    /**
+     * Checks the given compilation unit for compile errors, but does not generate class files or load classes.
+     *
+     * @see UnitCompiler#checkUnit()
+     */
+    protected final void
+    checkCompilationUnit(Java.CompilationUnit compilationUnit) throws CompileException {
+
+        assert this.classLoaderIClassLoader == null;
+
+        final Object lookup = this.optionalDefinitionLookup;
+
+        IClassLoader icl = (this.classLoaderIClassLoader = (
+            this.optionalSharedIClassLoader != null
+            ? this.optionalSharedIClassLoader
+            : new ClassLoaderIClassLoader(
+                lookup != null
+                ? SimpleCompiler.lookupClass(lookup).getClassLoader()
+                : this.parentClassLoader
+            )
+        ));
+        try {
+            UnitCompiler unitCompiler = new UnitCompiler(compilationUnit, icl);
+            unitCompiler.setCompileErrorHandler(this.optionalCompileErrorHandler);
+            unitCompiler.setWarningHandler(this.optionalWarningHandler);
+            unitCompiler.checkUnit();
+        } finally {
+            this.classLoaderIClassLoader = null;
+        }
+    }
+
+    /**
+     * Iff a {@link #setBytecodeArchive(BytecodeArchive) bytecode archive} is configured, then reads the given sources
+     * and looks them up in the archive. Iff found, then loads the archived classes and notifies {@link
+     * #loadArchived(ClassLoader, int)}; otherwise memorizes the key under which {@link
+     * #compileToClassLoader(Java.CompilationUnit)} will store the generated classes, until {@link #clearArchiveKey()}.
+     *
+     * @return {@code null} iff the classes were loaded from the archive, otherwise the readers to cook from instead
+     *         of the given <var>readers</var>
+     */
+    @Nullable final Reader[]
+    cookFromArchive(@Nullable String[] optionalFileNames, Reader[] readers) throws IOException {
+
+        this.pendingArchiveKey = null;
+
+        BytecodeArchive archive = this.optionalBytecodeArchive;
+        if (archive == null || this.checkOnly || this.optionalDefinitionLookup != null) return readers;
+
+        // Profiling and coverage instrumentation refers to probes that exist only in this JVM, so it must not be
+        // archived.
+        if (this.profilingCounters || this.profilingTimers || this.coverage) return readers;
+
+        // The bytecode that an older JANINO generated must not be loaded after an upgrade.
+        String buildStamp = SimpleCompiler.getBuildStamp();
+        if (buildStamp == null) return readers;
+
+        // Compute the key from the sources and all settings that affect the generated bytecode.
+        String[]      sources = new String[readers.length];
+        StringBuilder sb      = new StringBuilder();
+        SimpleCompiler.appendArchiveKeyElement(sb, this.getClass());
+        SimpleCompiler.appendArchiveKeyElement(sb, buildStamp);
+        SimpleCompiler.appendArchiveKeyElement(sb, optionalFileNames);
+        for (int i = 0; i < readers.length; ++i) {
+            sources[i] = Cookable.readString(readers[i]);
+            SimpleCompiler.appendArchiveKeyElement(sb, sources[i]);
+        }
+        this.appendArchiveKey(sb);
+        String key = SimpleCompiler.digest(sb.toString());
+
+        Map<String, byte[]> classes;
+        try {
+            classes = archive.get(key);
+        } catch (IOException ioe) {
+            SimpleCompiler.LOGGER.log(Level.WARNING, "Reading bytecode archive", ioe);
+            classes = null;
+        }
+
+        if (classes != null) {
+            ClassLoader cl = this.newByteArrayClassLoader(classes);
+            this.result = cl;
+            this.loadArchived(cl, readers.length);
+            return null;
+        }
+
+        this.pendingArchiveKey = key;
+
+        Reader[] result = new Reader[sources.length];
+        for (int i = 0; i < sources.length; ++i) result[i] = new StringReader(sources[i]);
+        return result;
+    }
+
+    /**
+     * Must be invoked after cooking the readers returned by {@link #cookFromArchive(String[], Reader[])}, whether
+     * successfully or not.
+     */
+    final void
+    clearArchiveKey() { this.pendingArchiveKey = null; }
+
+    /**
+     * Appends to the given archive key all settings of this object that affect the generated bytecode. Derived
+     * classes that add such settings must override this method, and invoke the overridden method.
+     *
+     * @see #appendArchiveKeyElement(StringBuilder, Object)
+     * @see #setBytecodeArchive(BytecodeArchive)
+     */
+    protected void
+    appendArchiveKey(StringBuilder sb) {
+        SimpleCompiler.appendArchiveKeyElement(sb, new boolean[] { this.debugSource, this.debugLines, this.debugVars });
+        SimpleCompiler.appendArchiveKeyElement(sb, new boolean[] { this.tickChecks, this.allocationChecks });
+        SimpleCompiler.appendArchiveKeyElement(sb, new boolean[] { this.commonSubexpressionElimination });
+        if (this.commonSubexpressionElimination) SimpleCompiler.appendArchiveKeyElement(sb, this.pureMethods.toArray());
+    }
+
+    /**
+     * Appends an unambiguous representation of the given object to the given archive key. Classes are represented by
+     * their names, and arrays by their elements.
+     */
+    protected static void
+    appendArchiveKeyElement(StringBuilder sb, @Nullable Object o) {
+
+        if (o == null) {
+            sb.append('-');
+            return;
+        }
+
+        if (o instanceof Object[]) {
+            sb.append('[');
+            for (Object e : (Object[]) o) SimpleCompiler.appendArchiveKeyElement(sb, e);
+            sb.append(']');
+            return;
+        }
+
+        if (o instanceof boolean[]) {
+            sb.append(Arrays.toString((boolean[]) o));
+            return;
+        }
+
+        String s = o instanceof Class ? ((Class<?>) o).getName() : o.toString();
+        sb.append(s.length()).append(':').append(s);
+    }
+
+    /**
+     * Is invoked after the classes were loaded from the {@link #setBytecodeArchive(BytecodeArchive) bytecode
+     * archive} instead of being compiled, so that derived classes can complete their state as if they had cooked
+     * the sources.
+     *
+     * @param count The number of sources that were "cooked"
+     */
+    protected void
+    loadArchived(ClassLoader classLoader, int count) {}
+
+    private static String
+    digest(String s) {
+        byte[] ba;
+        try {
+            ba = MessageDigest.getInstance("SHA-256").digest(s.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new JaninoRuntimeException("SNO: SHA-256 not supported", nsae);
+        } catch (IOException ioe) {
+            throw new JaninoRuntimeException("SNO: UTF-8 not supported", ioe);
+        }
+
+        StringBuilder sb = new StringBuilder(2 * ba.length);
+        for (byte b : ba) sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+
     /**
      * Compiles the given compilation unit. (A "compilation unit" is typically the contents of a Java source file.)
      *
@@ -403,38 +912,235 @@ class SimpleCompiler extends Cookable implements ISimpleCompiler {
 
         assert this.classLoaderIClassLoader == null;
 
-        IClassLoader icl = (this.classLoaderIClassLoader = new ClassLoaderIClassLoader(this.parentClassLoader));
+        final Object lookup = this.optionalDefinitionLookup;
+
+        IClassLoader icl = (this.classLoaderIClassLoader = (
+            this.optionalSharedIClassLoader != null
+            ? this.optionalSharedIClassLoader
+            : new ClassLoaderIClassLoader(
+                lookup != null
+                ? SimpleCompiler.lookupClass(lookup).getClassLoader()
+                : this.parentClassLoader
+            )
+        ));
         try {
 
             // Compile compilation unit to class files.
             UnitCompiler unitCompiler = new UnitCompiler(compilationUnit, icl);
             unitCompiler.setCompileErrorHandler(this.optionalCompileErrorHandler);
             unitCompiler.setWarningHandler(this.optionalWarningHandler);
+            unitCompiler.setExecutionBudgetChecks(this.tickChecks, this.allocationChecks);
+            unitCompiler.setCommonSubexpressionElimination(this.commonSubexpressionElimination);
+            unitCompiler.setPureMethods(this.pureMethods);
+            unitCompiler.setProfiling(this.profilingCounters, this.profilingTimers);
+            unitCompiler.setCoverage(this.coverage);
             ClassFile[] classFiles = unitCompiler.compileUnit(this.debugSource, this.debugLines, this.debugVars);
 
+            // Define the classes into the lookup class's loader, if so configured.
+            if (lookup != null) {
+                CompilationMetrics.enter(CompilationMetrics.Phase.CLASS_DEFINITION);
+                try {
+                    SimpleCompiler.defineClasses(lookup, classFiles);
+                } finally {
+                    CompilationMetrics.leave();
+                }
+                this.result = SimpleCompiler.lookupClass(lookup).getClassLoader();
+                return this.assertCooked();
+            }
+
             // Convert the class files to bytes and store them in a Map.
             final Map<String /*className*/, byte[] /*bytecode*/> classes = new HashMap<String, byte[]>();
-            for (ClassFile cf : classFiles) {
-                classes.put(cf.getThisClassName(), cf.toByteArray());
+            CompilationMetrics.enter(CompilationMetrics.Phase.SERIALIZATION);
+            try {
+                for (ClassFile cf : classFiles) {
+                    classes.put(cf.getThisClassName(), cf.toByteArray());
+                }
+            } finally {
+                CompilationMetrics.leave();
+            }
+
+            // Store the classes in the bytecode archive, if so configured.
+            BytecodeArchive archive = this.optionalBytecodeArchive;
+            String          key     = this.pendingArchiveKey;
+            if (archive != null && key != null) {
+                try {
+                    archive.put(key, classes);
+                } catch (IOException ioe) {
+                    SimpleCompiler.LOGGER.log(Level.WARNING, "Writing bytecode archive", ioe);
+                }
             }
 
             // Create a ClassLoader that loads the generated classes.
-            this.result = (ClassLoader) AccessController.doPrivileged(new PrivilegedAction<ClassLoader>() {
+            ClassLoader cl = (this.result = this.newByteArrayClassLoader(classes));
 
-                @Override public ClassLoader
-                run() {
-                    return new ByteArrayClassLoader(
-                        classes,                              // classes
-                        SimpleCompiler.this.parentClassLoader // parent
-                    );
+            // Define the classes right away iff they are being measured.
+            if (CompilationMetrics.current() != null) {
+                CompilationMetrics.enter(CompilationMetrics.Phase.CLASS_DEFINITION);
+                try {
+                    for (ClassFile cf : classFiles) cl.loadClass(cf.getThisClassName());
+                } catch (ClassNotFoundException cnfe) {
+                    throw new JaninoRuntimeException("SNO: Generated class not found", cnfe);
+                } finally {
+                    CompilationMetrics.leave();
                 }
-            });
+            }
+
             return this.assertCooked();
         } finally {
             this.classLoaderIClassLoader = null;
         }
     }
 
+    private ClassLoader
+    newByteArrayClassLoader(final Map<String /*className*/, byte[] /*bytecode*/> classes) {
+        return (ClassLoader) AccessController.doPrivileged(new PrivilegedAction<ClassLoader>() {
+
+            @Override public ClassLoader
+            run() {
+                return new ByteArrayClassLoader(
+                    classes,                              // classes
+                    SimpleCompiler.this.parentClassLoader // parent
+                );
+            }
+        });
+    }
+
+    /**
+     * Defines the given classes through the given {@code java.lang.invoke.MethodHandles.Lookup}. Notice that, other
+     * than {@link ClassLoader#defineClass(String, byte[], int, int)}, {@code Lookup.defineClass()} links the new class
+     * immediately, so superclasses and interfaces must be defined before their subtypes.
+     */
+    private static void
+    defineClasses(Object lookup, ClassFile[] classFiles) throws CompileException {
+
+        Map<String /*className*/, ClassFile> undefined = new LinkedHashMap<String, ClassFile>();
+        for (ClassFile cf : classFiles) undefined.put(cf.getThisClassName(), cf);
+
+        for (ClassFile cf : classFiles) SimpleCompiler.defineClass(lookup, cf, undefined);
+    }
+
+    private static void
+    defineClass(Object lookup, ClassFile classFile, Map<String, ClassFile> undefined) throws CompileException {
+
+        if (undefined.remove(classFile.getThisClassName()) == null) return;
+
+        // Define the supertypes first.
+        String superclassName = classFile.getSuperclassName();
+        if (superclassName != null) {
+            ClassFile scf = (ClassFile) undefined.get(superclassName);
+            if (scf != null) SimpleCompiler.defineClass(lookup, scf, undefined);
+        }
+        for (String interfaceName : classFile.getInterfaceNames()) {
+            ClassFile icf = (ClassFile) undefined.get(interfaceName);
+            if (icf != null) SimpleCompiler.defineClass(lookup, icf, undefined);
+        }
+
+        Method defineClassMethod = SimpleCompiler.LOOKUP__DEFINE_CLASS;
+        assert defineClassMethod != null;
+        try {
+            defineClassMethod.invoke(lookup, new Object[] { classFile.toByteArray() });
+        } catch (IllegalAccessException iae) {
+            throw new JaninoRuntimeException(null, iae);
+        } catch (InvocationTargetException ite) {
+            Throwable te = ite.getTargetException();
+
+            // "IllegalArgumentException" means "wrong package", "IllegalAccessException" means "lookup lacks PACKAGE
+            // access".
+            if (te instanceof IllegalArgumentException || te instanceof IllegalAccessException) {
+                throw new CompileException(
+                    "Defining class \"" + classFile.getThisClassName() + "\" through lookup: " + te.getMessage(),
+                    null
+                );
+            }
+            if (te instanceof RuntimeException) throw (RuntimeException) te;
+            if (te instanceof Error)            throw (Error) te;
+            throw new JaninoRuntimeException(null, te);
+        }
+    }
+
+    private static Class<?>
+    lookupClass(Object lookup) {
+        Method lookupClassMethod = SimpleCompiler.LOOKUP__LOOKUP_CLASS;
+        assert lookupClassMethod != null;
+        try {
+            return (Class<?>) lookupClassMethod.invoke(lookup);
+        } catch (Exception e) {
+            throw new JaninoRuntimeException(null, e);
+        }
+    }
+
+    /**
+     * @return A string that identifies the JANINO build, for the bytecode archive keys: The implementation version,
+     *         plus the location and the modification time of the JAR file resp. the classes directory that JANINO was
+     *         loaded from; or {@code null} iff that location cannot be determined
+     */
+    @Nullable private static synchronized String
+    getBuildStamp() {
+
+        if (SimpleCompiler.buildStampComputed) return SimpleCompiler.optionalBuildStamp;
+        SimpleCompiler.buildStampComputed = true;
+
+        File codeSource;
+        try {
+            CodeSource cs       = SimpleCompiler.class.getProtectionDomain().getCodeSource();
+            URL        location = cs == null ? null : cs.getLocation();
+            if (location == null || !"file".equals(location.getProtocol())) {
+                SimpleCompiler.LOGGER.fine("Location of JANINO unknown; bytecode archive disabled");
+                return null;
+            }
+            codeSource = new File(location.toURI());
+        } catch (Exception e) {
+            SimpleCompiler.LOGGER.log(Level.FINE, "Location of JANINO unknown; bytecode archive disabled", e);
+            return null;
+        }
+
+        Package p = SimpleCompiler.class.getPackage();
+        return (SimpleCompiler.optionalBuildStamp = (
+            (p == null ? null : p.getImplementationVersion())
+            + " "
+            + codeSource
+            + " "
+            + codeSource.length()
+            + " "
+            + SimpleCompiler.lastModified(codeSource)
+        ));
+    }
+
+    /**
+     * @return The modification time of the given file, or the latest modification time of all files in the given
+     *         directory and its subdirectories
+     */
+    private static long
+    lastModified(File file) {
+        long   result  = file.lastModified();
+        File[] members = file.listFiles();
+        if (members != null) {
+            for (File member : members) result = Math.max(result, SimpleCompiler.lastModified(member));
+        }
+        return result;
+    }
+
+    @Nullable private static String optionalBuildStamp;
+    private static boolean          buildStampComputed;
+
+    // Reflective access to "java.lang.invoke.MethodHandles.Lookup", because that exists only since Java 7, and its
+    // "defineClass()" method only since Java 9. Both are null if not available.
+    @Nullable private static final Method LOOKUP__DEFINE_CLASS;
+    @Nullable private static final Method LOOKUP__LOOKUP_CLASS;
+    static {
+        Method defineClass = null, lookupClass = null;
+        try {
+            Class<?> lookupClazz = Class.forName("java.lang.invoke.MethodHandles$Lookup");
+            defineClass = lookupClazz.getMethod("defineClass", byte[].class);
+            lookupClass = lookupClazz.getMethod("lookupClass");
+        } catch (Exception e) {
+            defineClass = null;
+            lookupClass = null;
+        }
+        LOOKUP__DEFINE_CLASS = defineClass;
+        LOOKUP__LOOKUP_CLASS = lookupClass;
+    }
+
     /**
      * @return The class loader created when this {@link SimpleCompiler} was {@link #cook(Reader)}ed
      */
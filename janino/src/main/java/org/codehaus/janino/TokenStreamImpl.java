@@ -52,6 +52,22 @@ class TokenStreamImpl implements TokenStream {
     private Token
     produceToken() throws CompileException, IOException {
 
+        CompilationMetrics metrics = CompilationMetrics.current();
+        if (metrics == null) return this.produceToken2();
+
+        CompilationMetrics.enter(CompilationMetrics.Phase.SCAN);
+        try {
+            Token token = this.produceToken2();
+            metrics.tokenCount++;
+            return token;
+        } finally {
+            CompilationMetrics.leave();
+        }
+    }
+
+    private Token
+    produceToken2() throws CompileException, IOException {
+
         for (;;) {
             Token token = this.scanner.produce();
 
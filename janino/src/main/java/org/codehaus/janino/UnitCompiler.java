@@ -27,22 +27,27 @@
 package org.codehaus.janino;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -201,6 +206,7 @@ import org.codehaus.janino.util.Annotatable;
 import org.codehaus.janino.util.ClassFile;
 import org.codehaus.janino.util.ClassFile.AnnotationsAttribute.ElementValue;
 import org.codehaus.janino.util.ClassFile.ClassFileException;
+import org.codehaus.janino.util.Traverser;
 
 /**
  * This class actually implements the Java compiler. It is associated with exactly one compilation unit which it
@@ -229,6 +235,12 @@ class UnitCompiler {
      */
     private static final int STRING_CONCAT_LIMIT = 3;
 
+    /**
+     * The minimum number of case labels that justify a TABLESWITCH for a "cluster" of case label values; see {@link
+     * #compileIntSwitch(Locatable, TreeMap, CodeContext.Offset)}.
+     */
+    private static final int MIN_TABLESWITCH_CLUSTER_SIZE = 4;
+
     /**
      * Special value for the <var>orientation</var> parameter of the {@link #compileBoolean(Java.Rvalue,
      * CodeContext.Offset, boolean)} methods, indicating that the code should be generated such that execution branches
@@ -320,6 +332,22 @@ class UnitCompiler {
         this.staticImportsOnDemand.add(iClass);
     }
 
+    /**
+     * Checks the compilation unit for compile errors, like {@link #compileUnit(boolean, boolean, boolean)}, but skips
+     * the steps that are only necessary to produce valid class files, i.e. branch fix-up, flow analysis and the
+     * generation of code attributes. Compile errors are reported through the {@link
+     * #setCompileErrorHandler(ErrorHandler) compile error handler}.
+     */
+    public void
+    checkUnit() throws CompileException {
+        this.checkOnly = true;
+        try {
+            this.compileUnit(false, false, false);
+        } finally {
+            this.checkOnly = false;
+        }
+    }
+
     /**
      * Generates an array of {@link ClassFile} objects which represent the classes and interfaces declared in the
      * compilation unit.
@@ -330,6 +358,41 @@ class UnitCompiler {
         this.debugLines  = debugLines;
         this.debugVars   = debugVars;
 
+        JfrEvents.Recorder recorder = JfrEvents.recorder();
+        CompilationMetrics metrics  = CompilationMetrics.current();
+        if (recorder == null && metrics == null) return this.compileUnit2();
+
+        Object event = recorder == null ? null : recorder.beginCompileUnit();
+        if (metrics != null) metrics.addAstNodes(this.compilationUnit);
+        CompilationMetrics.enter(CompilationMetrics.Phase.CODE_GENERATION);
+        ClassFile[] result = null;
+        try {
+            result = this.compileUnit2();
+            if (metrics != null) metrics.addClassFiles(result);
+            return result;
+        } finally {
+            CompilationMetrics.leave();
+            if (recorder != null && event != null) {
+                StringBuilder classNames = new StringBuilder();
+                if (result != null) {
+                    for (ClassFile cf : result) {
+                        if (classNames.length() > 0) classNames.append(", ");
+                        classNames.append(cf.getThisClassName());
+                    }
+                }
+                recorder.endCompileUnit(
+                    event,
+                    this.compilationUnit.optionalFileName,
+                    classNames.toString(),
+                    result == null ? 0 : result.length
+                );
+            }
+        }
+    }
+
+    private ClassFile[]
+    compileUnit2() throws CompileException {
+
         // Compile static import declarations.
         // Notice: The single-type and on-demand imports are needed BEFORE the unit is compiled, thus they are
         // processed in 'getSingleTypeImport()' and 'importOnDemand()'.
@@ -1438,6 +1501,16 @@ class UnitCompiler {
     private boolean
     compile(BlockStatement bs) throws CompileException {
 
+        // Iff profiling, then count the executions of each statement that (potentially) begins a basic block.
+        if (
+            this.profiledMethodName != null
+            && this.profilingCounters
+            && !(bs instanceof Block)
+            && bs != this.basicBlockContinuation
+            && this.generatesCode(bs)
+        ) this.countProfile(bs, Profiler.BLOCK);
+        this.basicBlockContinuation = null;
+
         Boolean result = (Boolean) bs.accept(new BlockStatementVisitor<Boolean, CompileException>() {
 
             // SUPPRESS CHECKSTYLE LineLengthCheck:23
@@ -1513,12 +1586,24 @@ class UnitCompiler {
     private boolean
     compileStatements(List<? extends BlockStatement> statements) throws CompileException {
         boolean previousStatementCanCompleteNormally = true;
-        for (BlockStatement bs : statements) {
+        for (int i = 0; i < statements.size(); i++) {
+            BlockStatement bs = (BlockStatement) statements.get(i);
             if (!previousStatementCanCompleteNormally && this.generatesCode(bs)) {
                 this.compileError("Statement is unreachable", bs.getLocation());
                 break;
             }
             previousStatementCanCompleteNormally = this.compile(bs);
+
+            // A statement that contains no jumps continues the basic block of its predecessor.
+            if (
+                previousStatementCanCompleteNormally
+                && i + 1 < statements.size()
+                && (
+                    bs instanceof ExpressionStatement
+                    || bs instanceof LocalVariableDeclarationStatement
+                    || bs instanceof EmptyStatement
+                )
+            ) this.basicBlockContinuation = (BlockStatement) statements.get(i + 1);
         }
         return previousStatementCanCompleteNormally;
     }
@@ -1540,6 +1625,7 @@ class UnitCompiler {
         }
 
         final CodeContext.Offset bodyOffset = this.getCodeContext().newOffset();
+        this.tickExecutionBudget(ds);
 
         // Compile body.
         ds.whereToContinue = null;
@@ -1606,7 +1692,8 @@ class UnitCompiler {
             // Compile body.
             fs.whereToContinue = null;
             final CodeContext.Offset bodyOffset = this.getCodeContext().newOffset();
-            boolean                  bodyCcn    = this.compile(fs.body);
+            this.tickExecutionBudget(fs);
+            boolean bodyCcn = this.compile(fs.body);
             if (fs.whereToContinue != null) fs.whereToContinue.set();
 
             // Compile update.
@@ -1666,6 +1753,7 @@ class UnitCompiler {
                 // Compile the body.
                 fes.whereToContinue = null;
                 final CodeContext.Offset bodyOffset = this.getCodeContext().newOffset();
+                this.tickExecutionBudget(fes);
 
                 this.load(fes, expressionType, expressionLv);
                 this.load(fes, indexLv);
@@ -1726,6 +1814,7 @@ class UnitCompiler {
                 // Compile the body.
                 fes.whereToContinue = null;
                 final CodeContext.Offset bodyOffset = this.getCodeContext().newOffset();
+                this.tickExecutionBudget(fes);
 
                 this.load(fes, iteratorLv);
                 this.invoke(fes.expression, this.iClassLoader.METH_java_util_Iterator__next);
@@ -1793,6 +1882,7 @@ class UnitCompiler {
         Offset wtc = (ws.whereToContinue = this.getCodeContext().new Offset());
         this.writeBranch(ws, Opcode.GOTO, wtc);
         final CodeContext.Offset bodyOffset = this.getCodeContext().newOffset();
+        this.tickExecutionBudget(ws);
         this.compile(ws.body); // Return value (CCN) is ignored.
         assert ws.whereToContinue == wtc;
         wtc.set();
@@ -1815,6 +1905,7 @@ class UnitCompiler {
 
         // Compile body.
         Offset wtc = (cs.whereToContinue = this.getCodeContext().newOffset());
+        this.tickExecutionBudget(cs);
         if (this.compile(body)) this.writeBranch(cs, Opcode.GOTO, wtc);
         cs.whereToContinue = null;
 
@@ -1833,7 +1924,8 @@ class UnitCompiler {
         // Compile body.
         cs.whereToContinue = null;
         final CodeContext.Offset bodyOffset = this.getCodeContext().newOffset();
-        boolean                  bodyCcn    = this.compile(body);
+        this.tickExecutionBudget(cs);
+        boolean bodyCcn = this.compile(body);
 
         // Compile the "update".
         if (cs.whereToContinue != null) cs.whereToContinue.set();
@@ -1872,15 +1964,18 @@ class UnitCompiler {
     private boolean
     compile2(SwitchStatement ss) throws CompileException {
 
-        boolean isEnumSwitch;
+        boolean isEnumSwitch = false, isStringSwitch = false;
 
         // Compute condition.
         IClass switchExpressionType = this.compileGetValue(ss.condition);
         if (this.iClassLoader.TYPE_java_lang_Enum.isAssignableFrom(switchExpressionType)) {
             isEnumSwitch = true;
             this.invoke(ss, this.iClassLoader.METH_java_lang_Enum__ordinal);
-        } else {
-            isEnumSwitch = false;
+        } else
+        if (switchExpressionType == this.iClassLoader.TYPE_java_lang_String) {
+            isStringSwitch = true;
+        } else
+        {
             this.assignmentConversion(
                 ss,                   // locatable
                 switchExpressionType, // sourceType
@@ -1891,6 +1986,7 @@ class UnitCompiler {
 
         // Prepare the map of case labels to code offsets.
         TreeMap<Integer, CodeContext.Offset> caseLabelMap       = new TreeMap<Integer, CodeContext.Offset>();
+        Map<String, CodeContext.Offset>      stringCaseLabelMap = new HashMap<String, CodeContext.Offset>();
         CodeContext.Offset                   defaultLabelOffset = null;
         CodeContext.Offset[]                 sbsgOffsets        = new CodeContext.Offset[ss.sbsgs.size()];
         for (int i = 0; i < ss.sbsgs.size(); ++i) {
@@ -1900,6 +1996,22 @@ class UnitCompiler {
             sbsgOffsets[i] = this.getCodeContext().new Offset();
             for (Rvalue caseLabel : sbsg.caseLabels) {
 
+                if (isStringSwitch) {
+                    Object cv = this.getConstantValue(caseLabel);
+                    if (!(cv instanceof String)) {
+                        this.compileError(
+                            "Value of case label must be a string constant",
+                            caseLabel.getLocation()
+                        );
+                        continue;
+                    }
+                    if (stringCaseLabelMap.containsKey(cv)) {
+                        this.compileError("Duplicate \"case\" switch label value", caseLabel.getLocation());
+                    }
+                    stringCaseLabelMap.put((String) cv, sbsgOffsets[i]);
+                    continue;
+                }
+
                 Integer civ;
 
                 CIV:
@@ -1975,51 +2087,46 @@ class UnitCompiler {
         }
         if (defaultLabelOffset == null) defaultLabelOffset = this.getWhereToBreak(ss);
 
-        // Generate TABLESWITCH or LOOKUPSWITCH instruction.
-        CodeContext.Offset switchOffset = this.getCodeContext().newOffset();
-        if (caseLabelMap.isEmpty()) {
-            // Special case: SWITCH statement without CASE labels (but maybe a DEFAULT label).
-            ;
-        } else
-        if (
-            (Integer) caseLabelMap.firstKey() + caseLabelMap.size() // Beware of INT overflow!
-            >= (Integer) caseLabelMap.lastKey() - caseLabelMap.size()
-        ) {
+        if (isStringSwitch) {
 
-            // The case label values are strictly consecutity or almost consecutive (at most 50% 'gaps'), so
-            // let's use a TABLESWITCH.
-            final int low  = (Integer) caseLabelMap.firstKey();
-            final int high = (Integer) caseLabelMap.lastKey();
+            // Switch on the hash code of the string, then dispatch through "String.equals()". This is what JAVAC
+            // does, except that JAVAC generates a second SWITCH instruction instead of branching directly.
+            this.getCodeContext().saveLocalVariables();
+            try {
+                short stringLvIndex = this.getCodeContext().allocateLocalVariable((short) 1);
+                this.writeOpcode(ss, Opcode.DUP);
+                this.store(ss, this.iClassLoader.TYPE_java_lang_String, stringLvIndex);
+                this.invoke(ss, this.iClassLoader.METH_java_lang_String__hashCode);
+
+                Map<Integer, List<String>> stringsByHashCode = new HashMap<Integer, List<String>>();
+                for (String caseLabelValue : stringCaseLabelMap.keySet()) {
+                    Integer      hashCode = caseLabelValue.hashCode();
+                    List<String> strings  = (List<String>) stringsByHashCode.get(hashCode);
+                    if (strings == null) {
+                        stringsByHashCode.put(hashCode, (strings = new ArrayList<String>()));
+                        caseLabelMap.put(hashCode, this.getCodeContext().new Offset());
+                    }
+                    strings.add(caseLabelValue);
+                }
 
-            this.writeOpcode(ss, Opcode.TABLESWITCH);
-            new Padder(this.getCodeContext()).set();
-            this.writeOffset(switchOffset, defaultLabelOffset);
-            this.writeInt(low);
-            this.writeInt(high);
-            int cur = low;
-            for (Map.Entry<Integer, CodeContext.Offset> me : caseLabelMap.entrySet()) {
-                int                caseLabelValue  = (Integer) me.getKey();
-                CodeContext.Offset caseLabelOffset = (CodeContext.Offset) me.getValue();
+                this.compileIntSwitch(ss, caseLabelMap, defaultLabelOffset);
 
-                while (cur < caseLabelValue) {
-                    this.writeOffset(switchOffset, defaultLabelOffset);
-                    ++cur;
+                for (Map.Entry<Integer, CodeContext.Offset> me : caseLabelMap.entrySet()) {
+                    ((CodeContext.Offset) me.getValue()).set();
+                    for (String caseLabelValue : (List<String>) stringsByHashCode.get(me.getKey())) {
+                        this.load(ss, this.iClassLoader.TYPE_java_lang_String, stringLvIndex);
+                        this.pushConstant(ss, caseLabelValue);
+                        this.invoke(ss, this.iClassLoader.METH_java_lang_String__equals__java_lang_Object);
+                        this.writeBranch(ss, Opcode.IFNE, (CodeContext.Offset) stringCaseLabelMap.get(caseLabelValue));
+                    }
+                    this.writeBranch(ss, Opcode.GOTO, defaultLabelOffset);
                 }
-                this.writeOffset(switchOffset, caseLabelOffset);
-                ++cur;
+            } finally {
+                this.getCodeContext().restoreLocalVariables();
             }
         } else
         {
-
-            // The case label values are not 'consecutive enough', so use a LOOKUPSWOTCH.
-            this.writeOpcode(ss, Opcode.LOOKUPSWITCH);
-            new Padder(this.getCodeContext()).set();
-            this.writeOffset(switchOffset, defaultLabelOffset);
-            this.writeInt(caseLabelMap.size());
-            for (Map.Entry<Integer, CodeContext.Offset> me : caseLabelMap.entrySet()) {
-                this.writeInt((Integer) me.getKey());
-                this.writeOffset(switchOffset, (CodeContext.Offset) me.getValue());
-            }
+            this.compileIntSwitch(ss, caseLabelMap, defaultLabelOffset);
         }
 
         // Compile statement groups.
@@ -2049,6 +2156,178 @@ class UnitCompiler {
         return true;
     }
 
+    /**
+     * Generates code that branches to the offset mapped to the {@code int} value on top of the operand stack, or to
+     * the <var>defaultLabelOffset</var> if there is no such mapping. The value is popped from the operand stack.
+     * <p>
+     *   Depending on the distribution of the case label values, the code is a TABLESWITCH, a LOOKUPSWITCH, or a
+     *   binary search over "clusters" of case label values, where each cluster is implemented through a TABLESWITCH or
+     *   a LOOKUPSWITCH.
+     * </p>
+     */
+    private void
+    compileIntSwitch(
+        Locatable                            locatable,
+        TreeMap<Integer, CodeContext.Offset> caseLabelMap,
+        CodeContext.Offset                   defaultLabelOffset
+    ) throws CompileException {
+
+        if (caseLabelMap.isEmpty()) {
+
+            // Special case: SWITCH statement without CASE labels (but maybe a DEFAULT label).
+            this.writeOpcode(locatable, Opcode.POP);
+            this.writeBranch(locatable, Opcode.GOTO, defaultLabelOffset);
+            return;
+        }
+
+        int[] values = new int[caseLabelMap.size()];
+        {
+            int i = 0;
+            for (Integer value : caseLabelMap.keySet()) values[i++] = (Integer) value;
+        }
+
+        // One TABLESWITCH for all values is optimal iff the values are dense enough.
+        if (UnitCompiler.preferTableswitch(values[0], values[values.length - 1], values.length)) {
+            this.writeSwitchInstruction(locatable, Opcode.TABLESWITCH, caseLabelMap, defaultLabelOffset);
+            return;
+        }
+
+        // Partition the (sorted) values into clusters; each cluster is either a run of values that is dense enough
+        // for a TABLESWITCH, or a run of "sparse" values.
+        List<TreeMap<Integer, CodeContext.Offset>> clusters = new ArrayList<TreeMap<Integer, CodeContext.Offset>>();
+        List<Boolean>                              dense    = new ArrayList<Boolean>();
+        for (int i = 0; i < values.length;) {
+
+            int j = i + 1;
+            while (j < values.length && UnitCompiler.preferTableswitch(values[i], values[j], j - i + 1)) j++;
+
+            boolean isDense = j - i >= UnitCompiler.MIN_TABLESWITCH_CLUSTER_SIZE;
+            if (!isDense) j = i + 1;
+
+            if (isDense || clusters.isEmpty() || (Boolean) dense.get(dense.size() - 1)) {
+                clusters.add(new TreeMap<Integer, CodeContext.Offset>());
+                dense.add(isDense);
+            }
+            TreeMap<Integer, CodeContext.Offset> cluster = (
+                (TreeMap<Integer, CodeContext.Offset>) clusters.get(clusters.size() - 1)
+            );
+            for (; i < j; i++) cluster.put(values[i], (CodeContext.Offset) caseLabelMap.get(values[i]));
+        }
+
+        // No dense clusters at all? Then LOOKUPSWITCH is optimal.
+        if (clusters.size() == 1) {
+            this.writeSwitchInstruction(locatable, Opcode.LOOKUPSWITCH, caseLabelMap, defaultLabelOffset);
+            return;
+        }
+
+        // Binary search over the clusters.
+        this.getCodeContext().saveLocalVariables();
+        try {
+            short valueLvIndex = this.getCodeContext().allocateLocalVariable((short) 1);
+            this.store(locatable, IClass.INT, valueLvIndex);
+            this.compileSwitchClusters(locatable, valueLvIndex, clusters, dense, 0, clusters.size(), defaultLabelOffset);
+        } finally {
+            this.getCodeContext().restoreLocalVariables();
+        }
+    }
+
+    private void
+    compileSwitchClusters(
+        Locatable                                  locatable,
+        short                                      valueLvIndex,
+        List<TreeMap<Integer, CodeContext.Offset>> clusters,
+        List<Boolean>                              dense,
+        int                                        from,
+        int                                        to,
+        CodeContext.Offset                         defaultLabelOffset
+    ) throws CompileException {
+
+        if (to - from == 1) {
+            this.load(locatable, IClass.INT, valueLvIndex);
+            this.writeSwitchInstruction(
+                locatable,
+                (Boolean) dense.get(from) ? Opcode.TABLESWITCH : Opcode.LOOKUPSWITCH,
+                (TreeMap<Integer, CodeContext.Offset>) clusters.get(from),
+                defaultLabelOffset
+            );
+            return;
+        }
+
+        int                mid   = (from + to) / 2;
+        CodeContext.Offset lower = this.getCodeContext().new Offset();
+
+        this.load(locatable, IClass.INT, valueLvIndex);
+        this.pushConstant(locatable, ((TreeMap<Integer, CodeContext.Offset>) clusters.get(mid)).firstKey());
+        this.writeBranch(locatable, Opcode.IF_ICMPLT, lower);
+        this.compileSwitchClusters(locatable, valueLvIndex, clusters, dense, mid, to, defaultLabelOffset);
+
+        lower.set();
+        this.compileSwitchClusters(locatable, valueLvIndex, clusters, dense, from, mid, defaultLabelOffset);
+    }
+
+    /**
+     * @param opcode {@link Opcode#TABLESWITCH} or {@link Opcode#LOOKUPSWITCH}
+     */
+    private void
+    writeSwitchInstruction(
+        Locatable                            locatable,
+        int                                  opcode,
+        TreeMap<Integer, CodeContext.Offset> caseLabelMap,
+        CodeContext.Offset                   defaultLabelOffset
+    ) {
+        CodeContext.Offset switchOffset = this.getCodeContext().newOffset();
+
+        if (opcode == Opcode.TABLESWITCH) {
+            final int low  = (Integer) caseLabelMap.firstKey();
+            final int high = (Integer) caseLabelMap.lastKey();
+
+            this.writeOpcode(locatable, Opcode.TABLESWITCH);
+            new Padder(this.getCodeContext()).set();
+            this.writeOffset(switchOffset, defaultLabelOffset);
+            this.writeInt(low);
+            this.writeInt(high);
+            int cur = low;
+            for (Map.Entry<Integer, CodeContext.Offset> me : caseLabelMap.entrySet()) {
+                int                caseLabelValue  = (Integer) me.getKey();
+                CodeContext.Offset caseLabelOffset = (CodeContext.Offset) me.getValue();
+
+                while (cur < caseLabelValue) {
+                    this.writeOffset(switchOffset, defaultLabelOffset);
+                    ++cur;
+                }
+                this.writeOffset(switchOffset, caseLabelOffset);
+                ++cur;
+            }
+        } else
+        {
+            this.writeOpcode(locatable, Opcode.LOOKUPSWITCH);
+            new Padder(this.getCodeContext()).set();
+            this.writeOffset(switchOffset, defaultLabelOffset);
+            this.writeInt(caseLabelMap.size());
+            for (Map.Entry<Integer, CodeContext.Offset> me : caseLabelMap.entrySet()) {
+                this.writeInt((Integer) me.getKey());
+                this.writeOffset(switchOffset, (CodeContext.Offset) me.getValue());
+            }
+        }
+    }
+
+    /**
+     * Decides, like JAVAC does, whether a TABLESWITCH is cheaper than a LOOKUPSWITCH, by weighing code size (in 4-byte
+     * words) against the number of comparisons (weight 3).
+     *
+     * @param low   The smallest case label value
+     * @param high  The greatest case label value
+     * @param count The number of case labels
+     */
+    private static boolean
+    preferTableswitch(int low, int high, int count) {
+        long tableSpaceCost  = 4 + ((long) high - low + 1);
+        long tableTimeCost   = 3;
+        long lookupSpaceCost = 3 + 2 * (long) count;
+        long lookupTimeCost  = count;
+        return tableSpaceCost + 3 * tableTimeCost <= lookupSpaceCost + 3 * lookupTimeCost;
+    }
+
     private boolean
     compile2(BreakStatement bs) throws CompileException {
 
@@ -2495,6 +2774,7 @@ class UnitCompiler {
                 enclosingFunction,      // to
                 null                    // optionalStackValueType
             );
+            this.endProfiling(rs);
             this.writeOpcode(rs, Opcode.RETURN);
             return false;
         }
@@ -2516,6 +2796,7 @@ class UnitCompiler {
             enclosingFunction,      // to
             returnType              // optionalStackValueType
         );
+        this.endProfiling(rs);
         this.writeOpcode(rs, Opcode.IRETURN + UnitCompiler.ilfda(returnType));
         return false;
     }
@@ -2847,8 +3128,18 @@ class UnitCompiler {
 
         // Create CodeContext.
         final CodeContext codeContext = new CodeContext(mi.getClassFile(), mi.getName() + mi.getDescriptor());
-
-        CodeContext savedCodeContext = this.replaceCodeContext(codeContext);
+        if (this.coverage && !this.checkOnly) codeContext.setCoverageHitMapId(this.getCoverageHitMapId(fd));
+
+        CodeContext                      savedCodeContext           = this.replaceCodeContext(codeContext);
+        LocalVariableSlot                savedExecutionBudgetSlot   = this.executionBudgetSlot;
+        Map<Rvalue, CommonSubexpression> savedCommonSubexpressions  = this.commonSubexpressions;
+        String                           savedProfiledMethodName    = this.profiledMethodName;
+        LocalVariableSlot                savedProfilingStartSlot    = this.profilingStartSlot;
+        int                              savedProfiledMethodProbeId = this.profiledMethodProbeId;
+        this.executionBudgetSlot  = null;
+        this.commonSubexpressions = null;
+        this.profiledMethodName   = null;
+        this.profilingStartSlot   = null;
         try {
             this.getCodeContext().saveLocalVariables();
 
@@ -2886,6 +3177,12 @@ class UnitCompiler {
 
             this.buildLocalVariableMap(fd);
 
+            this.beginExecutionBudget(fd);
+
+            this.beginProfiling(fd);
+
+            this.commonSubexpressions = this.findCommonSubexpressions(fd);
+
             // Compile the constructor preamble.
             if (fd instanceof ConstructorDeclarator) {
                 ConstructorDeclarator cd = (ConstructorDeclarator) fd;
@@ -2954,15 +3251,21 @@ class UnitCompiler {
                 if (this.getReturnType(fd) != IClass.VOID) {
                     this.compileError("Method must return a value", fd.getLocation());
                 }
+                this.endProfiling(fd);
                 this.writeOpcode(fd, Opcode.RETURN);
             }
         } finally {
             this.getCodeContext().restoreLocalVariables();
             this.replaceCodeContext(savedCodeContext);
+            this.executionBudgetSlot   = savedExecutionBudgetSlot;
+            this.commonSubexpressions  = savedCommonSubexpressions;
+            this.profiledMethodName    = savedProfiledMethodName;
+            this.profilingStartSlot    = savedProfilingStartSlot;
+            this.profiledMethodProbeId = savedProfiledMethodProbeId;
         }
 
-        // Don't continue code attribute generation if we had compile errors.
-        if (this.compileErrorCount > 0) return;
+        // Don't continue code attribute generation if we had compile errors, or if we're only checking.
+        if (this.compileErrorCount > 0 || this.checkOnly) return;
 
         // Fix up and reallocate as needed.
         codeContext.fixUpAndRelocate();
@@ -3000,13 +3303,20 @@ class UnitCompiler {
             lvtani = 0;
         }
 
-        // Add the code context as a code attribute to the MethodInfo.
+        // Add the code context as a code attribute to the MethodInfo. Store it right away (and not only when the
+        // class file is stored), so that the code context, with its many offsets, becomes garbage.
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            codeContext.storeCodeAttributeBody(new DataOutputStream(baos), lntani, lvtani);
+        } catch (IOException ioe) {
+            throw new JaninoRuntimeException(ioe.getMessage(), ioe);
+        }
+        for (LocalVariableSlot slot : codeContext.getAllLocalVars()) slot.releaseOffsets();
+        final byte[] codeAttributeBody = baos.toByteArray();
         mi.addAttribute(new ClassFile.AttributeInfo(classFile.addConstantUtf8Info("Code")) {
 
             @Override protected void
-            storeBody(DataOutputStream dos) throws IOException {
-                codeContext.storeCodeAttributeBody(dos, lntani, lvtani);
-            }
+            storeBody(DataOutputStream dos) throws IOException { dos.write(codeAttributeBody); }
         });
     }
 
@@ -3152,10 +3462,11 @@ class UnitCompiler {
     private void
     buildLocalVariableMap(ForEachStatement fes, final Map<String, LocalVariable> localVars)
     throws CompileException {
-        Map<String, LocalVariable> vars = new HashMap<String, LocalVariable>();
-        vars.putAll(localVars);
-        LocalVariable elementLv = this.getLocalVariable(fes.currentElement, false);
-        vars.put(fes.currentElement.name, elementLv);
+        Map<String, LocalVariable> vars = new LocalVariableMap(
+            localVars,
+            fes.currentElement.name,
+            this.getLocalVariable(fes.currentElement, false)
+        );
         fes.localVariables = vars;
         this.buildLocalVariableMap(fes.body, vars);
     }
@@ -3219,27 +3530,81 @@ class UnitCompiler {
     private Map<String, LocalVariable>
     buildLocalVariableMap(LocalVariableDeclarationStatement lvds, final Map<String, LocalVariable> localVars)
     throws CompileException {
-        Map<String, LocalVariable> newVars = new HashMap<String, LocalVariable>();
-        newVars.putAll(localVars);
+        Map<String, LocalVariable> newVars = localVars;
         for (VariableDeclarator vd : lvds.variableDeclarators) {
-            LocalVariable      lv = this.getLocalVariable(lvds, vd);
-            if (newVars.put(vd.name, lv) != null) {
+            LocalVariable lv = this.getLocalVariable(lvds, vd);
+            if (newVars.containsKey(vd.name)) {
                 this.compileError("Redefinition of local variable \"" + vd.name + "\" ", vd.getLocation());
             }
+            newVars = new LocalVariableMap(newVars, vd.name, lv);
         }
         lvds.localVariables = newVars;
         return newVars;
     }
 
+    /**
+     * An immutable map of local variables that adds one local variable to the <em>enclosing</em> map. Copying the
+     * enclosing map instead would make the memory consumption quadratic in the number of local variables that are
+     * declared in a block, which is significant for large generated scripts.
+     */
+    private static
+    class LocalVariableMap extends AbstractMap<String, LocalVariable> {
+
+        private final Map<String, LocalVariable> enclosing;
+        private final String                     name;
+        private final LocalVariable              localVariable;
+
+        LocalVariableMap(Map<String, LocalVariable> enclosing, String name, LocalVariable localVariable) {
+            this.enclosing     = enclosing;
+            this.name          = name;
+            this.localVariable = localVariable;
+        }
+
+        @Override @Nullable public LocalVariable
+        get(@Nullable Object key) {
+
+            // Iterate (rather than recurse) through the chain, because it may be very long.
+            Map<String, LocalVariable> m = this;
+            while (m instanceof LocalVariableMap) {
+                LocalVariableMap lvm = (LocalVariableMap) m;
+                if (lvm.name.equals(key)) return lvm.localVariable;
+                m = lvm.enclosing;
+            }
+            return (LocalVariable) m.get(key);
+        }
+
+        @Override public boolean
+        containsKey(@Nullable Object key) { return this.get(key) != null; }
+
+        @Override public Set<Map.Entry<String, LocalVariable>>
+        entrySet() {
+            List<LocalVariableMap> chain = new ArrayList<LocalVariableMap>();
+
+            Map<String, LocalVariable> m = this;
+            while (m instanceof LocalVariableMap) {
+                chain.add((LocalVariableMap) m);
+                m = ((LocalVariableMap) m).enclosing;
+            }
+
+            Map<String, LocalVariable> result = new HashMap<String, LocalVariable>(m);
+            for (int i = chain.size() - 1; i >= 0; i--) {
+                LocalVariableMap lvm = (LocalVariableMap) chain.get(i);
+                result.put(lvm.name, lvm.localVariable);
+            }
+            return Collections.unmodifiableMap(result).entrySet();
+        }
+    }
+
     /**
      * Adds the given <var>localVars</var> to the 'local variable map' of the given <var>catchClause</var>.
      */
     protected void
     buildLocalVariableMap(CatchClause catchClause, Map<String, LocalVariable> localVars) throws CompileException {
-        Map<String, LocalVariable> vars = new HashMap<String, LocalVariable>();
-        vars.putAll(localVars);
-        LocalVariable lv = this.getLocalVariable(catchClause.caughtException);
-        vars.put(catchClause.caughtException.name, lv);
+        Map<String, LocalVariable> vars = new LocalVariableMap(
+            localVars,
+            catchClause.caughtException.name,
+            this.getLocalVariable(catchClause.caughtException)
+        );
         this.buildLocalVariableMap(catchClause.body, vars);
     }
 
@@ -4685,7 +5050,7 @@ class UnitCompiler {
         IClass[]  parameterTypes = iMethod.getParameterTypes();
         Rvalue[]  adjustedArgs   = null;
         final int actualSize     = mi.arguments.length;
-        if (iMethod.isVarargs() && iMethod.argsNeedAdjust()) {
+        if (iMethod.isVarargs() && this.argsNeedAdjust.get(iMethod) == Boolean.TRUE) {
             adjustedArgs = new Rvalue[parameterTypes.length];
             Rvalue[]       lastArgs = new Rvalue[actualSize - parameterTypes.length + 1];
             final Location loc      = mi.getLocation();
@@ -4800,6 +5165,7 @@ class UnitCompiler {
             iClass = (nci.iClass = this.getType(nci.type));
         }
 
+        this.allocateExecutionBudget(nci, iClass);
         this.writeOpcode(nci, Opcode.NEW);
         this.writeConstantClassInfo(iClass.getDescriptor());
         this.writeOpcode(nci, Opcode.DUP);
@@ -4972,8 +5338,10 @@ class UnitCompiler {
             this.compile(acd);
 
             // Instantiate the anonymous class.
+            IClass anonymousClass = this.resolve(naci.anonymousClassDeclaration);
+            this.allocateExecutionBudget(naci, anonymousClass);
             this.writeOpcode(naci, Opcode.NEW);
-            this.writeConstantClassInfo(this.resolve(naci.anonymousClassDeclaration).getDescriptor());
+            this.writeConstantClassInfo(anonymousClass.getDescriptor());
 
             // TODO: adjust argument (for varargs case ?)
             // Invoke the anonymous constructor.
@@ -5121,6 +5489,12 @@ class UnitCompiler {
             return this.getType(rv);
         }
 
+        Map<Rvalue, CommonSubexpression> cses = this.commonSubexpressions;
+        if (cses != null) {
+            CommonSubexpression cse = (CommonSubexpression) cses.get(rv);
+            if (cse != null) return this.compileGetCommonSubexpression(rv, cse);
+        }
+
         this.compileContext(rv);
         return this.compileGet(rv);
     }
@@ -7314,23 +7688,47 @@ class UnitCompiler {
             return this.iClassLoader.TYPE_java_lang_String;
         }
 
-        // String concatenation through "new StringBuilder(a).append(b).append(c).append(d).toString()".
-        // "new StringBuilder(String a)":
+        // String concatenation through
+        //    new StringBuilder(a.length() + <estimated-length-of-b-c-d>).append(a).append(b).append(c).append(d)
+        //    .toString()
+        // , so that the builder's buffer typically need not grow.
+        int estimatedLength = 0;
+        for (Rvalue operand : tmp) {
+            Object cv = this.getConstantValue(operand);
+            estimatedLength += (
+                cv instanceof String ? ((String) cv).length()
+                : UnitCompiler.estimateStringLength(this.getType(operand))
+            );
+        }
+
+        // "a.length() + estimatedLength":
+        this.writeOpcode(locatable, Opcode.DUP);
+        this.invoke(locatable, this.iClassLoader.METH_java_lang_String__length);
+        this.pushConstant(locatable, estimatedLength);
+        this.writeOpcode(locatable, Opcode.IADD);
+
+        // "new StringBuilder(int capacity)":
         this.writeOpcode(locatable, Opcode.NEW);
         this.writeConstantClassInfo(Descriptor.JAVA_LANG_STRINGBUILDER);
         this.writeOpcode(locatable, Opcode.DUP_X1);
         this.writeOpcode(locatable, Opcode.SWAP);
 
-        IConstructor ctor = this.iClassLoader.CTOR_java_lang_StringBuilder__java_lang_String;
+        IConstructor ctor = this.iClassLoader.CTOR_java_lang_StringBuilder__int;
         assert ctor != null;
         this.invoke(locatable, ctor);
 
+        // "sb.append(a)":
+        this.writeOpcode(locatable, Opcode.SWAP);
+        this.invoke(locatable, this.iClassLoader.METH_java_lang_StringBuilder__append__java_lang_String);
+
         for (Iterator<Rvalue> it = tmp.iterator(); it.hasNext();) {
             Rvalue operand = (Rvalue) it.next();
 
             // "sb.append(operand)"
             IClass t = UnitCompiler.this.compileGetValue(operand);
             this.invoke(locatable, (
+                t == this.iClassLoader.TYPE_java_lang_String
+                ? this.iClassLoader.METH_java_lang_StringBuilder__append__java_lang_String :
                 t == IClass.BYTE    ? this.iClassLoader.METH_java_lang_StringBuilder__append__int :
                 t == IClass.SHORT   ? this.iClassLoader.METH_java_lang_StringBuilder__append__int :
                 t == IClass.INT     ? this.iClassLoader.METH_java_lang_StringBuilder__append__int :
@@ -7349,6 +7747,24 @@ class UnitCompiler {
         return this.iClassLoader.TYPE_java_lang_String;
     }
 
+    /**
+     * @return A guess of the length of the string conversion (JLS7 15.18.1.1) of a value of the given type
+     */
+    private static int
+    estimateStringLength(IClass type) {
+        return (
+            type == IClass.BOOLEAN ? 5  :
+            type == IClass.BYTE    ? 4  :
+            type == IClass.CHAR    ? 1  :
+            type == IClass.SHORT   ? 6  :
+            type == IClass.INT     ? 11 :
+            type == IClass.LONG    ? 20 :
+            type == IClass.FLOAT   ? 15 :
+            type == IClass.DOUBLE  ? 24 :
+            16
+        );
+    }
+
     /**
      * Helper interface for string conversion.
      */
@@ -7582,7 +7998,7 @@ class UnitCompiler {
         Rvalue[] adjustedArgs   = null;
         IClass[] parameterTypes = iConstructor.getParameterTypes();
         int      actualSize     = arguments.length;
-        if (iConstructor.isVarargs() && iConstructor.argsNeedAdjust()) {
+        if (iConstructor.isVarargs() && this.argsNeedAdjust.get(iConstructor) == Boolean.TRUE) {
             adjustedArgs = new Rvalue[parameterTypes.length];
             Rvalue[] lastArgs = new Rvalue[actualSize - parameterTypes.length + 1];
             for (int i = 0, j = parameterTypes.length - 1; i < lastArgs.length; ++i, ++j) {
@@ -7690,6 +8106,9 @@ class UnitCompiler {
             @Override public boolean
             isStatic() { return Mod.isStatic(modifiers.accessFlags); }
 
+            @Override public boolean
+            isFinal() { return Mod.isFinal(modifiers.accessFlags); }
+
             @Override public IClass
             getType() throws CompileException {
                 return UnitCompiler.this.getType(type).getArrayIClass(
@@ -8806,7 +9225,7 @@ class UnitCompiler {
 
                 // Varargs has lower priority.
                 if (isVarargs) {
-                    ii.setArgsNeedAdjust(argsNeedAdjust);
+                    this.argsNeedAdjust.put(ii, Boolean.valueOf(argsNeedAdjust));
                     varargApplicables.add(ii);
                 } else {
                     applicableIInvocables.add(ii);
@@ -11572,6 +11991,559 @@ class UnitCompiler {
         this.optionalWarningHandler = optionalWarningHandler;
     }
 
+    /**
+     * Configures the generated code to check the {@link ExecutionBudget} of the current thread.
+     *
+     * @param tickChecks       Whether to consume one tick on each method entry and each loop iteration
+     * @param allocationChecks Whether to charge the estimated size of each object and array that is created with
+     *                         "{@code new}" (but not of the objects that are created implicitly, e.g. by string
+     *                         concatenation or boxing conversion)
+     * @see                    ExecutionBudget
+     */
+    public void
+    setExecutionBudgetChecks(boolean tickChecks, boolean allocationChecks) {
+        this.tickChecks       = tickChecks;
+        this.allocationChecks = allocationChecks;
+    }
+
+    /**
+     * Iff {@link #setExecutionBudgetChecks(boolean, boolean) execution budget checks} are configured, then stores the
+     * {@link ExecutionBudget} of the current thread in a new local variable, and consumes one tick for the method
+     * entry.
+     */
+    private void
+    beginExecutionBudget(FunctionDeclarator fd) throws CompileException {
+        if (!this.tickChecks && !this.allocationChecks) return;
+
+        if (this.findTypeByName(fd.getLocation(), ExecutionBudget.class.getName()) == null) {
+            this.compileError(
+                "Execution budget checks require that class \""
+                + ExecutionBudget.class.getName()
+                + "\" is loadable through the parent class loader",
+                fd.getLocation()
+            );
+            return;
+        }
+
+        LocalVariableSlot bs = (this.executionBudgetSlot = this.getCodeContext().allocateLocalVariable(
+            (short) 1,
+            null,
+            null
+        ));
+
+        this.writeOpcode(fd, Opcode.INVOKESTATIC);
+        this.writeConstantMethodrefInfo(
+            UnitCompiler.EXECUTION_BUDGET_FD,
+            "current",
+            "()" + UnitCompiler.EXECUTION_BUDGET_FD
+        );
+        this.store(fd, this.iClassLoader.TYPE_java_lang_Object, bs.getSlotIndex());
+
+        this.tickExecutionBudget(fd);
+    }
+
+    /**
+     * Iff tick checks are configured, then consumes one tick of the {@link ExecutionBudget}.
+     */
+    private void
+    tickExecutionBudget(Locatable locatable) {
+        LocalVariableSlot bs = this.executionBudgetSlot;
+        if (!this.tickChecks || bs == null) return;
+
+        this.load(locatable, this.iClassLoader.TYPE_java_lang_Object, bs.getSlotIndex());
+        this.writeOpcode(locatable, Opcode.INVOKEVIRTUAL);
+        this.writeConstantMethodrefInfo(UnitCompiler.EXECUTION_BUDGET_FD, "tick", "()V");
+    }
+
+    /**
+     * Configures the generated code to count (and optionally time) its execution through the {@link Profiler}.
+     *
+     * @param counters Whether to count the invocations of each method and the executions of each basic block
+     * @param timers   Whether to sum up the time spent in each method (implies <var>counters</var>)
+     * @see            Profiler
+     */
+    public void
+    setProfiling(boolean counters, boolean timers) {
+        this.profilingCounters = counters || timers;
+        this.profilingTimers   = timers;
+    }
+
+    /**
+     * Configures the generated code to record which source lines are executed, in a {@link Coverage} hit map.
+     *
+     * @see Coverage
+     */
+    public void
+    setCoverage(boolean value) { this.coverage = value; }
+
+    /**
+     * @return The ID of the {@link Coverage} hit map of this compilation unit, or -1 iff class {@link Coverage} is not
+     *         loadable
+     */
+    private int
+    getCoverageHitMapId(FunctionDeclarator fd) throws CompileException {
+        if (this.coverageHitMapId != -1) return this.coverageHitMapId;
+
+        if (this.findTypeByName(fd.getLocation(), Coverage.class.getName()) == null) {
+            this.compileError(
+                "Coverage requires that class \""
+                + Coverage.class.getName()
+                + "\" is loadable through the parent class loader",
+                fd.getLocation()
+            );
+            return -1;
+        }
+
+        return (this.coverageHitMapId = Coverage.register(
+            this.getInstrumentedEvaluatorName(fd.getDeclaringType().getClassName())
+        ));
+    }
+
+    /**
+     * Iff {@link #setProfiling(boolean, boolean) profiling} is configured, then counts the method invocation, and
+     * stores the start time in a new local variable.
+     */
+    private void
+    beginProfiling(FunctionDeclarator fd) throws CompileException {
+        if (!this.profilingCounters) return;
+
+        if (this.findTypeByName(fd.getLocation(), Profiler.class.getName()) == null) {
+            this.compileError(
+                "Profiling requires that class \""
+                + Profiler.class.getName()
+                + "\" is loadable through the parent class loader",
+                fd.getLocation()
+            );
+            return;
+        }
+
+        this.profiledMethodName = fd.getDeclaringType().getClassName() + '.' + fd.name;
+
+        this.profiledMethodProbeId = this.countProfile(fd, Profiler.METHOD);
+
+        if (this.profilingTimers) {
+            LocalVariableSlot ss = (this.profilingStartSlot = this.getCodeContext().allocateLocalVariable(
+                (short) 2,
+                null,
+                null
+            ));
+            this.writeOpcode(fd, Opcode.INVOKESTATIC);
+            this.writeConstantMethodrefInfo(Descriptor.JAVA_LANG_SYSTEM, "nanoTime", "()J");
+            this.store(fd, IClass.LONG, ss.getSlotIndex());
+        }
+    }
+
+    /**
+     * Registers a new {@link Profiler} probe, and generates code that increments its count.
+     *
+     * @return The ID of the new probe
+     */
+    private int
+    countProfile(Locatable locatable, String kind) throws CompileException {
+        String methodName = this.profiledMethodName;
+        assert methodName != null;
+
+        Location location      = locatable.getLocation();
+        String   className     = methodName.substring(0, methodName.lastIndexOf('.'));
+        String   evaluatorName = this.getInstrumentedEvaluatorName(className);
+
+        int probeId = -1;
+        if (!this.checkOnly) {
+            if (this.profiledEvaluatorNames.add(evaluatorName)) Profiler.remove(evaluatorName);
+            probeId = Profiler.registerProbe(evaluatorName, methodName, location.getLineNumber(), kind);
+        }
+
+        this.pushConstant(locatable, new Integer(probeId));
+        this.writeOpcode(locatable, Opcode.INVOKESTATIC);
+        this.writeConstantMethodrefInfo(UnitCompiler.PROFILER_FD, "count", "(I)V");
+
+        return probeId;
+    }
+
+    /**
+     * @param className The name of the first instrumented class of this compilation unit
+     * @return          The name under which the {@link Profiler} probes and the {@link Coverage} hit map of this
+     *                  compilation unit are registered: Its "file name", or, iff it has none, the class name plus a
+     *                  suffix that is unique within the JVM (e.g. "SC#7"), so that unnamed evaluators do not replace
+     *                  each other's probes and hit maps
+     */
+    private String
+    getInstrumentedEvaluatorName(String className) {
+        if (this.instrumentedEvaluatorName != null) return this.instrumentedEvaluatorName;
+
+        String optionalFileName = this.compilationUnit.optionalFileName;
+        return (this.instrumentedEvaluatorName = (
+            optionalFileName != null
+            ? optionalFileName
+            : className + '#' + UnitCompiler.UNNAMED_EVALUATORS.incrementAndGet()
+        ));
+    }
+
+    /**
+     * Iff {@link #setProfiling(boolean, boolean) timers} are configured, then adds the time since the method entry to
+     * the method's {@link Profiler} probe. Must be invoked immediately before each "xRETURN" opcode; the return value
+     * (if any) remains on the operand stack.
+     */
+    private void
+    endProfiling(Locatable locatable) throws CompileException {
+        LocalVariableSlot ss = this.profilingStartSlot;
+        if (ss == null) return;
+
+        this.load(locatable, IClass.LONG, ss.getSlotIndex());
+        this.pushConstant(locatable, new Integer(this.profiledMethodProbeId));
+        this.writeOpcode(locatable, Opcode.INVOKESTATIC);
+        this.writeConstantMethodrefInfo(UnitCompiler.PROFILER_FD, "time", "(JI)V");
+    }
+
+    /**
+     * Iff allocation checks are configured, then charges the estimated size of an instance of the given class to the
+     * {@link ExecutionBudget}.
+     */
+    private void
+    allocateExecutionBudget(Locatable locatable, IClass iClass) throws CompileException {
+        LocalVariableSlot bs = this.executionBudgetSlot;
+        if (!this.allocationChecks || bs == null) return;
+
+        // Estimate the instance size: An object header, plus the instance fields of the class and its superclasses.
+        int size = 16;
+        for (IClass c = iClass; c != null; c = c.getSuperclass()) {
+            for (IClass.IField f : c.getDeclaredIFields()) {
+                if (!f.isStatic()) size += Descriptor.hasSize2(f.getDescriptor()) ? 8 : 4;
+            }
+        }
+
+        this.load(locatable, this.iClassLoader.TYPE_java_lang_Object, bs.getSlotIndex());
+        this.pushConstant(locatable, new Integer(size));
+        this.writeOpcode(locatable, Opcode.INVOKEVIRTUAL);
+        this.writeConstantMethodrefInfo(UnitCompiler.EXECUTION_BUDGET_FD, "allocate", "(I)V");
+    }
+
+    /**
+     * Iff allocation checks are configured, then charges the estimated size of a one-dimensional array to the {@link
+     * ExecutionBudget}. Expects the array length on the operand stack, and leaves it there.
+     */
+    private void
+    allocateArrayExecutionBudget(Locatable locatable, int elementSize) throws CompileException {
+        LocalVariableSlot bs = this.executionBudgetSlot;
+        if (!this.allocationChecks || bs == null) return;
+
+        this.writeOpcode(locatable, Opcode.DUP);
+        this.load(locatable, this.iClassLoader.TYPE_java_lang_Object, bs.getSlotIndex());
+        this.writeOpcode(locatable, Opcode.SWAP);
+        this.pushConstant(locatable, new Integer(elementSize));
+        this.writeOpcode(locatable, Opcode.INVOKEVIRTUAL);
+        this.writeConstantMethodrefInfo(UnitCompiler.EXECUTION_BUDGET_FD, "allocateArray", "(II)V");
+    }
+
+    /**
+     * Enables or disables "common subexpression elimination": Within each method, a side-effect-free subexpression
+     * of primitive type that occurs more than once is computed only once (when it is first needed), and its value is
+     * re-used for the other occurrences.
+     * <p>
+     *   A subexpression is side-effect-free iff it consists only of literals, parameters that the method never
+     *   assigns, {@code final} fields, operators, casts and invocations of {@link #setPureMethods(Collection) pure
+     *   methods}. Constructors, class initializers and nested classes are not optimized.
+     * </p>
+     */
+    public void
+    setCommonSubexpressionElimination(boolean value) { this.commonSubexpressionElimination = value; }
+
+    /**
+     * Declares which methods have no side effects, and return a value that depends only on their arguments (and,
+     * for non-static methods, on the target object); only invocations of these methods are subject to {@link
+     * #setCommonSubexpressionElimination(boolean) common subexpression elimination}.
+     * <p>
+     *   Each element is either a fully qualified class name (which declares all methods of that class pure), or a
+     *   fully qualified class name plus "{@code .}" plus a method name. Static methods without parameters are never
+     *   regarded as pure (e.g. {@link Math#random()}).
+     * </p>
+     *
+     * @see #DEFAULT_PURE_METHODS
+     */
+    public void
+    setPureMethods(Collection<String> pureMethods) { this.pureMethods = new HashSet<String>(pureMethods); }
+
+    /**
+     * The methods that are regarded as pure unless {@link #setPureMethods(Collection)} is invoked.
+     */
+    public static final Collection<String>
+    DEFAULT_PURE_METHODS = Collections.unmodifiableList(Arrays.asList(new String[] {
+        "java.lang.Math",
+        "java.lang.StrictMath",
+    }));
+
+    /**
+     * Iff {@link #setCommonSubexpressionElimination(boolean) common subexpression elimination} is enabled, then
+     * finds the subexpressions of the method body that are side-effect-free and occur more than once, and allocates
+     * and initializes the local variables that memorize their values.
+     *
+     * @return {@code null} iff no common subexpressions were found
+     */
+    @Nullable private Map<Rvalue, CommonSubexpression>
+    findCommonSubexpressions(FunctionDeclarator fd) throws CompileException {
+        if (!this.commonSubexpressionElimination) return null;
+
+        // In constructors and class initializers, even final fields change, so don't optimize these.
+        if (!(fd instanceof MethodDeclarator) || "<clinit>".equals(fd.name)) return null;
+
+        List<? extends BlockStatement> oss = fd.optionalStatements;
+        if (oss == null) return null;
+
+        // Collect the candidate subexpressions, and the names that the method assigns to.
+        final List<Rvalue> candidates    = new ArrayList<Rvalue>();
+        final Set<String>  assignedNames = new HashSet<String>();
+        Traverser<RuntimeException> traverser = new Traverser<RuntimeException>() {
+
+            // Nested classes are compiled separately.
+            @Override protected void
+            traverseAnonymousClassDeclaration(AnonymousClassDeclaration acd) {}
+
+            @Override protected void
+            traverseLocalClassDeclarationStatement(LocalClassDeclarationStatement lcds) {}
+
+            @Override protected void
+            traverseAssignment(Assignment a) {
+                if (a.lhs instanceof AmbiguousName) assignedNames.add(((AmbiguousName) a.lhs).identifiers[0]);
+                super.traverseAssignment(a);
+            }
+
+            @Override protected void
+            traverseCrement(Crement c) {
+                if (c.operand instanceof AmbiguousName) assignedNames.add(((AmbiguousName) c.operand).identifiers[0]);
+                super.traverseCrement(c);
+            }
+
+            @Override protected void
+            traverseUnaryOperation(UnaryOperation uo) {
+                candidates.add(uo);
+                super.traverseUnaryOperation(uo);
+            }
+
+            @Override protected void
+            traverseBinaryOperation(BinaryOperation bo) {
+                candidates.add(bo);
+                super.traverseBinaryOperation(bo);
+            }
+
+            @Override protected void
+            traverseCast(Cast c) {
+                candidates.add(c);
+                super.traverseCast(c);
+            }
+
+            @Override protected void
+            traverseMethodInvocation(MethodInvocation mi) {
+                candidates.add(mi);
+                super.traverseMethodInvocation(mi);
+            }
+        };
+        for (BlockStatement bs : oss) traverser.visitBlockStatement(bs);
+
+        Set<LocalVariable> parameters = new HashSet<LocalVariable>();
+        for (FormalParameter fp : fd.formalParameters.parameters) {
+            if (!assignedNames.contains(fp.name)) parameters.add(this.getLocalVariable(fp));
+        }
+
+        // Group the candidates that are worth memorizing by their text (parentheses are retained by the parser, so
+        // "toString()" is unambiguous).
+        Map<String, List<Rvalue>> occurrences = new LinkedHashMap<String, List<Rvalue>>();
+        for (Rvalue rv : candidates) {
+            if (UnitCompiler.cost(rv) < 3 || !this.isCommonSubexpressionCandidate(rv, parameters)) continue;
+
+            String       key = rv.toString();
+            List<Rvalue> l   = (List<Rvalue>) occurrences.get(key);
+            if (l == null) occurrences.put(key, (l = new ArrayList<Rvalue>()));
+            l.add(rv);
+        }
+
+        // Allocate and initialize the local variables for the subexpressions that occur more than once.
+        Map<Rvalue, CommonSubexpression> result = new IdentityHashMap<Rvalue, CommonSubexpression>();
+        for (List<Rvalue> l : occurrences.values()) {
+            if (l.size() < 2) continue;
+
+            Rvalue              rv   = (Rvalue) l.get(0);
+            IClass              type = this.getType(rv);
+            CodeContext         cc   = this.getCodeContext();
+            CommonSubexpression cse  = new CommonSubexpression(
+                type,
+                cc.allocateLocalVariable(Descriptor.size(type.getDescriptor()), null, type),
+                cc.allocateLocalVariable((short) 1, null, IClass.BOOLEAN)
+            );
+
+            // Initialize both variables, as the JVM verifier requires.
+            this.writeOpcode(fd, (
+                type == IClass.LONG     ? Opcode.LCONST_0 :
+                type == IClass.FLOAT    ? Opcode.FCONST_0 :
+                type == IClass.DOUBLE   ? Opcode.DCONST_0 :
+                Opcode.ICONST_0
+            ));
+            this.store(fd, type, cse.value.getSlotIndex());
+            this.writeOpcode(fd, Opcode.ICONST_0);
+            this.store(fd, IClass.BOOLEAN, cse.computed.getSlotIndex());
+
+            for (Rvalue rv2 : l) result.put(rv2, cse);
+        }
+
+        return result.isEmpty() ? null : result;
+    }
+
+    /**
+     * @return Whether the <var>rv</var> is a non-constant, side-effect-free expression of primitive type; compile
+     *         errors are not reported, but only cause {@code false} to be returned
+     */
+    private boolean
+    isCommonSubexpressionCandidate(Rvalue rv, Set<LocalVariable> parameters) {
+
+        ErrorHandler   savedErrorHandler   = this.optionalCompileErrorHandler;
+        WarningHandler savedWarningHandler = this.optionalWarningHandler;
+        int            savedErrorCount     = this.compileErrorCount;
+        this.optionalCompileErrorHandler = null;
+        this.optionalWarningHandler      = null;
+        try {
+            if (this.getConstantValue(rv) != UnitCompiler.NOT_CONSTANT || !this.isPure(rv, parameters)) return false;
+
+            IClass type = this.getType(rv);
+            return type.isPrimitive() && type != IClass.VOID;
+        } catch (CompileException ce) {
+            return false;
+        } finally {
+            this.optionalCompileErrorHandler = savedErrorHandler;
+            this.optionalWarningHandler      = savedWarningHandler;
+            this.compileErrorCount           = savedErrorCount;
+        }
+    }
+
+    /**
+     * @return Whether evaluating the <var>rv</var> has no side effects, and yields the same value each time within
+     *         the current method
+     */
+    private boolean
+    isPure(Rvalue rv, Set<LocalVariable> parameters) throws CompileException {
+
+        if (rv instanceof Literal || rv instanceof SimpleConstant || rv instanceof ThisReference) return true;
+
+        if (rv instanceof ParenthesizedExpression) {
+            return this.isPure(((ParenthesizedExpression) rv).value, parameters);
+        }
+
+        if (rv instanceof UnaryOperation) return this.isPure(((UnaryOperation) rv).operand, parameters);
+
+        if (rv instanceof BinaryOperation) {
+            BinaryOperation bo = (BinaryOperation) rv;
+            return this.isPure(bo.lhs, parameters) && this.isPure(bo.rhs, parameters);
+        }
+
+        if (rv instanceof Cast) return this.isPure(((Cast) rv).value, parameters);
+
+        if (rv instanceof ConditionalExpression) {
+            ConditionalExpression ce = (ConditionalExpression) rv;
+            return (
+                this.isPure(ce.lhs, parameters)
+                && this.isPure(ce.mhs, parameters)
+                && this.isPure(ce.rhs, parameters)
+            );
+        }
+
+        if (rv instanceof AmbiguousName) {
+            Atom a = this.reclassify((AmbiguousName) rv);
+            return a instanceof Rvalue && this.isPure((Rvalue) a, parameters);
+        }
+
+        if (rv instanceof LocalVariableAccess) return parameters.contains(((LocalVariableAccess) rv).localVariable);
+
+        if (rv instanceof FieldAccess) {
+            FieldAccess fa = (FieldAccess) rv;
+            if (!fa.field.isFinal()) return false;
+            return fa.field.isStatic() || (fa.lhs instanceof Rvalue && this.isPure((Rvalue) fa.lhs, parameters));
+        }
+
+        if (rv instanceof MethodInvocation) {
+            MethodInvocation mi = (MethodInvocation) rv;
+
+            for (Rvalue argument : mi.arguments) {
+                if (!this.isPure(argument, parameters)) return false;
+            }
+
+            Atom target = mi.optionalTarget;
+            if (target instanceof AmbiguousName) target = this.reclassify((AmbiguousName) target);
+            if (target instanceof Rvalue && !this.isPure((Rvalue) target, parameters)) return false;
+
+            IMethod iMethod = this.findIMethod(mi);
+            if (iMethod.isStatic() && mi.arguments.length == 0) return false;
+
+            String className = Descriptor.toClassName(iMethod.getDeclaringIClass().getDescriptor());
+            return (
+                this.pureMethods.contains(className)
+                || this.pureMethods.contains(className + '.' + iMethod.getName())
+            );
+        }
+
+        return false;
+    }
+
+    /**
+     * Estimates the cost of evaluating the <var>rv</var>; a subexpression is only memorized if it is more expensive
+     * than checking and loading the memorized value.
+     */
+    private static int
+    cost(Rvalue rv) {
+        final int[] result = new int[1];
+        new Traverser<RuntimeException>() {
+
+            @Override protected void
+            traverseUnaryOperation(UnaryOperation uo) { result[0]++; super.traverseUnaryOperation(uo); }
+
+            @Override protected void
+            traverseBinaryOperation(BinaryOperation bo) { result[0]++; super.traverseBinaryOperation(bo); }
+
+            @Override protected void
+            traverseCast(Cast c) { result[0]++; super.traverseCast(c); }
+
+            @Override protected void
+            traverseMethodInvocation(MethodInvocation mi) { result[0] += 3; super.traverseMethodInvocation(mi); }
+        }.visitAtom(rv);
+        return result[0];
+    }
+
+    /**
+     * Generates code that computes the value of the common subexpression, unless that was already done, and then
+     * puts its value on the operand stack.
+     */
+    private IClass
+    compileGetCommonSubexpression(Rvalue rv, CommonSubexpression cse) throws CompileException {
+
+        Offset computed = this.getCodeContext().new Offset();
+        this.load(rv, IClass.BOOLEAN, cse.computed.getSlotIndex());
+        this.writeBranch(rv, Opcode.IFNE, computed);
+
+        this.compileContext(rv);
+        this.compileGet(rv);
+        this.store(rv, cse.type, cse.value.getSlotIndex());
+        this.writeOpcode(rv, Opcode.ICONST_1);
+        this.store(rv, IClass.BOOLEAN, cse.computed.getSlotIndex());
+
+        computed.set();
+        this.load(rv, cse.type, cse.value.getSlotIndex());
+        return cse.type;
+    }
+
+    /**
+     * The local variables that memorize the value of a common subexpression, and whether it was already computed.
+     */
+    private static
+    class CommonSubexpression {
+
+        final IClass            type;
+        final LocalVariableSlot value;
+        final LocalVariableSlot computed;
+
+        CommonSubexpression(IClass type, LocalVariableSlot value, LocalVariableSlot computed) {
+            this.type     = type;
+            this.value    = value;
+            this.computed = computed;
+        }
+    }
+
     @Nullable private CodeContext
     replaceCodeContext(@Nullable CodeContext newCodeContext) {
         CodeContext oldCodeContext = this.codeContext;
@@ -11733,10 +12705,16 @@ class UnitCompiler {
      * @return The type of the created array
      */
     private IClass
-    newArray(Locatable locatable, int dimExprCount, int dims, IClass componentType) {
+    newArray(Locatable locatable, int dimExprCount, int dims, IClass componentType) throws CompileException {
         if (dimExprCount == 1 && dims == 0 && componentType.isPrimitive()) {
 
             // "new <primitive>[<size>]"
+            this.allocateArrayExecutionBudget(locatable, (
+                componentType == IClass.LONG || componentType == IClass.DOUBLE ? 8 :
+                componentType == IClass.BOOLEAN || componentType == IClass.BYTE ? 1 :
+                componentType == IClass.CHAR || componentType == IClass.SHORT ? 2 :
+                4
+            ));
             this.writeOpcode(locatable, Opcode.NEWARRAY);
             this.writeByte((
                 componentType == IClass.BOOLEAN ? 4 :
@@ -11756,6 +12734,7 @@ class UnitCompiler {
 
             // "new <class-or-interface>[<size>]"
             // "new <anything>[<size>][]..."
+            this.allocateArrayExecutionBudget(locatable, 4);
             this.writeOpcode(locatable, Opcode.ANEWARRAY);
             this.writeConstantClassInfo(at.getDescriptor());
             return at.getArrayIClass(this.iClassLoader.TYPE_java_lang_Object);
@@ -11768,6 +12747,21 @@ class UnitCompiler {
             this.writeOpcode(locatable, Opcode.MULTIANEWARRAY);
             this.writeConstantClassInfo(at.getDescriptor());
             this.writeByte(dimExprCount);
+
+            // Notice: The execution budget is charged only after the array was created, because it is not possible to
+            // duplicate the <var>dimExprCount</var> sizes on the operand stack.
+            LocalVariableSlot bs = this.executionBudgetSlot;
+            if (this.allocationChecks && bs != null) {
+                this.writeOpcode(locatable, Opcode.DUP);
+                this.load(locatable, this.iClassLoader.TYPE_java_lang_Object, bs.getSlotIndex());
+                this.writeOpcode(locatable, Opcode.SWAP);
+                this.writeOpcode(locatable, Opcode.INVOKEVIRTUAL);
+                this.writeConstantMethodrefInfo(
+                    UnitCompiler.EXECUTION_BUDGET_FD,
+                    "allocateMultiArray",
+                    "(" + Descriptor.JAVA_LANG_OBJECT + ")V"
+                );
+            }
             return at;
         }
     }
@@ -11898,11 +12892,82 @@ class UnitCompiler {
     private boolean debugLines;
     private boolean debugVars;
 
+    /**
+     * {@code true} while {@link #checkUnit()} is executing.
+     */
+    private boolean checkOnly;
+
+    private boolean tickChecks;
+    private boolean allocationChecks;
+
+    /**
+     * The local variable that holds the {@link ExecutionBudget} of the current thread, while a function with execution
+     * budget checks is being compiled.
+     */
+    @Nullable private LocalVariableSlot executionBudgetSlot;
+
+    private static final String EXECUTION_BUDGET_FD = Descriptor.fromClassName(ExecutionBudget.class.getName());
+
+    private boolean profilingCounters;
+    private boolean profilingTimers;
+
+    /**
+     * The name of the method that is currently being compiled, iff it is instrumented for profiling, otherwise {@code
+     * null}.
+     */
+    @Nullable private String profiledMethodName;
+
+    /**
+     * The local variable that holds the {@link System#nanoTime()} of the method entry, while a method with profiling
+     * timers is being compiled.
+     */
+    @Nullable private LocalVariableSlot profilingStartSlot;
+    private int                         profiledMethodProbeId;
+
+    /**
+     * The names of the evaluators that this unit compiler registered {@link Profiler} probes for; the probes that
+     * were registered for these names by earlier compilations are removed.
+     */
+    private final Set<String> profiledEvaluatorNames = new HashSet<String>();
+
+    @Nullable private String instrumentedEvaluatorName;
+
+    /**
+     * Numbers the instrumented compilation units that have no "file name".
+     */
+    private static final AtomicInteger UNNAMED_EVALUATORS = new AtomicInteger();
+
+    /**
+     * The statement that, when compiled next, continues the current basic block (and thus needs no profiling probe).
+     */
+    @Nullable private BlockStatement basicBlockContinuation;
+
+    private static final String PROFILER_FD = Descriptor.fromClassName(Profiler.class.getName());
+
+    private boolean coverage;
+    private int     coverageHitMapId = -1;
+
+    private boolean            commonSubexpressionElimination;
+    private Collection<String> pureMethods = UnitCompiler.DEFAULT_PURE_METHODS;
+
+    /**
+     * The common subexpressions of the function that is currently being compiled, or {@code null}.
+     */
+    @Nullable private Map<Rvalue, CommonSubexpression> commonSubexpressions;
+
     private final Map<String /*staticMemberName*/, List<Object /*IField+IMethod+IClass*/>>
     singleStaticImports = new HashMap<String, List<Object>>();
 
     private final Collection<IClass> staticImportsOnDemand = new ArrayList<IClass>();
 
+    /**
+     * The variable arity invocables that {@link #findMostSpecificIInvocable(Locatable, IInvocable[], IClass[],
+     * boolean, Scope)} most recently selected, mapped to whether the arguments must be wrapped in an array. This
+     * information is kept here, and not in the {@link IClass.IInvocable}, because the {@link IClass}es may be shared
+     * by concurrent compilations.
+     */
+    private final Map<IClass.IInvocable, Boolean> argsNeedAdjust = new IdentityHashMap<IClass.IInvocable, Boolean>();
+
     /**
      * Loads a "{@code de.unkrig.jdisasm.Disassembler}" through reflection (to avoid a compile-time dependency) and
      * uses it to disassemble the given bytes to {@code System.out}.
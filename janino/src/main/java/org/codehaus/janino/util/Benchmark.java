@@ -34,6 +34,10 @@ import org.codehaus.commons.nullanalysis.Nullable;
  * Implements a scheme for benchmarking, i.e. for determining and/or reporting the time elapsed between the beginning
  * and the end of an activity.
  * <p>
+ *   For structured, per-phase measurements of compilations, use a {@link org.codehaus.janino.CompilationListener}
+ *   instead.
+ * </p>
+ * <p>
  *   The measurement is done by invoking {@link #begin()} and later calling {@link #end()} whichs returns the time
  *   elapsed since the call to {@link #begin()}.
  * </p>
@@ -0,0 +1,482 @@
+
+/*
+ * Janino - An embedded Java[TM] compiler
+ *
+ * Copyright (c) 2001-2010, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codehaus.janino.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.codehaus.commons.nullanalysis.Nullable;
+import org.codehaus.janino.JaninoRuntimeException;
+
+/**
+ * A persistent, append-only store of generated bytecode, keyed by strings (typically digests of the source code and
+ * the compiler settings), which allows for re-using cooked classes across JVM restarts.
+ * <p>
+ *   The archive is one file, which is memory-mapped when it is opened, and re-mapped when other processes have
+ *   appended to it. Looking up a key thus requires neither scanning, parsing nor compiling. The file layout is:
+ * </p>
+ * <pre>
+ *   archive := header { record }
+ *   header  := "JANINOBA" formatVersion:int generation:long
+ *   record  := keyLength:int key:utf8 bodyLength:int body crc32(key, body):int
+ *   body    := classCount:int { className:UTF classLength:int classBytes }
+ * </pre>
+ * <p>
+ *   Records are only ever appended. When an append would make the archive exceed the configured maximum size, then
+ *   the archive is <em>compacted</em>, i.e. rewritten with only the most recently added records, and with an
+ *   incremented generation, which other processes notice and then re-map the archive.
+ * </p>
+ * <p>
+ *   Writers in different JVMs exclude each other through a {@link FileLock} on a sidecar file named "{@code
+ *   <archive>.lock}"; readers do not lock at all, but ignore incompletely written records (the CRC does not match).
+ *   A torn record that a crashed writer left at the end of the archive is truncated by the next writer.
+ *   Within one JVM, at most one {@link BytecodeArchive} should be open per file.
+ * </p>
+ * <p>
+ *   Notice that the bytecode depends not only on the source code, but also on the classes that the source code
+ *   references (e.g. a constant that is inlined). The archive cannot know about these, so it is the responsibility
+ *   of the application to use a different archive file (or key) when these change, e.g. with each deployment.
+ * </p>
+ *
+ * @see org.codehaus.janino.SimpleCompiler#setBytecodeArchive(BytecodeArchive)
+ */
+public
+class BytecodeArchive {
+
+    private static final byte[] MAGIC          = { 'J', 'A', 'N', 'I', 'N', 'O', 'B', 'A' };
+    private static final int    FORMAT_VERSION = 1;
+    private static final int    HEADER_SIZE    = 8 + 4 + 8;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final File file;
+    private final File lockFile;
+    private final long maxSize;
+
+    // The current mapping of the archive file, and the generation that it has.
+    private ByteBuffer buffer     = BytecodeArchive.EMPTY;
+    private long       generation = -1;
+
+    // The keys of the records that were scanned so far, and where these records are.
+    private final Map<String /*key*/, Integer /*offset*/> index = new HashMap<String, Integer>();
+    private int                                           scanEnd = BytecodeArchive.HEADER_SIZE;
+
+    private BytecodeArchive(File file, long maxSize) {
+        this.file     = file;
+        this.lockFile = new File(file.getPath() + ".lock");
+        this.maxSize  = maxSize;
+    }
+
+    /**
+     * Opens the given archive file, or prepares its creation iff it does not yet exist.
+     *
+     * @param maxSize                   The size (in bytes) beyond which the archive is compacted
+     * @throws IllegalArgumentException <var>maxSize</var> is less than 1 KB or greater than {@link
+     *                                  Integer#MAX_VALUE}
+     * @throws IOException              The file exists, but is not a bytecode archive
+     */
+    public static BytecodeArchive
+    open(File file, long maxSize) throws IOException {
+
+        if (maxSize < 1024 || maxSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid maximum archive size " + maxSize);
+        }
+
+        BytecodeArchive result = new BytecodeArchive(file, maxSize);
+        result.refresh();
+        return result;
+    }
+
+    /**
+     * @return The classes that were stored under the given <var>key</var>, or {@code null} iff the archive has no
+     *         (intact) record with that key
+     */
+    @Nullable public synchronized Map<String /*className*/, byte[] /*bytecode*/>
+    get(String key) throws IOException {
+
+        Integer offset = (Integer) this.index.get(key);
+        if (offset == null) {
+
+            // Maybe another process has appended the key meanwhile.
+            this.refresh();
+            offset = (Integer) this.index.get(key);
+            if (offset == null) return null;
+        }
+
+        Map<String, byte[]> result = this.read(offset.intValue(), key);
+        if (result == null) {
+
+            // The record has changed since it was scanned; re-scan the entire archive on the next refresh.
+            this.index.clear();
+            this.scanEnd = BytecodeArchive.HEADER_SIZE;
+            this.buffer  = BytecodeArchive.EMPTY;
+        }
+        return result;
+    }
+
+    /**
+     * Stores the given classes under the given <var>key</var>, unless the archive already has a record with that
+     * key, or the record alone would exceed the archive's maximum size.
+     */
+    public synchronized void
+    put(String key, Map<String /*className*/, byte[] /*bytecode*/> classes) throws IOException {
+
+        byte[] record = BytecodeArchive.encode(key, classes);
+        if (BytecodeArchive.HEADER_SIZE + record.length > this.maxSize) return;
+
+        RandomAccessFile lockRaf = new RandomAccessFile(this.lockFile, "rw");
+        try {
+            FileLock lock = lockRaf.getChannel().lock();
+            try {
+
+                // Now that we own the lock, get up to date with what other processes have written.
+                this.refresh();
+                if (this.index.containsKey(key)) return;
+
+                long length = this.file.length();
+                if (length < BytecodeArchive.HEADER_SIZE) {
+                    this.create();
+                    length = BytecodeArchive.HEADER_SIZE;
+                } else
+                if (length > this.scanEnd) {
+
+                    // A writer crashed while appending a record; drop that torn record, because the records appended
+                    // after it would never be scanned.
+                    length = this.scanEnd;
+                }
+
+                if (length + record.length > this.maxSize) {
+                    if (!this.compact(this.maxSize / 2 - record.length)) return;
+                    length = this.file.length();
+                }
+
+                // Append the record.
+                RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+                try {
+                    raf.setLength(length);
+                    raf.seek(length);
+                    raf.write(record);
+                } finally {
+                    raf.close();
+                }
+
+                this.refresh();
+            } finally {
+                lock.release();
+            }
+        } finally {
+            lockRaf.close();
+        }
+    }
+
+    /**
+     * Releases the mapping of the archive file. Notice that the JVM unmaps the file only when the mapping is garbage
+     * collected.
+     */
+    public synchronized void
+    close() {
+        this.buffer = BytecodeArchive.EMPTY;
+        this.index.clear();
+        this.generation = -1;
+        this.scanEnd    = BytecodeArchive.HEADER_SIZE;
+    }
+
+    /**
+     * Re-maps the archive file iff it has changed, and adds the keys of all new records to the {@link #index}.
+     */
+    private void
+    refresh() throws IOException {
+
+        if (!this.file.exists()) {
+            this.close();
+            return;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+        try {
+            long length = raf.length();
+            if (length < BytecodeArchive.HEADER_SIZE) {
+                this.close();
+                return;
+            }
+
+            // Check the header.
+            byte[] magic = new byte[BytecodeArchive.MAGIC.length];
+            raf.readFully(magic);
+            for (int i = 0; i < magic.length; i++) {
+                if (magic[i] != BytecodeArchive.MAGIC[i]) {
+                    throw new IOException("\"" + this.file + "\" is not a bytecode archive");
+                }
+            }
+            int formatVersion = raf.readInt();
+            if (formatVersion != BytecodeArchive.FORMAT_VERSION) {
+                throw new IOException(
+                    "\"" + this.file + "\" has unsupported format version " + formatVersion
+                );
+            }
+            long generation = raf.readLong();
+
+            // Another process has compacted (or re-created) the archive?
+            if (generation != this.generation || length < this.scanEnd) {
+                this.index.clear();
+                this.generation = generation;
+                this.scanEnd    = BytecodeArchive.HEADER_SIZE;
+                this.buffer     = BytecodeArchive.EMPTY;
+            }
+
+            // Notice: A torn record may have been overwritten with a record of the same length, so scan even if the
+            // length has not changed.
+            if (Math.min(length, this.maxSize) != this.buffer.limit()) {
+                this.buffer = raf.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY,
+                    0,
+                    Math.min(length, this.maxSize)
+                );
+            }
+        } finally {
+            raf.close();
+        }
+
+        this.scan();
+    }
+
+    /**
+     * Adds the keys of the records between {@link #scanEnd} and the end of the mapping to the {@link #index}; stops at
+     * the first incomplete or corrupt record.
+     */
+    private void
+    scan() {
+        ByteBuffer b     = this.buffer;
+        int        limit = b.limit();
+        for (int p = this.scanEnd;;) {
+            if (p + 4 > limit) break;
+            int keyLength = b.getInt(p);
+            if (keyLength < 0 || p + 4 + keyLength + 4 > limit) break;
+            int bodyLength = b.getInt(p + 4 + keyLength);
+            if (bodyLength < 0 || p + 4 + keyLength + 4 + bodyLength + 4 > limit) break;
+            if (!BytecodeArchive.isIntact(b, p, keyLength, bodyLength)) break;
+
+            this.index.put(BytecodeArchive.utf8(b, p + 4, keyLength), p);
+
+            p            = p + 4 + keyLength + 4 + bodyLength + 4;
+            this.scanEnd = p;
+        }
+    }
+
+    /**
+     * @return The classes stored in the record at the given <var>offset</var>, or {@code null} iff that record does
+     *         not have the given <var>key</var>, or is torn or corrupt
+     */
+    @Nullable private Map<String, byte[]>
+    read(int offset, String key) throws IOException {
+        ByteBuffer b     = this.buffer;
+        int        limit = b.limit();
+
+        if (offset + 4 > limit) return null;
+        int keyLength = b.getInt(offset);
+        if (keyLength < 0 || offset + 4 + keyLength + 4 > limit) return null;
+        int bodyLength = b.getInt(offset + 4 + keyLength);
+        if (bodyLength < 0 || offset + 4 + keyLength + 4 + bodyLength + 4 > limit) return null;
+
+        if (!BytecodeArchive.utf8(b, offset + 4, keyLength).equals(key)) return null;
+
+        byte[] body = new byte[bodyLength];
+        ByteBuffer d = (ByteBuffer) b.duplicate();
+        d.position(offset + 4 + keyLength + 4);
+        d.get(body);
+
+        CRC32 crc = new CRC32();
+        crc.update(key.getBytes("UTF-8"));
+        crc.update(body);
+        if ((int) crc.getValue() != d.getInt()) return null;
+
+        DataInputStream     dis    = new DataInputStream(new ByteArrayInputStream(body));
+        Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+        for (int i = dis.readInt(); i > 0; i--) {
+            String className = dis.readUTF();
+            byte[] bytecode  = new byte[dis.readInt()];
+            dis.readFully(bytecode);
+            result.put(className, bytecode);
+        }
+        return result;
+    }
+
+    /**
+     * Creates a new, empty archive file.
+     */
+    private void
+    create() throws IOException {
+        FileOutputStream fos = new FileOutputStream(this.file);
+        try {
+            fos.write(BytecodeArchive.header(this.generation + 1));
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * Rewrites the archive with the most recently added records, up to a total size of <var>budget</var>, and
+     * with an incremented generation.
+     *
+     * @return Whether the compacted archive could replace the original archive file
+     */
+    private boolean
+    compact(long budget) throws IOException {
+
+        // Sort the live records by offset, newest first.
+        List<Integer> offsets = new ArrayList<Integer>(this.index.values());
+        Collections.sort(offsets, Collections.reverseOrder());
+
+        // Determine which of them fit into the budget.
+        ByteBuffer    b    = this.buffer;
+        List<Integer> kept = new ArrayList<Integer>();
+        for (Integer offset : offsets) {
+            int p = offset.intValue(), size = BytecodeArchive.recordSize(b, p);
+            if (size > budget) break;
+            budget -= size;
+            kept.add(0, offset);
+        }
+
+        File tmp = File.createTempFile(this.file.getName(), ".tmp", this.file.getAbsoluteFile().getParentFile());
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                fos.write(BytecodeArchive.header(this.generation + 1));
+                for (Integer offset : kept) {
+                    int    p      = offset.intValue();
+                    byte[] record = new byte[BytecodeArchive.recordSize(b, p)];
+                    ByteBuffer d = (ByteBuffer) b.duplicate();
+                    d.position(p);
+                    d.get(record);
+                    fos.write(record);
+                }
+            } finally {
+                fos.close();
+            }
+
+            // Atomically replace the archive file, which fails on some platforms (notably on Windows, where the
+            // archive file is mapped). In that case, the archive simply stops growing.
+            if (!tmp.renameTo(this.file)) return false;
+        } finally {
+            tmp.delete();
+        }
+
+        this.refresh();
+        return true;
+    }
+
+    /**
+     * @return Whether the CRC of the record at the given <var>offset</var> matches its key and body
+     */
+    private static boolean
+    isIntact(ByteBuffer b, int offset, int keyLength, int bodyLength) {
+        byte[]     ba = new byte[4 + keyLength + 4 + bodyLength];
+        ByteBuffer d  = (ByteBuffer) b.duplicate();
+        d.position(offset);
+        d.get(ba);
+
+        CRC32 crc = new CRC32();
+        crc.update(ba, 4, keyLength);
+        crc.update(ba, 4 + keyLength + 4, bodyLength);
+        return (int) crc.getValue() == d.getInt();
+    }
+
+    private static int
+    recordSize(ByteBuffer b, int offset) {
+        int keyLength  = b.getInt(offset);
+        int bodyLength = b.getInt(offset + 4 + keyLength);
+        return 4 + keyLength + 4 + bodyLength + 4;
+    }
+
+    private static byte[]
+    header(long generation) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream      dos  = new DataOutputStream(baos);
+        dos.write(BytecodeArchive.MAGIC);
+        dos.writeInt(BytecodeArchive.FORMAT_VERSION);
+        dos.writeLong(generation);
+        return baos.toByteArray();
+    }
+
+    private static byte[]
+    encode(String key, Map<String, byte[]> classes) throws IOException {
+
+        ByteArrayOutputStream bodyBaos = new ByteArrayOutputStream();
+        DataOutputStream      bodyDos  = new DataOutputStream(bodyBaos);
+        bodyDos.writeInt(classes.size());
+        for (Map.Entry<String, byte[]> e : classes.entrySet()) {
+            byte[] bytecode = (byte[]) e.getValue();
+            bodyDos.writeUTF((String) e.getKey());
+            bodyDos.writeInt(bytecode.length);
+            bodyDos.write(bytecode);
+        }
+        byte[] body     = bodyBaos.toByteArray();
+        byte[] keyBytes = key.getBytes("UTF-8");
+
+        CRC32 crc = new CRC32();
+        crc.update(keyBytes);
+        crc.update(body);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream      dos  = new DataOutputStream(baos);
+        dos.writeInt(keyBytes.length);
+        dos.write(keyBytes);
+        dos.writeInt(body.length);
+        dos.write(body);
+        dos.writeInt((int) crc.getValue());
+        return baos.toByteArray();
+    }
+
+    private static String
+    utf8(ByteBuffer b, int offset, int length) {
+        byte[]     ba = new byte[length];
+        ByteBuffer d  = (ByteBuffer) b.duplicate();
+        d.position(offset);
+        d.get(ba);
+        try {
+            return new String(ba, "UTF-8");
+        } catch (IOException ioe) {
+            throw new JaninoRuntimeException("SNO: UTF-8 not supported", ioe);
+        }
+    }
+}
@@ -310,6 +310,31 @@ class ClassFile implements Annotatable {
         return cci.getName(this).replace('/', '.');
     }
 
+    /**
+     * @return The fully qualified name of the superclass of this class, e.g. "java.lang.Object", or {@code null} iff
+     *         this is class {@link Object}
+     */
+    @Nullable public String
+    getSuperclassName() {
+        if (this.superclass == 0) return null;
+        ConstantClassInfo cci = (ConstantClassInfo) this.getConstantPoolInfo(this.superclass);
+        return cci.getName(this).replace('/', '.');
+    }
+
+    /**
+     * @return The fully qualified names of the interfaces that this class implements, resp. that this interface
+     *         extends
+     */
+    public String[]
+    getInterfaceNames() {
+        String[] result = new String[this.interfaces.length];
+        for (int i = 0; i < result.length; i++) {
+            ConstantClassInfo cci = (ConstantClassInfo) this.getConstantPoolInfo(this.interfaces[i]);
+            result[i] = cci.getName(this).replace('/', '.');
+        }
+        return result;
+    }
+
     /**
      * Sets the major and minor class file version numbers (JVMS 4.1). The class file version defaults to the JDK 1.1
      * values (45.3) which execute on virtually every JVM.
@@ -26,10 +26,18 @@
 
 package org.codehaus.janino.tests;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
@@ -47,12 +55,16 @@ import org.codehaus.commons.compiler.ICookable;
 import org.codehaus.commons.compiler.Location;
 import org.codehaus.commons.compiler.WarningHandler;
 import org.codehaus.commons.nullanalysis.Nullable;
+import org.codehaus.janino.CachingJavaSourceClassLoader;
+import org.codehaus.janino.CompileDaemon;
+import org.codehaus.janino.CompileDaemonClient;
 import org.codehaus.janino.ClassLoaderIClassLoader;
 import org.codehaus.janino.Compiler;
 import org.codehaus.janino.IClassLoader;
 import org.codehaus.janino.Java;
 import org.codehaus.janino.Java.CompilationUnit;
 import org.codehaus.janino.Parser;
+import org.codehaus.janino.ReloadingJavaSourceClassLoader;
 import org.codehaus.janino.Scanner;
 import org.codehaus.janino.SimpleCompiler;
 import org.codehaus.janino.UnitCompiler;
@@ -67,6 +79,7 @@ import org.codehaus.janino.util.resource.Resource;
 import org.codehaus.janino.util.resource.ResourceCreator;
 import org.codehaus.janino.util.resource.ResourceFinder;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -388,6 +401,186 @@ class CompilerTest {
         s.getClassLoader().loadClass("a.TestLocalVarTable");
     }
 
+    @Test public void
+    testDefinitionLookup() throws Exception {
+        SimpleCompiler sc = new SimpleCompiler();
+        try {
+            sc.setDefinitionLookup(MethodHandles.lookup());
+        } catch (UnsupportedOperationException uoe) {
+            Assume.assumeNoException(uoe);
+        }
+
+        // Notice: The subclass is declared BEFORE its superclass.
+        sc.cook(
+            ""
+            + "package org.codehaus.janino.tests;\n"
+            + "public class LookupDefined1 extends LookupDefined2 {\n"
+            + "    public static int meth() { return CompilerTest.packagePrivateMethod() + 1; }\n"
+            + "}\n"
+            + "class LookupDefined2 {}\n"
+        );
+
+        Assert.assertSame(CompilerTest.class.getClassLoader(), sc.getClassLoader());
+        Class<?> c = sc.getClassLoader().loadClass("org.codehaus.janino.tests.LookupDefined1");
+        Assert.assertEquals(8, c.getMethod("meth").invoke(null));
+    }
+
+    static int
+    packagePrivateMethod() { return 7; }
+
+    @Test public void
+    testCachingJavaSourceClassLoaderDigests() throws Exception {
+        Map<String, byte[]> sources = new HashMap<String, byte[]>();
+        Map<String, byte[]> cache   = new HashMap<String, byte[]>();
+
+        // Notice: All resources have the same modification time.
+        sources.put("pkg/A.java", "package pkg; public class A { public static int meth() { return 1; } }".getBytes());
+        Assert.assertEquals(1, CompilerTest.loadCachedAndInvoke(sources, cache, 0));
+        Assert.assertTrue(cache.containsKey("pkg/A.class"));
+        Assert.assertTrue(cache.containsKey("pkg/" + CachingJavaSourceClassLoader.DIGESTS_RESOURCE_NAME));
+
+        // The cached class file is up-to-date.
+        Assert.assertEquals(1, CompilerTest.loadCachedAndInvoke(sources, cache, 1));
+
+        // The source has changed, so the cached class file is stale.
+        sources.put("pkg/A.java", "package pkg; public class A { public static int meth() { return 2; } }".getBytes());
+        Assert.assertEquals(2, CompilerTest.loadCachedAndInvoke(sources, cache, 0));
+        Assert.assertEquals(2, CompilerTest.loadCachedAndInvoke(sources, cache, 1));
+    }
+
+    @Test public void
+    testReloadingJavaSourceClassLoader() throws Exception {
+        Map<String, byte[]> sources = new HashMap<String, byte[]>();
+        sources.put("pkg/A.java", (
+            "package pkg; public class A { public static int meth() { return B.meth(); } }"
+        ).getBytes());
+        sources.put("pkg/B.java", "package pkg; public class B { public static int meth() { return 1; } }".getBytes());
+        sources.put("pkg/C.java", "package pkg; public class C { public static int meth() { return 3; } }".getBytes());
+
+        ReloadingJavaSourceClassLoader rjscl = new ReloadingJavaSourceClassLoader(
+            CompilerTest.class.getClassLoader(), // parentClassLoader
+            new MapResourceFinder(sources),      // sourceFinder
+            null                                 // optionalCharacterEncoding
+        );
+        Class<?> a0 = rjscl.loadClass("pkg.A");
+        Class<?> c0 = rjscl.loadClass("pkg.C");
+        Assert.assertEquals(1, a0.getMethod("meth").invoke(null));
+        Assert.assertEquals(3, c0.getMethod("meth").invoke(null));
+
+        // Nothing has changed.
+        Assert.assertTrue(rjscl.reload().isEmpty());
+        Assert.assertEquals(0, rjscl.getGeneration());
+
+        // "B" has changed, so "A", which depends on "B", must also be reloaded, but not "C".
+        sources.put("pkg/B.java", "package pkg; public class B { public static int meth() { return 2; } }".getBytes());
+        Assert.assertEquals(new HashSet<Object>(Arrays.asList("pkg.A", "pkg.B")), rjscl.reload());
+        Assert.assertEquals(1, rjscl.getGeneration());
+
+        Class<?> a1 = rjscl.loadClass("pkg.A");
+        Assert.assertNotSame(a0, a1);
+        Assert.assertEquals(2, a1.getMethod("meth").invoke(null));
+        Assert.assertSame(c0, rjscl.loadClass("pkg.C"));
+
+        // The old version of "A" is unaffected.
+        Assert.assertEquals(1, a0.getMethod("meth").invoke(null));
+    }
+
+    @Test public void
+    testCompileDaemon() throws Exception {
+        File dir = File.createTempFile("janino", ".tmp");
+        dir.delete();
+        new File(dir, "src/pkg").mkdirs();
+        FileOutputStream fos = new FileOutputStream(new File(dir, "src/pkg/A.java"));
+        try {
+            fos.write("package pkg; public class A { java.util.List<String> l; }".getBytes());
+        } finally {
+            fos.close();
+        }
+
+        final CompileDaemon daemon = new CompileDaemon(0, 0, 10);
+        Thread              thread = new Thread() {
+
+            @Override public void
+            run() {
+                try {
+                    daemon.run();
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                }
+            }
+        };
+        thread.start();
+        try {
+            String[]              args = { "-d", "out", "-sourcepath", "src", "src/pkg/A.java" };
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+            // Relative file names are resolved against the client's working directory.
+            Assert.assertEquals(0, CompileDaemonClient.compile(daemon.getPort(), dir, args, baos, baos));
+            Assert.assertTrue(new File(dir, "out/pkg/A.class").isFile());
+            Assert.assertEquals(1, daemon.getWarmClassPathCount());
+
+            // The second compilation re-uses the warm class path.
+            Assert.assertEquals(0, CompileDaemonClient.compile(daemon.getPort(), dir, args, baos, baos));
+            Assert.assertEquals(1, daemon.getWarmClassPathCount());
+
+            // Compile errors are reported through the client's error output.
+            args[args.length - 1] = "src/pkg/B.java";
+            Assert.assertEquals(1, CompileDaemonClient.compile(daemon.getPort(), dir, args, baos, baos));
+            Assert.assertTrue(baos.toString(), baos.toString().contains("B.java"));
+
+            // Only the current user can read the daemon's token.
+            File tokenFile = CompileDaemon.getTokenFile(daemon.getPort());
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                Assert.assertEquals(
+                    "rw-------",
+                    PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile.toPath()))
+                );
+            }
+
+            // Requests without the daemon's token are rejected.
+            FileOutputStream tfos = new FileOutputStream(tokenFile);
+            try {
+                tfos.write("wrong".getBytes());
+            } finally {
+                tfos.close();
+            }
+            args[args.length - 1] = "src/pkg/A.java";
+            new File(dir, "out/pkg/A.class").delete();
+            try {
+                CompileDaemonClient.compile(daemon.getPort(), dir, args, baos, baos);
+                Assert.fail("EOFException expected");
+            } catch (EOFException eofe) {
+                ;
+            }
+            Assert.assertFalse(new File(dir, "out/pkg/A.class").exists());
+        } finally {
+            daemon.close();
+            thread.join();
+            Assert.assertFalse(CompileDaemon.getTokenFile(daemon.getPort()).exists());
+            new File(dir, "out/pkg/A.class").delete();
+            new File(dir, "out/pkg").delete();
+            new File(dir, "out").delete();
+            new File(dir, "src/pkg/A.java").delete();
+            new File(dir, "src/pkg").delete();
+            new File(dir, "src").delete();
+            dir.delete();
+        }
+    }
+
+    private static Object
+    loadCachedAndInvoke(Map<String, byte[]> sources, Map<String, byte[]> cache, int expectedValidCount)
+    throws Exception {
+        CachingJavaSourceClassLoader cl = new CachingJavaSourceClassLoader(
+            CompilerTest.class.getClassLoader(), // parentClassLoader
+            new MapResourceFinder(sources),      // sourceFinder
+            null,                                // optionalCharacterEncoding
+            new MapResourceFinder(cache),        // classFileCacheResourceFinder
+            new MapResourceCreator(cache)        // classFileCacheResourceCreator
+        );
+        Assert.assertEquals(expectedValidCount, cl.preValidatePackage("pkg"));
+        return cl.loadClass("pkg.A").getMethod("meth").invoke(null);
+    }
+
     public static List<ClassFile>
     doCompile(
         boolean   debugSource,
@@ -26,16 +26,41 @@
 
 package org.codehaus.janino.tests;
 
+import java.io.File;
 import java.io.StringReader;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.codehaus.commons.compiler.CompileException;
+import org.codehaus.commons.compiler.ErrorHandler;
 import org.codehaus.commons.compiler.IExpressionEvaluator;
+import org.codehaus.commons.compiler.Location;
+import org.codehaus.commons.nullanalysis.Nullable;
+import org.codehaus.janino.BulkExpressionEvaluator;
+import org.codehaus.janino.CompilationListener;
+import org.codehaus.janino.CompilationMetrics;
+import org.codehaus.janino.CompilationMetrics.Phase;
+import org.codehaus.janino.DataflowEngine;
+import org.codehaus.janino.Dependencies;
 import org.codehaus.janino.ExpressionEvaluator;
+import org.codehaus.janino.ExpressionEvaluatorTemplate;
+import org.codehaus.janino.ExpressionShapeCache;
+import org.codehaus.janino.PredicateSetEvaluator;
 import org.codehaus.janino.Scanner;
 import org.codehaus.janino.ScriptEvaluator;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 
 // CHECKSTYLE JavadocMethod:OFF
@@ -66,6 +91,603 @@ class ExpressionEvaluatorTest {
             ))))
         );
         Assert.assertEquals(new HashSet<String>(Arrays.asList("b", "d")), parameterNames);
+
+        // The formal parameters of a local class do not hide the script parameter of the same name.
+        Assert.assertEquals(
+            Arrays.asList("x"),
+            Arrays.asList(ScriptEvaluator.guessParameterNames(new Scanner(null, new StringReader(
+                "class Helper { int f(int x) { return x * 2; } } return new Helper().f(x);"
+            ))))
+        );
+
+        // Neither does a local variable that is declared after the use, in a nested block.
+        Assert.assertEquals(
+            Arrays.asList("a"),
+            Arrays.asList(ScriptEvaluator.guessParameterNames(new Scanner(null, new StringReader(
+                "System.out.println(a); { int a = 3; }"
+            ))))
+        );
+
+        // Nor the fields of an anonymous class.
+        Assert.assertEquals(
+            Arrays.asList("n"),
+            Arrays.asList(ExpressionEvaluator.guessParameterNames(new Scanner(null, new StringReader(
+                "new Object() { int n = 7; public int hashCode() { return n; } }.hashCode() + n"
+            ))))
+        );
+    }
+
+    @Test public void
+    testDependencies() throws Exception {
+        Dependencies d = Dependencies.analyzeExpression(new Scanner(null, new StringReader(
+            ""
+            + "import java.util.List;\n"
+            + "Math.max(a.x, b) + s.length() + java.lang.System.out.hashCode() + ((String) o).length()"
+            + " + (o instanceof java.util.Map ? c[3] : 0)"
+        )));
+        Assert.assertEquals(Arrays.asList("a", "b", "s", "o", "c"), new ArrayList<String>(d.getFreeVariables()));
+        Assert.assertEquals(
+            new HashSet<String>(Arrays.asList("java.util.List", "Math", "java.lang.System", "String", "java.util.Map")),
+            d.getReferencedTypes()
+        );
+        Assert.assertEquals(
+            new HashSet<String>(Arrays.asList("Math.max", "length", "hashCode")),
+            d.getInvokedMethods()
+        );
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("x", "java.lang.System.out")), d.getAccessedFields());
+
+        // Names declared within the script are not free in their scope.
+        d = Dependencies.analyzeScript(new Scanner(null, new StringReader(
+            ""
+            + "class Item { int price; }\n"
+            + "java.util.List<Item> result = new java.util.ArrayList<Item>();\n"
+            + "for (Item i : items) {\n"
+            + "    try {\n"
+            + "        if (i.price > limit) result.add(i);\n"
+            + "    } catch (RuntimeException e) {\n"
+            + "        log(e, i.name);\n"
+            + "    }\n"
+            + "}\n"
+            + "return result;\n"
+        )));
+        Assert.assertEquals(Arrays.asList("items", "limit"), new ArrayList<String>(d.getFreeVariables()));
+        Assert.assertEquals(
+            new HashSet<String>(Arrays.asList("java.util.List", "java.util.ArrayList", "RuntimeException")),
+            d.getReferencedTypes()
+        );
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("add", "log")), d.getInvokedMethods());
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("price", "name")), d.getAccessedFields());
+    }
+
+    @Test public void
+    testStringConcatenation() throws Exception {
+
+        ExpressionEvaluator ee = new ExpressionEvaluator();
+        ee.setParameters(
+            new String[] { "s", "i", "c", "d", "o" },
+            new Class[] { String.class, int.class, char.class, double.class, Object.class }
+        );
+        ee.setExpressionType(String.class);
+        ee.cook("s + \"<\" + i + c + \">\" + \"-\" + d + o + s");
+
+        Assert.assertEquals("abc<7x>-1.5nullabc", ee.evaluate(new Object[] { "abc", 7, 'x', 1.5, null }));
+        Assert.assertEquals("null<-1\0>-0.0[]null", ee.evaluate(new Object[] { null, -1, '\0', 0.0, "[]" }));
+    }
+
+    @Test public void
+    testCheck() throws Exception {
+
+        ExpressionEvaluator ee = new ExpressionEvaluator();
+        ee.setParameters(new String[] { "a", "b" }, new Class[] { int.class, String.class });
+        ee.setExpressionType(int.class);
+
+        // Checking does not cook.
+        ee.check("a + b.length()");
+        try {
+            ee.evaluate(new Object[] { 1, "x" });
+            Assert.fail("IllegalStateException expected");
+        } catch (IllegalStateException ise) {
+            ;
+        }
+
+        try {
+            ee.check("a + b.size()");
+            Assert.fail("CompileException expected");
+        } catch (CompileException ce) {
+            Assert.assertTrue(ce.getMessage(), ce.getMessage().contains("size"));
+        }
+
+        // Compile errors are reported through the error handler.
+        final int[] errorCount = new int[1];
+        ee.setCompileErrorHandler(new ErrorHandler() {
+
+            @Override public void
+            handleError(String message, @Nullable Location optionalLocation) { errorCount[0]++; }
+        });
+        try {
+            ee.check("b + a");
+            Assert.fail("CompileException expected");
+        } catch (CompileException ce) {
+            Assert.assertEquals(1, errorCount[0]);
+        }
+
+        // Checking does not change the state of a cooked evaluator.
+        ee.setCompileErrorHandler(null);
+        ee.cook("a * 2");
+        ee.check("a * 3");
+        Assert.assertEquals(14, ee.evaluate(new Object[] { 7, null }));
+    }
+
+    @Test public void
+    testBulkExpressionEvaluator() throws Exception {
+
+        // So many expressions with distinct string constants don't fit into one class.
+        int          n               = 20000;
+        String[]     expressions     = new String[n];
+        Class<?>[]   expressionTypes = new Class[n];
+        String[][]   parameterNames  = new String[n][];
+        Class<?>[][] parameterTypes  = new Class[n][];
+        for (int i = 0; i < n; i++) {
+            expressions[i]     = "s + \"#" + i + "\"";
+            expressionTypes[i] = String.class;
+            parameterNames[i]  = new String[] { "s" };
+            parameterTypes[i]  = new Class[] { String.class };
+        }
+
+        BulkExpressionEvaluator bee = new BulkExpressionEvaluator();
+        bee.setExpressionTypes(expressionTypes);
+        bee.setParameters(parameterNames, parameterTypes);
+        bee.cook(expressions);
+
+        Assert.assertTrue(bee.getClassCount() > 1);
+        Assert.assertTrue(bee.getClassCount() < 10);
+        Assert.assertEquals("x#0", bee.evaluate(0, new Object[] { "x" }));
+        Assert.assertEquals("y#12345", bee.evaluate(12345, new Object[] { "y" }));
+        Assert.assertEquals("z#19999", bee.evaluate(n - 1, new Object[] { "z" }));
+
+        // Compile errors are reported for the offending expression.
+        bee.setExpressionTypes(new Class[] { int.class, int.class });
+        bee.setParameters(new String[][] { { "a" }, { "a" } }, new Class[][] { { int.class }, { int.class } });
+        try {
+            bee.cook(new String[] { "expr0", "expr1" }, new String[] { "a + 1", "a.b" });
+            Assert.fail("CompileException expected");
+        } catch (CompileException ce) {
+            Assert.assertTrue(ce.getMessage(), ce.getMessage().contains("expr1"));
+        }
+    }
+
+    @Test public void
+    testTemplate() throws Exception {
+
+        final ExpressionEvaluatorTemplate template = new ExpressionEvaluatorTemplate(
+            new String[] { "java.util.*", "static java.lang.Math.max" }, // optionalDefaultImports
+            null,                                                        // optionalExtendedClass
+            new Class[0],                                                // implementedInterfaces
+            int.class,                                                   // expressionType
+            new String[] { "list", "n" },                                // parameterNames
+            new Class[] { List.class, int.class },                       // parameterTypes
+            new Class[0],                                                // thrownExceptions
+            null                                                         // optionalParentClassLoader
+        );
+
+        // Cook expressions from the same template in parallel.
+        final Throwable[] failure = new Throwable[1];
+        Thread[]          threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int offset = i;
+            threads[i] = new Thread() {
+
+                @Override public void
+                run() {
+                    try {
+                        for (int j = 0; j < 20; j++) {
+                            ExpressionEvaluator ee = template.cook("max(list.size(), n) + " + (offset + j));
+                            Assert.assertEquals(
+                                3 + offset + j,
+                                ee.evaluate(new Object[] { new ArrayList<Object>(Arrays.asList(1, 2, 3)), 2 })
+                            );
+                        }
+                    } catch (Throwable t) { // SUPPRESS CHECKSTYLE IllegalCatch
+                        failure[0] = t;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) thread.join();
+        if (failure[0] != null) throw new AssertionError(failure[0]);
+
+        try {
+            template.cook("Collections.nonExistingMethod()");
+            Assert.fail("CompileException expected");
+        } catch (CompileException ce) {
+            ;
+        }
+    }
+
+    @Test public void
+    testTemplateVarargs() throws Exception {
+
+        final ExpressionEvaluatorTemplate template = new ExpressionEvaluatorTemplate(
+            null,                              // optionalDefaultImports
+            null,                              // optionalExtendedClass
+            new Class[0],                      // implementedInterfaces
+            String.class,                      // expressionType
+            new String[] { "x" },              // parameterNames
+            new Class[] { Object[].class },    // parameterTypes
+            new Class[0],                      // thrownExceptions
+            null                               // optionalParentClassLoader
+        );
+
+        // The same variable arity method is invoked with and without wrapping of the arguments in an array, which
+        // must not interfere across threads.
+        final Throwable[] failure = new Throwable[1];
+        Thread[]          threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final boolean wrap = i % 2 == 0;
+            threads[i] = new Thread() {
+
+                @Override public void
+                run() {
+                    try {
+                        for (int j = 0; j < 200 && failure[0] == null; j++) {
+                            ExpressionEvaluator ee = template.cook(
+                                wrap
+                                ? "String.format(\"%s-%s\", \"a\", \"b" + j + "\")"
+                                : "String.format(\"%s-%s\", x)"
+                            );
+                            Assert.assertEquals(
+                                wrap ? "a-b" + j : "c-d",
+                                ee.evaluate(new Object[] { new Object[] { "c", "d" } })
+                            );
+                        }
+                    } catch (Throwable t) { // SUPPRESS CHECKSTYLE IllegalCatch
+                        failure[0] = t;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) thread.join();
+        if (failure[0] != null) throw new AssertionError(failure[0]);
+    }
+
+    @Test public void
+    testPredicateSet() throws Exception {
+
+        String[] predicates = {
+            "probe(calls, x == 3) && probe(calls, s.startsWith(\"a\"))",
+            "(probe(calls, x == 3)) && s.length() > 10",
+            "!probe(calls, s.startsWith(\"a\"))",
+            "probe(calls, x == 3) ? probe(calls, s.startsWith(\"a\")) : x < 0",
+            "s != null && probe(calls, s.startsWith(\"a\")) || x > 100",
+        };
+        String[]   parameterNames = { "x", "s", "calls" };
+        Class<?>[] parameterTypes = { int.class, String.class, int[].class };
+
+        PredicateSetEvaluator pse = new PredicateSetEvaluator();
+        pse.setParameters(parameterNames, parameterTypes);
+        pse.setDefaultImports(new String[] { "static " + ExpressionEvaluatorTest.class.getName() + ".probe" });
+        pse.cook(predicates);
+        Assert.assertEquals(5, pse.getPredicateCount());
+        Assert.assertEquals(11, pse.getTestCount());
+
+        for (Object[] args : new Object[][] {
+            { 3, "abc" }, { 3, "xyz" }, { 4, "abc" }, { 3, "abcdefghijklm" }, { -1, "x" }, { 200, "b" },
+        }) {
+
+            // Evaluate each predicate separately.
+            int[]  separateCalls = new int[1];
+            BitSet expected      = new BitSet();
+            for (int i = 0; i < predicates.length; i++) {
+                ExpressionEvaluator ee = new ExpressionEvaluator();
+                ee.setParameters(parameterNames, parameterTypes);
+                ee.setDefaultImports(new String[] { "static " + ExpressionEvaluatorTest.class.getName() + ".probe" });
+                ee.setExpressionType(boolean.class);
+                ee.cook(predicates[i]);
+                if ((Boolean) ee.evaluate(new Object[] { args[0], args[1], separateCalls })) expected.set(i);
+            }
+
+            // Evaluate the predicate set; each of the two probed tests must be computed at most once.
+            int[] calls = new int[1];
+            Assert.assertEquals(
+                Arrays.toString(args),
+                expected,
+                pse.evaluate(new Object[] { args[0], args[1], calls })
+            );
+            Assert.assertTrue(Arrays.toString(args), calls[0] <= 2);
+            Assert.assertTrue(Arrays.toString(args), calls[0] < separateCalls[0]);
+        }
+    }
+
+    @Test public void
+    testPredicateSetShortCircuit() throws Exception {
+
+        PredicateSetEvaluator pse = new PredicateSetEvaluator();
+        pse.setParameters(new String[] { "s" }, new Class[] { String.class });
+        pse.cook(new String[] {
+            "s != null && s.startsWith(\"a\")",
+            "s != null && !s.startsWith(\"a\")",
+            "s == null || s.startsWith(\"a\")",
+        });
+        Assert.assertEquals(6, pse.getTestCount());
+
+        Assert.assertEquals("{2}",    pse.evaluate(new Object[] { null }).toString());
+        Assert.assertEquals("{0, 2}", pse.evaluate(new Object[] { "abc" }).toString());
+        Assert.assertEquals("{1}",    pse.evaluate(new Object[] { "xyz" }).toString());
+    }
+
+    @Test public void
+    testLargePredicateSet() throws Exception {
+
+        // Enough predicates to require several generated methods.
+        String[] predicates = new String[5000];
+        for (int i = 0; i < predicates.length; i++) {
+            predicates[i] = "x % " + (1 + i % 10) + " == 0 && y == " + (i / 10) + " || x == -" + i;
+        }
+
+        PredicateSetEvaluator pse = new PredicateSetEvaluator();
+        pse.setParameters(new String[] { "x", "y" }, new Class[] { int.class, int.class });
+        pse.cook(predicates);
+        Assert.assertEquals(10 + 500 + 5000 + 5000 + 5000, pse.getTestCount());
+
+        BitSet expected = new BitSet();
+        for (int i = 70; i < 80; i++) {
+            if (12 % (1 + i % 10) == 0) expected.set(i);
+        }
+        Assert.assertEquals(expected, pse.evaluate(new Object[] { 12, 7 }));
+
+        expected.clear();
+        expected.set(4321);
+        Assert.assertEquals(expected, pse.evaluate(new Object[] { -4321, 9999 }));
+    }
+
+    @Test public void
+    testPredicateSetCompileError() throws Exception {
+
+        PredicateSetEvaluator pse = new PredicateSetEvaluator();
+        pse.setParameters(new String[] { "x" }, new Class[] { int.class });
+        try {
+            pse.cook(new String[] { "a.txt", "b.txt" }, new String[] { "x == 1", "x + 1" });
+            Assert.fail("CompileException expected");
+        } catch (CompileException ce) {
+            Location loc = ce.getLocation();
+            Assert.assertNotNull(loc);
+            Assert.assertEquals("b.txt", loc.getFileName());
+        }
+    }
+
+    @Test public void
+    testDataflowEngine() throws Exception {
+
+        DataflowEngine engine = new DataflowEngine();
+        engine.setFormula("a", "b * c + d");
+        engine.setFormula("s", "Math.signum(a)");
+        engine.setFormula("t", "s * 10 /* Comment */");
+        engine.setInput("b", 2);
+        engine.setInput("c", 3);
+        engine.setInput("d", 4);
+        Assert.assertEquals(10.0, engine.get("a"), 0.0);
+        Assert.assertEquals(10.0, engine.get("t"), 0.0);
+        Assert.assertEquals(Arrays.asList("b", "c", "d"), Arrays.asList(engine.getInputs("a")));
+
+        // Only the affected formulas are recomputed, and an unchanged value does not propagate.
+        engine.setInput("d", 5);
+        Assert.assertEquals(2, engine.recompute());
+        Assert.assertEquals(11.0, engine.get("a"), 0.0);
+        engine.setInput("d", 5);
+        Assert.assertEquals(0, engine.recompute());
+        engine.setInput("b", -2);
+        Assert.assertEquals(3, engine.recompute());
+        Assert.assertEquals(-10.0, engine.get("t"), 0.0);
+
+        // Formulas can be replaced with other formulas, or with inputs.
+        engine.setFormula("s", "a / 2");
+        Assert.assertEquals(-0.5, engine.get("s"), 0.0);
+        Assert.assertEquals(-5.0, engine.get("t"), 0.0);
+        engine.setInput("s", 1);
+        Assert.assertEquals(10.0, engine.get("t"), 0.0);
+        Assert.assertEquals(0, engine.getInputs("s").length);
+
+        // Cycles are rejected.
+        try {
+            engine.setFormula("b", "a + 1");
+            Assert.fail("CompileException expected");
+        } catch (CompileException ce) {
+            ;
+        }
+        Assert.assertEquals(-2.0, engine.get("b"), 0.0);
+
+        // Compile errors refer to the formula.
+        try {
+            engine.setFormula("u", "a +\n \"x\"");
+            Assert.fail("CompileException expected");
+        } catch (CompileException ce) {
+            Location loc = ce.getLocation();
+            Assert.assertNotNull(loc);
+            Assert.assertEquals("u", loc.getFileName());
+        }
+    }
+
+    @Test public void
+    testDataflowEngineParallel() throws Exception {
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            DataflowEngine engine = new DataflowEngine();
+            engine.setExecutor(executor);
+            StringBuilder sum = new StringBuilder("0");
+            for (int i = 0; i < 1000; i++) {
+                engine.setFormula("x" + i, "in * " + i);
+                sum.append(" + x").append(i);
+            }
+            engine.setFormula("sum", sum.toString());
+            engine.setInput("in", 2);
+            Assert.assertEquals(1001, engine.recompute());
+            Assert.assertEquals(999000.0, engine.get("sum"), 0.0);
+            Assert.assertEquals(1998.0, engine.get("x999"), 0.0);
+
+            engine.setInput("in", 1);
+            Assert.assertEquals(499500.0, engine.get("sum"), 0.0);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void
+    testDataflowEngineBatch() throws Exception {
+
+        Map<String, String> formulas = new LinkedHashMap<String, String>();
+        StringBuilder       sum      = new StringBuilder("0");
+        for (int i = 0; i < 3000; i++) {
+            formulas.put("x" + i, "in * " + i);
+            sum.append(" + x").append(i);
+        }
+        formulas.put("sum", sum.toString());
+
+        // The formulas are compiled into a few classes, not into one class per formula.
+        DataflowEngine     engine        = new DataflowEngine();
+        ClassLoadingMXBean classLoading  = ManagementFactory.getClassLoadingMXBean();
+        long               loadedClasses = classLoading.getTotalLoadedClassCount();
+        engine.setFormulas(formulas);
+        Assert.assertTrue(classLoading.getTotalLoadedClassCount() - loadedClasses < 100);
+
+        engine.setInput("in", 2);
+        Assert.assertEquals(3001, engine.recompute());
+        Assert.assertEquals(2998.0, engine.get("x1499"), 0.0);
+        Assert.assertEquals(2999.0 * 3000, engine.get("sum"), 0.0);
+
+        // Compile errors refer to the formula, and leave all cells unchanged.
+        formulas.put("x1000", "in +\n \"x\"");
+        formulas.put("y", "in");
+        engine = new DataflowEngine();
+        try {
+            engine.setFormulas(formulas);
+            Assert.fail("CompileException expected");
+        } catch (CompileException ce) {
+            Location loc = ce.getLocation();
+            Assert.assertNotNull(loc);
+            Assert.assertEquals("x1000", loc.getFileName());
+            Assert.assertEquals(2, loc.getLineNumber());
+        }
+        try {
+            engine.get("x0");
+            Assert.fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException iae) {
+            ;
+        }
+    }
+
+    @Test public void
+    testExpressionShapeCache() throws Exception {
+
+        ExpressionShapeCache esc = new ExpressionShapeCache();
+        esc.setExpressionType(boolean.class);
+        esc.setParameters(new String[] { "a", "s" }, new Class[] { int.class, String.class });
+
+        ExpressionShapeCache.CachedExpression e1 = esc.cook("a > 5");
+        ExpressionShapeCache.CachedExpression e2 = esc.cook("(a)>/* limit */7");
+        ExpressionShapeCache.CachedExpression e3 = esc.cook("((a) > -0x10)");
+        Assert.assertEquals(1, esc.getClassCount());
+        Assert.assertEquals(e1.getShape(), e3.getShape());
+        Assert.assertEquals(Arrays.asList(new Object[] { -16 }), Arrays.asList(e3.getConstants()));
+
+        Assert.assertEquals(true,  e1.evaluate(new Object[] { 6, "" }));
+        Assert.assertEquals(false, e2.evaluate(new Object[] { 6, "" }));
+        Assert.assertEquals(true,  e3.evaluate(new Object[] { -15, "" }));
+
+        // Different types of constants make different shapes.
+        Assert.assertEquals(true, esc.cook("a > 5L").evaluate(new Object[] { 6, "" }));
+        Assert.assertEquals(2, esc.getClassCount());
+
+        // Strings, chars and method invocations.
+        ExpressionShapeCache.CachedExpression e4 = esc.cook("s.startsWith(\"ab\") && s.charAt(a) == 'c'");
+        ExpressionShapeCache.CachedExpression e5 = esc.cook("s.startsWith( \"x\" )&&s.charAt(a)=='y'");
+        Assert.assertEquals(3, esc.getClassCount());
+        Assert.assertEquals(true,  e4.evaluate(new Object[] { 2, "abc" }));
+        Assert.assertEquals(false, e5.evaluate(new Object[] { 2, "abc" }));
+        Assert.assertEquals(true,  e5.evaluate(new Object[] { 1, "xy" }));
+
+        // Literals remain interned.
+        Assert.assertEquals(true, esc.cook("s == \"abc\"").evaluate(new Object[] { 0, "abc" }));
+
+        // Reconfiguration discards the compiled shapes.
+        esc.setExpressionType(int.class);
+        Assert.assertEquals(0, esc.getClassCount());
+        Assert.assertEquals(7, esc.cook("a + 2").evaluate(new Object[] { 5, "" }));
+        Assert.assertEquals(12, esc.cook("a+7").evaluate(new Object[] { 5, "" }));
+        Assert.assertEquals(1, esc.getClassCount());
+    }
+
+    @Test public void
+    testExpressionShapeCacheKeepsConstantSemantics() throws Exception {
+
+        ExpressionShapeCache esc = new ExpressionShapeCache();
+        esc.setParameters(new String[] { "b" }, new Class[] { boolean.class });
+
+        // The type of the conditional may depend on the constant values, so these are not lifted.
+        ExpressionShapeCache.CachedExpression e = esc.cook("b ? 'a' : 98");
+        Assert.assertEquals(0, e.getConstants().length);
+        Assert.assertEquals(
+            new ExpressionEvaluator("b ? 'a' : 98", Object.class, new String[] { "b" }, new Class[] { boolean.class })
+            .evaluate(new Object[] { false }),
+            e.evaluate(new Object[] { false })
+        );
+
+        // Compound constant expressions are not taken apart.
+        Assert.assertEquals(true, esc.cook("\"ab\" == \"a\" + \"b\"").evaluate(new Object[] { true }));
+
+        // A constant that must be narrowed prevents the lifting.
+        esc.setExpressionType(byte.class);
+        e = esc.cook("(byte) 9");
+        Assert.assertEquals((byte) 9, e.evaluate(new Object[] { true }));
+        Assert.assertEquals(0, e.getConstants().length);
+        Assert.assertEquals((byte) 3, esc.cook("3").evaluate(new Object[] { true }));
+        Assert.assertEquals((byte) 4, esc.cook("4").evaluate(new Object[] { true }));
+        Assert.assertEquals(3, esc.getClassCount());
+    }
+
+    @Test public void
+    testExpressionShapeCacheConditionalConstants() throws Exception {
+
+        ExpressionShapeCache esc = new ExpressionShapeCache();
+        esc.setParameters(new String[] { "b", "x" }, new Class[] { boolean.class, byte.class });
+        Object[] arguments = { false, (byte) 5 };
+
+        // "-1" is representable as a "byte", so the type of the conditional is "byte".
+        Assert.assertEquals((byte) -1, esc.cook("b ? x : -1").evaluate(arguments));
+
+        // "-200" is not, so the type of the conditional is "int"; this must not share the class of "b ? x : -1".
+        Assert.assertEquals(-200, esc.cook("b ? x : -200").evaluate(arguments));
+
+        // The same for compound constant expressions.
+        Assert.assertEquals((byte) 3, esc.cook("b ? x : (1 + 2)").evaluate(arguments));
+        Assert.assertEquals(300, esc.cook("b ? x : (100 * 3)").evaluate(arguments));
+    }
+
+    @Test public void
+    testExpressionShapeCacheCompileError() throws Exception {
+
+        ExpressionShapeCache esc = new ExpressionShapeCache();
+        esc.setParameters(new String[] { "x" }, new Class[] { int.class });
+        try {
+            esc.cook("a.txt", "x +\n  y");
+            Assert.fail("CompileException expected");
+        } catch (CompileException ce) {
+            Location loc = ce.getLocation();
+            Assert.assertNotNull(loc);
+            Assert.assertEquals("a.txt", loc.getFileName());
+            Assert.assertEquals(2, loc.getLineNumber());
+        }
+    }
+
+    /**
+     * Counts the invocation, and returns the <var>value</var>.
+     */
+    public static boolean
+    probe(int[] calls, boolean value) {
+        calls[0]++;
+        return value;
     }
 
     @Test public void
@@ -95,4 +717,99 @@ class ExpressionEvaluatorTest {
         ee.cook("\"HELLO\"");
         Assert.assertEquals("HELLO", ee.evaluate(null));
     }
+
+    @Test public void
+    testCompilationListener() throws Exception {
+
+        final List<CompilationMetrics> metrics = new ArrayList<CompilationMetrics>();
+
+        ExpressionEvaluator ee = new ExpressionEvaluator();
+        ee.setParameters(new String[] { "a", "b" }, new Class[] { int.class, int.class });
+        ee.setExpressionType(int.class);
+        ee.setCompilationListener(new CompilationListener() {
+            @Override public void compilationCompleted(CompilationMetrics m) { metrics.add(m); }
+        });
+
+        ee.cook("a + b * 7");
+        Assert.assertEquals(1, metrics.size());
+        Assert.assertEquals(17, ee.evaluate(new Object[] { 3, 2 }));
+
+        CompilationMetrics m = (CompilationMetrics) metrics.get(0);
+        Assert.assertEquals(5, m.getTokenCount() - 1); // Plus END_OF_INPUT.
+        Assert.assertTrue(m.getAstNodeCount() > 5);
+        Assert.assertEquals(1, m.getClassCount());
+        Assert.assertTrue(m.getMethodCount() >= 1);
+        Assert.assertTrue(m.getCodeBytes() > 0);
+        Assert.assertTrue(m.getConstantPoolEntryCount() > 0);
+        for (Phase phase : new Phase[] { Phase.PARSE, Phase.CODE_GENERATION, Phase.CLASS_DEFINITION }) {
+            Assert.assertTrue(phase.toString(), m.getWallTime(phase) > 0);
+        }
+
+        // Without a listener, nothing is measured.
+        ee.setCompilationListener(null);
+        ee.cook("a - b");
+        Assert.assertEquals(1, metrics.size());
+    }
+
+    @Test public void
+    testFlightRecorderEvents() throws Exception {
+
+        // JANINO's recorder requires the JFR API (JDK 8u262 and later) *and* "Lookup.defineClass()" (JDK 9 and later),
+        // so access both through reflection.
+        Class<?> recordingClass;
+        try {
+            recordingClass = Class.forName("jdk.jfr.Recording");
+            Class.forName("java.lang.invoke.MethodHandles$Lookup").getMethod("defineClass", byte[].class);
+        } catch (ClassNotFoundException cnfe) {
+            recordingClass = null;
+        } catch (NoSuchMethodException nsme) {
+            recordingClass = null;
+        }
+        Assume.assumeTrue("Flight recorder events are not available", recordingClass != null);
+        assert recordingClass != null;
+
+        Object recording = recordingClass.newInstance();
+        for (String eventName : new String[] { "Cook", "CompileUnit", "FindIClass", "DefineClass" }) {
+            recordingClass.getMethod("enable", String.class).invoke(recording, "org.codehaus.janino." + eventName);
+        }
+        recordingClass.getMethod("start").invoke(recording);
+
+        ExpressionEvaluator ee = new ExpressionEvaluator();
+        ee.setClassName("pkg.FlightRecorderTest");
+        ee.cook("new java.util.ArrayList().size()");
+        Assert.assertEquals(0, ee.evaluate(null));
+
+        recordingClass.getMethod("stop").invoke(recording);
+        File dump = File.createTempFile("janino", ".jfr");
+        try {
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            Object   path      = File.class.getMethod("toPath").invoke(dump);
+            recordingClass.getMethod("dump", pathClass).invoke(recording, path);
+
+            Set<String> eventNames = new HashSet<String>();
+            Method      getEventType, getName;
+            getEventType = Class.forName("jdk.jfr.consumer.RecordedEvent").getMethod("getEventType");
+            getName      = Class.forName("jdk.jfr.EventType").getMethod("getName");
+            for (Object event : (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile").getMethod(
+                "readAllEvents",
+                pathClass
+            ).invoke(null, path)) {
+                eventNames.add((String) getName.invoke(getEventType.invoke(event)));
+                if (String.valueOf(event).contains("pkg.FlightRecorderTest")) eventNames.add("(class name)");
+            }
+            Assert.assertEquals(
+                new HashSet<String>(Arrays.asList(
+                    "org.codehaus.janino.Cook",
+                    "org.codehaus.janino.CompileUnit",
+                    "org.codehaus.janino.FindIClass",
+                    "org.codehaus.janino.DefineClass",
+                    "(class name)"
+                )),
+                eventNames
+            );
+        } finally {
+            dump.delete();
+            recordingClass.getMethod("close").invoke(recording);
+        }
+    }
 }
@@ -26,8 +26,36 @@
 
 package org.codehaus.janino.tests;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.codehaus.commons.compiler.CompileException;
 import org.codehaus.commons.compiler.IScriptEvaluator;
+import org.codehaus.janino.ByteArrayClassLoader;
+import org.codehaus.janino.Coverage;
+import org.codehaus.janino.ExecutionBudget;
+import org.codehaus.janino.ExecutionBudgetExceededError;
+import org.codehaus.janino.Profiler;
+import org.codehaus.janino.Profiler.ProbeData;
 import org.codehaus.janino.ScriptEvaluator;
+import org.codehaus.janino.util.BytecodeArchive;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -70,4 +98,678 @@ class ScriptEvaluatorTest {
             Assert.assertTrue(cfe.getMessage(), cfe.getMessage().contains("Duplicate method"));
         }
     }
+
+    @Test public void
+    testBoundParameters() throws Exception {
+        ScriptEvaluator se = new ScriptEvaluator();
+        se.setReturnType(int.class);
+        se.setParameters(
+            new String[] { "x", "threshold", "verbose" },
+            new Class[] { int.class, int.class, boolean.class }
+        );
+        se.setBoundParameters(
+            new String[] { "threshold", "verbose", "table" },
+            new Class[] { int.class, boolean.class, int[].class },
+            new Object[] { 10, false, new int[] { 100, 200 } }
+        );
+        se.cook(
+            ""
+            + "if (verbose) System.out.println(\"x=\" + x);\n"
+            + "switch (x) {\n"
+            + "case threshold:     return table[0];\n"   // Requires "threshold" to be a constant.
+            + "case threshold + 1: return table[1];\n"
+            + "default:            return x < threshold ? -1 : 1;\n"
+            + "}\n"
+        );
+
+        // Bound parameters are not passed.
+        Assert.assertEquals(1, se.getMethod().getParameterTypes().length);
+        Assert.assertEquals(100, se.evaluate(new Object[] { 10 }));
+        Assert.assertEquals(200, se.evaluate(new Object[] { 11 }));
+        Assert.assertEquals(-1, se.evaluate(new Object[] { 9 }));
+        Assert.assertEquals(1, se.evaluate(new Object[] { 12 }));
+    }
+
+    @Test public void
+    testBoundParameterTypeMismatch() throws Exception {
+        ScriptEvaluator se = new ScriptEvaluator();
+        try {
+            se.setBoundParameters(new String[] { "a" }, new Class[] { int.class }, new Object[] { 7L });
+            Assert.fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException iae) {
+            ;
+        }
+    }
+
+    @Test public void
+    testBytecodeArchive() throws Exception {
+        File file = File.createTempFile("janino", ".jba");
+        file.delete();
+        try {
+
+            // Initially, the script is compiled and archived.
+            ArchivingScriptEvaluator se = ScriptEvaluatorTest.cookArchived(file, 1000000, "return a + b + c;");
+            Assert.assertFalse(se.loadedFromArchive);
+            Assert.assertEquals(6, se.evaluate(new Object[] { 1, 2 }));
+
+            // After a "restart", the script is loaded from the archive.
+            se = ScriptEvaluatorTest.cookArchived(file, 1000000, "return a + b + c;");
+            Assert.assertTrue(se.loadedFromArchive);
+            Assert.assertEquals(6, se.evaluate(new Object[] { 1, 2 }));
+
+            // A different script is not.
+            se = ScriptEvaluatorTest.cookArchived(file, 1000000, "return a * b * c;");
+            Assert.assertFalse(se.loadedFromArchive);
+            Assert.assertEquals(6, se.evaluate(new Object[] { 1, 2 }));
+        } finally {
+            file.delete();
+            new File(file.getPath() + ".lock").delete();
+        }
+    }
+
+    @Test public void
+    testBytecodeArchiveCompaction() throws Exception {
+        File file = File.createTempFile("janino", ".jba");
+        file.delete();
+        try {
+            for (int i = 0; i < 20; i++) {
+                ScriptEvaluatorTest.cookArchived(file, 4096, "return a + b + c + " + i + ";");
+                Assert.assertTrue(file.length() <= 4096);
+            }
+
+            // The most recently archived script has survived the compaction.
+            ArchivingScriptEvaluator se = ScriptEvaluatorTest.cookArchived(file, 4096, "return a + b + c + 19;");
+            Assert.assertTrue(se.loadedFromArchive);
+            Assert.assertEquals(25, se.evaluate(new Object[] { 1, 2 }));
+        } finally {
+            file.delete();
+            new File(file.getPath() + ".lock").delete();
+        }
+    }
+
+    @Test public void
+    testBytecodeArchiveTornRecord() throws Exception {
+        File file = File.createTempFile("janino", ".jba");
+        file.delete();
+        try {
+            ScriptEvaluatorTest.cookArchived(file, 1000000, "return a + b + c;");
+            long length = file.length();
+
+            // Simulate a writer that crashed while appending a record.
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.seek(length);
+                raf.writeInt(3);
+                raf.write(new byte[] { 'k', 'e', 'y' });
+                raf.writeInt(1000);
+                raf.write(new byte[10]);
+            } finally {
+                raf.close();
+            }
+
+            // The next writer truncates the torn record, so that the records that it appends can be found.
+            Assert.assertFalse(ScriptEvaluatorTest.cookArchived(file, 1000000, "return a - b - c;").loadedFromArchive);
+            Assert.assertTrue(ScriptEvaluatorTest.cookArchived(file, 1000000, "return a - b - c;").loadedFromArchive);
+            Assert.assertTrue(ScriptEvaluatorTest.cookArchived(file, 1000000, "return a + b + c;").loadedFromArchive);
+
+            // A record with a corrupt payload is never loaded (here: the last one).
+            raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.seek(raf.length() - 5);
+                int b = raf.read();
+                raf.seek(raf.length() - 5);
+                raf.write(b ^ 0xff);
+            } finally {
+                raf.close();
+            }
+            Assert.assertTrue(ScriptEvaluatorTest.cookArchived(file, 1000000, "return a + b + c;").loadedFromArchive);
+            ArchivingScriptEvaluator se = ScriptEvaluatorTest.cookArchived(file, 1000000, "return a - b - c;");
+            Assert.assertFalse(se.loadedFromArchive);
+            Assert.assertEquals(-4, se.evaluate(new Object[] { 1, 2 }));
+        } finally {
+            file.delete();
+            new File(file.getPath() + ".lock").delete();
+        }
+    }
+
+    @Test public void
+    testCommonSubexpressionElimination() throws Exception {
+        String script = (
+            ""
+            + "double a = f(x + y) * 3;\n"
+            + "double b = f(x + y) + 1;\n"
+            + "if (x > 0) return a + b + f(x + y) + Math.sqrt(x * x + y * y);\n"
+            + "return f(x + y) - a - Math.sqrt(x * x + y * y);\n"
+        );
+
+        // Without the optimization, "f(x + y)" is computed three times.
+        ScriptEvaluator se = ScriptEvaluatorTest.newFormulaEvaluator(false);
+        se.cook(script);
+        ScriptEvaluatorTest.fCalls = 0;
+        Assert.assertEquals(76.0, se.evaluate(new Object[] { 3.0, 4.0 }));
+        Assert.assertEquals(3, ScriptEvaluatorTest.fCalls);
+
+        se = ScriptEvaluatorTest.newFormulaEvaluator(true);
+        se.cook(script);
+        ScriptEvaluatorTest.fCalls = 0;
+        Assert.assertEquals(76.0, se.evaluate(new Object[] { 3.0, 4.0 }));
+        Assert.assertEquals(1, ScriptEvaluatorTest.fCalls);
+        ScriptEvaluatorTest.fCalls = 0;
+        Assert.assertEquals(-9.0, se.evaluate(new Object[] { -3.0, 4.0 }));
+        Assert.assertEquals(1, ScriptEvaluatorTest.fCalls);
+
+        // Each of several methods computes the common subexpression once.
+        se = ScriptEvaluatorTest.newFormulaEvaluator(true);
+        se.setMethodNames(new String[] { "m1", "m2" });
+        se.setReturnTypes(new Class[] { double.class, double.class });
+        se.setParameters(
+            new String[][] { { "x", "y" }, { "x", "y" } },
+            new Class[][] { { double.class, double.class }, { double.class, double.class } }
+        );
+        se.cook(new String[] { "return f(x * y) + f(x * y);", "return f(x * y) * f(x * y);" });
+        ScriptEvaluatorTest.fCalls = 0;
+        Assert.assertEquals(48.0, se.evaluate(0, new Object[] { 3.0, 4.0 }));
+        Assert.assertEquals(576.0, se.evaluate(1, new Object[] { 3.0, 4.0 }));
+        Assert.assertEquals(2, ScriptEvaluatorTest.fCalls);
+    }
+
+    @Test public void
+    testCommonSubexpressionEliminationIsSafe() throws Exception {
+
+        // A parameter that is assigned is not invariant.
+        ScriptEvaluator se = ScriptEvaluatorTest.newFormulaEvaluator(true);
+        se.cook("double a = f(x + 1);\nx = a;\nreturn a + f(x + 1);");
+        ScriptEvaluatorTest.fCalls = 0;
+        Assert.assertEquals(8.0 + 18.0, se.evaluate(new Object[] { 3.0, 0.0 }));
+        Assert.assertEquals(2, ScriptEvaluatorTest.fCalls);
+
+        // Local variables are not invariant, e.g. in loops.
+        se = ScriptEvaluatorTest.newFormulaEvaluator(true);
+        se.cook("double s = 0;\nfor (int i = 0; i < 3; i++) s += f(x + i) + f(x + i);\nreturn s;");
+        ScriptEvaluatorTest.fCalls = 0;
+        Assert.assertEquals(2 * (2.0 + 4.0 + 6.0), se.evaluate(new Object[] { 1.0, 0.0 }));
+        Assert.assertEquals(6, ScriptEvaluatorTest.fCalls);
+
+        // Methods that are not declared pure are invoked each time.
+        se = ScriptEvaluatorTest.newFormulaEvaluator(true);
+        se.setPureMethods(Arrays.asList(new String[] { "java.lang.Math" }));
+        se.cook("return f(x + y) + f(x + y);");
+        ScriptEvaluatorTest.fCalls = 0;
+        Assert.assertEquals(28.0, se.evaluate(new Object[] { 3.0, 4.0 }));
+        Assert.assertEquals(2, ScriptEvaluatorTest.fCalls);
+
+        // A subexpression is only computed when it is needed.
+        se = ScriptEvaluatorTest.newFormulaEvaluator(true);
+        se.cook("return x > 0 ? f(x + y) + f(x + y) : 0;");
+        ScriptEvaluatorTest.fCalls = 0;
+        Assert.assertEquals(0.0, se.evaluate(new Object[] { -1.0, 4.0 }));
+        Assert.assertEquals(0, ScriptEvaluatorTest.fCalls);
+    }
+
+    private static ScriptEvaluator
+    newFormulaEvaluator(boolean commonSubexpressionElimination) {
+        ScriptEvaluator se = new ScriptEvaluator();
+        se.setReturnType(double.class);
+        se.setParameters(new String[] { "x", "y" }, new Class[] { double.class, double.class });
+        se.setDefaultImports(new String[] { "static " + ScriptEvaluatorTest.class.getName() + ".f" });
+        se.setCommonSubexpressionElimination(commonSubexpressionElimination);
+        se.setPureMethods(Arrays.asList(new String[] { "java.lang.Math", ScriptEvaluatorTest.class.getName() + ".f" }));
+        return se;
+    }
+
+    /**
+     * The number of invocations of {@link #f(double)}.
+     */
+    static int fCalls;
+
+    /**
+     * A pure function, except that it counts its invocations.
+     */
+    public static double
+    f(double x) {
+        ScriptEvaluatorTest.fCalls++;
+        return 2 * x;
+    }
+
+    private static ArchivingScriptEvaluator
+    cookArchived(File file, long maxSize, String script) throws Exception {
+        BytecodeArchive archive = BytecodeArchive.open(file, maxSize);
+        try {
+            ArchivingScriptEvaluator se = new ArchivingScriptEvaluator();
+            se.setBytecodeArchive(archive);
+            se.setReturnType(int.class);
+            se.setParameters(new String[] { "a", "b", "c" }, new Class[] { int.class, int.class, int.class });
+            se.setBoundParameters(new String[] { "c" }, new Class[] { int.class }, new Object[] { 3 });
+            se.cook(script);
+            return se;
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test public void
+    testExecutionBudgetTicks() throws Exception {
+        ScriptEvaluator se = new ScriptEvaluator();
+        se.setExecutionBudgetChecks(true, false);
+        se.setReturnType(int.class);
+        se.setParameters(new String[] { "n" }, new Class[] { int.class });
+        se.cook("int sum = 0; for (int i = 0; i < n; i++) sum += i; return sum;");
+
+        // One tick for the method entry, and one for each loop iteration.
+        ExecutionBudget budget = new ExecutionBudget(11, ExecutionBudget.UNLIMITED);
+        Assert.assertEquals(45, ScriptEvaluatorTest.evaluate(se, budget, 10));
+        Assert.assertEquals(11, budget.getTicks());
+        Assert.assertFalse(budget.isExceeded());
+
+        budget.reset();
+        try {
+            ScriptEvaluatorTest.evaluate(se, budget, 11);
+            Assert.fail("ExecutionBudgetExceededError expected");
+        } catch (ExecutionBudgetExceededError ebee) {
+            Assert.assertTrue(ebee.getMessage(), ebee.getMessage().startsWith("Tick limit"));
+        }
+        Assert.assertTrue(budget.isExceeded());
+
+        // Without an entered budget, the checked code runs unlimited.
+        Assert.assertEquals(499500, se.evaluate(new Object[] { 1000 }));
+    }
+
+    @Test public void
+    testExecutionBudgetEndlessLoop() throws Exception {
+        ScriptEvaluator se = new ScriptEvaluator();
+        se.setExecutionBudgetChecks(true, false);
+        se.cook((
+            ""
+            + "while (true) {\n"
+            + "    try {\n"
+            + "        for (;;) Thread.yield();\n"
+            + "    } catch (Throwable t) {\n"
+            + "        ; // Attempt to swallow the error.\n"
+            + "    }\n"
+            + "}\n"
+        ));
+
+        ExecutionBudget budget = new ExecutionBudget(ExecutionBudget.UNLIMITED, ExecutionBudget.UNLIMITED);
+        budget.setTimeout(50);
+        try {
+            ScriptEvaluatorTest.evaluate(se, budget);
+            Assert.fail("ExecutionBudgetExceededError expected");
+        } catch (ExecutionBudgetExceededError ebee) {
+            Assert.assertTrue(ebee.getMessage(), ebee.getMessage().startsWith("Timeout"));
+        }
+    }
+
+    @Test public void
+    testExecutionBudgetRecursion() throws Exception {
+        ScriptEvaluator se = new ScriptEvaluator();
+        se.setExecutionBudgetChecks(true, false);
+        se.setReturnType(int.class);
+        se.cook((
+            ""
+            + "return fib(40);\n"
+            + "static int fib(int n) { return n < 2 ? n : fib(n - 1) + fib(n - 2); }\n"
+        ));
+
+        try {
+            ScriptEvaluatorTest.evaluate(se, new ExecutionBudget(100000, ExecutionBudget.UNLIMITED));
+            Assert.fail("ExecutionBudgetExceededError expected");
+        } catch (ExecutionBudgetExceededError ebee) {
+            ;
+        }
+    }
+
+    @Test public void
+    testExecutionBudgetAllocations() throws Exception {
+        ScriptEvaluator se = new ScriptEvaluator();
+        se.setExecutionBudgetChecks(false, true);
+        se.setReturnType(int.class);
+        se.setParameters(new String[] { "n" }, new Class[] { int.class });
+        se.cook((
+            ""
+            + "java.util.List l = new java.util.ArrayList();\n"
+            + "for (int i = 0; i < n; i++) l.add(new long[1000]);\n"
+            + "int[][] a = new int[10][10];\n"
+            + "return l.size() + a.length;\n"
+        ));
+
+        ExecutionBudget budget = new ExecutionBudget(ExecutionBudget.UNLIMITED, 100000);
+        Assert.assertEquals(20, ScriptEvaluatorTest.evaluate(se, budget, 10));
+        Assert.assertTrue(budget.getAllocatedBytes() > 80000);
+
+        budget.reset();
+        try {
+            ScriptEvaluatorTest.evaluate(se, budget, 20);
+            Assert.fail("ExecutionBudgetExceededError expected");
+        } catch (ExecutionBudgetExceededError ebee) {
+            Assert.assertTrue(ebee.getMessage(), ebee.getMessage().startsWith("Allocation limit"));
+        }
+    }
+
+    @Test public void
+    testProfiling() throws Exception {
+        ScriptEvaluator se = new ScriptEvaluator();
+        se.setProfiling(true, true);
+        se.setReturnType(int.class);
+        se.setParameters(new String[] { "n" }, new Class[] { int.class });
+        se.cook("profiled.script", (
+            ""
+            + "int sum = 0;\n"                // 1
+            + "for (int i = 0; i < n; i++) {\n" // 2
+            + "    if (i % 2 == 0) {\n"       // 3
+            + "        sum += i;\n"           // 4
+            + "    } else {\n"                // 5
+            + "        sum--;\n"              // 6
+            + "    }\n"                       // 7
+            + "}\n"                           // 8
+            + "return sum;\n"                 // 9
+        ));
+        Assert.assertEquals(15, se.evaluate(new Object[] { 10 }));
+        Assert.assertEquals(-1, se.evaluate(new Object[] { 2 }));
+
+        // Notice: The generated method is located at the end of the script, and the generated (and never invoked)
+        // constructor is also instrumented.
+        ProbeData[] profile = Profiler.getMXBean().getProfile("profiled.script");
+        Assert.assertEquals(
+            "[SC.eval0:10 METHOD count=2, SC.eval0:1 BLOCK count=2, SC.eval0:2 BLOCK count=2, "
+            + "SC.eval0:3 BLOCK count=12, SC.eval0:4 BLOCK count=6, SC.eval0:6 BLOCK count=6, "
+            + "SC.eval0:9 BLOCK count=2, SC.<init>:1 METHOD count=0, SC.<init>:1 BLOCK count=0]",
+            Arrays.toString(profile).replaceAll(" totalNanos=\\d+", "")
+        );
+        Assert.assertTrue(profile[0].getTotalNanos() > 0);
+        Assert.assertEquals(0, profile[1].getTotalNanos());
+
+        // The probes are also accessible through JMX.
+        MBeanServer mbs        = ManagementFactory.getPlatformMBeanServer();
+        ObjectName  objectName = new ObjectName(Profiler.OBJECT_NAME);
+        Assert.assertTrue(Arrays.asList((String[]) mbs.getAttribute(objectName, "EvaluatorNames")).contains(
+            "profiled.script"
+        ));
+        CompositeData[] cds = (CompositeData[]) mbs.invoke(
+            objectName,
+            "getProfile",
+            new Object[] { "profiled.script" },
+            new String[] { String.class.getName() }
+        );
+        Assert.assertEquals(9, cds.length);
+        Assert.assertEquals(3, cds[3].get("lineNumber"));
+        Assert.assertEquals(12L, cds[3].get("count"));
+
+        // Without profiling, no probes are registered.
+        ScriptEvaluator se2 = new ScriptEvaluator();
+        se2.cook("unprofiled.script", "for (int i = 0; i < 10; i++) System.identityHashCode(null);");
+        se2.evaluate(new Object[0]);
+        Assert.assertFalse(Arrays.asList(Profiler.getMXBean().getEvaluatorNames()).contains("unprofiled.script"));
+    }
+
+    @Test public void
+    testProfilingRecook() throws Exception {
+        final ScriptEvaluator se1 = new ScriptEvaluator();
+        se1.setProfiling(true, false);
+        se1.cook("recooked.script", "System.identityHashCode(null);");
+
+        // The counters are exact even if several threads execute the instrumented code.
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            (threads[i] = new Thread() {
+
+                @Override public void
+                run() {
+                    try {
+                        for (int j = 0; j < 10000; j++) se1.evaluate(new Object[0]);
+                    } catch (InvocationTargetException ite) {
+                        throw new AssertionError(ite);
+                    }
+                }
+            }).start();
+        }
+        for (Thread t : threads) t.join();
+        Assert.assertEquals(40000, Profiler.getMXBean().getProfile("recooked.script")[0].getCount());
+
+        // Re-cooking under the same name replaces the probes, and lists the name only once.
+        ScriptEvaluator se2 = new ScriptEvaluator();
+        se2.setProfiling(true, false);
+        se2.cook("recooked.script", "System.identityHashCode(null);\nSystem.identityHashCode(null);");
+        se2.evaluate(new Object[0]);
+        se1.evaluate(new Object[0]);
+        Assert.assertEquals(
+            "[SC.eval0:2 METHOD count=1, SC.eval0:1 BLOCK count=1, SC.<init>:1 METHOD count=0, "
+            + "SC.<init>:1 BLOCK count=0]",
+            Arrays.toString(Profiler.getMXBean().getProfile("recooked.script")).replaceAll(" totalNanos=\\d+", "")
+        );
+        Assert.assertEquals(1, Collections.frequency(
+            Arrays.asList(Profiler.getMXBean().getEvaluatorNames()),
+            "recooked.script"
+        ));
+
+        Profiler.remove("recooked.script");
+        Assert.assertEquals(0, Profiler.getMXBean().getProfile("recooked.script").length);
+        se2.evaluate(new Object[0]);
+    }
+
+    @Test public void
+    testProfilingUnnamed() throws Exception {
+
+        // Evaluators without a file name must not replace each other's probes.
+        List<String>    names = Arrays.asList(Profiler.getMXBean().getEvaluatorNames());
+        ScriptEvaluator se1   = new ScriptEvaluator();
+        se1.setProfiling(true, false);
+        se1.cook("System.identityHashCode(null);");
+        String name1 = ScriptEvaluatorTest.addedName(names, Arrays.asList(Profiler.getMXBean().getEvaluatorNames()));
+
+        names = Arrays.asList(Profiler.getMXBean().getEvaluatorNames());
+        ScriptEvaluator se2 = new ScriptEvaluator();
+        se2.setProfiling(true, false);
+        se2.cook("System.identityHashCode(null);");
+        String name2 = ScriptEvaluatorTest.addedName(names, Arrays.asList(Profiler.getMXBean().getEvaluatorNames()));
+
+        Assert.assertTrue(name1, name1.startsWith("SC#"));
+        Assert.assertTrue(name2, name2.startsWith("SC#"));
+
+        for (int i = 0; i < 3; i++) se1.evaluate(new Object[0]);
+        se2.evaluate(new Object[0]);
+        Assert.assertEquals(3, Profiler.getMXBean().getProfile(name1)[0].getCount());
+        Assert.assertEquals(1, Profiler.getMXBean().getProfile(name2)[0].getCount());
+
+        Profiler.remove(name1);
+        Profiler.remove(name2);
+    }
+
+    @Test public void
+    testCoverage() throws Exception {
+        ScriptEvaluator se = new ScriptEvaluator();
+        se.setCoverage(true);
+        se.setReturnType(int.class);
+        se.setParameters(new String[] { "n" }, new Class[] { int.class });
+        se.cook("covered.script", (
+            ""
+            + "if (n > 0) {\n"   // 1
+            + "    n = n * 2;\n" // 2
+            + "} else {\n"       // 3
+            + "    n = -n;\n"    // 4
+            + "}\n"              // 5
+            + "return n;\n"      // 6
+        ));
+        Assert.assertTrue(Coverage.getEvaluatorNames().contains("covered.script"));
+        Assert.assertEquals("{1=false, 2=false, 4=false, 6=false}", Coverage.snapshot("covered.script").toString());
+
+        Assert.assertEquals(10, se.evaluate(new Object[] { 5 }));
+        Assert.assertEquals("{1=true, 2=true, 4=false, 6=true}", Coverage.snapshot("covered.script").toString());
+
+        Assert.assertEquals(5, se.evaluate(new Object[] { -5 }));
+        Assert.assertEquals("{1=true, 2=true, 4=true, 6=true}", Coverage.snapshot("covered.script").toString());
+
+        Coverage.reset("covered.script");
+        Assert.assertEquals("{1=false, 2=false, 4=false, 6=false}", Coverage.snapshot("covered.script").toString());
+
+        // Without coverage mode, no hit map is allocated.
+        ScriptEvaluator se2 = new ScriptEvaluator();
+        se2.cook("uncovered.script", "System.identityHashCode(null);");
+        se2.evaluate(new Object[0]);
+        Assert.assertFalse(Coverage.getEvaluatorNames().contains("uncovered.script"));
+    }
+
+    @Test public void
+    testCoverageRecook() throws Exception {
+        ScriptEvaluator se1 = new ScriptEvaluator();
+        se1.setCoverage(true);
+        se1.cook("recovered.script", "int x = 1;\nx++;\nx++;\nx++;");
+        se1.evaluate(new Object[0]);
+        Assert.assertEquals("{1=true, 2=true, 3=true, 4=true}", Coverage.snapshot("recovered.script").toString());
+
+        // Re-cooking under the same name replaces the hit map; the old evaluator's hits are no longer recorded.
+        ScriptEvaluator se2 = new ScriptEvaluator();
+        se2.setCoverage(true);
+        se2.cook("recovered.script", "int x = 1;\nif (x > 1) x++;");
+        Assert.assertEquals("{1=false, 2=false}", Coverage.snapshot("recovered.script").toString());
+        se1.evaluate(new Object[0]);
+        Assert.assertEquals("{1=false, 2=false}", Coverage.snapshot("recovered.script").toString());
+        se2.evaluate(new Object[0]);
+        Assert.assertEquals("{1=true, 2=true}", Coverage.snapshot("recovered.script").toString());
+
+        Coverage.remove("recovered.script");
+        Assert.assertFalse(Coverage.getEvaluatorNames().contains("recovered.script"));
+        Assert.assertEquals("{}", Coverage.snapshot("recovered.script").toString());
+        se2.evaluate(new Object[0]);
+    }
+
+    @Test public void
+    testCoverageUnnamed() throws Exception {
+
+        // Evaluators without a file name must not replace each other's hit maps.
+        List<String>    names = new ArrayList<String>(Coverage.getEvaluatorNames());
+        ScriptEvaluator se1   = new ScriptEvaluator();
+        se1.setCoverage(true);
+        se1.cook("int x = 1;\nx++;\nx++;");
+        String name1 = ScriptEvaluatorTest.addedName(names, Coverage.getEvaluatorNames());
+        se1.evaluate(new Object[0]);
+
+        names = new ArrayList<String>(Coverage.getEvaluatorNames());
+        ScriptEvaluator se2 = new ScriptEvaluator();
+        se2.setCoverage(true);
+        se2.cook("int x = 1;");
+        String name2 = ScriptEvaluatorTest.addedName(names, Coverage.getEvaluatorNames());
+
+        Assert.assertTrue(name1, name1.startsWith("SC#"));
+        Assert.assertTrue(name2, name2.startsWith("SC#"));
+        Assert.assertEquals("{1=true, 2=true, 3=true}", Coverage.snapshot(name1).toString());
+        Assert.assertEquals("{1=false}", Coverage.snapshot(name2).toString());
+
+        Coverage.reset(name1);
+        se1.evaluate(new Object[0]);
+        Assert.assertEquals("{1=true, 2=true, 3=true}", Coverage.snapshot(name1).toString());
+        Assert.assertEquals("{1=false}", Coverage.snapshot(name2).toString());
+
+        Coverage.remove(name1);
+        Coverage.remove(name2);
+    }
+
+    @Test public void
+    testLoaderReleasesBytecode() throws Exception {
+
+        // A cooked evaluator retains its class loader, which must not retain the bytecode of the classes that it has
+        // already defined.
+        String              className = ScriptEvaluatorTest.BytecodeSubject.class.getName();
+        Map<String, byte[]> classes   = new HashMap<String, byte[]>();
+        classes.put(className, ScriptEvaluatorTest.readBytecode(ScriptEvaluatorTest.BytecodeSubject.class));
+
+        WeakReference<byte[]> bytecode = new WeakReference<byte[]>(classes.get(className));
+        ByteArrayClassLoader  loader   = new ByteArrayClassLoader(classes, null);
+        classes = null;
+
+        Assert.assertSame(loader, loader.loadClass(className).getClassLoader());
+        for (int i = 0; i < 100 && bytecode.get() != null; i++) System.gc();
+        Assert.assertNull(bytecode.get());
+
+        // Notice: Only now the loader becomes unreachable.
+        Assert.assertNotNull(loader);
+    }
+
+    /**
+     * Is loaded by {@link #testLoaderReleasesBytecode()}.
+     */
+    public static
+    class BytecodeSubject {}
+
+    @Test public void
+    testManyLocalVariables() throws Exception {
+
+        // Generated scripts often declare thousands of local variables in one block.
+        StringBuilder sb = new StringBuilder("int v0 = a;\n");
+        for (int i = 1; i < 3000; i++) sb.append("int v").append(i).append(" = v").append(i - 1).append(" + b;\n");
+        sb.append("return v2999 + v0;\n");
+
+        ScriptEvaluator se = new ScriptEvaluator();
+        se.setReturnType(int.class);
+        se.setParameters(new String[] { "a", "b" }, new Class[] { int.class, int.class });
+        se.cook(sb.toString());
+        Assert.assertEquals(2 + 2999 * 3 + 2, se.evaluate(new Object[] { 2, 3 }));
+
+        // Redefinitions must still be detected, and reported at the right location.
+        try {
+            new ScriptEvaluator("int x = 1;\nint y = 2;\n{ int z = 3, x = 4; }\n");
+            Assert.fail("CompileException expected");
+        } catch (CompileException ce) {
+            Assert.assertEquals("Line 3, Column 15: Redefinition of local variable \"x\" ", ce.getMessage());
+        }
+    }
+
+    /**
+     * @return The contents of the class file of the given class
+     */
+    private static byte[]
+    readBytecode(Class<?> clazz) throws IOException {
+        InputStream is = clazz.getResourceAsStream('/' + clazz.getName().replace('.', '/') + ".class");
+        Assert.assertNotNull(is);
+        try {
+            ByteArrayOutputStream baos   = new ByteArrayOutputStream();
+            byte[]                buffer = new byte[4096];
+            for (int n = is.read(buffer); n != -1; n = is.read(buffer)) baos.write(buffer, 0, n);
+            return baos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * @return The one element of <var>after</var> that is not in <var>before</var>
+     */
+    private static String
+    addedName(Collection<String> before, Collection<String> after) {
+        List<String> added = new ArrayList<String>(after);
+        added.removeAll(before);
+        Assert.assertEquals(added.toString(), 1, added.size());
+        return added.get(0);
+    }
+
+    /**
+     * Evaluates the script under the given budget, and unwraps the {@link ExecutionBudgetExceededError}.
+     */
+    private static Object
+    evaluate(ScriptEvaluator se, ExecutionBudget budget, Object... arguments) throws Exception {
+        budget.enter();
+        try {
+            return se.evaluate(arguments);
+        } catch (InvocationTargetException ite) {
+            Throwable te = ite.getTargetException();
+            if (te instanceof ExecutionBudgetExceededError) throw (ExecutionBudgetExceededError) te;
+            throw ite;
+        } finally {
+            budget.leave();
+        }
+    }
+
+    /**
+     * Records whether the script was loaded from the bytecode archive.
+     */
+    static
+    class ArchivingScriptEvaluator extends ScriptEvaluator {
+
+        boolean loadedFromArchive;
+
+        @Override protected void
+        loadArchived(ClassLoader classLoader, int count) {
+            super.loadArchived(classLoader, count);
+            this.loadedFromArchive = true;
+        }
+    }
 }